@@ -0,0 +1,92 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.NoBenchmarksException;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * Runs every benchmark with the GC profiler, once on a single thread and once on a thread per core, writing the results
+ * of each run as JSON to the results directory. SaltBenchmark instead runs at every power of two from 1 to 64 threads,
+ * since how it scales is what it measures. The PostgreSQL benchmarks only run when the 'suds.pg.host' system property
+ * is set.
+ *
+ * Arguments are regular expressions selecting the benchmarks to run; with none, every benchmark runs. For anything
+ * else, run the standard JMH runner with 'java -cp benchmarks.jar org.openjdk.jmh.Main'.
+ */
+public class BenchmarkRunner {
+
+    /** Directory the results are written to. */
+    private static final String RESULTS_DIRECTORY = "results";
+    /** Largest number of threads SaltBenchmark runs at. */
+    private static final int MAX_SALT_THREADS = 64;
+
+    /**
+     * Runs the benchmarks.
+     * @param args regular expressions selecting the benchmarks to run.
+     * @throws RunnerException if a benchmark fails.
+     */
+    public static void main(String[] args) throws RunnerException {
+        new File(RESULTS_DIRECTORY).mkdirs();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = cores > 1 ? new int[] {1, cores} : new int[] {1};
+        for (int threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(RESULTS_DIRECTORY + File.separator + "results-" + threads + "-threads.json");
+            if (args.length == 0) {
+                options.include(".*Benchmark\\..*");
+            }
+            for (String include : args) {
+                options.include(include);
+            }
+            if (System.getProperty("suds.pg.host") == null) {
+                options.exclude("PostgresUserDirectoryBenchmark");
+            }
+            options.exclude("SaltBenchmark");
+            try {
+                new Runner(options.build()).run();
+            } catch (NoBenchmarksException e) {
+                // only SaltBenchmark was selected
+                break;
+            }
+        }
+        if (selects(args, SaltBenchmark.class.getName())) {
+            for (int threads = 1; threads <= MAX_SALT_THREADS; threads *= 2) {
+                new Runner(new OptionsBuilder()
+                        .include(SaltBenchmark.class.getSimpleName())
+                        .threads(threads)
+                        .addProfiler(GCProfiler.class)
+                        .resultFormat(ResultFormatType.JSON)
+                        .result(RESULTS_DIRECTORY + File.separator + "salt-" + threads + "-threads.json")
+                        .build()).run();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the arguments select a benchmark class, the way JMH matches its include patterns.
+     * @param args regular expressions selecting the benchmarks to run, or none to run every benchmark.
+     * @param className the fully qualified name of the benchmark class.
+     * @return true if the class should run, false otherwise.
+     */
+    private static boolean selects(String[] args, String className) {
+        if (args.length == 0) {
+            return true;
+        }
+        for (String include : args) {
+            if (Pattern.compile(include).matcher(className).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
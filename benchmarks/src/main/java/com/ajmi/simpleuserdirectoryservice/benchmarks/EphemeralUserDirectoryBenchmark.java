@@ -0,0 +1,15 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+
+/**
+ * Benchmarks for the EphemeralUserDirectory class.
+ */
+public class EphemeralUserDirectoryBenchmark extends UserDirectoryBenchmark {
+
+    @Override
+    protected UserDirectory createDirectory() {
+        return new EphemeralUserDirectory();
+    }
+}
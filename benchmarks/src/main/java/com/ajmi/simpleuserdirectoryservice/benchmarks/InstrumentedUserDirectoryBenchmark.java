@@ -0,0 +1,17 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.InstrumentedUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+
+/**
+ * Benchmarks for the InstrumentedUserDirectory class, wrapping an EphemeralUserDirectory so its overhead can be compared
+ * with EphemeralUserDirectoryBenchmark.
+ */
+public class InstrumentedUserDirectoryBenchmark extends UserDirectoryBenchmark {
+
+    @Override
+    protected UserDirectory createDirectory() {
+        return new InstrumentedUserDirectory(new EphemeralUserDirectory());
+    }
+}
@@ -0,0 +1,72 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for hashing and verifying passwords with the PasswordCrypt class. Salt generation is benchmarked by
+ * SaltBenchmark.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordCryptBenchmark {
+
+    /** Length of the password being hashed. */
+    @Param({"8", "64"})
+    public int passwordLength;
+
+    /** Password being hashed. */
+    private String _password;
+    /** Salt the password is hashed with. */
+    private byte[] _salt;
+    /** Salt the password is hashed with, as a hex string. */
+    private String _hexSalt;
+    /** The password hashed with the salt. */
+    private byte[] _hashed;
+
+    /**
+     * Creates the password and salt.
+     */
+    @Setup
+    public void setUp() {
+        StringBuilder password = new StringBuilder();
+        for (int i = 0; i < passwordLength; i++) {
+            password.append((char) ('a' + i % 26));
+        }
+        _password = password.toString();
+        _salt = PasswordCrypt.nextSaltBytes();
+        _hexSalt = PasswordCrypt.nextSalt();
+        _hashed = PasswordCrypt.hashPassword(_password, _salt);
+    }
+
+    @Benchmark
+    public byte[] hashPassword() {
+        return PasswordCrypt.hashPassword(_password, _salt);
+    }
+
+    @Benchmark
+    public String hashPasswordHex() {
+        return PasswordCrypt.hashPassword(_password, _hexSalt);
+    }
+
+    @Benchmark
+    public boolean verifyPassword() {
+        return PasswordCrypt.verifyPassword(_password, _salt, _hashed);
+    }
+}
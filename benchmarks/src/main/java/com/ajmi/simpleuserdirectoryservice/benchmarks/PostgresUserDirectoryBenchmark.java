@@ -0,0 +1,35 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import com.ajmi.simpleuserdirectoryservice.directory.PostgresUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Benchmarks for the PostgresUserDirectory class, against the database named by the 'suds.pg.host', 'suds.pg.database',
+ * 'suds.pg.user', and 'suds.pg.pass' system properties, or by a suds-test.properties file if they are not set.
+ */
+public class PostgresUserDirectoryBenchmark extends UserDirectoryBenchmark {
+
+    @Override
+    protected UserDirectory createDirectory() throws Exception {
+        Properties properties = new Properties();
+        if (System.getProperty("suds.pg.host") != null) {
+            properties.putAll(System.getProperties());
+        } else {
+            try (FileInputStream in = new FileInputStream("suds-test.properties")) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw new IllegalStateException("Set the suds.pg.* system properties or add a suds-test.properties file.", e);
+            }
+        }
+        return PostgresUserDirectory.builder(properties.getProperty("suds.pg.host"),
+                properties.getProperty("suds.pg.database"),
+                properties.getProperty("suds.pg.user"),
+                properties.getProperty("suds.pg.pass"))
+                .maxPoolSize(Runtime.getRuntime().availableProcessors() * 2)
+                .build();
+    }
+}
@@ -0,0 +1,45 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for salt generation, which BenchmarkRunner runs at 1 to 64 threads to show how it scales. The shared
+ * SecureRandom benchmark is the single generator PasswordCrypt used before each thread had its own, for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaltBenchmark {
+
+    /** Generator shared by every thread. */
+    private static final SecureRandom SHARED_RANDOM = new SecureRandom();
+
+    @Benchmark
+    public String nextSalt() {
+        return PasswordCrypt.nextSalt();
+    }
+
+    @Benchmark
+    public byte[] nextSaltBytes() {
+        return PasswordCrypt.nextSaltBytes();
+    }
+
+    @Benchmark
+    public byte[] sharedSecureRandom() {
+        byte[] salt = new byte[PasswordCrypt.SALT_LENGTH];
+        SHARED_RANDOM.nextBytes(salt);
+        return salt;
+    }
+}
@@ -0,0 +1,251 @@
+package com.ajmi.simpleuserdirectoryservice.benchmarks;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks every operation of a user directory against a directory prepopulated with a parameterized number of
+ * users. Subclasses choose the directory. Read benchmarks pick a random prepopulated user; write benchmarks work on a
+ * user owned by the benchmark thread, so any number of threads can run them without conflicting.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public abstract class UserDirectoryBenchmark {
+
+    /** Password of every benchmark user. */
+    static final String PASSWORD = "correct horse battery staple";
+    /** Number of usernames in each page read by getUsersPage. */
+    static final int PAGE_SIZE = 100;
+    /** Number of credentials in each batch authenticated by authenticateUsers. */
+    static final int AUTHENTICATION_BATCH_SIZE = 100;
+    /** Number of usernames in each batch read by getUserDataBatch. */
+    static final int LOOKUP_BATCH_SIZE = 100;
+
+    /** Number of users the directory is prepopulated with. */
+    @Param({"1000", "100000"})
+    public int userCount;
+
+    /** The directory being benchmarked. */
+    UserDirectory _directory;
+    /** Usernames of the prepopulated users. */
+    String[] _usernames;
+    /** Prefix of every username created by this trial, so trials never collide in a shared directory. */
+    String _prefix;
+    /** Numbers the users owned by benchmark threads. */
+    final AtomicInteger _threadUsers = new AtomicInteger();
+
+    /**
+     * Creates the directory to benchmark.
+     * @return the directory.
+     * @throws Exception if the directory could not be created.
+     */
+    protected abstract UserDirectory createDirectory() throws Exception;
+
+    /**
+     * Creates the directory and prepopulates it with users.
+     * @throws Exception if the directory could not be created or populated.
+     */
+    @Setup(Level.Trial)
+    public void setUpDirectory() throws Exception {
+        _directory = createDirectory();
+        _prefix = "bench-" + System.nanoTime() + "-";
+        _usernames = new String[userCount];
+        List<UserRegistration> registrations = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            _usernames[i] = _prefix + i;
+            registrations.add(new UserRegistration(_usernames[i], _usernames[i] + "@example.com", "User " + i, PASSWORD));
+        }
+        Map<String, UserDirectoryException> failures = _directory.addUsers(registrations);
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Failed to prepopulate " + failures.size() + " users.", failures.values().iterator().next());
+        }
+    }
+
+    /**
+     * Removes every user created by the trial.
+     * @throws Exception if the users could not be removed.
+     */
+    @TearDown(Level.Trial)
+    public void tearDownDirectory() throws Exception {
+        for (String username : _directory.getUsers()) {
+            if (username.startsWith(_prefix)) {
+                _directory.removeUser(username);
+            }
+        }
+        if (_directory instanceof AutoCloseable) {
+            ((AutoCloseable) _directory).close();
+        }
+    }
+
+    /**
+     * A user owned by a single benchmark thread, for the write benchmarks to change. JMH can't hand the abstract
+     * benchmark state to a setup method, so the user is added to the directory by the first benchmark call that uses it.
+     */
+    @State(Scope.Thread)
+    public static class ThreadUser {
+        /** The user's current username, or null if the user has not been added yet. */
+        String _username;
+        /** The username the user is renamed to next. */
+        String _otherUsername;
+        /** Counts the thread's writes, so each write changes the user's data. */
+        int _writes;
+
+        /**
+         * Adds the thread's user to the benchmark's directory if it has not been added yet.
+         * @param benchmark the benchmark the thread is running.
+         * @throws UserDirectoryException if the user could not be added.
+         */
+        void ensureAdded(UserDirectoryBenchmark benchmark) throws UserDirectoryException {
+            if (_username != null) {
+                return;
+            }
+            int number = benchmark._threadUsers.getAndIncrement();
+            _username = benchmark._prefix + "thread-" + number;
+            _otherUsername = benchmark._prefix + "thread-" + number + "-renamed";
+            benchmark._directory.addUser(_username, "thread@example.com", "Thread " + number, PASSWORD);
+        }
+    }
+
+    /**
+     * Selects a random prepopulated user.
+     * @return the user's username.
+     */
+    String randomUsername() {
+        return _usernames[ThreadLocalRandom.current().nextInt(_usernames.length)];
+    }
+
+    @Benchmark
+    public boolean hasUser() throws UserDirectoryException {
+        return _directory.hasUser(randomUsername());
+    }
+
+    @Benchmark
+    public boolean hasUserMissing() throws UserDirectoryException {
+        return _directory.hasUser(randomUsername() + "-missing");
+    }
+
+    @Benchmark
+    public Optional<UserData> getUserData() throws UserDirectoryException {
+        return _directory.getUserData(randomUsername());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUP_BATCH_SIZE)
+    public Map<String, UserData> getUserDataBatch() throws UserDirectoryException {
+        List<String> usernames = new ArrayList<>(LOOKUP_BATCH_SIZE);
+        for (int i = 0; i < LOOKUP_BATCH_SIZE; i++) {
+            usernames.add(randomUsername());
+        }
+        return _directory.getUserData(usernames);
+    }
+
+    @Benchmark
+    public Authentication authenticateUser() throws UserDirectoryException {
+        return _directory.authenticateUserDetailed(randomUsername(), PASSWORD);
+    }
+
+    @Benchmark
+    public Authentication authenticateUserWrongPassword() throws UserDirectoryException {
+        return _directory.authenticateUserDetailed(randomUsername(), "wrong password");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AUTHENTICATION_BATCH_SIZE)
+    public List<Authentication> authenticateUsers() throws UserDirectoryException {
+        List<UserCredentials> credentials = new ArrayList<>(AUTHENTICATION_BATCH_SIZE);
+        for (int i = 0; i < AUTHENTICATION_BATCH_SIZE; i++) {
+            credentials.add(new UserCredentials(randomUsername(), PASSWORD));
+        }
+        return _directory.authenticateUsers(credentials);
+    }
+
+    @Benchmark
+    public boolean addAndRemoveUser(ThreadUser user) throws UserDirectoryException {
+        user.ensureAdded(this);
+        String username = user._username + "-added-" + user._writes++;
+        _directory.addUser(username, "added@example.com", "Added", PASSWORD);
+        return _directory.removeUser(username);
+    }
+
+    @Benchmark
+    public void updateEmail(ThreadUser user) throws UserDirectoryException {
+        user.ensureAdded(this);
+        _directory.updateEmail(user._username, "email" + user._writes++ + "@example.com");
+    }
+
+    @Benchmark
+    public void updateScreenName(ThreadUser user) throws UserDirectoryException {
+        user.ensureAdded(this);
+        _directory.updateScreenName(user._username, "Screen name " + user._writes++);
+    }
+
+    @Benchmark
+    public void updatePassword(ThreadUser user) throws UserDirectoryException {
+        user.ensureAdded(this);
+        _directory.updatePassword(user._username, PASSWORD + user._writes++);
+    }
+
+    @Benchmark
+    public void updateUsername(ThreadUser user) throws UserDirectoryException {
+        user.ensureAdded(this);
+        _directory.updateUsername(user._username, user._otherUsername);
+        String username = user._username;
+        user._username = user._otherUsername;
+        user._otherUsername = username;
+    }
+
+    @Benchmark
+    public String[] getUsers() throws UserDirectoryException {
+        return _directory.getUsers();
+    }
+
+    @Benchmark
+    public List<String> getUsersPage() throws UserDirectoryException {
+        return _directory.getUsers(randomUsername(), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<String> findUsersByPrefix() throws UserDirectoryException {
+        // drop the last two characters so the prefix matches a run of users
+        String username = randomUsername();
+        return _directory.findUsersByPrefix(username.substring(0, username.length() - 2), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public long streamUsers() throws UserDirectoryException {
+        try (Stream<String> usernames = _directory.streamUsers()) {
+            return usernames.count();
+        }
+    }
+}
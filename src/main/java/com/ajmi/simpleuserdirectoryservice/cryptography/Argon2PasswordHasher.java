@@ -0,0 +1,85 @@
+package com.ajmi.simpleuserdirectoryservice.cryptography;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes passwords with Argon2id, costing a configurable amount of memory, number of passes, and number of lanes.
+ */
+public final class Argon2PasswordHasher implements PasswordHasher {
+
+    /** Name of the scheme, which starts every id. */
+    public static final String SCHEME = "argon2id";
+
+    /** Memory used by each hash in KiB. */
+    private final int _memoryKiB;
+    /** Number of passes over the memory. */
+    private final int _iterations;
+    /** Number of lanes the memory is split into. */
+    private final int _parallelism;
+    /** Id of the hasher. */
+    private final String _id;
+
+    /**
+     * Creates a new Argon2PasswordHasher.
+     * @param memoryKiB the memory used by each hash in KiB.
+     * @param iterations the number of passes over the memory.
+     * @param parallelism the number of lanes the memory is split into.
+     */
+    public Argon2PasswordHasher(int memoryKiB, int iterations, int parallelism) {
+        if (parallelism < 1 || iterations < 1 || memoryKiB < 8 * parallelism) {
+            throw new IllegalArgumentException("Invalid Argon2 parameters: m=" + memoryKiB + ", t=" + iterations + ", p=" + parallelism + ".");
+        }
+        _memoryKiB = memoryKiB;
+        _iterations = iterations;
+        _parallelism = parallelism;
+        _id = SCHEME + "$m=" + memoryKiB + ",t=" + iterations + ",p=" + parallelism;
+    }
+
+    /**
+     * Retrieves the memory used by each hash.
+     * @return the memory in KiB.
+     */
+    public int getMemoryKiB() {
+        return _memoryKiB;
+    }
+
+    /**
+     * Retrieves the number of passes over the memory.
+     * @return the number of passes.
+     */
+    public int getIterations() {
+        return _iterations;
+    }
+
+    /**
+     * Retrieves the number of lanes the memory is split into.
+     * @return the number of lanes.
+     */
+    public int getParallelism() {
+        return _parallelism;
+    }
+
+    @Override
+    public String getId() {
+        return _id;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        Argon2Parameters parameters = new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                .withMemoryAsKB(_memoryKiB)
+                .withIterations(_iterations)
+                .withParallelism(_parallelism)
+                .withSalt(salt)
+                .build();
+        Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(parameters);
+        byte[] hashed = new byte[PasswordCrypt.HASH_LENGTH];
+        generator.generateBytes(password.getBytes(StandardCharsets.UTF_8), hashed);
+        return hashed;
+    }
+}
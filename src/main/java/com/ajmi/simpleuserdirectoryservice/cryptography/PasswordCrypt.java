@@ -1,9 +1,13 @@
 package com.ajmi.simpleuserdirectoryservice.cryptography;
 
-import org.bouncycastle.jcajce.provider.digest.SHA3;
+import org.bouncycastle.crypto.digests.SHA3Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static javax.xml.bind.DatatypeConverter.parseHexBinary;
 import static javax.xml.bind.DatatypeConverter.printHexBinary;
@@ -17,19 +21,37 @@ public class PasswordCrypt {
     private static final String INVALID_PASSWORD = "Invalid password string.";
     /** String used for exceptions dealing with an invalid salt parameter. */
     private static final String INVALID_SALT = "Invalid salt string.";
-    /** SecureRandom object used to generate a salt string. */
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
-    /** Length of the generated salt. */
-    private static final int SALT_LENGTH = 32;
+    /** System SecureRandom, used only to seed and reseed the generator of each thread. */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+    /** Number of salt generators created, which makes each generator's personalization string unique. */
+    private static final AtomicLong GENERATORS = new AtomicLong();
+    /** Length of the nonce each salt generator is instantiated with in bytes. */
+    private static final int NONCE_LENGTH = 16;
+    /** Number of salts each thread generates at once, since a generator's cost is mostly per request. */
+    private static final int SALTS_PER_REFILL = 32;
+    /** Salt source of each thread, so threads generating salts never contend on a shared lock. */
+    private static final ThreadLocal<SaltSource> SALT_SOURCE = ThreadLocal.withInitial(SaltSource::new);
+    /** Length of the generated salt in bytes. */
+    public static final int SALT_LENGTH = 32;
+    /** Length of a hashed password in bytes. */
+    public static final int HASH_LENGTH = 64;
+    /** Digest and buffers of each thread, reused by every hash the thread makes. */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
     /**
      * Generates a secure, random hex string to use as a salt.
      * @return a String of a hex number.
      */
     public static String nextSalt() {
-        byte[] saltBytes = new byte[SALT_LENGTH];
-        SECURE_RANDOM.nextBytes(saltBytes);
-        return printHexBinary(saltBytes);
+        return printHexBinary(nextSaltBytes());
+    }
+
+    /**
+     * Generates a secure, random salt.
+     * @return a new array of SALT_LENGTH random bytes.
+     */
+    public static byte[] nextSaltBytes() {
+        return SALT_SOURCE.get().next();
     }
 
     /**
@@ -47,13 +69,6 @@ public class PasswordCrypt {
             throw new IllegalArgumentException(INVALID_SALT);
         }
 
-        byte[] passwordBytes;
-        try {
-            passwordBytes = password.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalArgumentException(INVALID_PASSWORD, e);
-        }
-
         byte[] saltBytes;
         try {
             saltBytes = parseHexBinary(salt);
@@ -61,29 +76,235 @@ public class PasswordCrypt {
             throw new IllegalArgumentException(INVALID_SALT, e);
         }
 
-        final byte[] bytes = concat(passwordBytes, saltBytes);
-        SHA3.DigestSHA3 md = new SHA3.Digest512();
-        md.update(bytes);
-        byte[] digest = md.digest();
-        return printHexBinary(digest);
+        return printHexBinary(hashPassword(password, saltBytes));
     }
 
     /**
-     * Concatenates any number of byte arrays.
-     * @param args the Byte arrays to concatenate.
-     * @return a new byte containing the concatenated arguments.
+     * Hashes the specified password using the specified salt.
+     * @param password the password to hash.
+     * @param salt the salt to use when hashing the password.
+     * @return the hashed password as a new array of HASH_LENGTH bytes.
      */
-    private static byte[] concat(byte[]... args) {
-        int len = 0;
-        for (byte[] a : args) {
-            len += a.length;
-        }
-        byte[] dest = new byte[len];
-        int destPos = 0;
-        for (byte[] src : args) {
-            System.arraycopy(src, 0, dest, destPos, src.length);
-            destPos += src.length;
-        }
-        return dest;
+    public static byte[] hashPassword(String password, byte[] salt) {
+        // check arguments
+        if (password == null || password.length() == 0) {
+            throw new IllegalArgumentException(INVALID_PASSWORD);
+        }
+        if (salt == null || salt.length == 0) {
+            throw new IllegalArgumentException(INVALID_SALT);
+        }
+
+        Scratch scratch = SCRATCH.get();
+        scratch.hash(password, salt, 0, salt.length);
+        return Arrays.copyOf(scratch._output, HASH_LENGTH);
+    }
+
+    /**
+     * Checks that the specified password hashes to the specified hash when hashed with the specified salt. The hashes
+     * are compared in constant time. Reuses the calling thread's digest and buffers, so it allocates nothing.
+     * @param password the password to check.
+     * @param salt the salt the hash was made with.
+     * @param hashed the hash to compare against.
+     * @return true if the password matches the hash, false otherwise.
+     */
+    public static boolean verifyPassword(String password, byte[] salt, byte[] hashed) {
+        // check arguments
+        if (password == null || password.length() == 0) {
+            throw new IllegalArgumentException(INVALID_PASSWORD);
+        }
+        if (salt == null || salt.length == 0) {
+            throw new IllegalArgumentException(INVALID_SALT);
+        }
+
+        Scratch scratch = SCRATCH.get();
+        scratch.hash(password, salt, 0, salt.length);
+        return hashed != null && constantTimeEquals(scratch._output, hashed, 0, hashed.length);
+    }
+
+    /**
+     * Checks that the specified password hashes to the specified hex hash when hashed with the specified hex salt. The
+     * hashes are compared in constant time. Reuses the calling thread's digest and buffers, so it allocates nothing.
+     * @param password the password to check.
+     * @param salt the salt the hash was made with, as a hex string.
+     * @param hashed the hash to compare against, as a hex string.
+     * @return true if the password matches the hash, false otherwise.
+     */
+    public static boolean verifyPassword(String password, String salt, String hashed) {
+        // check arguments
+        if (password == null || password.length() == 0) {
+            throw new IllegalArgumentException(INVALID_PASSWORD);
+        }
+        if (salt == null || salt.length() == 0) {
+            throw new IllegalArgumentException(INVALID_SALT);
+        }
+
+        Scratch scratch = SCRATCH.get();
+        int saltLength = scratch.decodeHex(salt);
+        if (saltLength < 0) {
+            throw new IllegalArgumentException(INVALID_SALT);
+        }
+        scratch.hash(password, scratch._decoded, 0, saltLength);
+        // an invalid hex hash can never match, but is still compared so the time taken doesn't depend on it
+        int hashLength = hashed == null ? -1 : scratch.decodeHex(hashed);
+        return constantTimeEquals(scratch._output, scratch._decoded, 0, Math.max(hashLength, 0));
+    }
+
+    /**
+     * Compares a hash to a range of bytes, taking the same time wherever they first differ.
+     * @param hash the hash, HASH_LENGTH bytes long.
+     * @param other the array holding the bytes to compare against.
+     * @param start the index of the first byte to compare against.
+     * @param length the number of bytes to compare against.
+     * @return true if the range is exactly the hash, false otherwise.
+     */
+    private static boolean constantTimeEquals(byte[] hash, byte[] other, int start, int length) {
+        int difference = length ^ HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            // compare against the hash itself past the end of the range, so the loop always runs the same length
+            difference |= hash[i] ^ (i < length ? other[start + i] : ~hash[i]);
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Per-thread digest and buffers used to hash passwords without allocating.
+     */
+    private static final class Scratch {
+        /** SHA3-512 digest, reset after every hash. */
+        private final SHA3Digest _digest = new SHA3Digest(512);
+        /** Buffer the password is encoded into, grown to fit the longest password seen. */
+        private byte[] _input = new byte[64];
+        /** Buffer the hash is written to. */
+        private final byte[] _output = new byte[HASH_LENGTH];
+        /** Buffer hex strings are decoded into, grown to fit the longest string seen. */
+        private byte[] _decoded = new byte[HASH_LENGTH];
+
+        /**
+         * Hashes a password with a salt into _output.
+         * @param password the password to hash.
+         * @param salt the array holding the salt.
+         * @param start the index of the salt's first byte.
+         * @param length the length of the salt.
+         */
+        private void hash(String password, byte[] salt, int start, int length) {
+            int encoded = encodeUtf8(password);
+            _digest.update(_input, 0, encoded);
+            _digest.update(salt, start, length);
+            _digest.doFinal(_output, 0);
+            // don't leave the password lying around in memory
+            Arrays.fill(_input, 0, encoded, (byte) 0);
+        }
+
+        /**
+         * Encodes a string as UTF-8 into _input, growing it if needed. Unpaired surrogates are encoded as '?', the
+         * same as String.getBytes().
+         * @param value the string to encode.
+         * @return the number of bytes written.
+         */
+        private int encodeUtf8(String value) {
+            int length = value.length();
+            // a UTF-16 code unit never takes more than three bytes
+            if (_input.length < length * 3) {
+                _input = new byte[length * 3];
+            }
+            byte[] out = _input;
+            int position = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    out[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[position++] = (byte) (0xC0 | c >> 6);
+                    out[position++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    out[position++] = (byte) (0xF0 | codePoint >> 18);
+                    out[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    out[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    out[position++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    out[position++] = '?';
+                } else {
+                    out[position++] = (byte) (0xE0 | c >> 12);
+                    out[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    out[position++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Decodes a hex string into _decoded, growing it if needed.
+         * @param hex the hex string to decode.
+         * @return the number of bytes written, or -1 if the string is not valid hex.
+         */
+        private int decodeHex(String hex) {
+            int length = hex.length();
+            if (length % 2 != 0) {
+                return -1;
+            }
+            if (_decoded.length < length / 2) {
+                _decoded = new byte[length / 2];
+            }
+            for (int i = 0; i < length; i += 2) {
+                int high = Character.digit(hex.charAt(i), 16);
+                int low = Character.digit(hex.charAt(i + 1), 16);
+                if (high < 0 || low < 0) {
+                    return -1;
+                }
+                _decoded[i / 2] = (byte) (high << 4 | low);
+            }
+            return length / 2;
+        }
+    }
+
+    /**
+     * Salt generator of a single thread: a NIST SP 800-90A Hash_DRBG over SHA-512, seeded from the system SecureRandom
+     * with a fresh nonce and a personalization string unique to the generator, which reseeds itself from the system
+     * SecureRandom when its reseed interval runs out. Salts are generated SALTS_PER_REFILL at a time and handed out in
+     * order; salts are stored in the clear, so holding a few before they are used reveals nothing.
+     */
+    private static final class SaltSource {
+        /** The thread's generator. */
+        private final SecureRandom _random;
+        /** Generated salts that have not been handed out yet, from _position on. */
+        private final byte[] _buffer;
+        /** Offset of the next salt in the buffer. */
+        private int _position;
+
+        /**
+         * Creates and seeds a new generator.
+         */
+        private SaltSource() {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            SEED_SOURCE.nextBytes(nonce);
+            byte[] personalization = ByteBuffer.allocate(16)
+                    .putLong(GENERATORS.incrementAndGet())
+                    .putLong(Thread.currentThread().getId())
+                    .array();
+            _random = new SP800SecureRandomBuilder(SEED_SOURCE, false)
+                    .setPersonalizationString(personalization)
+                    .setSecurityStrength(256)
+                    .setEntropyBitsRequired(256)
+                    .buildHash(new SHA512Digest(), nonce, false);
+            _buffer = new byte[SALT_LENGTH * SALTS_PER_REFILL];
+            _position = _buffer.length;
+        }
+
+        /**
+         * Hands out the next salt, generating more if every buffered salt was used.
+         * @return a new array of SALT_LENGTH random bytes.
+         */
+        private byte[] next() {
+            if (_position == _buffer.length) {
+                _random.nextBytes(_buffer);
+                _position = 0;
+            }
+            byte[] salt = Arrays.copyOfRange(_buffer, _position, _position + SALT_LENGTH);
+            // don't leave a salt that was handed out behind in the buffer
+            Arrays.fill(_buffer, _position, _position + SALT_LENGTH, (byte) 0);
+            _position += SALT_LENGTH;
+            return salt;
+        }
     }
 }
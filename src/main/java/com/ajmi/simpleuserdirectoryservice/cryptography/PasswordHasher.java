@@ -0,0 +1,36 @@
+package com.ajmi.simpleuserdirectoryservice.cryptography;
+
+import java.security.MessageDigest;
+
+/**
+ * Scheme for hashing passwords, with fixed cost parameters. Every hash is stored with the id of the hasher that made
+ * it, so a directory can verify passwords hashed under an older scheme and rehash them under its current one.
+ */
+public interface PasswordHasher {
+
+    /**
+     * Retrieves the id of the hasher, which names its scheme and cost parameters, and is stored with every hash it
+     * makes. PasswordHashers.forId() recreates the hasher from its id.
+     * @return the hasher's id.
+     */
+    String getId();
+
+    /**
+     * Hashes a password with a salt.
+     * @param password the password to hash.
+     * @param salt the salt to hash the password with.
+     * @return a new array of PasswordCrypt.HASH_LENGTH bytes.
+     */
+    byte[] hash(String password, byte[] salt);
+
+    /**
+     * Checks that a password hashes to a hash made by this hasher. The hashes are compared in constant time.
+     * @param password the password to check.
+     * @param salt the salt the hash was made with.
+     * @param hashed the hash to compare against.
+     * @return true if the password matches the hash, false otherwise.
+     */
+    default boolean verify(String password, byte[] salt, byte[] hashed) {
+        return MessageDigest.isEqual(hash(password, salt), hashed);
+    }
+}
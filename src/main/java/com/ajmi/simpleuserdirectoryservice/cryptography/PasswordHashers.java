@@ -0,0 +1,182 @@
+package com.ajmi.simpleuserdirectoryservice.cryptography;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Static functions for creating password hashers from their ids, and for choosing cost parameters that make hashing
+ * take a target amount of time on the current host.
+ */
+public final class PasswordHashers {
+
+    private static final Logger LOGGER = Logger.getLogger(PasswordHashers.class.getName());
+
+    /** The original SHA3-512 hasher, which hashes every password stored before hashers were tagged. */
+    private static final PasswordHasher LEGACY = new Sha3PasswordHasher();
+    /** Hashers already created from their ids, so verifying a stored hash doesn't parse its id every time. */
+    private static final ConcurrentHashMap<String, PasswordHasher> BY_ID = new ConcurrentHashMap<>();
+    /** Number of timed hashes whose median is taken as the time of a hash. */
+    private static final int CALIBRATION_SAMPLES = 3;
+    /** Password hashed while calibrating. */
+    private static final String CALIBRATION_PASSWORD = "calibration password";
+
+    static {
+        BY_ID.put(LEGACY.getId(), LEGACY);
+    }
+
+    private PasswordHashers() {
+    }
+
+    /**
+     * Retrieves the original SHA3-512 hasher, which every directory uses unless given another.
+     * @return the legacy hasher.
+     */
+    public static PasswordHasher legacy() {
+        return LEGACY;
+    }
+
+    /**
+     * Creates the hasher with the given id, or retrieves it if it was already created.
+     * @param id the id of the hasher, as returned by PasswordHasher.getId().
+     * @return the hasher.
+     * @throws IllegalArgumentException if the id names an unknown scheme or invalid parameters.
+     */
+    public static PasswordHasher forId(String id) {
+        PasswordHasher hasher = BY_ID.get(id);
+        if (hasher == null) {
+            hasher = parse(id);
+            PasswordHasher existing = BY_ID.putIfAbsent(id, hasher);
+            if (existing != null) {
+                hasher = existing;
+            }
+        }
+        return hasher;
+    }
+
+    /**
+     * Chooses cost parameters for a scheme that make verifying a password take about the target time on the current
+     * host, by timing hashes at increasing cost. Argon2id keeps 19 MiB of memory and one lane and tunes its passes;
+     * scrypt keeps a block size of 8 and tunes its cost; PBKDF2 tunes its iterations. The legacy scheme has no cost to
+     * tune and is returned as it is.
+     * @param scheme the scheme's name, e.g. Argon2PasswordHasher.SCHEME.
+     * @param targetMillis the target time of a single hash in milliseconds.
+     * @return a hasher for the scheme with the chosen cost.
+     * @throws IllegalArgumentException if the scheme is unknown.
+     */
+    public static PasswordHasher calibrate(String scheme, long targetMillis) {
+        long targetNanos = targetMillis * 1_000_000L;
+        PasswordHasher hasher;
+        switch (scheme) {
+            case Sha3PasswordHasher.ID:
+                return LEGACY;
+            case Pbkdf2PasswordHasher.SCHEME: {
+                int iterations = 10_000;
+                long nanos = time(new Pbkdf2PasswordHasher(iterations));
+                while (nanos < targetNanos / 4 && iterations < Integer.MAX_VALUE / 2) {
+                    iterations *= 2;
+                    nanos = time(new Pbkdf2PasswordHasher(iterations));
+                }
+                // the time of PBKDF2 is linear in its iterations, so scale straight to the target
+                hasher = new Pbkdf2PasswordHasher((int) Math.max(1, Math.min(Integer.MAX_VALUE, (double) iterations * targetNanos / nanos)));
+                break;
+            }
+            case Argon2PasswordHasher.SCHEME: {
+                int memoryKiB = 19 * 1024;
+                long nanos = time(new Argon2PasswordHasher(memoryKiB, 1, 1));
+                // the time of Argon2 is linear in its passes
+                hasher = new Argon2PasswordHasher(memoryKiB, (int) Math.max(1, Math.round((double) targetNanos / nanos)), 1);
+                break;
+            }
+            case ScryptPasswordHasher.SCHEME: {
+                int cost = 1 << 10;
+                long nanos = time(new ScryptPasswordHasher(cost, 8, 1));
+                // the cost must stay a power of two, so stop at whichever doubling lands nearest the target
+                while (nanos * 2 - targetNanos < targetNanos - nanos && cost < 1 << 24) {
+                    cost *= 2;
+                    nanos = time(new ScryptPasswordHasher(cost, 8, 1));
+                }
+                hasher = new ScryptPasswordHasher(cost, 8, 1);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown password hashing scheme: \"" + scheme + "\".");
+        }
+        LOGGER.log(Level.INFO, "Calibrated password hasher \"" + hasher.getId() + "\" for " + targetMillis + " ms.");
+        return forId(hasher.getId());
+    }
+
+    /**
+     * Times a hasher, taking the median of a few hashes after warming it up.
+     * @param hasher the hasher to time.
+     * @return the median time of a hash in nanoseconds.
+     */
+    private static long time(PasswordHasher hasher) {
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        hasher.hash(CALIBRATION_PASSWORD, salt);
+        long[] samples = new long[CALIBRATION_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            hasher.hash(CALIBRATION_PASSWORD, salt);
+            samples[i] = Math.max(1, System.nanoTime() - start);
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    /**
+     * Creates a hasher from its id.
+     * @param id the id of the hasher.
+     * @return the new hasher.
+     * @throws IllegalArgumentException if the id names an unknown scheme or invalid parameters.
+     */
+    private static PasswordHasher parse(String id) {
+        int separator = id.indexOf('$');
+        String scheme = separator < 0 ? id : id.substring(0, separator);
+        Map<String, Integer> parameters = new HashMap<>();
+        if (separator >= 0) {
+            for (String parameter : id.substring(separator + 1).split(",")) {
+                int equals = parameter.indexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException("Invalid password hasher id: \"" + id + "\".");
+                }
+                try {
+                    parameters.put(parameter.substring(0, equals), Integer.parseInt(parameter.substring(equals + 1)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid password hasher id: \"" + id + "\".", e);
+                }
+            }
+        }
+        switch (scheme) {
+            case Pbkdf2PasswordHasher.SCHEME:
+                return new Pbkdf2PasswordHasher(parameter(parameters, "i", id));
+            case Argon2PasswordHasher.SCHEME:
+                return new Argon2PasswordHasher(parameter(parameters, "m", id), parameter(parameters, "t", id),
+                        parameter(parameters, "p", id));
+            case ScryptPasswordHasher.SCHEME:
+                return new ScryptPasswordHasher(parameter(parameters, "n", id), parameter(parameters, "r", id),
+                        parameter(parameters, "p", id));
+            default:
+                throw new IllegalArgumentException("Unknown password hashing scheme: \"" + scheme + "\".");
+        }
+    }
+
+    /**
+     * Retrieves a required parameter of a hasher id.
+     * @param parameters the parsed parameters.
+     * @param name the name of the parameter.
+     * @param id the id the parameters were parsed from.
+     * @return the parameter's value.
+     * @throws IllegalArgumentException if the parameter is missing.
+     */
+    private static int parameter(Map<String, Integer> parameters, String name, String id) {
+        Integer value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Password hasher id \"" + id + "\" is missing parameter \"" + name + "\".");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,54 @@
+package com.ajmi.simpleuserdirectoryservice.cryptography;
+
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes passwords with PBKDF2 using HMAC-SHA512, costing a configurable number of iterations. HMAC-SHA512 yields the
+ * whole 64-byte hash in a single PBKDF2 block, so verifying a guess costs an attacker as much as it costs the server.
+ */
+public final class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    /** Name of the scheme, which starts every id. */
+    public static final String SCHEME = "pbkdf2-sha512";
+
+    /** Number of HMAC iterations. */
+    private final int _iterations;
+    /** Id of the hasher. */
+    private final String _id;
+
+    /**
+     * Creates a new Pbkdf2PasswordHasher.
+     * @param iterations the number of HMAC iterations.
+     */
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Invalid PBKDF2 iteration count: " + iterations + ".");
+        }
+        _iterations = iterations;
+        _id = SCHEME + "$i=" + iterations;
+    }
+
+    /**
+     * Retrieves the number of HMAC iterations.
+     * @return the number of iterations.
+     */
+    public int getIterations() {
+        return _iterations;
+    }
+
+    @Override
+    public String getId() {
+        return _id;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA512Digest());
+        generator.init(password.getBytes(StandardCharsets.UTF_8), salt, _iterations);
+        return ((KeyParameter) generator.generateDerivedParameters(PasswordCrypt.HASH_LENGTH * 8)).getKey();
+    }
+}
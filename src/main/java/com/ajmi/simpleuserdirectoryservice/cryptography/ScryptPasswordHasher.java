@@ -0,0 +1,74 @@
+package com.ajmi.simpleuserdirectoryservice.cryptography;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes passwords with scrypt, costing a configurable CPU/memory cost, block size, and parallelization.
+ */
+public final class ScryptPasswordHasher implements PasswordHasher {
+
+    /** Name of the scheme, which starts every id. */
+    public static final String SCHEME = "scrypt";
+
+    /** CPU/memory cost, a power of two. */
+    private final int _cost;
+    /** Block size. */
+    private final int _blockSize;
+    /** Parallelization. */
+    private final int _parallelism;
+    /** Id of the hasher. */
+    private final String _id;
+
+    /**
+     * Creates a new ScryptPasswordHasher. Each hash uses 128 * cost * blockSize bytes of memory.
+     * @param cost the CPU/memory cost, a power of two.
+     * @param blockSize the block size.
+     * @param parallelism the parallelization.
+     */
+    public ScryptPasswordHasher(int cost, int blockSize, int parallelism) {
+        if (cost < 2 || Integer.bitCount(cost) != 1 || blockSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Invalid scrypt parameters: n=" + cost + ", r=" + blockSize + ", p=" + parallelism + ".");
+        }
+        _cost = cost;
+        _blockSize = blockSize;
+        _parallelism = parallelism;
+        _id = SCHEME + "$n=" + cost + ",r=" + blockSize + ",p=" + parallelism;
+    }
+
+    /**
+     * Retrieves the CPU/memory cost.
+     * @return the cost, a power of two.
+     */
+    public int getCost() {
+        return _cost;
+    }
+
+    /**
+     * Retrieves the block size.
+     * @return the block size.
+     */
+    public int getBlockSize() {
+        return _blockSize;
+    }
+
+    /**
+     * Retrieves the parallelization.
+     * @return the parallelization.
+     */
+    public int getParallelism() {
+        return _parallelism;
+    }
+
+    @Override
+    public String getId() {
+        return _id;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        return SCrypt.generate(password.getBytes(StandardCharsets.UTF_8), salt, _cost, _blockSize, _parallelism,
+                PasswordCrypt.HASH_LENGTH);
+    }
+}
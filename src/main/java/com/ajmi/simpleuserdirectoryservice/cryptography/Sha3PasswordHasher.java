@@ -0,0 +1,33 @@
+package com.ajmi.simpleuserdirectoryservice.cryptography;
+
+/**
+ * The original password hashing scheme: a single SHA3-512 of the password followed by the salt. Fast, so only kept to
+ * verify existing hashes until they are rehashed under a slower scheme.
+ */
+public final class Sha3PasswordHasher implements PasswordHasher {
+
+    /** Id of the scheme, which has no parameters. */
+    public static final String ID = "sha3-512";
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        return PasswordCrypt.hashPassword(password, salt);
+    }
+
+    /**
+     * Checks the password with PasswordCrypt's allocation-free verification.
+     * @param password the password to check.
+     * @param salt the salt the hash was made with.
+     * @param hashed the hash to compare against.
+     * @return true if the password matches the hash, false otherwise.
+     */
+    @Override
+    public boolean verify(String password, byte[] salt, byte[] hashed) {
+        return PasswordCrypt.verifyPassword(password, salt, hashed);
+    }
+}
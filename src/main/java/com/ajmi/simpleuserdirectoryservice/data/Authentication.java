@@ -9,5 +9,7 @@ public enum Authentication {
     /** If the given username did not belong to any users. */
     INVALID_USERNAME,
     /** If the given password was not the valid password for the specified user. */
-    INVALID_PASSWORD
+    INVALID_PASSWORD,
+    /** If the attempt was turned away without being checked, because too many attempts had been made. */
+    THROTTLED
 }
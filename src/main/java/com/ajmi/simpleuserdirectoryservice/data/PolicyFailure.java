@@ -13,5 +13,7 @@ public enum PolicyFailure {
     /** The screen name failed the policy. */
     ILLEGAL_SCREEN_NAME,
     /** The password failed the policy. */
-    ILLEGAL_PASSWORD
+    ILLEGAL_PASSWORD,
+    /** The email is already used by another user, and the policy requires emails to be unique. */
+    DUPLICATE_EMAIL
 }
@@ -0,0 +1,38 @@
+package com.ajmi.simpleuserdirectoryservice.data;
+
+/**
+ * Object containing a username and password to authenticate, as one entry of a batch.
+ */
+public class UserCredentials {
+
+    /** Username of the user to authenticate. */
+    private final String _username;
+    /** Password used to authenticate the user. */
+    private final String _password;
+
+    /**
+     * Create a new UserCredentials object from the provided username and password.
+     * @param username the username of the user to authenticate.
+     * @param password the password used to authenticate the user.
+     */
+    public UserCredentials(String username, String password) {
+        _username = username;
+        _password = password;
+    }
+
+    /**
+     * Get the username of the user to authenticate.
+     * @return the user's username.
+     */
+    public String getUsername() {
+        return _username;
+    }
+
+    /**
+     * Get the password used to authenticate the user.
+     * @return the password.
+     */
+    public String getPassword() {
+        return _password;
+    }
+}
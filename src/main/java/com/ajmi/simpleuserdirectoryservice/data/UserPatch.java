@@ -0,0 +1,210 @@
+package com.ajmi.simpleuserdirectoryservice.data;
+
+/**
+ * Object containing changes to several of a user's fields, applied together by UserDirectory.updateUser(). Fields the
+ * patch doesn't set are left unchanged. Setting the email to null clears it.
+ */
+public class UserPatch {
+
+    /** New username of the user, if set. */
+    private final String _username;
+    /** Whether the patch changes the username. */
+    private final boolean _usernameSet;
+    /** New email of the user, if set. */
+    private final String _email;
+    /** Whether the patch changes the email. */
+    private final boolean _emailSet;
+    /** New screen name of the user, if set. */
+    private final String _screenName;
+    /** Whether the patch changes the screen name. */
+    private final boolean _screenNameSet;
+    /** New password of the user, if set. */
+    private final String _password;
+    /** Whether the patch changes the password. */
+    private final boolean _passwordSet;
+
+    /**
+     * Creates a new UserPatch from a builder.
+     * @param builder the builder holding the changes.
+     */
+    private UserPatch(Builder builder) {
+        _username = builder._username;
+        _usernameSet = builder._usernameSet;
+        _email = builder._email;
+        _emailSet = builder._emailSet;
+        _screenName = builder._screenName;
+        _screenNameSet = builder._screenNameSet;
+        _password = builder._password;
+        _passwordSet = builder._passwordSet;
+    }
+
+    /**
+     * Creates a builder for a patch that changes nothing until fields are set.
+     * @return a new Builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Checks if the patch changes the username.
+     * @return true if the username is set, false otherwise.
+     */
+    public boolean hasUsername() {
+        return _usernameSet;
+    }
+
+    /**
+     * Get the new username of the user.
+     * @return the new username, or null if the patch doesn't change it.
+     */
+    public String getUsername() {
+        return _username;
+    }
+
+    /**
+     * Checks if the patch changes the email.
+     * @return true if the email is set, false otherwise.
+     */
+    public boolean hasEmail() {
+        return _emailSet;
+    }
+
+    /**
+     * Get the new email of the user.
+     * @return the new email, or null if the patch clears it or doesn't change it.
+     */
+    public String getEmail() {
+        return _email;
+    }
+
+    /**
+     * Checks if the patch changes the screen name.
+     * @return true if the screen name is set, false otherwise.
+     */
+    public boolean hasScreenName() {
+        return _screenNameSet;
+    }
+
+    /**
+     * Get the new screen name of the user.
+     * @return the new screen name, or null if the patch doesn't change it.
+     */
+    public String getScreenName() {
+        return _screenName;
+    }
+
+    /**
+     * Checks if the patch changes the password.
+     * @return true if the password is set, false otherwise.
+     */
+    public boolean hasPassword() {
+        return _passwordSet;
+    }
+
+    /**
+     * Get the new password of the user.
+     * @return the new password, or null if the patch doesn't change it.
+     */
+    public String getPassword() {
+        return _password;
+    }
+
+    /**
+     * Checks if the patch changes nothing.
+     * @return true if no field is set, false otherwise.
+     */
+    public boolean isEmpty() {
+        return !_usernameSet && !_emailSet && !_screenNameSet && !_passwordSet;
+    }
+
+    /**
+     * Builds a UserPatch one field at a time.
+     */
+    public static final class Builder {
+
+        /** New username of the user, if set. */
+        private String _username;
+        /** Whether the patch changes the username. */
+        private boolean _usernameSet;
+        /** New email of the user, if set. */
+        private String _email;
+        /** Whether the patch changes the email. */
+        private boolean _emailSet;
+        /** New screen name of the user, if set. */
+        private String _screenName;
+        /** Whether the patch changes the screen name. */
+        private boolean _screenNameSet;
+        /** New password of the user, if set. */
+        private String _password;
+        /** Whether the patch changes the password. */
+        private boolean _passwordSet;
+
+        /**
+         * Creates a new Builder that changes nothing.
+         */
+        private Builder() {
+        }
+
+        /**
+         * Changes the user's username.
+         * @param username the new username.
+         * @return this Builder.
+         */
+        public Builder username(String username) {
+            if (username == null) {
+                throw new NullPointerException("username");
+            }
+            _username = username;
+            _usernameSet = true;
+            return this;
+        }
+
+        /**
+         * Changes the user's email.
+         * @param email the new email, or null to clear it.
+         * @return this Builder.
+         */
+        public Builder email(String email) {
+            _email = email;
+            _emailSet = true;
+            return this;
+        }
+
+        /**
+         * Changes the user's screen name.
+         * @param screenName the new screen name.
+         * @return this Builder.
+         */
+        public Builder screenName(String screenName) {
+            if (screenName == null) {
+                throw new NullPointerException("screenName");
+            }
+            _screenName = screenName;
+            _screenNameSet = true;
+            return this;
+        }
+
+        /**
+         * Changes the user's password.
+         * @param password the new password.
+         * @return this Builder.
+         */
+        public Builder password(String password) {
+            if (password == null) {
+                throw new NullPointerException("password");
+            }
+            _password = password;
+            _passwordSet = true;
+            return this;
+        }
+
+        /**
+         * Creates the UserPatch.
+         * @return a new UserPatch holding the changes set so far.
+         */
+        public UserPatch build() {
+            return new UserPatch(this);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.ajmi.simpleuserdirectoryservice.data;
+
+/**
+ * Object containing the information needed to add a new user to a directory.
+ */
+public class UserRegistration {
+
+    /** Username of the new user. */
+    private final String _username;
+    /** Email of the new user. */
+    private final String _email;
+    /** Screen name of the new user. */
+    private final String _screenName;
+    /** Password of the new user. */
+    private final String _password;
+
+    /**
+     * Create a new UserRegistration object from the provided information.
+     * @param username the username of the new user.
+     * @param email the email of the new user.
+     * @param screenName the screen name of the new user.
+     * @param password the password of the new user.
+     */
+    public UserRegistration(String username, String email, String screenName, String password) {
+        _username = username;
+        _email = email;
+        _screenName = screenName;
+        _password = password;
+    }
+
+    /**
+     * Get the username of the new user.
+     * @return the new user's username.
+     */
+    public String getUsername() {
+        return _username;
+    }
+
+    /**
+     * Get the email of the new user.
+     * @return the new user's email.
+     */
+    public String getEmail() {
+        return _email;
+    }
+
+    /**
+     * Get the screen name of the new user.
+     * @return the new user's screen name.
+     */
+    public String getScreenName() {
+        return _screenName;
+    }
+
+    /**
+     * Get the password of the new user.
+     * @return the new user's password.
+     */
+    public String getPassword() {
+        return _password;
+    }
+}
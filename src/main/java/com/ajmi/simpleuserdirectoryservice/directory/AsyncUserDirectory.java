@@ -0,0 +1,186 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of UserDirectory. Every operation returns immediately with a CompletableFuture that is
+ * completed with the operation's result, or completed exceptionally with the UserDirectoryException the blocking
+ * operation would have thrown.
+ */
+public interface AsyncUserDirectory {
+
+    /**
+     * Checks if the specified user exists in the directory.
+     * @param username the user name of the user to check for.
+     * @return a future completed with true if the user was found in the directory, false otherwise.
+     */
+    CompletableFuture<Boolean> hasUser(String username);
+
+    /**
+     * Checks which of the specified users exist in the directory.
+     * @param usernames the user names of the users to check for.
+     * @return a future completed with the user names that were found in the directory.
+     */
+    CompletableFuture<Set<String>> hasUsers(Collection<String> usernames);
+
+    /**
+     * Tries to add a user to the directory with the given user name, email, screen name, and password.
+     * @param username the user name of the new entry.
+     * @param email the email of the new entry.
+     * @param screeName the screen name of the new entry.
+     * @param password the password of the new entry.
+     * @return a future completed when the user has been added, or completed exceptionally with a
+     * UserAlreadyExistsException or PolicyFailureException if the user could not be added.
+     */
+    CompletableFuture<Void> addUser(String username, String email, String screeName, String password);
+
+    /**
+     * Tries to add every user in the given collection to the directory.
+     * @param users the registrations of the users to add.
+     * @return a future completed with a map from the username of every registration that could not be added to the
+     * exception explaining why.
+     */
+    CompletableFuture<Map<String, UserDirectoryException>> addUsers(Collection<UserRegistration> users);
+
+    /**
+     * Tries to remove the user with the given user name from the directory.
+     * @param username the user name of the user to remove.
+     * @return a future completed with true if the user was removed, false if the user did not exist or could not be
+     * removed.
+     */
+    CompletableFuture<Boolean> removeUser(String username);
+
+    /**
+     * Retrieves a list of all the user names of users in the directory
+     * @return a future completed with an array of strings, containing all users' user names.
+     */
+    CompletableFuture<String[]> getUsers();
+
+    /**
+     * Retrieves the user names of users in the directory one page at a time, in ascending order. Each page starts
+     * after the last user name of the previous page.
+     * @param afterUsername the user name to start after, or null to start from the first user.
+     * @param limit the maximum number of user names to retrieve.
+     * @return a future completed with up to limit user names greater than afterUsername, in ascending order.
+     */
+    CompletableFuture<List<String>> getUsers(String afterUsername, int limit);
+
+    /**
+     * Retrieves the user names that start with a prefix, in ascending order.
+     * @param prefix the prefix to match, or an empty string to match every user name.
+     * @param limit the maximum number of user names to retrieve.
+     * @return a future completed with up to limit of the lowest user names starting with prefix, in ascending order.
+     */
+    CompletableFuture<List<String>> findUsersByPrefix(String prefix, int limit);
+
+    /**
+     * Retrieves the data of every user with the given email. Emails are matched exactly.
+     * @param email the email to look up.
+     * @return a future completed with the data of every user with the email, empty if there are none or the email is
+     * null.
+     */
+    CompletableFuture<List<UserData>> findByEmail(String email);
+
+    /**
+     * Retrieves the policy used to check the username, email, screen name, and password.
+     * @return a future completed with a non-null Policy.
+     */
+    CompletableFuture<Policy> getPolicy();
+
+    /**
+     * Sets the policy used to check the username, email, screen name, and password.
+     * @param policy the Policy to set the directory's policy to.
+     * @return a future completed when the policy has been set.
+     */
+    CompletableFuture<Void> setPolicy(Policy policy);
+
+    /**
+     * Validate that the given username matches the given password in the user directory.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @return a future completed with true if the username and password combination is valid, false otherwise.
+     */
+    CompletableFuture<Boolean> authenticateUser(String username, String password);
+
+    /**
+     * Validate that the given username matches the given password in the user directory.
+     * @param username of user to authenticate.
+     * @param password used to authenticate the user.
+     * @return a future completed with an Authentication enum indicating if the username password combination was
+     * valid, and if not, what field caused the authentication failure.
+     */
+    CompletableFuture<Authentication> authenticateUserDetailed(String username, String password);
+
+    /**
+     * Validates every username and password pair in the given list.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return a future completed with the result of authenticating each pair, in the order of the given list.
+     */
+    CompletableFuture<List<Authentication>> authenticateUsers(List<UserCredentials> credentials);
+
+    /**
+     * Retrieve data on the specified user.
+     * @param username the username of the user to retrieve data on.
+     * @return a future completed with an Optional<UserData> object containing the user's data if the user exists.
+     */
+    CompletableFuture<Optional<UserData>> getUserData(String username);
+
+    /**
+     * Retrieve data on each of the specified users.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a future completed with a map from the username of every user that exists to its data.
+     */
+    CompletableFuture<Map<String, UserData>> getUserData(Collection<String> usernames);
+
+    /**
+     * Updates the username of the specified user.
+     * @param username the username of the user to update.
+     * @param newUsername the username to change the user's current username to.
+     * @return a future completed when the update has been made.
+     */
+    CompletableFuture<Void> updateUsername(String username, String newUsername);
+
+    /**
+     * Updates the email of the specified user.
+     * @param username the username of the user to update.
+     * @param newEmail the email to change the user's current email to.
+     * @return a future completed when the update has been made.
+     */
+    CompletableFuture<Void> updateEmail(String username, String newEmail);
+
+    /**
+     * Updates the screen name of the specified user.
+     * @param username the username of the user to update.
+     * @param newScreenName the screen name to change the user's current screen name to.
+     * @return a future completed when the update has been made.
+     */
+    CompletableFuture<Void> updateScreenName(String username, String newScreenName);
+
+    /**
+     * Updates the password of the specified user.
+     * @param username the username of the user to update.
+     * @param newPassword the password to change the user's current password to.
+     * @return a future completed when the update has been made.
+     */
+    CompletableFuture<Void> updatePassword(String username, String newPassword);
+
+    /**
+     * Changes several fields of the specified user at once, making either every change or none.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return a future completed with true if the user exists and the changes were made, false otherwise.
+     */
+    CompletableFuture<Boolean> updateUser(String username, UserPatch patch);
+
+}
@@ -0,0 +1,306 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * AsyncUserDirectory that runs the operations of a blocking UserDirectory on executors.
+ *
+ * Operations that hash passwords (adding users, authenticating, and changing passwords) run on the hashing executor,
+ * and every other operation runs on the I/O executor, so CPU-bound hashing cannot starve lookups of threads and vice
+ * versa. The wrapped directory must be safe to call from several threads at once.
+ */
+public class AsyncUserDirectoryAdapter implements AsyncUserDirectory, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(AsyncUserDirectoryAdapter.class.getName());
+
+    /** Number of tasks each default executor queues before rejecting new ones. */
+    private static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+    /**
+     * Blocking call to the wrapped directory.
+     * @param <T> the type of the call's result.
+     */
+    private interface DirectoryCall<T> {
+        /**
+         * Makes the call.
+         * @return the call's result.
+         * @throws UserDirectoryException if the call fails.
+         */
+        T call() throws UserDirectoryException;
+    }
+
+    /** The blocking directory operations are delegated to. */
+    private final UserDirectory _directory;
+    /** Executor for operations that mostly wait on I/O. */
+    private final Executor _ioExecutor;
+    /** Executor for operations that hash passwords. */
+    private final Executor _hashingExecutor;
+    /** Executors created by this adapter, shut down when it is closed. */
+    private final List<ExecutorService> _ownedExecutors;
+
+    /**
+     * Creates a new AsyncUserDirectoryAdapter with a bounded I/O pool of four threads per core and a bounded hashing
+     * pool of one thread per core.
+     * @param directory the blocking directory to delegate to.
+     */
+    public AsyncUserDirectoryAdapter(UserDirectory directory) {
+        this(directory, newBoundedExecutor("suds-io", 4 * Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY),
+                newBoundedExecutor("suds-hashing", Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY),
+                true);
+    }
+
+    /**
+     * Creates a new AsyncUserDirectoryAdapter that runs operations on the given executors. The executors are not shut
+     * down when the adapter is closed.
+     * @param directory the blocking directory to delegate to.
+     * @param ioExecutor the executor for operations that mostly wait on I/O.
+     * @param hashingExecutor the executor for operations that hash passwords.
+     */
+    public AsyncUserDirectoryAdapter(UserDirectory directory, Executor ioExecutor, Executor hashingExecutor) {
+        this(directory, ioExecutor, hashingExecutor, false);
+    }
+
+    /**
+     * Creates a new AsyncUserDirectoryAdapter.
+     * @param directory the blocking directory to delegate to.
+     * @param ioExecutor the executor for operations that mostly wait on I/O.
+     * @param hashingExecutor the executor for operations that hash passwords.
+     * @param owned true if the adapter should shut the executors down when it is closed.
+     */
+    private AsyncUserDirectoryAdapter(UserDirectory directory, Executor ioExecutor, Executor hashingExecutor, boolean owned) {
+        _directory = directory;
+        _ioExecutor = ioExecutor;
+        _hashingExecutor = hashingExecutor;
+        _ownedExecutors = new ArrayList<>();
+        if (owned) {
+            _ownedExecutors.add((ExecutorService) ioExecutor);
+            _ownedExecutors.add((ExecutorService) hashingExecutor);
+        }
+    }
+
+    /**
+     * Creates a new AsyncUserDirectoryAdapter that runs I/O operations on a new virtual thread each, and hashing
+     * operations on a bounded pool of one thread per core. Falls back to a bounded I/O pool on Java versions without
+     * virtual threads.
+     * @param directory the blocking directory to delegate to.
+     * @return a new AsyncUserDirectoryAdapter.
+     */
+    public static AsyncUserDirectoryAdapter withVirtualThreads(UserDirectory directory) {
+        ExecutorService ioExecutor;
+        try {
+            // looked up reflectively so the project still builds for Java 8
+            ioExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.log(Level.INFO, "Virtual threads are not available, using a bounded I/O pool instead.");
+            ioExecutor = newBoundedExecutor("suds-io", 4 * Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+        }
+        return new AsyncUserDirectoryAdapter(directory, ioExecutor,
+                newBoundedExecutor("suds-hashing", Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY),
+                true);
+    }
+
+    /**
+     * Creates an executor with a fixed number of daemon threads and a bounded queue. Tasks submitted while the queue is
+     * full are rejected, which fails the operation's future instead of queueing without limit.
+     * @param name the prefix for the names of the executor's threads.
+     * @param threads the number of threads.
+     * @param queueCapacity the number of tasks that may wait for a thread.
+     * @return a new ExecutorService.
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), factory, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Shuts down the executors created by this adapter. Executors passed in by the caller are left running.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService executor : _ownedExecutors) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> hasUser(String username) {
+        return supply(_ioExecutor, () -> _directory.hasUser(username));
+    }
+
+    @Override
+    public CompletableFuture<Set<String>> hasUsers(Collection<String> usernames) {
+        return supply(_ioExecutor, () -> _directory.hasUsers(usernames));
+    }
+
+    @Override
+    public CompletableFuture<Void> addUser(String username, String email, String screeName, String password) {
+        return supply(_hashingExecutor, () -> {
+            _directory.addUser(username, email, screeName, password);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, UserDirectoryException>> addUsers(Collection<UserRegistration> users) {
+        return supply(_hashingExecutor, () -> _directory.addUsers(users));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> removeUser(String username) {
+        return supply(_ioExecutor, () -> _directory.removeUser(username));
+    }
+
+    @Override
+    public CompletableFuture<String[]> getUsers() {
+        return supply(_ioExecutor, _directory::getUsers);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getUsers(String afterUsername, int limit) {
+        return supply(_ioExecutor, () -> _directory.getUsers(afterUsername, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> findUsersByPrefix(String prefix, int limit) {
+        return supply(_ioExecutor, () -> _directory.findUsersByPrefix(prefix, limit));
+    }
+
+    @Override
+    public CompletableFuture<List<UserData>> findByEmail(String email) {
+        return supply(_ioExecutor, () -> _directory.findByEmail(email));
+    }
+
+    @Override
+    public CompletableFuture<Policy> getPolicy() {
+        return supply(_ioExecutor, _directory::getPolicy);
+    }
+
+    @Override
+    public CompletableFuture<Void> setPolicy(Policy policy) {
+        return supply(_ioExecutor, () -> {
+            _directory.setPolicy(policy);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authenticateUser(String username, String password) {
+        return supply(_hashingExecutor, () -> _directory.authenticateUser(username, password));
+    }
+
+    @Override
+    public CompletableFuture<Authentication> authenticateUserDetailed(String username, String password) {
+        return supply(_hashingExecutor, () -> _directory.authenticateUserDetailed(username, password));
+    }
+
+    @Override
+    public CompletableFuture<List<Authentication>> authenticateUsers(List<UserCredentials> credentials) {
+        return supply(_hashingExecutor, () -> _directory.authenticateUsers(credentials));
+    }
+
+    @Override
+    public CompletableFuture<Optional<UserData>> getUserData(String username) {
+        return supply(_ioExecutor, () -> _directory.getUserData(username));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, UserData>> getUserData(Collection<String> usernames) {
+        return supply(_ioExecutor, () -> _directory.getUserData(usernames));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateUsername(String username, String newUsername) {
+        return supply(_ioExecutor, () -> {
+            _directory.updateUsername(username, newUsername);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateEmail(String username, String newEmail) {
+        return supply(_ioExecutor, () -> {
+            _directory.updateEmail(username, newEmail);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateScreenName(String username, String newScreenName) {
+        return supply(_ioExecutor, () -> {
+            _directory.updateScreenName(username, newScreenName);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updatePassword(String username, String newPassword) {
+        return supply(_hashingExecutor, () -> {
+            _directory.updatePassword(username, newPassword);
+            return null;
+        });
+    }
+
+    /**
+     * Runs updateUser on the hashing executor if the patch changes the password, since hashing dominates the update,
+     * and on the I/O executor otherwise.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return a future completed with true if the user exists and the changes were made, false otherwise.
+     */
+    @Override
+    public CompletableFuture<Boolean> updateUser(String username, UserPatch patch) {
+        return supply(patch.hasPassword() ? _hashingExecutor : _ioExecutor, () -> _directory.updateUser(username, patch));
+    }
+
+    /**
+     * Runs a blocking call on an executor.
+     * @param executor the executor to run the call on.
+     * @param call the call to make.
+     * @param <T> the type of the call's result.
+     * @return a future completed with the call's result, or completed exceptionally with the exception it threw or the
+     * RejectedExecutionException thrown if the executor is saturated.
+     */
+    private static <T> CompletableFuture<T> supply(Executor executor, DirectoryCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,411 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+import com.ajmi.simpleuserdirectoryservice.util.BloomFilter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * User directory that keeps a Bloom filter of every username in another user directory, so lookups of usernames that
+ * definitely don't exist are answered without touching the wrapped directory.
+ *
+ * Usernames added through this directory are added to the filter, but removed usernames stay in it until the filter is
+ * rebuilt, which only costs extra lookups. Users added to the wrapped directory by other means are not seen until the
+ * filter is rebuilt, so every writer should go through this directory or rebuild it.
+ */
+public class BloomFilterUserDirectory extends ForwardingUserDirectory implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(BloomFilterUserDirectory.class.getName());
+
+    /** Number of usernames the filter is sized for. */
+    private final long _expectedUsers;
+    /** False positive rate the filter is sized for. */
+    private final double _falsePositiveRate;
+    /** Rebuilds the filter periodically, or null if it is only rebuilt on demand. */
+    private final ScheduledExecutorService _rebuilder;
+
+    /** Filter of every username in the wrapped directory. */
+    private volatile BloomFilter _filter;
+    /** Filter being built by rebuild(), which new usernames must also be added to, or null if none is being built. */
+    private volatile BloomFilter _pending;
+    /**
+     * Held shared by writers for the whole of a write, and exclusively by rebuild() to publish its filter, so a write
+     * that started before the rebuild has added its usernames to the new filter by the time it is published.
+     */
+    private final ReadWriteLock _writes;
+
+    /** Number of lookups rejected by the filter without touching the wrapped directory. */
+    private final LongAdder _rejections;
+    /** Number of lookups the filter let through for users that turned out not to exist. */
+    private final LongAdder _falsePositives;
+
+    /**
+     * Creates a new BloomFilterUserDirectory, building its filter from the usernames in the wrapped directory. The
+     * filter is only rebuilt when rebuild() is called.
+     * @param directory the directory to filter lookups for.
+     * @param expectedUsers the number of users the filter is sized for.
+     * @param falsePositiveRate the desired false positive rate once the directory holds the expected number of users.
+     * @throws ConnectionFailureException if the usernames could not be read from the wrapped directory.
+     */
+    public BloomFilterUserDirectory(UserDirectory directory, long expectedUsers, double falsePositiveRate) throws ConnectionFailureException {
+        this(directory, expectedUsers, falsePositiveRate, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new BloomFilterUserDirectory, building its filter from the usernames in the wrapped directory and
+     * rebuilding it periodically to forget removed users.
+     * @param directory the directory to filter lookups for.
+     * @param expectedUsers the number of users the filter is sized for.
+     * @param falsePositiveRate the desired false positive rate once the directory holds the expected number of users.
+     * @param rebuildPeriod the time between rebuilds, or zero to only rebuild when rebuild() is called.
+     * @param unit the unit of rebuildPeriod.
+     * @throws ConnectionFailureException if the usernames could not be read from the wrapped directory.
+     */
+    public BloomFilterUserDirectory(UserDirectory directory, long expectedUsers, double falsePositiveRate,
+                                    long rebuildPeriod, TimeUnit unit) throws ConnectionFailureException {
+        super(directory);
+        _expectedUsers = expectedUsers;
+        _falsePositiveRate = falsePositiveRate;
+        _rejections = new LongAdder();
+        _falsePositives = new LongAdder();
+        _writes = new ReentrantReadWriteLock();
+        rebuild();
+        if (rebuildPeriod > 0) {
+            _rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "bloom-filter-rebuilder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            _rebuilder.scheduleWithFixedDelay(() -> {
+                try {
+                    rebuild();
+                } catch (ConnectionFailureException e) {
+                    LOGGER.log(Level.WARNING, "Failed to rebuild Bloom filter: ", e);
+                }
+            }, rebuildPeriod, rebuildPeriod, unit);
+        } else {
+            _rebuilder = null;
+        }
+    }
+
+    /**
+     * Replaces the filter with a new one built from the usernames currently in the wrapped directory, forgetting
+     * removed users. Usernames added while the filter is being rebuilt are added to both filters, and the new filter is
+     * only published once every write in flight has finished, since a write that added its usernames to the old filter
+     * alone may have added its users after they were read.
+     * @throws ConnectionFailureException if the usernames could not be read from the wrapped directory.
+     */
+    public synchronized void rebuild() throws ConnectionFailureException {
+        BloomFilter current = _filter;
+        // leave room to grow past the expected size without the false positive rate degrading
+        long size = _expectedUsers;
+        if (current != null) {
+            size = Math.max(size, 2 * current.getApproximateElementCount());
+        }
+        BloomFilter fresh = new BloomFilter(size, _falsePositiveRate);
+        // publish the new filter to writers before reading the usernames, so no concurrent add can be missed
+        _pending = fresh;
+        try {
+            // stream the usernames rather than holding them all at once
+            try (Stream<String> usernames = getDirectory().streamUsers()) {
+                usernames.forEach(fresh::put);
+            } catch (UncheckedConnectionFailureException e) {
+                throw e.getCause();
+            }
+            _writes.writeLock().lock();
+            try {
+                _filter = fresh;
+            } finally {
+                _writes.writeLock().unlock();
+            }
+        } finally {
+            _pending = null;
+        }
+    }
+
+    /**
+     * Stops rebuilding the filter periodically.
+     */
+    @Override
+    public void close() {
+        if (_rebuilder != null) {
+            _rebuilder.shutdownNow();
+        }
+    }
+
+    /**
+     * Rejects usernames the filter has never seen, and checks the wrapped directory for the rest.
+     * @param username the user name of the user to check for.
+     * @return true if the user was found in the directory, false otherwise.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public boolean hasUser(String username) throws ConnectionFailureException {
+        if (!mightExist(username)) {
+            return false;
+        }
+        boolean hasUser = super.hasUser(username);
+        if (!hasUser) {
+            _falsePositives.increment();
+        }
+        return hasUser;
+    }
+
+    /**
+     * Rejects usernames the filter has never seen, and checks the wrapped directory for the rest in one batch.
+     * @param usernames the user names of the users to check for.
+     * @return the user names that were found in the directory.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) throws ConnectionFailureException {
+        Set<String> possible = filter(usernames);
+        if (possible.isEmpty()) {
+            return possible;
+        }
+        Set<String> found = super.hasUsers(possible);
+        _falsePositives.add(possible.size() - found.size());
+        return found;
+    }
+
+    /**
+     * Rejects usernames the filter has never seen, and authenticates the rest against the wrapped directory.
+     * @param username of user to authenticate.
+     * @param password used to authenticate the user.
+     * @return INVALID_USERNAME if the filter has never seen the username, otherwise the wrapped directory's result.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException {
+        if (!mightExist(username)) {
+            return Authentication.INVALID_USERNAME;
+        }
+        Authentication authentication = super.authenticateUserDetailed(username, password);
+        if (authentication == Authentication.INVALID_USERNAME) {
+            _falsePositives.increment();
+        }
+        return authentication;
+    }
+
+    /**
+     * Rejects usernames the filter has never seen, and authenticates the rest against the wrapped directory in one
+     * batch.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return the result of authenticating each pair, in the order of the given list.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException {
+        boolean[] possible = new boolean[credentials.size()];
+        List<UserCredentials> checked = new ArrayList<>(credentials.size());
+        for (int i = 0; i < possible.length; i++) {
+            possible[i] = mightExist(credentials.get(i).getUsername());
+            if (possible[i]) {
+                checked.add(credentials.get(i));
+            }
+        }
+        List<Authentication> checkedResults = checked.isEmpty()
+                ? new ArrayList<>()
+                : super.authenticateUsers(checked);
+        List<Authentication> results = new ArrayList<>(possible.length);
+        int next = 0;
+        for (boolean mightExist : possible) {
+            if (!mightExist) {
+                results.add(Authentication.INVALID_USERNAME);
+                continue;
+            }
+            Authentication authentication = checkedResults.get(next++);
+            if (authentication == Authentication.INVALID_USERNAME) {
+                _falsePositives.increment();
+            }
+            results.add(authentication);
+        }
+        return results;
+    }
+
+    /**
+     * Rejects usernames the filter has never seen, and retrieves the rest from the wrapped directory.
+     * @param username the username of the user to retrieve data on.
+     * @return an Optional<UserData> object containing the user's data if the user exists.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
+        if (!mightExist(username)) {
+            return Optional.empty();
+        }
+        Optional<UserData> data = super.getUserData(username);
+        if (!data.isPresent()) {
+            _falsePositives.increment();
+        }
+        return data;
+    }
+
+    /**
+     * Rejects usernames the filter has never seen, and retrieves the rest from the wrapped directory in one batch.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a map from the username of every user that exists to its data.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Map<String, UserData> getUserData(Collection<String> usernames) throws ConnectionFailureException {
+        Set<String> possible = filter(usernames);
+        if (possible.isEmpty()) {
+            return new HashMap<>();
+        }
+        Map<String, UserData> data = super.getUserData(possible);
+        _falsePositives.add(possible.size() - data.size());
+        return data;
+    }
+
+    @Override
+    public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        _writes.readLock().lock();
+        try {
+            // add to the filter first, so the user is never visible in the directory but missing from the filter
+            remember(username);
+            super.addUser(username, email, screeName, password);
+            // and again afterwards, in case a rebuild read the usernames before the user was added
+            remember(username);
+        } finally {
+            _writes.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        _writes.readLock().lock();
+        try {
+            for (UserRegistration user : users) {
+                remember(user.getUsername());
+            }
+            Map<String, UserDirectoryException> failures = super.addUsers(users);
+            for (UserRegistration user : users) {
+                remember(user.getUsername());
+            }
+            return failures;
+        } finally {
+            _writes.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        _writes.readLock().lock();
+        try {
+            remember(newUsername);
+            super.updateUsername(username, newUsername);
+            remember(newUsername);
+        } finally {
+            _writes.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        if (!patch.hasUsername()) {
+            return super.updateUser(username, patch);
+        }
+        _writes.readLock().lock();
+        try {
+            remember(patch.getUsername());
+            boolean updated = super.updateUser(username, patch);
+            remember(patch.getUsername());
+            return updated;
+        } finally {
+            _writes.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the estimated probability that a lookup of a username that doesn't exist gets past the filter.
+     * @return the expected false positive rate, between zero and one.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return _filter.getExpectedFalsePositiveRate();
+    }
+
+    /**
+     * Retrieves the number of bytes used by the filter.
+     * @return the size of the filter in bytes.
+     */
+    public long getMemoryBytes() {
+        return _filter.getMemoryBytes();
+    }
+
+    /**
+     * Retrieves the number of lookups rejected by the filter without touching the wrapped directory.
+     * @return the number of rejected lookups.
+     */
+    public long getRejectionCount() {
+        return _rejections.sum();
+    }
+
+    /**
+     * Retrieves the number of lookups the filter let through for users that turned out not to exist.
+     * @return the number of observed false positives.
+     */
+    public long getFalsePositiveCount() {
+        return _falsePositives.sum();
+    }
+
+    /**
+     * Checks the filter for a username, counting the lookup as rejected if the filter has never seen it.
+     * @param username the username to check for.
+     * @return false if the user definitely doesn't exist, true if it might.
+     */
+    private boolean mightExist(String username) {
+        if (_filter.mightContain(username)) {
+            return true;
+        }
+        _rejections.increment();
+        return false;
+    }
+
+    /**
+     * Checks the filter for each distinct username, counting every username the filter has never seen as rejected.
+     * @param usernames the usernames to check for.
+     * @return the usernames that might exist.
+     */
+    private Set<String> filter(Collection<String> usernames) {
+        Set<String> possible = new HashSet<>();
+        for (String username : new HashSet<>(usernames)) {
+            if (mightExist(username)) {
+                possible.add(username);
+            }
+        }
+        return possible;
+    }
+
+    /**
+     * Adds a username to the filter, and to the filter being rebuilt if there is one.
+     * @param username the username to add.
+     */
+    private void remember(String username) {
+        BloomFilter pending = _pending;
+        if (pending != null) {
+            pending.put(username);
+        }
+        _filter.put(username);
+    }
+}
@@ -0,0 +1,470 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User directory that serves hasUser(), hasUsers(), and getUserData() from a size-bounded, least recently used cache in
+ * front of another user directory. Entries expire after a fixed time to live, and are invalidated by every operation
+ * made through this directory that changes a user's data. Changes made to the wrapped directory by other means are only
+ * seen once the cached entry expires.
+ *
+ * A load that races with an invalidation is returned but not cached. Invalidations are counted per segment, so a write
+ * only discards concurrent loads of users in the same segment rather than every load in flight.
+ */
+public class CachingUserDirectory extends ForwardingUserDirectory {
+
+    /** Maximum number of independently locked segments the cache is split into. */
+    private static final int SEGMENT_COUNT = 16;
+
+    /** Segments of the cache, a power of two of them, selected by the hash of the username. */
+    private final Segment[] _segments;
+    /** Nanoseconds an entry stays valid after it is loaded. */
+    private final long _timeToLiveNanos;
+
+    /** Number of lookups answered from the cache. */
+    private final LongAdder _hits;
+    /** Number of lookups that had to go to the wrapped directory. */
+    private final LongAdder _misses;
+    /** Number of entries evicted to keep the cache within its maximum size. */
+    private final LongAdder _evictions;
+    /** Number of entries dropped because their time to live had passed. */
+    private final LongAdder _expirations;
+
+    /**
+     * Creates a new CachingUserDirectory.
+     * @param directory the directory to cache.
+     * @param maximumSize the maximum number of users to cache. Least recently used users are evicted per segment, so a
+     * user may be evicted before the cache is full, but it never holds more than this many.
+     * @param timeToLive how long a cached user stays valid.
+     * @param unit the unit of timeToLive.
+     */
+    public CachingUserDirectory(UserDirectory directory, int maximumSize, long timeToLive, TimeUnit unit) {
+        super(directory);
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Invalid maximum cache size: " + maximumSize + ".");
+        }
+        // use fewer segments for small caches, so every segment can hold at least one entry
+        _segments = new Segment[Integer.highestOneBit(Math.min(maximumSize, SEGMENT_COUNT))];
+        // split the maximum size exactly, so the segments together never hold more than it
+        for (int i = 0; i < _segments.length; i++) {
+            _segments[i] = new Segment(maximumSize / _segments.length + (i < maximumSize % _segments.length ? 1 : 0));
+        }
+        _timeToLiveNanos = unit.toNanos(timeToLive);
+        _hits = new LongAdder();
+        _misses = new LongAdder();
+        _evictions = new LongAdder();
+        _expirations = new LongAdder();
+    }
+
+    /**
+     * Checks the cache for the specified user, loading the user's data from the wrapped directory on a miss.
+     * @param username the user name of the user to check for.
+     * @return true if the user was found in the directory, false otherwise.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public boolean hasUser(String username) throws ConnectionFailureException {
+        return lookup(username).isPresent();
+    }
+
+    /**
+     * Checks the cache for each of the specified users, loading the data of every user missing from the cache from the
+     * wrapped directory in one call.
+     * @param usernames the user names of the users to check for.
+     * @return the user names that were found in the directory.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) throws ConnectionFailureException {
+        return new HashSet<>(lookupAll(usernames).keySet());
+    }
+
+    /**
+     * Retrieves the specified user's data from the cache, loading it from the wrapped directory on a miss.
+     * @param username the username of the user to retrieve data on.
+     * @return an Optional<UserData> object containing the user's data if the user exists.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
+        return lookup(username);
+    }
+
+    /**
+     * Retrieves each of the specified users' data from the cache, loading the data of every user missing from the cache
+     * from the wrapped directory in one call.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a map from the username of every user that exists to its data.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Map<String, UserData> getUserData(Collection<String> usernames) throws ConnectionFailureException {
+        return lookupAll(usernames);
+    }
+
+    /**
+     * Adds the user to the wrapped directory, then invalidates the username, whether or not the user was added.
+     * @param username the user name of the new entry.
+     * @param email the email of the new entry.
+     * @param screeName the screen name of the new entry.
+     * @param password the password of the new entry.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     * @throws UserAlreadyExistsException if a user with the specified username already exists in the directory.
+     * @throws PolicyFailureException if one or more of the supplied arguments fail one of the directory's policies.
+     */
+    @Override
+    public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        try {
+            super.addUser(username, email, screeName, password);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    /**
+     * Adds the users to the wrapped directory, then invalidates the username of every registration.
+     * @param users the registrations of the users to add.
+     * @return a map from the username of every registration that could not be added to the exception explaining why.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        try {
+            return super.addUsers(users);
+        } finally {
+            for (UserRegistration user : users) {
+                invalidate(user.getUsername());
+            }
+        }
+    }
+
+    /**
+     * Removes the user from the wrapped directory, then invalidates the username.
+     * @param username the user name of the user to remove.
+     * @return true if the user was removed, false otherwise.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public boolean removeUser(String username) throws ConnectionFailureException {
+        try {
+            return super.removeUser(username);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    /**
+     * Renames the user in the wrapped directory, then invalidates both the old and the new username.
+     * @param username the username of the user to update.
+     * @param newUsername the username to change the user's current username to.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        try {
+            super.updateUsername(username, newUsername);
+        } finally {
+            invalidate(username);
+            invalidate(newUsername);
+        }
+    }
+
+    /**
+     * Updates the user's email in the wrapped directory, then invalidates the username.
+     * @param username the username of the user to update.
+     * @param newEmail the email to change the user's current email to.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
+        try {
+            super.updateEmail(username, newEmail);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    /**
+     * Updates the user's screen name in the wrapped directory, then invalidates the username.
+     * @param username the username of the user to update.
+     * @param newScreenName the screen name to change the user's current screen name to.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
+        try {
+            super.updateScreenName(username, newScreenName);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    /**
+     * Applies the patch in the wrapped directory, then invalidates the username, and the new username if the patch
+     * renames the user.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return true if the user exists and the changes were made, false if the user was left unchanged.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        try {
+            return super.updateUser(username, patch);
+        } finally {
+            invalidate(username);
+            if (patch.hasUsername()) {
+                invalidate(patch.getUsername());
+            }
+        }
+    }
+
+    /**
+     * Removes the specified user from the cache, so the next lookup goes to the wrapped directory.
+     * @param username the username of the user to invalidate.
+     */
+    public void invalidate(String username) {
+        Segment segment = segmentFor(username);
+        synchronized (segment) {
+            segment._invalidations++;
+            segment.remove(username);
+        }
+    }
+
+    /**
+     * Removes every user from the cache.
+     */
+    public void invalidateAll() {
+        for (Segment segment : _segments) {
+            synchronized (segment) {
+                segment._invalidations++;
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of users currently cached.
+     * @return the number of cached users.
+     */
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : _segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Retrieves the number of lookups answered from the cache.
+     * @return the number of cache hits.
+     */
+    public long getHitCount() {
+        return _hits.sum();
+    }
+
+    /**
+     * Retrieves the number of lookups that had to go to the wrapped directory.
+     * @return the number of cache misses.
+     */
+    public long getMissCount() {
+        return _misses.sum();
+    }
+
+    /**
+     * Retrieves the number of users evicted to keep the cache within its maximum size.
+     * @return the number of evictions.
+     */
+    public long getEvictionCount() {
+        return _evictions.sum();
+    }
+
+    /**
+     * Retrieves the number of users dropped from the cache because their time to live had passed.
+     * @return the number of expirations.
+     */
+    public long getExpirationCount() {
+        return _expirations.sum();
+    }
+
+    /**
+     * Retrieves the specified user's data from the cache, loading and caching it on a miss.
+     * @param username the username of the user to look up.
+     * @return an Optional<UserData> object containing the user's data if the user exists.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    private Optional<UserData> lookup(String username) throws ConnectionFailureException {
+        Segment segment = segmentFor(username);
+        Optional<UserData> cached = cached(segment, username, System.nanoTime());
+        if (cached != null) {
+            return cached;
+        }
+
+        long invalidations = segment.getInvalidations();
+        Optional<UserData> data = getDirectory().getUserData(username);
+        synchronized (segment) {
+            // don't cache data that may have been changed while it was being loaded
+            if (segment._invalidations == invalidations) {
+                segment.put(username, new CacheEntry(data, System.nanoTime() + _timeToLiveNanos));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Retrieves each of the specified users' data from the cache, loading the data of every user missing from the cache
+     * from the wrapped directory in one call and caching it.
+     * @param usernames the usernames of the users to look up.
+     * @return a map from the username of every user that exists to its data.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    private Map<String, UserData> lookupAll(Collection<String> usernames) throws ConnectionFailureException {
+        Map<String, UserData> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.nanoTime();
+        for (String username : new HashSet<>(usernames)) {
+            Optional<UserData> cached = cached(segmentFor(username), username, now);
+            if (cached == null) {
+                missing.add(username);
+            } else if (cached.isPresent()) {
+                found.put(username, cached.get());
+            }
+        }
+        if (missing.isEmpty()) {
+            return found;
+        }
+
+        long[] invalidations = new long[missing.size()];
+        for (int i = 0; i < invalidations.length; i++) {
+            invalidations[i] = segmentFor(missing.get(i)).getInvalidations();
+        }
+        Map<String, UserData> loaded = getDirectory().getUserData(missing);
+        long expiresAt = System.nanoTime() + _timeToLiveNanos;
+        for (int i = 0; i < invalidations.length; i++) {
+            String username = missing.get(i);
+            Optional<UserData> data = Optional.ofNullable(loaded.get(username));
+            Segment segment = segmentFor(username);
+            synchronized (segment) {
+                // don't cache data that may have been changed while it was being loaded
+                if (segment._invalidations == invalidations[i]) {
+                    segment.put(username, new CacheEntry(data, expiresAt));
+                }
+            }
+            data.ifPresent(userData -> found.put(username, userData));
+        }
+        return found;
+    }
+
+    /**
+     * Retrieves the specified user's data from the cache, dropping it if its time to live has passed, and counts the
+     * hit or miss.
+     * @param segment the segment the username is cached in.
+     * @param username the username of the user to look up.
+     * @param now the current value of System.nanoTime().
+     * @return an Optional<UserData> object containing the user's data if the user exists, or null on a miss.
+     */
+    private Optional<UserData> cached(Segment segment, String username, long now) {
+        synchronized (segment) {
+            CacheEntry entry = segment.get(username);
+            if (entry != null) {
+                if (now - entry._expiresAt < 0) {
+                    _hits.increment();
+                    return entry._data;
+                }
+                segment.remove(username);
+                _expirations.increment();
+            }
+        }
+        _misses.increment();
+        return null;
+    }
+
+    /**
+     * Selects the segment a username is cached in.
+     * @param username the username.
+     * @return the username's segment.
+     */
+    private Segment segmentFor(String username) {
+        int hash = username.hashCode();
+        // spread the high bits so similar usernames don't all land in the same segment
+        hash ^= hash >>> 16;
+        return _segments[hash & (_segments.length - 1)];
+    }
+
+    /**
+     * Cached data of a user, or of a user that doesn't exist.
+     */
+    private static final class CacheEntry {
+        /** The user's data, or empty if the user doesn't exist. */
+        private final Optional<UserData> _data;
+        /** Value of System.nanoTime() after which the entry is no longer valid. */
+        private final long _expiresAt;
+
+        /**
+         * Creates a new CacheEntry.
+         * @param data the user's data, or empty if the user doesn't exist.
+         * @param expiresAt value of System.nanoTime() after which the entry is no longer valid.
+         */
+        private CacheEntry(Optional<UserData> data, long expiresAt) {
+            _data = data;
+            _expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Access-ordered map that evicts its least recently used entry once it grows past its maximum size. Must be
+     * synchronized on by callers.
+     */
+    private final class Segment extends LinkedHashMap<String, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+
+        /** Maximum number of entries in the segment. */
+        private final int _maximumSize;
+        /** Incremented by every invalidation of the segment, so loads that race with one are not cached. */
+        private long _invalidations;
+
+        /**
+         * Creates a new Segment.
+         * @param maximumSize the maximum number of entries in the segment.
+         */
+        private Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            _maximumSize = maximumSize;
+        }
+
+        /**
+         * Retrieves the number of invalidations of the segment so far.
+         * @return the number of invalidations.
+         */
+        private long getInvalidations() {
+            synchronized (this) {
+                return _invalidations;
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            if (size() > _maximumSize) {
+                _evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
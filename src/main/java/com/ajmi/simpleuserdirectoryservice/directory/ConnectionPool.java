@@ -0,0 +1,501 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of reusable JDBC connections.
+ *
+ * Connections handed out by the pool are proxies whose close() method returns the underlying connection to the pool
+ * instead of closing it, so callers can keep using try-with-resources exactly as they would with a fresh connection.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    /**
+     * Opens new physical connections for the pool.
+     */
+    public interface ConnectionFactory {
+        /**
+         * Opens a new physical connection.
+         * @return a new, open Connection.
+         * @throws SQLException if the connection could not be opened.
+         */
+        Connection create() throws SQLException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    /** Query used to check that an idle connection is still usable. */
+    private static final String VALIDATION_QUERY = "SELECT 1";
+    /** Message used for exceptions caused by a timed out acquisition. */
+    private static final String ACQUIRE_TIMEOUT_MSG = "Timed out waiting for a pooled connection.";
+    /** Message used for exceptions caused by using a closed pool. */
+    private static final String POOL_CLOSED_MSG = "The connection pool has been closed.";
+    /** Nanoseconds to wait for an idle connection before trying to open a new one again. */
+    private static final long RESERVE_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /** Opens new physical connections. */
+    private final ConnectionFactory _factory;
+    /** Number of idle connections the pool tries to keep open. */
+    private final int _minSize;
+    /** Maximum number of connections open at once. */
+    private final int _maxSize;
+    /** Milliseconds to wait for a connection before giving up. */
+    private final long _acquireTimeoutMillis;
+    /** Milliseconds a connection may sit idle before it is evicted. */
+    private final long _idleTimeoutMillis;
+    /** Milliseconds a connection may sit idle before it is validated on checkout. */
+    private final long _validationIntervalMillis;
+
+    /** Idle connections, most recently returned first. */
+    private final LinkedBlockingDeque<PooledConnection> _idle;
+    /** Permits for checked out connections, bounding the number of borrowers at the pool's maximum size. */
+    private final Semaphore _permits;
+    /** Number of open physical connections, idle or checked out, bounded at the pool's maximum size. */
+    private final AtomicInteger _total;
+    /** Evicts idle connections and tops the pool back up to its minimum size. */
+    private final ScheduledExecutorService _maintenance;
+    /** Whether the pool has been closed. */
+    private final AtomicBoolean _closed;
+
+    /** Number of successful acquisitions. */
+    private final LongAdder _acquisitions;
+    /** Number of acquisitions that timed out. */
+    private final LongAdder _timeouts;
+    /** Total nanoseconds spent waiting to acquire connections. */
+    private final LongAdder _totalWaitNanos;
+    /** Longest nanoseconds spent waiting to acquire a single connection. */
+    private final AtomicLong _maxWaitNanos;
+    /** Number of physical connections opened. */
+    private final LongAdder _created;
+    /** Number of physical connections closed by eviction or failed validation. */
+    private final LongAdder _evicted;
+
+    /**
+     * Creates a new ConnectionPool.
+     * @param factory opens new physical connections.
+     * @param minSize the number of idle connections the pool tries to keep open.
+     * @param maxSize the maximum number of connections open at once.
+     * @param acquireTimeoutMillis milliseconds to wait for a connection before giving up.
+     * @param idleTimeoutMillis milliseconds a connection may sit idle before it is evicted, or zero to never evict.
+     * @param validationIntervalMillis milliseconds a connection may sit idle before it is validated on checkout.
+     */
+    public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize, long acquireTimeoutMillis,
+                          long idleTimeoutMillis, long validationIntervalMillis) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize + ".");
+        }
+        _factory = factory;
+        _minSize = minSize;
+        _maxSize = maxSize;
+        _acquireTimeoutMillis = acquireTimeoutMillis;
+        _idleTimeoutMillis = idleTimeoutMillis;
+        _validationIntervalMillis = validationIntervalMillis;
+        _idle = new LinkedBlockingDeque<>();
+        _permits = new Semaphore(maxSize, true);
+        _total = new AtomicInteger();
+        _closed = new AtomicBoolean(false);
+        _acquisitions = new LongAdder();
+        _timeouts = new LongAdder();
+        _totalWaitNanos = new LongAdder();
+        _maxWaitNanos = new AtomicLong();
+        _created = new LongAdder();
+        _evicted = new LongAdder();
+
+        _maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = idleTimeoutMillis > 0 ? Math.max(idleTimeoutMillis / 2, 1) : 30_000;
+        _maintenance.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection from the pool, opening a new one if none are idle and the pool is not full.
+     * @return a Connection that returns itself to the pool when closed.
+     * @throws SQLException if no connection became available before the acquisition timeout, or if a new connection
+     * could not be opened.
+     */
+    public Connection getConnection() throws SQLException {
+        if (_closed.get()) {
+            throw new SQLException(POOL_CLOSED_MSG);
+        }
+        long start = System.nanoTime();
+        try {
+            if (!_permits.tryAcquire(_acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                _timeouts.increment();
+                throw new SQLException(ACQUIRE_TIMEOUT_MSG);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(ACQUIRE_TIMEOUT_MSG, e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(_acquireTimeoutMillis);
+            while (true) {
+                PooledConnection pooled;
+                while ((pooled = _idle.pollFirst()) != null) {
+                    if (isUsable(pooled)) {
+                        return pooled.checkout();
+                    }
+                    discard(pooled);
+                }
+                if (reserve()) {
+                    return open().checkout();
+                }
+                // every open connection is idle-bound or being opened by maintenance, so wait for one to turn up
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    _timeouts.increment();
+                    throw new SQLException(ACQUIRE_TIMEOUT_MSG);
+                }
+                pooled = _idle.pollFirst(Math.min(remaining, RESERVE_RETRY_NANOS), TimeUnit.NANOSECONDS);
+                if (pooled != null) {
+                    _idle.offerFirst(pooled);
+                }
+            }
+        } catch (InterruptedException e) {
+            _permits.release();
+            Thread.currentThread().interrupt();
+            throw new SQLException(ACQUIRE_TIMEOUT_MSG, e);
+        } catch (SQLException | RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops handing out new ones. Connections that are checked out are closed when
+     * they are returned.
+     */
+    @Override
+    public void close() {
+        if (_closed.compareAndSet(false, true)) {
+            _maintenance.shutdownNow();
+            PooledConnection pooled;
+            while ((pooled = _idle.pollFirst()) != null) {
+                destroy(pooled);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the number of connections currently checked out of the pool.
+     * @return the number of active connections.
+     */
+    public int getActiveCount() {
+        return _maxSize - _permits.availablePermits();
+    }
+
+    /**
+     * Retrieves the number of physical connections currently open, whether idle or checked out.
+     * @return the number of open connections, never more than the pool's maximum size.
+     */
+    public int getOpenCount() {
+        return _total.get();
+    }
+
+    /**
+     * Retrieves the number of idle connections currently held by the pool.
+     * @return the number of idle connections.
+     */
+    public int getIdleCount() {
+        return _idle.size();
+    }
+
+    /**
+     * Retrieves the number of callers currently waiting for a connection.
+     * @return an estimate of the number of waiting callers.
+     */
+    public int getWaitingCount() {
+        return _permits.getQueueLength();
+    }
+
+    /**
+     * Retrieves the number of successful acquisitions since the pool was created.
+     * @return the number of acquisitions.
+     */
+    public long getAcquisitionCount() {
+        return _acquisitions.sum();
+    }
+
+    /**
+     * Retrieves the number of acquisitions that timed out since the pool was created.
+     * @return the number of timeouts.
+     */
+    public long getTimeoutCount() {
+        return _timeouts.sum();
+    }
+
+    /**
+     * Retrieves the total time callers spent waiting to acquire a connection.
+     * @return the total wait time in nanoseconds.
+     */
+    public long getTotalWaitNanos() {
+        return _totalWaitNanos.sum();
+    }
+
+    /**
+     * Retrieves the longest time a single caller spent waiting to acquire a connection.
+     * @return the longest wait time in nanoseconds.
+     */
+    public long getMaxWaitNanos() {
+        return _maxWaitNanos.get();
+    }
+
+    /**
+     * Retrieves the number of physical connections the pool has opened.
+     * @return the number of connections created.
+     */
+    public long getCreatedCount() {
+        return _created.sum();
+    }
+
+    /**
+     * Retrieves the number of physical connections closed because they were idle too long or failed validation.
+     * @return the number of connections evicted.
+     */
+    public long getEvictedCount() {
+        return _evicted.sum();
+    }
+
+    /**
+     * Records the time a caller spent waiting for a permit.
+     * @param waitNanos the time spent waiting in nanoseconds.
+     */
+    private void recordWait(long waitNanos) {
+        _acquisitions.increment();
+        _totalWaitNanos.add(waitNanos);
+        long max;
+        while (waitNanos > (max = _maxWaitNanos.get())) {
+            if (_maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Checks if an idle connection can be handed out, validating it if it has been idle for a while.
+     * @param pooled the idle connection to check.
+     * @return true if the connection is usable, false if it should be discarded.
+     */
+    private boolean isUsable(PooledConnection pooled) {
+        try {
+            if (pooled._physical.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pooled._lastUsed < _validationIntervalMillis) {
+                return true;
+            }
+            try (Statement statement = pooled._physical.createStatement()) {
+                statement.execute(VALIDATION_QUERY);
+            }
+            return true;
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Discarding invalid pooled connection: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Takes back a connection that was closed by its borrower.
+     * @param pooled the connection being returned.
+     */
+    private void release(PooledConnection pooled) {
+        try {
+            if (_closed.get() || pooled._physical.isClosed()) {
+                destroy(pooled);
+                return;
+            }
+            // never hand out a connection in the middle of someone else's transaction
+            if (!pooled._physical.getAutoCommit()) {
+                pooled._physical.rollback();
+                pooled._physical.setAutoCommit(true);
+            }
+            pooled._lastUsed = System.currentTimeMillis();
+            _idle.offerFirst(pooled);
+        } catch (SQLException e) {
+            discard(pooled);
+        } finally {
+            _permits.release();
+        }
+    }
+
+    /**
+     * Evicts connections that have been idle longer than the idle timeout, then opens connections until the pool holds
+     * its minimum number of idle connections. Failures to open a connection are logged and retried on the next run,
+     * since any exception escaping this method would cancel every later run.
+     */
+    private void maintain() {
+        if (_idleTimeoutMillis > 0) {
+            long cutoff = System.currentTimeMillis() - _idleTimeoutMillis;
+            // the oldest connections sit at the tail of the deque
+            PooledConnection pooled;
+            while (_idle.size() > _minSize && (pooled = _idle.peekLast()) != null && pooled._lastUsed < cutoff) {
+                if (_idle.removeLastOccurrence(pooled)) {
+                    discard(pooled);
+                }
+            }
+        }
+        while (!_closed.get() && _idle.size() < _minSize && reserve()) {
+            PooledConnection pooled;
+            try {
+                pooled = open();
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to open pooled connection: ", e);
+                break;
+            }
+            _idle.offerLast(pooled);
+            // close() may have drained the idle connections while this one was being opened
+            if (_closed.get() && _idle.removeLastOccurrence(pooled)) {
+                destroy(pooled);
+            }
+        }
+    }
+
+    /**
+     * Reserves room for one more open connection if the pool is not full.
+     * @return true if the caller may open a connection, false if the pool already holds its maximum size.
+     */
+    private boolean reserve() {
+        int total;
+        while ((total = _total.get()) < _maxSize) {
+            if (_total.compareAndSet(total, total + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens a new physical connection into a slot taken by reserve(), giving the slot back if it fails.
+     * @return the newly opened connection.
+     * @throws SQLException if the connection could not be opened.
+     */
+    private PooledConnection open() throws SQLException {
+        try {
+            PooledConnection pooled = new PooledConnection(_factory.create());
+            _created.increment();
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            _total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a physical connection that will not be reused.
+     * @param pooled the connection to discard.
+     */
+    private void discard(PooledConnection pooled) {
+        _evicted.increment();
+        destroy(pooled);
+    }
+
+    /**
+     * Closes a physical connection and frees its slot in the pool.
+     * @param pooled the connection to close.
+     */
+    private void destroy(PooledConnection pooled) {
+        _total.decrementAndGet();
+        closeQuietly(pooled._physical);
+    }
+
+    /**
+     * Closes a connection, ignoring any errors.
+     * @param connection the connection to close.
+     */
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Error closing pooled connection: ", e);
+        }
+    }
+
+    /**
+     * Physical connection owned by the pool.
+     */
+    private final class PooledConnection {
+
+        /** The underlying physical connection. */
+        private final Connection _physical;
+        /** Time the connection was last returned to the pool, in milliseconds. */
+        private volatile long _lastUsed;
+
+        /**
+         * Wraps a newly opened physical connection.
+         * @param physical the physical connection.
+         */
+        private PooledConnection(Connection physical) {
+            _physical = physical;
+            _lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Creates a proxy for a single borrow of this connection.
+         * @return a Connection whose close() method returns this connection to the pool.
+         */
+        private Connection checkout() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new Handle());
+        }
+
+        /**
+         * Forwards calls to the physical connection until the borrower closes it.
+         */
+        private final class Handle implements InvocationHandler {
+
+            /** Whether the borrower has closed this handle. */
+            private boolean _returned = false;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!_returned) {
+                            _returned = true;
+                            release(PooledConnection.this);
+                        }
+                        return null;
+                    case "isClosed":
+                        return _returned || _physical.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Pooled" + _physical;
+                    default:
+                        if (_returned) {
+                            throw new SQLException("Connection has already been returned to the pool.");
+                        }
+                        try {
+                            return method.invoke(_physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        }
+    }
+}
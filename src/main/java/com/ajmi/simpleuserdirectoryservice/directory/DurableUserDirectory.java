@@ -0,0 +1,537 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory user directory that survives restarts. Users are held in an EphemeralUserDirectory, so reads are as fast as
+ * its, and every change is appended to a write-ahead log before the call that made it returns.
+ *
+ * With SYNC_EACH_WRITE durability, a write returns only once its log entry has been forced to disk, but concurrent
+ * writes share each force. With BATCHED durability, the log is forced on a fixed interval, so a crash loses at most the
+ * writes made in the last interval, in exchange for writes that never wait on the disk.
+ *
+ * Once enough has been logged since the last snapshot, a snapshot of every user is written in the background and the
+ * log it replaces is deleted, so a restart loads the snapshot and replays only what was logged after it.
+ *
+ * Log entries are limited in size, so usernames, emails, and screen names longer than WriteAheadLog.MAX_FIELD_SIZE
+ * bytes of UTF-8 are rejected before they change anything.
+ *
+ * Changes are made in memory before their log entries are forced, so the write whose sync fails first stays in memory,
+ * visible to readers, even though its caller is told it failed and it will not survive a restart. Every later write
+ * is rejected before it changes anything.
+ */
+public class DurableUserDirectory extends ForwardingUserDirectory implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(DurableUserDirectory.class.getName());
+
+    /** Message used for exceptions caused by a failed log operation. */
+    private static final String LOG_FAILURE_MSG = "Error writing the user directory's write-ahead log: ";
+    /** Message used for exceptions caused by a value too large to log. */
+    private static final String TOO_LARGE_MSG = "The entered data is too large for the write-ahead log.";
+
+    /**
+     * When writes are forced to disk.
+     */
+    public enum Durability {
+        /** Each write waits for its log entry to be forced to disk, sharing the force with concurrent writes. */
+        SYNC_EACH_WRITE,
+        /** Writes return immediately, and the log is forced to disk on a fixed interval. */
+        BATCHED
+    }
+
+    /** The in-memory directory holding the users. */
+    private final EphemeralUserDirectory _users;
+    /** Log of every change to the users. */
+    private final WriteAheadLog _log;
+    /** When writes are forced to disk. */
+    private final Durability _durability;
+    /** Number of bytes logged since the last snapshot that triggers a new snapshot. */
+    private final long _snapshotThresholdBytes;
+    /** Forces the log in BATCHED mode, and takes snapshots. */
+    private final ScheduledExecutorService _background;
+    /** Whether a snapshot has been scheduled but not yet finished. */
+    private final AtomicBoolean _snapshotScheduled;
+    /** Milliseconds it took to load the snapshot and replay the log on startup. */
+    private final long _recoveryMillis;
+
+    /**
+     * Opens a durable directory in the given file system directory, recovering every user it held, with
+     * SYNC_EACH_WRITE durability and the default log settings.
+     * @param directory the file system directory holding the log and snapshots.
+     * @throws ConnectionFailureException if the log or snapshots could not be read.
+     */
+    public DurableUserDirectory(Path directory) throws ConnectionFailureException {
+        this(builder(directory));
+    }
+
+    /**
+     * Opens a durable directory using the builder's settings, recovering every user it held.
+     * @param builder the settings of the directory.
+     * @throws ConnectionFailureException if the log or snapshots could not be read.
+     */
+    private DurableUserDirectory(Builder builder) throws ConnectionFailureException {
+        this(builder, new WriteAheadLog(builder._directory, builder._segmentSizeBytes));
+    }
+
+    /**
+     * Opens a durable directory using the builder's settings and log, recovering every user it held.
+     * @param builder the settings of the directory.
+     * @param log the log, not yet recovered.
+     * @throws ConnectionFailureException if the log or snapshots could not be read.
+     */
+    private DurableUserDirectory(Builder builder, WriteAheadLog log) throws ConnectionFailureException {
+        this(builder, log, new EphemeralUserDirectory(log));
+    }
+
+    /**
+     * Opens a durable directory using the builder's settings, recovering every user it held into the given in-memory
+     * directory.
+     * @param builder the settings of the directory.
+     * @param log the log, not yet recovered.
+     * @param users the in-memory directory, which must be listened to by the log.
+     * @throws ConnectionFailureException if the log or snapshots could not be read.
+     */
+    private DurableUserDirectory(Builder builder, WriteAheadLog log, EphemeralUserDirectory users) throws ConnectionFailureException {
+        super(users);
+        _users = users;
+        _log = log;
+        _durability = builder._durability;
+        _snapshotThresholdBytes = builder._snapshotThresholdBytes;
+        _snapshotScheduled = new AtomicBoolean();
+
+        long start = System.nanoTime();
+        try {
+            _log.recover(_users);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error recovering the user directory's write-ahead log: ", e);
+            throw new ConnectionFailureException(LOG_FAILURE_MSG, e);
+        }
+        _recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.log(Level.INFO, "Recovered " + _log.getRecoveredSnapshotUsers() + " users from a snapshot and replayed "
+                + _log.getReplayedEntryCount() + " log entries in " + _recoveryMillis + " ms.");
+
+        _background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "durable-user-directory");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (_durability == Durability.BATCHED) {
+            _background.scheduleWithFixedDelay(() -> {
+                try {
+                    _log.sync();
+                    maybeSnapshot();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, LOG_FAILURE_MSG, e);
+                }
+            }, builder._syncIntervalMillis, builder._syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Creates a builder for a durable directory in the given file system directory.
+     * @param directory the file system directory holding the log and snapshots.
+     * @return a new Builder with the default settings.
+     */
+    public static Builder builder(Path directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * Writes a snapshot of every user and deletes the log and snapshots it replaces.
+     * @throws ConnectionFailureException if the snapshot could not be written.
+     */
+    public void snapshot() throws ConnectionFailureException {
+        try {
+            _log.snapshot(_users);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing a user directory snapshot: ", e);
+            throw new ConnectionFailureException(LOG_FAILURE_MSG, e);
+        }
+    }
+
+    /**
+     * Stops the background tasks and forces every logged write to disk.
+     * @throws ConnectionFailureException if the log could not be written or closed.
+     */
+    @Override
+    public void close() throws ConnectionFailureException {
+        _background.shutdown();
+        try {
+            _background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            _log.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, LOG_FAILURE_MSG, e);
+            throw new ConnectionFailureException(LOG_FAILURE_MSG, e);
+        }
+    }
+
+    /**
+     * Retrieves how long it took to load the snapshot and replay the log when the directory was opened.
+     * @return the recovery time in milliseconds.
+     */
+    public long getRecoveryMillis() {
+        return _recoveryMillis;
+    }
+
+    /**
+     * Retrieves the number of users loaded from a snapshot when the directory was opened.
+     * @return the number of users loaded from a snapshot.
+     */
+    public long getRecoveredSnapshotUsers() {
+        return _log.getRecoveredSnapshotUsers();
+    }
+
+    /**
+     * Retrieves the number of log entries replayed when the directory was opened.
+     * @return the number of replayed log entries.
+     */
+    public long getReplayedEntryCount() {
+        return _log.getReplayedEntryCount();
+    }
+
+    /**
+     * Retrieves the number of times the log was forced to disk. With SYNC_EACH_WRITE durability, the difference between
+     * this and the number of writes is the number of forces saved by group commit.
+     * @return the number of forces.
+     */
+    public long getSyncCount() {
+        return _log.getSyncCount();
+    }
+
+    /**
+     * Retrieves the number of snapshots written since the directory was opened.
+     * @return the number of snapshots.
+     */
+    public long getSnapshotCount() {
+        return _log.getSnapshotCount();
+    }
+
+    /**
+     * Retrieves the number of bytes logged since the last snapshot, which a restart would have to replay.
+     * @return the number of bytes logged since the last snapshot.
+     */
+    public long getLogBytes() {
+        return _log.getBytesSinceSnapshot();
+    }
+
+    /**
+     * Retrieves the hasher new passwords are hashed with.
+     * @return the directory's password hasher.
+     */
+    public PasswordHasher getPasswordHasher() {
+        return _users.getPasswordHasher();
+    }
+
+    /**
+     * Sets the hasher new passwords are hashed with. Passwords hashed with another hasher are rehashed with this one
+     * the next time their user authenticates. Rehashes are logged, but authentication doesn't wait for them to be
+     * synced; a rehash lost in a crash leaves the old hash, which still verifies.
+     * @param hasher the hasher to hash new passwords with.
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        _users.setPasswordHasher(hasher);
+    }
+
+    /**
+     * Adds a user and logs it.
+     * @param username the username of the new user.
+     * @param email the email of the new user.
+     * @param screeName the screen name of the new user.
+     * @param password the password of the new user.
+     * @throws ConnectionFailureException if the log could not be written.
+     * @throws UserAlreadyExistsException if a user with the username already exists.
+     * @throws PolicyFailureException if the user fails the directory's policy, or a value is too large to log.
+     */
+    @Override
+    public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        checkLoggable(username, email, screeName);
+        checkHealthy();
+        super.addUser(username, email, screeName, password);
+        commit();
+    }
+
+    /**
+     * Adds every user that fits in the log, and logs them.
+     * @param users the registrations of the users to add.
+     * @return a map from the username of every registration that could not be added to the exception explaining why.
+     * @throws ConnectionFailureException if the log could not be written.
+     */
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        Map<String, UserDirectoryException> failures = new LinkedHashMap<>();
+        List<UserRegistration> loggable = new ArrayList<>(users.size());
+        for (UserRegistration user : users) {
+            try {
+                checkLoggable(user.getUsername(), user.getEmail(), user.getScreenName());
+                loggable.add(user);
+            } catch (PolicyFailureException e) {
+                failures.putIfAbsent(user.getUsername(), e);
+            }
+        }
+        // drop every registration of a username that failed, so a later copy of it isn't added
+        loggable.removeIf(user -> failures.containsKey(user.getUsername()));
+        checkHealthy();
+        failures.putAll(super.addUsers(loggable));
+        commit();
+        return failures;
+    }
+
+    @Override
+    public boolean removeUser(String username) throws ConnectionFailureException {
+        checkHealthy();
+        boolean removed = super.removeUser(username);
+        commit();
+        return removed;
+    }
+
+    /**
+     * Changes a user's username and logs it.
+     * @param username the user's current username.
+     * @param newUsername the user's new username.
+     * @throws ConnectionFailureException if the log could not be written.
+     * @throws IllegalArgumentException if the new username is too large to log.
+     */
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        checkLoggable(newUsername);
+        checkHealthy();
+        super.updateUsername(username, newUsername);
+        commit();
+    }
+
+    /**
+     * Changes a user's email and logs it.
+     * @param username the username of the user.
+     * @param newEmail the user's new email.
+     * @throws ConnectionFailureException if the log could not be written.
+     * @throws IllegalArgumentException if the new email is too large to log.
+     */
+    @Override
+    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
+        checkLoggable(newEmail);
+        checkHealthy();
+        super.updateEmail(username, newEmail);
+        commit();
+    }
+
+    /**
+     * Changes a user's screen name and logs it.
+     * @param username the username of the user.
+     * @param newScreenName the user's new screen name.
+     * @throws ConnectionFailureException if the log could not be written.
+     * @throws IllegalArgumentException if the new screen name is too large to log.
+     */
+    @Override
+    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
+        checkLoggable(newScreenName);
+        checkHealthy();
+        super.updateScreenName(username, newScreenName);
+        commit();
+    }
+
+    @Override
+    public void updatePassword(String username, String newPassword) throws ConnectionFailureException {
+        checkHealthy();
+        super.updatePassword(username, newPassword);
+        commit();
+    }
+
+    /**
+     * Applies a patch to a user and logs it.
+     * @param username the username of the user.
+     * @param patch the changes to make.
+     * @return true if the user exists and the changes were made, false if the user was left unchanged.
+     * @throws ConnectionFailureException if the log could not be written.
+     * @throws IllegalArgumentException if a new value is too large to log.
+     */
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        checkLoggable(patch.getUsername());
+        checkLoggable(patch.getEmail());
+        checkLoggable(patch.getScreenName());
+        checkHealthy();
+        boolean updated = super.updateUser(username, patch);
+        commit();
+        return updated;
+    }
+
+    /**
+     * Checks that a new user's values fit in a log entry, before the user is added.
+     * @param username the username of the new user.
+     * @param email the email of the new user.
+     * @param screenName the screen name of the new user.
+     * @throws PolicyFailureException if a value is too large to log.
+     */
+    private static void checkLoggable(String username, String email, String screenName) throws PolicyFailureException {
+        if (!WriteAheadLog.isLoggable(username)) {
+            throw new PolicyFailureException(TOO_LARGE_MSG, PolicyFailure.ILLEGAL_USERNAME);
+        }
+        if (!WriteAheadLog.isLoggable(email)) {
+            throw new PolicyFailureException(TOO_LARGE_MSG, PolicyFailure.ILLEGAL_EMAIL);
+        }
+        if (!WriteAheadLog.isLoggable(screenName)) {
+            throw new PolicyFailureException(TOO_LARGE_MSG, PolicyFailure.ILLEGAL_SCREEN_NAME);
+        }
+    }
+
+    /**
+     * Checks that a new value for an existing user fits in a log entry, before the user is changed.
+     * @param value the new username, email, or screen name, or null.
+     * @throws IllegalArgumentException if the value is too large to log.
+     */
+    private static void checkLoggable(String value) {
+        if (!WriteAheadLog.isLoggable(value)) {
+            throw new IllegalArgumentException(TOO_LARGE_MSG);
+        }
+    }
+
+    /**
+     * Makes the calling thread's writes as durable as the directory's durability requires, and schedules a snapshot if
+     * enough has been logged since the last one.
+     * @throws ConnectionFailureException if the log could not be written.
+     */
+    private void commit() throws ConnectionFailureException {
+        if (_durability == Durability.SYNC_EACH_WRITE) {
+            try {
+                _log.sync();
+            } catch (IOException e) {
+                throw new ConnectionFailureException(LOG_FAILURE_MSG, e);
+            }
+        } else {
+            checkHealthy();
+        }
+        maybeSnapshot();
+    }
+
+    /**
+     * Checks that the log can still be written, before a write changes anything in memory.
+     * @throws ConnectionFailureException if an earlier sync of the log failed.
+     */
+    private void checkHealthy() throws ConnectionFailureException {
+        try {
+            _log.checkHealthy();
+        } catch (IOException e) {
+            throw new ConnectionFailureException(LOG_FAILURE_MSG, e);
+        }
+    }
+
+    /**
+     * Schedules a snapshot in the background if enough has been logged since the last one and none is scheduled.
+     */
+    private void maybeSnapshot() {
+        if (_log.getBytesSinceSnapshot() < _snapshotThresholdBytes || !_snapshotScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            _background.execute(() -> {
+                try {
+                    _log.snapshot(_users);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error writing a user directory snapshot: ", e);
+                } finally {
+                    _snapshotScheduled.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the directory is closing
+            _snapshotScheduled.set(false);
+        }
+    }
+
+    /**
+     * Builder for DurableUserDirectory.
+     */
+    public static final class Builder {
+        /** The file system directory holding the log and snapshots. */
+        private final Path _directory;
+        /** When writes are forced to disk. */
+        private Durability _durability = Durability.SYNC_EACH_WRITE;
+        /** Milliseconds between forces of the log in BATCHED mode. */
+        private long _syncIntervalMillis = 10;
+        /** Size past which a log segment is closed and a new one started. */
+        private long _segmentSizeBytes = 64L << 20;
+        /** Number of bytes logged since the last snapshot that triggers a new snapshot. */
+        private long _snapshotThresholdBytes = 256L << 20;
+
+        /**
+         * Creates a new Builder for a durable directory in the given file system directory.
+         * @param directory the file system directory holding the log and snapshots.
+         */
+        private Builder(Path directory) {
+            _directory = directory;
+        }
+
+        /**
+         * Sets when writes are forced to disk. Defaults to SYNC_EACH_WRITE.
+         * @param durability when writes are forced to disk.
+         * @return this Builder.
+         */
+        public Builder durability(Durability durability) {
+            _durability = durability;
+            return this;
+        }
+
+        /**
+         * Sets how often the log is forced to disk with BATCHED durability, which bounds how many writes a crash can
+         * lose. Defaults to 10 milliseconds.
+         * @param syncIntervalMillis the time between forces in milliseconds.
+         * @return this Builder.
+         */
+        public Builder syncIntervalMillis(long syncIntervalMillis) {
+            _syncIntervalMillis = syncIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets the size past which a log segment is closed and a new one started. Defaults to 64 MiB.
+         * @param segmentSizeBytes the segment size in bytes.
+         * @return this Builder.
+         */
+        public Builder segmentSizeBytes(long segmentSizeBytes) {
+            _segmentSizeBytes = segmentSizeBytes;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes may be logged since the last snapshot before a new snapshot is written, which bounds how
+         * much a restart has to replay. Defaults to 256 MiB.
+         * @param snapshotThresholdBytes the snapshot threshold in bytes.
+         * @return this Builder.
+         */
+        public Builder snapshotThresholdBytes(long snapshotThresholdBytes) {
+            _snapshotThresholdBytes = snapshotThresholdBytes;
+            return this;
+        }
+
+        /**
+         * Opens the durable directory, recovering every user it held.
+         * @return the new DurableUserDirectory.
+         * @throws ConnectionFailureException if the log or snapshots could not be read.
+         */
+        public DurableUserDirectory build() throws ConnectionFailureException {
+            return new DurableUserDirectory(this);
+        }
+    }
+}
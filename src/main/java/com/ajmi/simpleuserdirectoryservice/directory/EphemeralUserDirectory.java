@@ -1,38 +1,91 @@
 package com.ajmi.simpleuserdirectoryservice.directory;
 
 import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHashers;
 import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
 import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
 import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * User directory implemented as a Plain Old Java Object.
+ *
+ * The directory is safe to share between threads. Each user is kept as a single immutable record in a concurrent hash
+ * map, so reads never lock and never see a user's data, salt, and password from different updates. Writes lock one of a
+ * fixed set of stripes selected by username, so writes to different users rarely contend, and a rename locks the
+ * stripes of both usernames so it is atomic with respect to every other write.
+ *
+ * Usernames are also kept in a concurrent skip list, so users can be listed in order a page at a time without sorting,
+ * and the usernames of the users with each email are kept in a concurrent hash map, so users can be found by email.
+ * Claiming an email in that map is atomic, which is what keeps emails unique when the policy requires it.
  */
 public class EphemeralUserDirectory implements UserDirectory {
 
     /** Message used for exceptions caused by a failed policy. */
     private static final String POLICY_FAILURE_MSG = "The entered data failed the directory's policy.";
+    /** Message used for exceptions caused by an email that is already taken. */
+    private static final String DUPLICATE_EMAIL_MSG = "Another user already has the entered email.";
+    /** Number of lock stripes, a power of two. */
+    private static final int STRIPE_COUNT = 64;
 
-    /** Hash map containing user data indexed by username. **/
-    private HashMap<String, UserData> _users;
-    /** Hash map containing user passwords indexed by username. **/
-    private HashMap<String, String> _passwords;
-    /** Hash map containing user salts indexed by username. **/
-    private HashMap<String, String> _salts;
+    /** Concurrent hash map containing user records indexed by username. **/
+    private final ConcurrentHashMap<String, UserRecord> _users;
+    /** Usernames of every user, in ascending order. Updated after _users, under the same lock stripe. */
+    private final ConcurrentSkipListSet<String> _usernames;
+    /** Usernames of the users with each non-null email. Updated after _users, under the lock stripe of the username. */
+    private final ConcurrentHashMap<String, String[]> _emails;
+    /** Locks guarding writes, selected by the hash of the username being written. */
+    private final Object[] _stripes;
     /** Policy for usernames, emails, screen names, and passwords. */
-    private Policy _policy;
+    private volatile Policy _policy;
+    /** Hasher new passwords are hashed with, and old hashes are upgraded to on login. */
+    private volatile PasswordHasher _hasher;
+    /** Notified of every change to a record, or null if nothing listens. */
+    private final RecordListener _listener;
 
     /**
      * Creates an new EphemeralUserDirectory with a policy that accepts any username, any email, any screen name, and
      * any password.
      */
     public EphemeralUserDirectory() {
-        _users = new HashMap<>();
-        _passwords = new HashMap<>();
-        _salts = new HashMap<>();
+        this(null);
+    }
+
+    /**
+     * Creates an new EphemeralUserDirectory that notifies a listener of every change to a record.
+     * @param listener the listener to notify, or null if nothing listens.
+     */
+    EphemeralUserDirectory(RecordListener listener) {
+        _listener = listener;
+        _hasher = PasswordHashers.legacy();
+        _users = new ConcurrentHashMap<>();
+        _usernames = new ConcurrentSkipListSet<>();
+        _emails = new ConcurrentHashMap<>();
+        _stripes = new Object[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            _stripes[i] = new Object();
+        }
 
         // create new policy
         _policy = new Policy() {
@@ -69,7 +122,24 @@ public class EphemeralUserDirectory implements UserDirectory {
     }
 
     /**
-     * Adds the username, email, and screen name to the users hash map, and the password to the passwords hash map.
+     * Probes the users hash map for each of the provided usernames.
+     * @param usernames the user names of the users to check for.
+     * @return the provided usernames that are keys in the hash map.
+     */
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) {
+        Set<String> found = new HashSet<>();
+        for (String username : usernames) {
+            if (_users.containsKey(username)) {
+                found.add(username);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Hashes the password, then adds a record with the username, email, screen name, and hashed password to the users
+     * hash map if no record with the username exists.
      * @param username the user name of the new entry.
      * @param email the email of the new entry.
      * @param screeName the screen name of the new entry.
@@ -79,45 +149,110 @@ public class EphemeralUserDirectory implements UserDirectory {
      */
     @Override
     public void addUser(String username, String email, String screeName, String password) throws UserAlreadyExistsException, PolicyFailureException {
+        // check that the parameters meet the policy's requirements
+        checkPolicy(username, email, screeName, password);
+        if (_policy.requireUniqueEmails() && isEmailTaken(email, null)) {
+            throw new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL);
+        }
         // make sure the user does not already exist
         if (_users.containsKey(username)) {
             throw new UserAlreadyExistsException("A user with username \"" + username + "\" already exists.");
         }
-        // check that the parameters meet the policy's requirements
-        if (!_policy.checkUsername(username)) {
-            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_USERNAME);
-        }
-        if (!_policy.checkEmail(email)) {
-            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_EMAIL);
-        }
-        if (!_policy.checkScreenName(screeName)) {
-            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_SCREEN_NAME);
+
+        // hash outside of the lock, since it is by far the slowest part of adding a user
+        PasswordHasher hasher = _hasher;
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        UserRecord record = new UserRecord(new UserData(username, email, screeName), hasher.getId(), salt,
+                hasher.hash(password, salt));
+        synchronized (stripeFor(username)) {
+            if (_users.containsKey(username)) {
+                throw new UserAlreadyExistsException("A user with username \"" + username + "\" already exists.");
+            }
+            // another thread may have taken the email since it was checked
+            if (_policy.requireUniqueEmails() && !indexEmail(email, username, true)) {
+                throw new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL);
+            }
+            putRecord(username, record);
         }
-        if (!_policy.checkPassword(password)) {
-            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_PASSWORD);
+    }
+
+    /**
+     * Checks every registration against the directory's policy, hashes the passwords of the registrations that pass in
+     * parallel, then adds them to the users hash map.
+     * @param users the registrations of the users to add.
+     * @return a map from the username of every registration that could not be added to the exception explaining why.
+     */
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) {
+        Map<String, UserDirectoryException> failures = new LinkedHashMap<>();
+        // registrations that passed every check, indexed by username
+        Map<String, UserRegistration> accepted = new LinkedHashMap<>();
+        // usernames of every registration seen so far, accepted or not, so duplicates within the batch are caught
+        Set<String> seen = new HashSet<>();
+        boolean uniqueEmails = _policy.requireUniqueEmails();
+        // emails of the accepted registrations, so duplicate emails within the batch are caught
+        Set<String> acceptedEmails = new HashSet<>();
+        for (UserRegistration user : users) {
+            String username = user.getUsername();
+            if (!seen.add(username)) {
+                failures.putIfAbsent(username, new UserAlreadyExistsException("A user with username \"" + username + "\" already exists."));
+                continue;
+            }
+            try {
+                checkPolicy(username, user.getEmail(), user.getScreenName(), user.getPassword());
+                if (uniqueEmails && user.getEmail() != null
+                        && (isEmailTaken(user.getEmail(), null) || acceptedEmails.contains(user.getEmail()))) {
+                    throw new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL);
+                }
+            } catch (PolicyFailureException e) {
+                failures.put(username, e);
+                continue;
+            }
+            if (_users.containsKey(username)) {
+                failures.put(username, new UserAlreadyExistsException("A user with username \"" + username + "\" already exists."));
+                continue;
+            }
+            if (uniqueEmails && user.getEmail() != null) {
+                acceptedEmails.add(user.getEmail());
+            }
+            accepted.put(username, user);
         }
 
-        _users.put(username, new UserData(username, email, screeName));
+        // hashing dominates the cost of adding a user, so spread it across cores
+        PasswordHasher hasher = _hasher;
+        List<UserRecord> records = new ArrayList<>(accepted.size());
+        accepted.values().parallelStream().map(user -> {
+            byte[] salt = PasswordCrypt.nextSaltBytes();
+            return new UserRecord(new UserData(user.getUsername(), user.getEmail(), user.getScreenName()),
+                    hasher.getId(), salt, hasher.hash(user.getPassword(), salt));
+        }).forEachOrdered(records::add);
 
-        String salt = PasswordCrypt.nextSalt();
-        _passwords.put(username, PasswordCrypt.hashPassword(password, salt));
-        _salts.put(username, salt);
+        for (UserRecord record : records) {
+            String username = record._data.getUsername();
+            synchronized (stripeFor(username)) {
+                // another thread may have added the user since it was checked
+                if (_users.containsKey(username)) {
+                    failures.put(username, new UserAlreadyExistsException("A user with username \"" + username + "\" already exists."));
+                } else if (uniqueEmails && !indexEmail(record._data.getEmail(), username, true)) {
+                    failures.put(username, new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL));
+                } else {
+                    putRecord(username, record);
+                }
+            }
+        }
+        return failures;
     }
 
     /**
-     * Removes the entries with the specified username as the key from the users and passwords hash maps.
+     * Removes the record with the specified username as the key from the users hash map.
      * @param username the user name of the user to remove.
      * @return true if hasUser() returns true, false otherwise.
      */
     @Override
     public boolean removeUser(String username) {
-        if (hasUser(username)) {
-            _users.remove(username);
-            _passwords.remove(username);
-            _salts.remove(username);
-            return true;
+        synchronized (stripeFor(username)) {
+            return removeRecord(username);
         }
-        return false;
     }
 
     /**
@@ -126,8 +261,77 @@ public class EphemeralUserDirectory implements UserDirectory {
      */
     @Override
     public String[] getUsers() {
-        String[] users = new String[_users.size()];
-        _users.keySet().toArray(users);
+        return _users.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Walks the ordered username index from the given username.
+     * @param afterUsername the username to start after, or null to start from the first user.
+     * @param limit the maximum number of usernames to retrieve.
+     * @return up to limit usernames greater than afterUsername, in ascending order.
+     */
+    @Override
+    public List<String> getUsers(String afterUsername, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit + ".");
+        }
+        Iterator<String> usernames = (afterUsername == null ? _usernames : _usernames.tailSet(afterUsername, false)).iterator();
+        List<String> page = new ArrayList<>(Math.min(limit, 1024));
+        while (page.size() < limit && usernames.hasNext()) {
+            page.add(usernames.next());
+        }
+        return page;
+    }
+
+    /**
+     * Streams the ordered username index, so the usernames are streamed in ascending order.
+     * @return a stream of every user's username.
+     */
+    @Override
+    public Stream<String> streamUsers() {
+        return _usernames.stream();
+    }
+
+    /**
+     * Walks the ordered username index from the prefix until a username no longer starts with it.
+     * @param prefix the prefix to match, or an empty string to match every username.
+     * @param limit the maximum number of usernames to retrieve.
+     * @return up to limit of the lowest usernames starting with prefix, in ascending order.
+     */
+    @Override
+    public List<String> findUsersByPrefix(String prefix, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit + ".");
+        }
+        List<String> matches = new ArrayList<>(Math.min(limit, 1024));
+        // every username starting with the prefix sorts at or after it, and before any username that doesn't
+        for (String username : _usernames.tailSet(prefix, true)) {
+            if (matches.size() == limit || !username.startsWith(prefix)) {
+                break;
+            }
+            matches.add(username);
+        }
+        return matches;
+    }
+
+    /**
+     * Looks up the usernames with the email in the email index, and reads their records.
+     * @param email the email to look up.
+     * @return the data of every user with the email, empty if there are none or the email is null.
+     */
+    @Override
+    public List<UserData> findByEmail(String email) {
+        List<UserData> users = new ArrayList<>();
+        String[] usernames = email == null ? null : _emails.get(email);
+        if (usernames != null) {
+            for (String username : usernames) {
+                UserRecord record = _users.get(username);
+                // the record may have changed since the index was read
+                if (record != null && email.equals(record._data.getEmail())) {
+                    users.add(record._data);
+                }
+            }
+        }
         return users;
     }
 
@@ -150,7 +354,24 @@ public class EphemeralUserDirectory implements UserDirectory {
     }
 
     /**
-     * Checks that the provided password matches the password in the passwords hash map.
+     * Retrieves the hasher new passwords are hashed with.
+     * @return the directory's password hasher.
+     */
+    public PasswordHasher getPasswordHasher() {
+        return _hasher;
+    }
+
+    /**
+     * Sets the hasher new passwords are hashed with. Passwords hashed with another hasher are still verified with it,
+     * and are rehashed with this one the next time their user authenticates.
+     * @param hasher the hasher to hash new passwords with.
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        _hasher = hasher;
+    }
+
+    /**
+     * Checks that the provided password matches the password in the user's record.
      * @param username the username of user to authenticate.
      * @param password the password used to authenticate the user.
      * @return Returns true if the passwords match, false otherwise.
@@ -161,25 +382,48 @@ public class EphemeralUserDirectory implements UserDirectory {
     }
 
     /**
-     * Checks that the provided password matches the password in the passwords hash map.
+     * Checks that the provided password matches the password in the user's record, using the hasher the record was
+     * hashed with. If it matches but was hashed with a hasher other than the directory's current one, the password is
+     * rehashed with the current hasher.
      * @param username the username of user to authenticate.
      * @param password the password used to authenticate the user.
      * @return INVALID_USERNAME if the directory doesn't have the specified user, INVALID_PASSWORD if the given password
-     * and the password in the passwords hash map don't match, and VALID if they do.
+     * and the password in the user's record don't match, and VALID if they do.
      */
     @Override
     public Authentication authenticateUserDetailed(String username, String password) {
-        Authentication authentication;
-        if (hasUser(username)) {
-            if (PasswordCrypt.hashPassword(password, _salts.get(username)).equals(_passwords.get(username))) {
-                authentication = Authentication.VALID;
-            } else {
-                authentication = Authentication.INVALID_PASSWORD;
+        UserRecord record = _users.get(username);
+        if (record == null) {
+            return Authentication.INVALID_USERNAME;
+        }
+        if (!PasswordHashers.forId(record._scheme).verify(password, record._salt, record._hashed)) {
+            return Authentication.INVALID_PASSWORD;
+        }
+        PasswordHasher hasher = _hasher;
+        if (!hasher.getId().equals(record._scheme)) {
+            // the password is known to be right, so upgrade its hash to the current hasher
+            byte[] salt = PasswordCrypt.nextSaltBytes();
+            UserRecord rehashed = new UserRecord(record._data, hasher.getId(), salt, hasher.hash(password, salt));
+            synchronized (stripeFor(username)) {
+                // don't overwrite a change made since the record was read
+                if (_users.get(username) == record) {
+                    putRecord(username, rehashed);
+                }
             }
-        } else {
-            authentication = Authentication.INVALID_USERNAME;
         }
-        return authentication;
+        return Authentication.VALID;
+    }
+
+    /**
+     * Authenticates every pair in parallel, since verifying passwords dominates the cost of authenticating.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return the result of authenticating each pair, in the order of the given list.
+     */
+    @Override
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) {
+        return credentials.parallelStream()
+                .map(credential -> authenticateUserDetailed(credential.getUsername(), credential.getPassword()))
+                .collect(Collectors.toList());
     }
 
     /**
@@ -189,74 +433,463 @@ public class EphemeralUserDirectory implements UserDirectory {
      */
     @Override
     public Optional<UserData> getUserData(String username) {
-        if (hasUser(username)) {
-            return Optional.of(_users.get(username));
+        UserRecord record = _users.get(username);
+        return record == null ? Optional.empty() : Optional.of(record._data);
+    }
+
+    /**
+     * Retrieves the UserData object of each of the specified users from the users hash map. Each record is read once,
+     * so each user's data is from a single update.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a map from the username of every user that exists to its data.
+     */
+    @Override
+    public Map<String, UserData> getUserData(Collection<String> usernames) {
+        Map<String, UserData> data = new HashMap<>();
+        for (String username : usernames) {
+            UserRecord record = _users.get(username);
+            if (record != null) {
+                data.put(username, record._data);
+            }
         }
-        return Optional.empty();
+        return data;
     }
 
     /**
-     * If the directory has the specified user, then the directory removes the entry with the specified username as the
-     * key from the users and passwords hash maps, then adds a new entry to each of the hash maps with the new username
-     * as the key, using the old password, and creating a new UserData object with the new username and the old email
-     * and screen name.
+     * If the directory has the specified user and no user with the new username, then the directory moves the user's
+     * record to the new username, keeping the old password and creating a new UserData object with the new username
+     * and the old email and screen name.
      * @param username the username of the user to update.
      * @param newUsername the username to change the user's current username to.
      */
     @Override
     public void updateUsername(String username, String newUsername) {
-        if (hasUser(username)) {
-            UserData data = _users.get(username);
-            String pass = _passwords.get(username);
-            String salt = _salts.get(username);
-            _users.remove(username);
-            _users.put(newUsername, new UserData(newUsername, data.getEmail(), data.getScreenName()));
-            _passwords.remove(username);
-            _passwords.put(newUsername, pass);
-            _salts.remove(username);
-            _salts.put(newUsername, salt);
+        int oldStripe = stripeIndex(username);
+        int newStripe = stripeIndex(newUsername);
+        // always lock stripes in the same order so two opposite renames can't deadlock
+        synchronized (_stripes[Math.min(oldStripe, newStripe)]) {
+            synchronized (_stripes[Math.max(oldStripe, newStripe)]) {
+                UserRecord record = _users.get(username);
+                if (record == null || _users.containsKey(newUsername)) {
+                    return;
+                }
+                UserData data = record._data;
+                renameRecord(username, new UserRecord(new UserData(newUsername, data.getEmail(), data.getScreenName()),
+                        record._scheme, record._salt, record._hashed));
+            }
         }
     }
 
     /**
-     * If the specified user exists, put the specified username back into the users hash map with a new UserData object
-     * containing the old username, new email, and old screen name.
+     * If the specified user exists, replace their record with one containing the old username, new email, and old
+     * screen name. If the policy requires unique emails and another user has the new email, the user is left
+     * unchanged.
      * @param username the username of the user to update.
      * @param newEmail the email to change the user's current email to.
      */
     @Override
     public void updateEmail(String username, String newEmail) {
-        if (hasUser(username)) {
-            UserData data = _users.get(username);
-            _users.put(username, new UserData(username, newEmail, data.getScreenName()));
+        synchronized (stripeFor(username)) {
+            UserRecord record = _users.get(username);
+            if (record != null && (!_policy.requireUniqueEmails() || indexEmail(newEmail, username, true))) {
+                UserData data = record._data;
+                putRecord(username, new UserRecord(new UserData(username, newEmail, data.getScreenName()),
+                        record._scheme, record._salt, record._hashed));
+            }
         }
     }
 
     /**
-     * If the specified user exists, put the specified username back into the users hash map with a new UserData object
-     * containing the old username, odl email, and new screen name.
+     * If the specified user exists, replace their record with one containing the old username, old email, and new
+     * screen name.
      * @param username the username of the user to update.
      * @param newScreenName the screen name to change the user's current screen name to.
      */
     @Override
     public void updateScreenName(String username, String newScreenName) {
-        if (hasUser(username)) {
-            UserData data = _users.get(username);
-            _users.put(username, new UserData(username, data.getEmail(), newScreenName));
+        synchronized (stripeFor(username)) {
+            UserRecord record = _users.get(username);
+            if (record != null) {
+                UserData data = record._data;
+                putRecord(username, new UserRecord(new UserData(username, data.getEmail(), newScreenName),
+                        record._scheme, record._salt, record._hashed));
+            }
         }
     }
 
     /**
-     * If the specified user exists, put the specified username back into the passwords hash map with the new password.
+     * If the specified user exists, replace their record with one containing a new salt and the new password hashed
+     * with it.
      * @param username the username of the user to update.
      * @param newPassword the password to change the user's current password to.
      */
     @Override
     public void updatePassword(String username, String newPassword) {
-        if (hasUser(username)) {
-            String salt = PasswordCrypt.nextSalt();
-            _passwords.put(username, PasswordCrypt.hashPassword(newPassword, salt));
-            _salts.put(username, salt);
+        if (!_users.containsKey(username)) {
+            return;
+        }
+        // hash outside of the lock, since it is by far the slowest part of the update
+        PasswordHasher hasher = _hasher;
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        byte[] hashed = hasher.hash(newPassword, salt);
+        synchronized (stripeFor(username)) {
+            UserRecord record = _users.get(username);
+            if (record != null) {
+                putRecord(username, new UserRecord(record._data, hasher.getId(), salt, hashed));
+            }
+        }
+    }
+
+    /**
+     * If the specified user exists, replace their record with one holding every change in the patch, moving it to the
+     * new username if the patch sets one. A new password is hashed with a new salt outside of the locks. The user is
+     * left unchanged if another user has the new username, or if the policy requires unique emails and another user
+     * has the new email.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return true if the user exists and the changes were made, false if the user was left unchanged.
+     */
+    @Override
+    public boolean updateUser(String username, UserPatch patch) {
+        PasswordHasher hasher = _hasher;
+        byte[] salt = null;
+        byte[] hashed = null;
+        if (patch.hasPassword()) {
+            if (!_users.containsKey(username)) {
+                return false;
+            }
+            // hash outside of the locks, since it is by far the slowest part of the update
+            salt = PasswordCrypt.nextSaltBytes();
+            hashed = hasher.hash(patch.getPassword(), salt);
+        }
+        String newUsername = patch.hasUsername() ? patch.getUsername() : username;
+        boolean renamed = !newUsername.equals(username);
+        int oldStripe = stripeIndex(username);
+        int newStripe = stripeIndex(newUsername);
+        // always lock stripes in the same order so two opposite renames can't deadlock
+        synchronized (_stripes[Math.min(oldStripe, newStripe)]) {
+            synchronized (_stripes[Math.max(oldStripe, newStripe)]) {
+                UserRecord record = _users.get(username);
+                if (record == null || (renamed && _users.containsKey(newUsername))) {
+                    return false;
+                }
+                UserData data = record._data;
+                String email = patch.hasEmail() ? patch.getEmail() : data.getEmail();
+                if (!Objects.equals(email, data.getEmail()) && _policy.requireUniqueEmails()
+                        && !indexEmail(email, newUsername, true)) {
+                    return false;
+                }
+                String screenName = patch.hasScreenName() ? patch.getScreenName() : data.getScreenName();
+                UserRecord updated = patch.hasPassword()
+                        ? new UserRecord(new UserData(newUsername, email, screenName), hasher.getId(), salt, hashed)
+                        : new UserRecord(new UserData(newUsername, email, screenName), record._scheme, record._salt,
+                        record._hashed);
+                if (renamed) {
+                    renameRecord(username, updated);
+                } else {
+                    putRecord(username, updated);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Checks that the given values meet the directory's policy.
+     * @param username the username to check.
+     * @param email the email to check.
+     * @param screenName the screen name to check.
+     * @param password the password to check.
+     * @throws PolicyFailureException if any of the values fail the directory's policy.
+     */
+    private void checkPolicy(String username, String email, String screenName, String password) throws PolicyFailureException {
+        Policy policy = _policy;
+        if (!policy.checkUsername(username)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_USERNAME);
+        }
+        if (!policy.checkEmail(email)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_EMAIL);
+        }
+        if (!policy.checkScreenName(screenName)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_SCREEN_NAME);
+        }
+        if (!policy.checkPassword(password)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_PASSWORD);
+        }
+    }
+
+    /**
+     * Selects the lock guarding writes to a username.
+     * @param username the username being written.
+     * @return the username's lock stripe.
+     */
+    private Object stripeFor(String username) {
+        return _stripes[stripeIndex(username)];
+    }
+
+    /**
+     * Selects the index of the lock guarding writes to a username.
+     * @param username the username being written.
+     * @return the index of the username's lock stripe.
+     */
+    private static int stripeIndex(String username) {
+        int hash = username.hashCode();
+        // spread the high bits so similar usernames don't all share a stripe
+        hash ^= hash >>> 16;
+        return hash & (STRIPE_COUNT - 1);
+    }
+
+    /**
+     * Stores a user's record. Must be called while holding the username's lock stripe.
+     * @param username the username of the user.
+     * @param record the user's new record.
+     */
+    private void putRecord(String username, UserRecord record) {
+        UserRecord old = _users.put(username, record);
+        _usernames.add(username);
+        reindexEmail(username, old == null ? null : old._data.getEmail(), record._data.getEmail());
+        if (_listener != null) {
+            _listener.recordPut(record._data, record._scheme, record._salt, record._hashed);
+        }
+    }
+
+    /**
+     * Removes a user's record. Must be called while holding the username's lock stripe.
+     * @param username the username of the user.
+     * @return true if the user had a record, false otherwise.
+     */
+    private boolean removeRecord(String username) {
+        UserRecord old = _users.remove(username);
+        boolean removed = old != null;
+        _usernames.remove(username);
+        if (removed) {
+            unindexEmail(old._data.getEmail(), username);
+        }
+        if (removed && _listener != null) {
+            _listener.recordRemoved(username);
+        }
+        return removed;
+    }
+
+    /**
+     * Moves a user's record to a new username. Must be called while holding the lock stripes of both usernames, and
+     * the new username must differ from the current one. Readers that don't lock may briefly see the user under both
+     * usernames, but never under neither.
+     * @param username the user's current username.
+     * @param record the user's new record, holding the new username.
+     */
+    private void renameRecord(String username, UserRecord record) {
+        // add the new username before removing the old, so the user never looks missing
+        _users.put(record._data.getUsername(), record);
+        _usernames.add(record._data.getUsername());
+        UserRecord old = _users.remove(username);
+        _usernames.remove(username);
+        // index the new username before unindexing the old, so the email never looks free
+        indexEmail(record._data.getEmail(), record._data.getUsername(), false);
+        unindexEmail(old._data.getEmail(), username);
+        if (_listener != null) {
+            _listener.recordRenamed(username, record._data, record._scheme, record._salt, record._hashed);
+        }
+    }
+
+    /**
+     * Checks if a user other than the given one has an email.
+     * @param email the email to check.
+     * @param username the username of the user that may have the email, or null if every user counts.
+     * @return true if another user has the email, false otherwise or if the email is null.
+     */
+    private boolean isEmailTaken(String email, String username) {
+        String[] usernames = email == null ? null : _emails.get(email);
+        return usernames != null && (usernames.length > 1 || !usernames[0].equals(username));
+    }
+
+    /**
+     * Adds a username to the usernames with an email, atomically with respect to every other change to the email.
+     * @param email the email, or null to do nothing.
+     * @param username the username to add.
+     * @param unique true to leave the email unchanged if another user has it.
+     * @return false if the email is unique and another user has it, true otherwise.
+     */
+    private boolean indexEmail(String email, String username, boolean unique) {
+        if (email == null) {
+            return true;
+        }
+        boolean[] indexed = {true};
+        _emails.compute(email, (key, usernames) -> {
+            if (usernames == null) {
+                return new String[] {username};
+            }
+            for (String existing : usernames) {
+                if (existing.equals(username)) {
+                    return usernames;
+                }
+            }
+            if (unique) {
+                indexed[0] = false;
+                return usernames;
+            }
+            String[] grown = Arrays.copyOf(usernames, usernames.length + 1);
+            grown[usernames.length] = username;
+            return grown;
+        });
+        return indexed[0];
+    }
+
+    /**
+     * Removes a username from the usernames with an email, dropping the email once no user has it.
+     * @param email the email, or null to do nothing.
+     * @param username the username to remove.
+     */
+    private void unindexEmail(String email, String username) {
+        if (email == null) {
+            return;
+        }
+        _emails.computeIfPresent(email, (key, usernames) -> {
+            String[] shrunk = new String[usernames.length - 1];
+            int i = 0;
+            for (String existing : usernames) {
+                if (!existing.equals(username)) {
+                    if (i == shrunk.length) {
+                        // the username wasn't indexed under the email
+                        return usernames;
+                    }
+                    shrunk[i++] = existing;
+                }
+            }
+            return shrunk.length == 0 ? null : shrunk;
+        });
+    }
+
+    /**
+     * Moves a username from the usernames with its old email to those with its new email.
+     * @param username the username.
+     * @param oldEmail the user's old email, or null if they had none or are new.
+     * @param newEmail the user's new email, or null if they have none.
+     */
+    private void reindexEmail(String username, String oldEmail, String newEmail) {
+        if (oldEmail == null ? newEmail == null : oldEmail.equals(newEmail)) {
+            return;
+        }
+        indexEmail(newEmail, username, false);
+        unindexEmail(oldEmail, username);
+    }
+
+    /**
+     * Stores a user's record without notifying the listener, replacing any record with the same username. Used to
+     * restore the directory from a copy of its records.
+     * @param data the user's username, email, and screen name.
+     * @param scheme the id of the hasher the user's password was hashed with.
+     * @param salt the salt used to hash the user's password.
+     * @param hashed the user's hashed password.
+     */
+    void restorePut(UserData data, String scheme, byte[] salt, byte[] hashed) {
+        String username = data.getUsername();
+        synchronized (stripeFor(username)) {
+            UserRecord old = _users.put(username, new UserRecord(data, scheme, salt, hashed));
+            _usernames.add(username);
+            reindexEmail(username, old == null ? null : old._data.getEmail(), data.getEmail());
+        }
+    }
+
+    /**
+     * Removes a user's record without notifying the listener. Used to restore the directory from a copy of its
+     * records.
+     * @param username the username of the user.
+     */
+    void restoreRemove(String username) {
+        synchronized (stripeFor(username)) {
+            UserRecord old = _users.remove(username);
+            _usernames.remove(username);
+            if (old != null) {
+                unindexEmail(old._data.getEmail(), username);
+            }
+        }
+    }
+
+    /**
+     * Visits every record in the directory. Records changed during the visit may be seen either before or after the
+     * change.
+     * @param visitor notified of each record.
+     * @throws IOException if the visitor fails.
+     */
+    void forEachRecord(RecordVisitor visitor) throws IOException {
+        for (UserRecord record : _users.values()) {
+            visitor.visit(record._data, record._scheme, record._salt, record._hashed);
+        }
+    }
+
+    /**
+     * Notified of every change to the records of an EphemeralUserDirectory, while the lock stripes of the changed
+     * usernames are held, so changes to the same user are seen in the order they were made.
+     */
+    interface RecordListener {
+        /**
+         * Called after a user's record was added or replaced.
+         * @param data the user's username, email, and screen name.
+         * @param scheme the id of the hasher the user's password was hashed with.
+         * @param salt the salt used to hash the user's password.
+         * @param hashed the user's hashed password.
+         */
+        void recordPut(UserData data, String scheme, byte[] salt, byte[] hashed);
+
+        /**
+         * Called after a user's record was removed.
+         * @param username the username of the user.
+         */
+        void recordRemoved(String username);
+
+        /**
+         * Called after a user's record was moved to a new username.
+         * @param username the user's old username.
+         * @param data the user's new username, email, and screen name.
+         * @param scheme the id of the hasher the user's password was hashed with.
+         * @param salt the salt used to hash the user's password.
+         * @param hashed the user's hashed password.
+         */
+        void recordRenamed(String username, UserData data, String scheme, byte[] salt, byte[] hashed);
+    }
+
+    /**
+     * Visits the records of an EphemeralUserDirectory.
+     */
+    interface RecordVisitor {
+        /**
+         * Called for each record.
+         * @param data the user's username, email, and screen name.
+         * @param scheme the id of the hasher the user's password was hashed with.
+         * @param salt the salt used to hash the user's password.
+         * @param hashed the user's hashed password.
+         * @throws IOException if the visitor fails.
+         */
+        void visit(UserData data, String scheme, byte[] salt, byte[] hashed) throws IOException;
+    }
+
+    /**
+     * Immutable record of everything the directory knows about a user. The salt and hash are kept as raw bytes, which
+     * take a quarter of the memory of the equivalent hex strings.
+     */
+    private static final class UserRecord {
+        /** The user's username, email, and screen name. */
+        private final UserData _data;
+        /** Id of the hasher the user's password was hashed with. */
+        private final String _scheme;
+        /** Salt used to hash the user's password. Never modified. */
+        private final byte[] _salt;
+        /** The user's hashed password. Never modified. */
+        private final byte[] _hashed;
+
+        /**
+         * Creates a new UserRecord.
+         * @param data the user's username, email, and screen name.
+         * @param scheme the id of the hasher the user's password was hashed with.
+         * @param salt the salt used to hash the user's password.
+         * @param hashed the user's hashed password.
+         */
+        private UserRecord(UserData data, String scheme, byte[] salt, byte[] hashed) {
+            _data = data;
+            _scheme = scheme;
+            _salt = salt;
+            _hashed = hashed;
         }
     }
 }
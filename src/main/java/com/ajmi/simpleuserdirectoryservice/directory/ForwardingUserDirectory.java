@@ -0,0 +1,157 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * User directory that forwards every call to another user directory. Decorators extend this class and override only
+ * the operations they change.
+ */
+public abstract class ForwardingUserDirectory implements UserDirectory {
+
+    /** The directory calls are forwarded to. */
+    private final UserDirectory _directory;
+
+    /**
+     * Creates a new ForwardingUserDirectory.
+     * @param directory the directory to forward calls to.
+     */
+    protected ForwardingUserDirectory(UserDirectory directory) {
+        _directory = directory;
+    }
+
+    /**
+     * Retrieves the directory calls are forwarded to.
+     * @return the wrapped directory.
+     */
+    protected UserDirectory getDirectory() {
+        return _directory;
+    }
+
+    @Override
+    public boolean hasUser(String username) throws ConnectionFailureException {
+        return _directory.hasUser(username);
+    }
+
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) throws ConnectionFailureException {
+        return _directory.hasUsers(usernames);
+    }
+
+    @Override
+    public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        _directory.addUser(username, email, screeName, password);
+    }
+
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        return _directory.addUsers(users);
+    }
+
+    @Override
+    public boolean removeUser(String username) throws ConnectionFailureException {
+        return _directory.removeUser(username);
+    }
+
+    @Override
+    public String[] getUsers() throws ConnectionFailureException {
+        return _directory.getUsers();
+    }
+
+    @Override
+    public List<String> getUsers(String afterUsername, int limit) throws ConnectionFailureException {
+        return _directory.getUsers(afterUsername, limit);
+    }
+
+    @Override
+    public Stream<String> streamUsers() throws ConnectionFailureException {
+        return _directory.streamUsers();
+    }
+
+    @Override
+    public List<String> findUsersByPrefix(String prefix, int limit) throws ConnectionFailureException {
+        return _directory.findUsersByPrefix(prefix, limit);
+    }
+
+    @Override
+    public List<UserData> findByEmail(String email) throws ConnectionFailureException {
+        return _directory.findByEmail(email);
+    }
+
+    @Override
+    public Policy getPolicy() throws ConnectionFailureException {
+        return _directory.getPolicy();
+    }
+
+    @Override
+    public void setPolicy(Policy policy) throws ConnectionFailureException {
+        _directory.setPolicy(policy);
+    }
+
+    /**
+     * Answered through authenticateUserDetailed(), so decorators only need to override that method.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @return true if authenticateUserDetailed() returns VALID, false otherwise.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public boolean authenticateUser(String username, String password) throws ConnectionFailureException {
+        return authenticateUserDetailed(username, password) == Authentication.VALID;
+    }
+
+    @Override
+    public Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException {
+        return _directory.authenticateUserDetailed(username, password);
+    }
+
+    @Override
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException {
+        return _directory.authenticateUsers(credentials);
+    }
+
+    @Override
+    public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
+        return _directory.getUserData(username);
+    }
+
+    @Override
+    public Map<String, UserData> getUserData(Collection<String> usernames) throws ConnectionFailureException {
+        return _directory.getUserData(usernames);
+    }
+
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        _directory.updateUsername(username, newUsername);
+    }
+
+    @Override
+    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
+        _directory.updateEmail(username, newEmail);
+    }
+
+    @Override
+    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
+        _directory.updateScreenName(username, newScreenName);
+    }
+
+    @Override
+    public void updatePassword(String username, String newPassword) throws ConnectionFailureException {
+        _directory.updatePassword(username, newPassword);
+    }
+
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        return _directory.updateUser(username, patch);
+    }
+}
@@ -0,0 +1,585 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+import com.ajmi.simpleuserdirectoryservice.util.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * User directory that records the latency and outcome of every call to another user directory. Each operation has a
+ * latency histogram and counts of the calls that returned and the calls that threw, authentications are counted by
+ * their result, and rejected users are counted by the policy they failed. Wrapping a PostgresUserDirectory also records
+ * how long its calls spend acquiring connections, executing SQL, and hashing passwords.
+ *
+ * Everything is recorded without locks or allocation, and can be exported with writePrometheus() in the Prometheus text
+ * exposition format. Stream operations only time opening the stream, and authenticateUser() is recorded as
+ * authenticateUserDetailed().
+ */
+public class InstrumentedUserDirectory extends ForwardingUserDirectory {
+
+    /** Quantiles exported for each latency histogram. */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    /** Nanoseconds in a second, since Prometheus reports durations in seconds. */
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /** Metrics of each operation, by name, in the order they are exported. */
+    private final Map<String, OperationMetrics> _operations;
+    /** Metrics of hasUser(). */
+    private final OperationMetrics _hasUser;
+    /** Metrics of hasUsers(). */
+    private final OperationMetrics _hasUsers;
+    /** Metrics of addUser(). */
+    private final OperationMetrics _addUser;
+    /** Metrics of addUsers(). */
+    private final OperationMetrics _addUsers;
+    /** Metrics of removeUser(). */
+    private final OperationMetrics _removeUser;
+    /** Metrics of getUsers(). */
+    private final OperationMetrics _getUsers;
+    /** Metrics of getUsers() with a page. */
+    private final OperationMetrics _getUsersPage;
+    /** Metrics of streamUsers(). */
+    private final OperationMetrics _streamUsers;
+    /** Metrics of findUsersByPrefix(). */
+    private final OperationMetrics _findUsersByPrefix;
+    /** Metrics of findByEmail(). */
+    private final OperationMetrics _findByEmail;
+    /** Metrics of authenticateUserDetailed(). */
+    private final OperationMetrics _authenticateUser;
+    /** Metrics of authenticateUsers(). */
+    private final OperationMetrics _authenticateUsers;
+    /** Metrics of getUserData(). */
+    private final OperationMetrics _getUserData;
+    /** Metrics of getUserData() over a collection of usernames. */
+    private final OperationMetrics _getUserDataBatch;
+    /** Metrics of updateUsername(). */
+    private final OperationMetrics _updateUsername;
+    /** Metrics of updateEmail(). */
+    private final OperationMetrics _updateEmail;
+    /** Metrics of updateScreenName(). */
+    private final OperationMetrics _updateScreenName;
+    /** Metrics of updatePassword(). */
+    private final OperationMetrics _updatePassword;
+    /** Metrics of updateUser(). */
+    private final OperationMetrics _updateUser;
+
+    /** Number of authentications with each result. */
+    private final Map<Authentication, LongAdder> _authentications;
+    /** Number of users rejected for failing each policy. */
+    private final Map<PolicyFailure, LongAdder> _policyFailures;
+    /** Timings of the wrapped PostgresUserDirectory, or null if it wraps another kind of directory. */
+    private final PostgresUserDirectory.Timings _postgresTimings;
+
+    /**
+     * Creates a new InstrumentedUserDirectory. If the wrapped directory is a PostgresUserDirectory, it starts recording
+     * its timings.
+     * @param directory the directory to record calls to.
+     */
+    public InstrumentedUserDirectory(UserDirectory directory) {
+        super(directory);
+        _operations = new LinkedHashMap<>();
+        _hasUser = operation("hasUser");
+        _hasUsers = operation("hasUsers");
+        _addUser = operation("addUser");
+        _addUsers = operation("addUsers");
+        _removeUser = operation("removeUser");
+        _getUsers = operation("getUsers");
+        _getUsersPage = operation("getUsersPage");
+        _streamUsers = operation("streamUsers");
+        _findUsersByPrefix = operation("findUsersByPrefix");
+        _findByEmail = operation("findByEmail");
+        _authenticateUser = operation("authenticateUser");
+        _authenticateUsers = operation("authenticateUsers");
+        _getUserData = operation("getUserData");
+        _getUserDataBatch = operation("getUserDataBatch");
+        _updateUsername = operation("updateUsername");
+        _updateEmail = operation("updateEmail");
+        _updateScreenName = operation("updateScreenName");
+        _updatePassword = operation("updatePassword");
+        _updateUser = operation("updateUser");
+        _authentications = new EnumMap<>(Authentication.class);
+        for (Authentication authentication : Authentication.values()) {
+            _authentications.put(authentication, new LongAdder());
+        }
+        _policyFailures = new EnumMap<>(PolicyFailure.class);
+        for (PolicyFailure failure : PolicyFailure.values()) {
+            _policyFailures.put(failure, new LongAdder());
+        }
+        if (directory instanceof PostgresUserDirectory) {
+            _postgresTimings = ((PostgresUserDirectory) directory).recordTimings();
+        } else {
+            _postgresTimings = null;
+        }
+    }
+
+    /**
+     * Retrieves the names of the recorded operations.
+     * @return the operation names, in the order they are exported.
+     */
+    public Collection<String> getOperations() {
+        return Collections.unmodifiableSet(_operations.keySet());
+    }
+
+    /**
+     * Retrieves the latencies of an operation, whether it returned or threw.
+     * @param operation the name of the operation, one of getOperations().
+     * @return the histogram of the operation's latencies.
+     */
+    public LatencyHistogram getLatency(String operation) {
+        return metrics(operation)._latency;
+    }
+
+    /**
+     * Retrieves the number of calls of an operation that returned.
+     * @param operation the name of the operation, one of getOperations().
+     * @return the number of successful calls.
+     */
+    public long getSuccessCount(String operation) {
+        return metrics(operation)._successes.sum();
+    }
+
+    /**
+     * Retrieves the number of calls of an operation that threw an exception.
+     * @param operation the name of the operation, one of getOperations().
+     * @return the number of failed calls.
+     */
+    public long getFailureCount(String operation) {
+        return metrics(operation)._failures.sum();
+    }
+
+    /**
+     * Retrieves the number of authentications with a result.
+     * @param authentication the result.
+     * @return the number of authentications with the result.
+     */
+    public long getAuthenticationCount(Authentication authentication) {
+        return _authentications.get(authentication).sum();
+    }
+
+    /**
+     * Retrieves the number of users added through addUser() or addUsers() that were rejected for failing a policy.
+     * @param failure the policy.
+     * @return the number of users rejected for failing the policy.
+     */
+    public long getPolicyFailureCount(PolicyFailure failure) {
+        return _policyFailures.get(failure).sum();
+    }
+
+    /**
+     * Retrieves the timings of the wrapped PostgresUserDirectory.
+     * @return an Optional containing the timings, or empty if the wrapped directory is not a PostgresUserDirectory.
+     */
+    public Optional<PostgresUserDirectory.Timings> getPostgresTimings() {
+        return Optional.ofNullable(_postgresTimings);
+    }
+
+    /**
+     * Writes a snapshot of every metric in the Prometheus text exposition format. Latencies are exported as summaries
+     * in seconds, and counts as counters.
+     * @param out where to write the metrics.
+     * @throws IOException if writing fails.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP suds_operation_duration_seconds Latency of user directory operations.\n");
+        out.append("# TYPE suds_operation_duration_seconds summary\n");
+        for (Map.Entry<String, OperationMetrics> entry : _operations.entrySet()) {
+            writeSummary(out, "suds_operation_duration_seconds", "operation", entry.getKey(),
+                    entry.getValue()._latency.snapshot());
+        }
+        out.append("# HELP suds_operations_total Calls of user directory operations by whether they returned or threw.\n");
+        out.append("# TYPE suds_operations_total counter\n");
+        for (Map.Entry<String, OperationMetrics> entry : _operations.entrySet()) {
+            out.append("suds_operations_total{operation=\"").append(entry.getKey()).append("\",result=\"success\"} ")
+                    .append(Long.toString(entry.getValue()._successes.sum())).append('\n');
+            out.append("suds_operations_total{operation=\"").append(entry.getKey()).append("\",result=\"failure\"} ")
+                    .append(Long.toString(entry.getValue()._failures.sum())).append('\n');
+        }
+        out.append("# HELP suds_authentications_total Authentications by result.\n");
+        out.append("# TYPE suds_authentications_total counter\n");
+        for (Map.Entry<Authentication, LongAdder> entry : _authentications.entrySet()) {
+            out.append("suds_authentications_total{result=\"").append(entry.getKey().name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(Long.toString(entry.getValue().sum())).append('\n');
+        }
+        out.append("# HELP suds_policy_failures_total Users rejected by the policy they failed.\n");
+        out.append("# TYPE suds_policy_failures_total counter\n");
+        for (Map.Entry<PolicyFailure, LongAdder> entry : _policyFailures.entrySet()) {
+            out.append("suds_policy_failures_total{reason=\"").append(entry.getKey().name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(Long.toString(entry.getValue().sum())).append('\n');
+        }
+        if (_postgresTimings != null) {
+            out.append("# HELP suds_postgres_duration_seconds Latency of the work inside PostgreSQL directory calls.\n");
+            out.append("# TYPE suds_postgres_duration_seconds summary\n");
+            writeSummary(out, "suds_postgres_duration_seconds", "phase", "connection_acquisition",
+                    _postgresTimings.getConnectionAcquisition().snapshot());
+            writeSummary(out, "suds_postgres_duration_seconds", "phase", "sql_execution",
+                    _postgresTimings.getSqlExecution().snapshot());
+            writeSummary(out, "suds_postgres_duration_seconds", "phase", "password_hashing",
+                    _postgresTimings.getHashing().snapshot());
+        }
+    }
+
+    /**
+     * Writes a snapshot of every metric in the Prometheus text exposition format.
+     * @return the metrics.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        try {
+            writePrometheus(out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    @Override
+    public boolean hasUser(String username) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean result = super.hasUser(username);
+            success = true;
+            return result;
+        } finally {
+            _hasUser.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Set<String> result = super.hasUsers(usernames);
+            success = true;
+            return result;
+        } finally {
+            _hasUsers.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            super.addUser(username, email, screeName, password);
+            success = true;
+        } catch (PolicyFailureException e) {
+            countPolicyFailure(e);
+            throw e;
+        } finally {
+            _addUser.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        Map<String, UserDirectoryException> failures;
+        try {
+            failures = super.addUsers(users);
+            success = true;
+        } finally {
+            _addUsers.record(System.nanoTime() - start, success);
+        }
+        for (UserDirectoryException failure : failures.values()) {
+            if (failure instanceof PolicyFailureException) {
+                countPolicyFailure((PolicyFailureException) failure);
+            }
+        }
+        return failures;
+    }
+
+    @Override
+    public boolean removeUser(String username) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean result = super.removeUser(username);
+            success = true;
+            return result;
+        } finally {
+            _removeUser.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public String[] getUsers() throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            String[] result = super.getUsers();
+            success = true;
+            return result;
+        } finally {
+            _getUsers.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public List<String> getUsers(String afterUsername, int limit) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<String> result = super.getUsers(afterUsername, limit);
+            success = true;
+            return result;
+        } finally {
+            _getUsersPage.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public Stream<String> streamUsers() throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Stream<String> result = super.streamUsers();
+            success = true;
+            return result;
+        } finally {
+            _streamUsers.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public List<String> findUsersByPrefix(String prefix, int limit) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<String> result = super.findUsersByPrefix(prefix, limit);
+            success = true;
+            return result;
+        } finally {
+            _findUsersByPrefix.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public List<UserData> findByEmail(String email) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<UserData> result = super.findByEmail(email);
+            success = true;
+            return result;
+        } finally {
+            _findByEmail.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        Authentication authentication;
+        try {
+            authentication = super.authenticateUserDetailed(username, password);
+            success = true;
+        } finally {
+            _authenticateUser.record(System.nanoTime() - start, success);
+        }
+        _authentications.get(authentication).increment();
+        return authentication;
+    }
+
+    @Override
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        List<Authentication> authentications;
+        try {
+            authentications = super.authenticateUsers(credentials);
+            success = true;
+        } finally {
+            _authenticateUsers.record(System.nanoTime() - start, success);
+        }
+        for (Authentication authentication : authentications) {
+            _authentications.get(authentication).increment();
+        }
+        return authentications;
+    }
+
+    @Override
+    public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Optional<UserData> result = super.getUserData(username);
+            success = true;
+            return result;
+        } finally {
+            _getUserData.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public Map<String, UserData> getUserData(Collection<String> usernames) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Map<String, UserData> result = super.getUserData(usernames);
+            success = true;
+            return result;
+        } finally {
+            _getUserDataBatch.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            super.updateUsername(username, newUsername);
+            success = true;
+        } finally {
+            _updateUsername.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            super.updateEmail(username, newEmail);
+            success = true;
+        } finally {
+            _updateEmail.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            super.updateScreenName(username, newScreenName);
+            success = true;
+        } finally {
+            _updateScreenName.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public void updatePassword(String username, String newPassword) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            super.updatePassword(username, newPassword);
+            success = true;
+        } finally {
+            _updatePassword.record(System.nanoTime() - start, success);
+        }
+    }
+
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            boolean result = super.updateUser(username, patch);
+            success = true;
+            return result;
+        } finally {
+            _updateUser.record(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Creates the metrics of an operation.
+     * @param name the name of the operation.
+     * @return the operation's metrics.
+     */
+    private OperationMetrics operation(String name) {
+        OperationMetrics metrics = new OperationMetrics();
+        _operations.put(name, metrics);
+        return metrics;
+    }
+
+    /**
+     * Counts a user rejected for failing a policy.
+     * @param e the exception the user was rejected with.
+     */
+    private void countPolicyFailure(PolicyFailureException e) {
+        PolicyFailure failure = e.getFailure() == null ? PolicyFailure.UNDEFINED_CAUSE : e.getFailure();
+        _policyFailures.get(failure).increment();
+    }
+
+    /**
+     * Looks up the metrics of an operation.
+     * @param operation the name of the operation.
+     * @return the operation's metrics.
+     */
+    private OperationMetrics metrics(String operation) {
+        OperationMetrics metrics = _operations.get(operation);
+        if (metrics == null) {
+            throw new IllegalArgumentException("Unknown operation: " + operation + ".");
+        }
+        return metrics;
+    }
+
+    /**
+     * Writes a latency snapshot as a Prometheus summary in seconds.
+     * @param out where to write the summary.
+     * @param name the name of the metric.
+     * @param label the name of the label distinguishing the summary.
+     * @param value the value of the label.
+     * @param snapshot the latencies.
+     * @throws IOException if writing fails.
+     */
+    private static void writeSummary(Appendable out, String name, String label, String value,
+                                     LatencyHistogram.Snapshot snapshot) throws IOException {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(label).append("=\"").append(value).append("\",quantile=\"")
+                    .append(Double.toString(quantile)).append("\"} ")
+                    .append(Double.toString(snapshot.getValueAtQuantile(quantile) / NANOS_PER_SECOND)).append('\n');
+        }
+        out.append(name).append("_sum{").append(label).append("=\"").append(value).append("\"} ")
+                .append(Double.toString(snapshot.getSum() / NANOS_PER_SECOND)).append('\n');
+        out.append(name).append("_count{").append(label).append("=\"").append(value).append("\"} ")
+                .append(Long.toString(snapshot.getCount())).append('\n');
+    }
+
+    /**
+     * Latencies and outcome counts of a single operation.
+     */
+    private static final class OperationMetrics {
+        /** Latencies of every call. */
+        private final LatencyHistogram _latency = new LatencyHistogram();
+        /** Number of calls that returned. */
+        private final LongAdder _successes = new LongAdder();
+        /** Number of calls that threw. */
+        private final LongAdder _failures = new LongAdder();
+
+        /**
+         * Records a call.
+         * @param nanos how long the call took.
+         * @param success true if the call returned, false if it threw.
+         */
+        private void record(long nanos, boolean success) {
+            _latency.record(nanos);
+            (success ? _successes : _failures).increment();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File mapped into memory in fixed-size segments, so files larger than a single MappedByteBuffer can be addressed with
+ * long offsets. A single access must not cross a segment boundary; callers align their data so it never does.
+ *
+ * Accesses use absolute offsets only, so any number of threads may read at once. Writes and growth must be guarded by
+ * the caller.
+ */
+class MappedFile implements AutoCloseable {
+
+    /** Number of bytes in each mapped segment, a power of two. */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    /** Channel of the mapped file. */
+    private final FileChannel _channel;
+    /** Mapped segments of the file, in order. */
+    private final List<MappedByteBuffer> _segments;
+    /** Size of the file in bytes. */
+    private long _size;
+
+    /**
+     * Opens a file, creating it if it does not exist, and maps it into memory.
+     * @param path the path of the file.
+     * @param minimumSize the size to grow the file to if it is smaller.
+     * @throws IOException if the file could not be opened or mapped.
+     */
+    MappedFile(Path path, long minimumSize) throws IOException {
+        _channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _segments = new ArrayList<>();
+        _size = 0;
+        ensureSize(Math.max(minimumSize, _channel.size()));
+    }
+
+    /**
+     * Retrieves the size of the file.
+     * @return the size of the file in bytes.
+     */
+    long size() {
+        return _size;
+    }
+
+    /**
+     * Grows the file to at least the given size, mapping any new segments.
+     * @param size the minimum size of the file in bytes.
+     * @throws IOException if the file could not be grown or mapped.
+     */
+    void ensureSize(long size) throws IOException {
+        if (size <= _size) {
+            return;
+        }
+        // remap the last, partial segment along with any new ones
+        if (!_segments.isEmpty() && _size % SEGMENT_SIZE != 0) {
+            _segments.remove(_segments.size() - 1);
+        }
+        for (long start = (long) _segments.size() * SEGMENT_SIZE; start < size; start += SEGMENT_SIZE) {
+            long length = Math.min(SEGMENT_SIZE, size - start);
+            _segments.add(_channel.map(FileChannel.MapMode.READ_WRITE, start, length));
+        }
+        _size = size;
+    }
+
+    /**
+     * Reads a byte.
+     * @param offset the offset of the byte.
+     * @return the byte.
+     */
+    byte getByte(long offset) {
+        return segment(offset).get(index(offset));
+    }
+
+    /**
+     * Writes a byte.
+     * @param offset the offset of the byte.
+     * @param value the byte to write.
+     */
+    void putByte(long offset, byte value) {
+        segment(offset).put(index(offset), value);
+    }
+
+    /**
+     * Reads an int.
+     * @param offset the offset of the int.
+     * @return the int.
+     */
+    int getInt(long offset) {
+        return segment(offset).getInt(index(offset));
+    }
+
+    /**
+     * Writes an int.
+     * @param offset the offset of the int.
+     * @param value the int to write.
+     */
+    void putInt(long offset, int value) {
+        segment(offset).putInt(index(offset), value);
+    }
+
+    /**
+     * Reads a long.
+     * @param offset the offset of the long.
+     * @return the long.
+     */
+    long getLong(long offset) {
+        return segment(offset).getLong(index(offset));
+    }
+
+    /**
+     * Writes a long.
+     * @param offset the offset of the long.
+     * @param value the long to write.
+     */
+    void putLong(long offset, long value) {
+        segment(offset).putLong(index(offset), value);
+    }
+
+    /**
+     * Reads a range of bytes into an array.
+     * @param offset the offset of the first byte.
+     * @param destination the array to read into.
+     * @param start the index in the array to start writing at.
+     * @param length the number of bytes to read.
+     */
+    void getBytes(long offset, byte[] destination, int start, int length) {
+        MappedByteBuffer segment = segment(offset);
+        int index = index(offset);
+        for (int i = 0; i < length; i++) {
+            destination[start + i] = segment.get(index + i);
+        }
+    }
+
+    /**
+     * Writes an array of bytes.
+     * @param offset the offset to write the first byte at.
+     * @param source the bytes to write.
+     */
+    void putBytes(long offset, byte[] source) {
+        MappedByteBuffer segment = segment(offset);
+        int index = index(offset);
+        for (int i = 0; i < source.length; i++) {
+            segment.put(index + i, source[i]);
+        }
+    }
+
+    /**
+     * Writes every changed segment back to the file.
+     */
+    void force() {
+        for (MappedByteBuffer segment : _segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Writes every changed segment back to the file and closes it.
+     * @throws IOException if the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        _segments.clear();
+        _channel.close();
+    }
+
+    /**
+     * Selects the segment an offset falls in.
+     * @param offset the offset.
+     * @return the offset's segment.
+     */
+    private MappedByteBuffer segment(long offset) {
+        return _segments.get((int) (offset / SEGMENT_SIZE));
+    }
+
+    /**
+     * Converts an offset into an index within its segment.
+     * @param offset the offset.
+     * @return the offset's index in its segment.
+     */
+    private static int index(long offset) {
+        return (int) (offset % SEGMENT_SIZE);
+    }
+}
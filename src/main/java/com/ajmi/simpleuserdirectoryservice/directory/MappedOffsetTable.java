@@ -0,0 +1,271 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongPredicate;
+
+/**
+ * Open-addressing hash table in a mapped file, mapping the 64-bit hashes of keys to the offsets of the records holding
+ * them. Keys are not stored, and a hash may map to any number of offsets, so callers read the records themselves to
+ * skip collisions and to find every record with the same key.
+ *
+ * Like MappedFile, any number of threads may read at once, but writes must be guarded by the caller.
+ */
+class MappedOffsetTable implements AutoCloseable {
+
+    /** Size of the file's header in bytes. */
+    private static final int HEADER_SIZE = 64;
+    /** Offset of the table's capacity in its header. */
+    private static final int CAPACITY = 8;
+    /** Offset of the table's count of live entries in its header. */
+    private static final int COUNT = 16;
+    /** Offset of the table's count of tombstones in its header. */
+    private static final int TOMBSTONES = 24;
+    /** Size of each slot: the key's hash followed by the record's offset. */
+    private static final int SLOT_SIZE = 16;
+    /** Record offset of a slot that has never been used. */
+    private static final long EMPTY = 0;
+    /** Record offset of a slot whose entry was removed. */
+    private static final long TOMBSTONE = -1;
+    /** Fraction of slots that may be used before the table is grown. */
+    private static final double MAX_LOAD = 0.7;
+    /** Smallest number of slots in a table. */
+    private static final long MIN_CAPACITY = 16;
+    /** Suffix of the table's file name while it is being rebuilt. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Path of the table's file. */
+    private final Path _path;
+    /** Value identifying the table's file. */
+    private final long _magic;
+    /** The table's file. Replaced when the table is grown. */
+    private MappedFile _file;
+    /** Number of slots in the table, a power of two. */
+    private long _capacity;
+
+    /**
+     * Wraps a mapped table file.
+     * @param path the path of the table's file.
+     * @param magic the value identifying the table's file.
+     * @param file the mapped table file.
+     */
+    private MappedOffsetTable(Path path, long magic, MappedFile file) {
+        _path = path;
+        _magic = magic;
+        _file = file;
+        _capacity = file.getLong(CAPACITY);
+    }
+
+    /**
+     * Creates a new, empty table sized for the given number of entries, replacing any existing file at the path.
+     * @param path the path of the table's file.
+     * @param magic the value identifying the table's file.
+     * @param expectedEntries the number of entries the table should hold without growing.
+     * @return the new table.
+     * @throws IOException if the table's file could not be created.
+     */
+    static MappedOffsetTable create(Path path, long magic, long expectedEntries) throws IOException {
+        Files.deleteIfExists(path);
+        long capacity = Long.highestOneBit(Math.max(MIN_CAPACITY, (long) (expectedEntries / MAX_LOAD)) * 2 - 1);
+        return new MappedOffsetTable(path, magic, createFile(path, magic, capacity));
+    }
+
+    /**
+     * Opens an existing table.
+     * @param path the path of the table's file.
+     * @param magic the value identifying the table's file.
+     * @return the opened table.
+     * @throws IOException if the file could not be opened, or is not a table.
+     */
+    static MappedOffsetTable open(Path path, long magic) throws IOException {
+        MappedFile file = new MappedFile(path, HEADER_SIZE);
+        long capacity = file.getLong(CAPACITY);
+        if (file.getLong(0) != magic || capacity < MIN_CAPACITY || Long.bitCount(capacity) != 1
+                || slotOffset(capacity) > file.size()) {
+            file.close();
+            throw new IOException("\"" + path + "\" is not a valid table.");
+        }
+        return new MappedOffsetTable(path, magic, file);
+    }
+
+    /**
+     * Visits the offset of every entry with a hash, in probe order, until the visitor returns false.
+     * @param hash the hash of the key.
+     * @param visitor given each offset, and returns true to keep visiting.
+     */
+    void forEach(long hash, LongPredicate visitor) {
+        long mask = _capacity - 1;
+        for (long i = hash & mask, probes = 0; probes < _capacity; i = (i + 1) & mask, probes++) {
+            long slot = slotOffset(i);
+            long offset = _file.getLong(slot + 8);
+            if (offset == EMPTY) {
+                return;
+            }
+            if (offset != TOMBSTONE && _file.getLong(slot) == hash && !visitor.test(offset)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds an entry, growing the table first if it is too full.
+     * @param hash the hash of the key.
+     * @param offset the offset of the record holding the key, which must not be EMPTY or TOMBSTONE.
+     * @throws IOException if the table could not be grown.
+     */
+    void add(long hash, long offset) throws IOException {
+        long count = _file.getLong(COUNT);
+        long tombstones = _file.getLong(TOMBSTONES);
+        if (count + tombstones + 1 > _capacity * MAX_LOAD) {
+            // only grow if live entries fill the table, otherwise rebuilding at the same size clears the tombstones
+            rebuild(count + 1 > _capacity * MAX_LOAD / 2 ? _capacity * 2 : _capacity);
+            tombstones = 0;
+        }
+        long mask = _capacity - 1;
+        for (long i = hash & mask; ; i = (i + 1) & mask) {
+            long slot = slotOffset(i);
+            long existing = _file.getLong(slot + 8);
+            if (existing == EMPTY || existing == TOMBSTONE) {
+                if (existing == TOMBSTONE) {
+                    _file.putLong(TOMBSTONES, tombstones - 1);
+                }
+                _file.putLong(slot, hash);
+                _file.putLong(slot + 8, offset);
+                _file.putLong(COUNT, count + 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes an entry, replacing its slot with a tombstone.
+     * @param hash the hash of the key.
+     * @param offset the offset of the record holding the key.
+     * @return true if the entry was in the table, false otherwise.
+     */
+    boolean remove(long hash, long offset) {
+        long slot = findSlot(hash, offset);
+        if (slot < 0) {
+            return false;
+        }
+        _file.putLong(slot + 8, TOMBSTONE);
+        _file.putLong(COUNT, _file.getLong(COUNT) - 1);
+        _file.putLong(TOMBSTONES, _file.getLong(TOMBSTONES) + 1);
+        return true;
+    }
+
+    /**
+     * Repoints an entry to a new record holding the same key.
+     * @param hash the hash of the key.
+     * @param offset the offset of the record the entry points to.
+     * @param newOffset the offset of the new record.
+     * @return true if the entry was in the table, false otherwise.
+     */
+    boolean replace(long hash, long offset, long newOffset) {
+        long slot = findSlot(hash, offset);
+        if (slot < 0) {
+            return false;
+        }
+        _file.putLong(slot + 8, newOffset);
+        return true;
+    }
+
+    /**
+     * Forces the table's file to disk.
+     */
+    void force() {
+        _file.force();
+    }
+
+    /**
+     * Forces the table's file to disk and closes it.
+     * @throws IOException if the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        _file.close();
+    }
+
+    /**
+     * Finds the slot of an entry.
+     * @param hash the hash of the key.
+     * @param offset the offset of the record the entry points to.
+     * @return the offset of the entry's slot in the file, or -1 if the entry is not in the table.
+     */
+    private long findSlot(long hash, long offset) {
+        long mask = _capacity - 1;
+        for (long i = hash & mask, probes = 0; probes < _capacity; i = (i + 1) & mask, probes++) {
+            long slot = slotOffset(i);
+            long existing = _file.getLong(slot + 8);
+            if (existing == EMPTY) {
+                return -1;
+            }
+            if (existing == offset && _file.getLong(slot) == hash) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuilds the table into a new file with the given capacity, dropping tombstones, then swaps it in.
+     * @param capacity the number of slots in the new table, a power of two.
+     * @throws IOException if the new table could not be written.
+     */
+    private void rebuild(long capacity) throws IOException {
+        Path tempPath = _path.resolveSibling(_path.getFileName() + TEMP_SUFFIX);
+        Files.deleteIfExists(tempPath);
+        long count = 0;
+        try (MappedFile rebuilt = createFile(tempPath, _magic, capacity)) {
+            long mask = capacity - 1;
+            for (long i = 0; i < _capacity; i++) {
+                long slot = slotOffset(i);
+                long offset = _file.getLong(slot + 8);
+                if (offset == EMPTY || offset == TOMBSTONE) {
+                    continue;
+                }
+                long hash = _file.getLong(slot);
+                long j = hash & mask;
+                while (rebuilt.getLong(slotOffset(j) + 8) != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                rebuilt.putLong(slotOffset(j), hash);
+                rebuilt.putLong(slotOffset(j) + 8, offset);
+                count++;
+            }
+            rebuilt.putLong(COUNT, count);
+        }
+        _file.close();
+        Files.move(tempPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _file = new MappedFile(_path, HEADER_SIZE);
+        _capacity = capacity;
+    }
+
+    /**
+     * Creates a new, empty table file.
+     * @param path the path of the file.
+     * @param magic the value identifying the file.
+     * @param capacity the number of slots in the table, a power of two.
+     * @return the mapped table file.
+     * @throws IOException if the file could not be created.
+     */
+    private static MappedFile createFile(Path path, long magic, long capacity) throws IOException {
+        MappedFile file = new MappedFile(path, HEADER_SIZE + capacity * SLOT_SIZE);
+        file.putLong(0, magic);
+        file.putLong(CAPACITY, capacity);
+        file.putLong(COUNT, 0);
+        file.putLong(TOMBSTONES, 0);
+        return file;
+    }
+
+    /**
+     * Converts the number of a slot into its offset in the file.
+     * @param slotNumber the number of the slot.
+     * @return the offset of the slot.
+     */
+    private static long slotOffset(long slotNumber) {
+        return HEADER_SIZE + slotNumber * SLOT_SIZE;
+    }
+}
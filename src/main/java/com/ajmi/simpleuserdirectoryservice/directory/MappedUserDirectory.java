@@ -0,0 +1,1588 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHashers;
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * User directory that keeps its users off the Java heap, in memory-mapped files, so it can hold tens of millions of
+ * users without garbage collection pauses growing with them.
+ *
+ * Users are appended as records to a records file. Each record holds the user's salt and hashed password in fixed-width
+ * slots, followed by the UTF-8 bytes of their username, email, screen name, and the id of the hasher their password was
+ * hashed with. An open-addressing hash table in a separate index file maps the hash of each username to the offset of
+ * the user's record, and another in an emails file maps the hash of each email to the offsets of the records with it.
+ * The files are reopened and remapped as they are when a directory is created over an existing directory, so a restart
+ * does not reload any users.
+ *
+ * Records are never changed in place: every change appends a new record and leaves the old one behind as garbage, so a
+ * crash part way through a change can only lose the new record.
+ *
+ * The files are only forced to disk when the directory is closed. Until then the operating system writes changed pages
+ * back whenever it likes and in any order, so after a crash the index may point at records that never reached the disk.
+ * The records file's header holds a flag that is set while the directory is open and cleared once a close has forced
+ * everything to disk. Opening a directory whose flag is still set throws its index and emails away and rebuilds them
+ * from the records file: every record whose checksum matches is kept, and the latest live record of each username
+ * wins. Each user therefore comes back as their latest record or an earlier one. A user removed or renamed shortly
+ * before the crash may come back under their old username, and a user whose record was being written may be lost.
+ *
+ * Reads share a read lock and writes take a write lock, so any number of threads may read at once.
+ *
+ * Lookups by email and enforcing unique emails probe the emails file. Paging and prefix searches scan the whole index.
+ */
+public class MappedUserDirectory implements UserDirectory, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MappedUserDirectory.class.getName());
+
+    /** Message used for exceptions caused by a failed policy. */
+    private static final String POLICY_FAILURE_MSG = "The entered data failed the directory's policy.";
+    /** Message used for exceptions caused by an email that is already taken. */
+    private static final String DUPLICATE_EMAIL_MSG = "Another user already has the entered email.";
+    /** Message used for exceptions caused by a failed file operation. */
+    private static final String IO_FAILURE_MSG = "Error accessing mapped user directory files: ";
+
+    /** Name of the records file within the directory. */
+    private static final String RECORDS_FILE = "records";
+    /** Name of the index file within the directory. */
+    private static final String INDEX_FILE = "index";
+    /** Name of the index file while it is being rebuilt. */
+    private static final String INDEX_TEMP_FILE = "index.tmp";
+    /** Name of the emails file within the directory. */
+    private static final String EMAILS_FILE = "emails";
+
+    /** Value identifying a records file. */
+    private static final long RECORDS_MAGIC = 0x5355445352454353L;
+    /** Value identifying an index file. */
+    private static final long INDEX_MAGIC = 0x53554453494E4458L;
+    /** Value identifying an emails file. */
+    private static final long EMAILS_MAGIC = 0x53554453454D4C53L;
+    /** Size of the header of each file in bytes. */
+    private static final int HEADER_SIZE = 64;
+
+    /** Offset of the records file's next free byte in its header. */
+    private static final int RECORDS_END = 8;
+    /** Offset of the records file's count of bytes held by dead records in its header. */
+    private static final int RECORDS_GARBAGE = 16;
+    /** Offset of the records file's flag that is set while the directory is open, and cleared by a clean close. */
+    private static final int RECORDS_OPEN = 24;
+
+    /** Offset of the index's capacity in its header. */
+    private static final int INDEX_CAPACITY = 8;
+    /** Offset of the index's count of live entries in its header. */
+    private static final int INDEX_COUNT = 16;
+    /** Offset of the index's count of tombstones in its header. */
+    private static final int INDEX_TOMBSTONES = 24;
+    /** Size of each index slot: the username's hash followed by the record's offset. */
+    private static final int SLOT_SIZE = 16;
+    /** Record offset of an index slot that has never been used. */
+    private static final long EMPTY = 0;
+    /** Record offset of an index slot whose user was removed. */
+    private static final long TOMBSTONE = -1;
+    /** Fraction of index slots that may be used before the index is grown. */
+    private static final double MAX_LOAD = 0.7;
+
+    /** Number of usernames a stream reads each time it takes the read lock. */
+    private static final int STREAM_CHUNK_SIZE = 1024;
+
+    /** Offset of a record's total length within the record. */
+    private static final int RECORD_LENGTH = 0;
+    /** Offset of a record's live flag within the record. */
+    private static final int RECORD_LIVE = 4;
+    /** Offset of a record's checksum within the record: the low three bytes of the CRC-32 of everything after it. */
+    private static final int RECORD_CHECKSUM = 5;
+    /** Offset of a record's salt within the record. */
+    private static final int RECORD_SALT = 8;
+    /** Offset of a record's hashed password within the record. */
+    private static final int RECORD_HASH = RECORD_SALT + PasswordCrypt.SALT_LENGTH;
+    /** Offset of a record's username length within the record. */
+    private static final int RECORD_USERNAME_LENGTH = RECORD_HASH + PasswordCrypt.HASH_LENGTH;
+    /** Offset of a record's email length within the record, or -1 if the email is null. */
+    private static final int RECORD_EMAIL_LENGTH = RECORD_USERNAME_LENGTH + 4;
+    /** Offset of a record's screen name length within the record, or -1 if the screen name is null. */
+    private static final int RECORD_SCREEN_NAME_LENGTH = RECORD_EMAIL_LENGTH + 4;
+    /** Offset of the length of the id of the hasher a record's password was hashed with within the record. */
+    private static final int RECORD_SCHEME_LENGTH = RECORD_SCREEN_NAME_LENGTH + 4;
+    /** Offset of a record's variable-length strings within the record. */
+    private static final int RECORD_STRINGS = RECORD_SCHEME_LENGTH + 4;
+
+    /** Directory holding the records and index files. */
+    private final Path _directory;
+    /** Guards every access to the mapped files. */
+    private final ReadWriteLock _lock;
+    /** The records file. */
+    private final MappedFile _records;
+    /** The index file. Replaced when the index is grown. */
+    private MappedFile _index;
+    /** Number of slots in the index, a power of two. */
+    private long _capacity;
+    /** Maps the hash of each email to the offsets of the live records with it. */
+    private MappedOffsetTable _emails;
+    /** Policy for usernames, emails, screen names, and passwords. */
+    private volatile Policy _policy;
+    /** Hasher new passwords are hashed with, and old hashes are upgraded to on login. */
+    private volatile PasswordHasher _hasher;
+    /** True if the index was rebuilt from the records when the directory was opened. */
+    private boolean _recovered;
+
+    /**
+     * Opens the mapped user directory in the given file system directory, creating it if it does not exist.
+     * @param directory the file system directory holding the directory's files.
+     * @throws ConnectionFailureException if the files could not be opened or are not a mapped user directory.
+     */
+    public MappedUserDirectory(Path directory) throws ConnectionFailureException {
+        this(directory, 1024);
+    }
+
+    /**
+     * Opens the mapped user directory in the given file system directory, creating it sized for the given number of
+     * users if it does not exist. An existing directory keeps its size. An existing directory that was not closed
+     * cleanly has its index rebuilt from its records before it is opened.
+     * @param directory the file system directory holding the directory's files.
+     * @param expectedUsers the number of users a new directory is sized for before its index has to grow.
+     * @throws ConnectionFailureException if the files could not be opened or are not a mapped user directory.
+     */
+    public MappedUserDirectory(Path directory, long expectedUsers) throws ConnectionFailureException {
+        _directory = directory;
+        _lock = new ReentrantReadWriteLock();
+        _hasher = PasswordHashers.legacy();
+        try {
+            Files.createDirectories(directory);
+            Path indexPath = directory.resolve(INDEX_FILE);
+            boolean exists = Files.exists(indexPath);
+
+            _records = new MappedFile(directory.resolve(RECORDS_FILE), HEADER_SIZE + expectedUsers * 256);
+            if (!exists) {
+                _records.putLong(0, RECORDS_MAGIC);
+                _records.putLong(RECORDS_END, HEADER_SIZE);
+                _records.putLong(RECORDS_GARBAGE, 0);
+                _capacity = Long.highestOneBit(Math.max(16, (long) (expectedUsers / MAX_LOAD)) * 2 - 1);
+                _index = createIndex(indexPath, _capacity);
+                _emails = MappedOffsetTable.create(directory.resolve(EMAILS_FILE), EMAILS_MAGIC, expectedUsers);
+            } else if (_records.getLong(0) != RECORDS_MAGIC) {
+                throw new IOException("\"" + directory + "\" is not a mapped user directory.");
+            } else if (_records.getLong(RECORDS_OPEN) != 0) {
+                recover(indexPath);
+            } else {
+                _index = new MappedFile(indexPath, HEADER_SIZE);
+                if (_index.getLong(0) != INDEX_MAGIC) {
+                    throw new IOException("\"" + directory + "\" is not a mapped user directory.");
+                }
+                _capacity = _index.getLong(INDEX_CAPACITY);
+                Path emailsPath = directory.resolve(EMAILS_FILE);
+                if (Files.exists(emailsPath)) {
+                    _emails = MappedOffsetTable.open(emailsPath, EMAILS_MAGIC);
+                } else {
+                    // the directory was written before emails were indexed
+                    buildEmails();
+                }
+            }
+            // reach the disk before any change does, so a crash from here on is noticed when the directory is reopened
+            _records.putLong(RECORDS_OPEN, 1);
+            _records.force();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        }
+
+        // create new policy
+        _policy = new Policy() {
+            @Override
+            public boolean checkUsername(String username) {
+                return true;
+            }
+
+            @Override
+            public boolean checkEmail(String email) {
+                return true;
+            }
+
+            @Override
+            public boolean checkScreenName(String screenName) {
+                return true;
+            }
+
+            @Override
+            public boolean checkPassword(String password) {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Forces both files to disk, then marks the directory closed cleanly and closes them.
+     * @throws ConnectionFailureException if the files could not be closed.
+     */
+    @Override
+    public void close() throws ConnectionFailureException {
+        _lock.writeLock().lock();
+        try {
+            _index.close();
+            _emails.close();
+            // only mark the directory closed once every change has reached the disk
+            _records.force();
+            _records.putLong(RECORDS_OPEN, 0);
+            _records.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of users in the directory.
+     * @return the number of users.
+     */
+    public long getUserCount() {
+        _lock.readLock().lock();
+        try {
+            return _index.getLong(INDEX_COUNT);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if the directory had not been closed cleanly, so its index was rebuilt from its records when it was
+     * opened.
+     * @return true if the index was rebuilt, false otherwise.
+     */
+    public boolean wasRecovered() {
+        return _recovered;
+    }
+
+    /**
+     * Retrieves the number of bytes in the records file held by records of removed or changed users.
+     * @return the number of garbage bytes.
+     */
+    public long getGarbageBytes() {
+        _lock.readLock().lock();
+        try {
+            return _records.getLong(RECORDS_GARBAGE);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks the index for the provided username.
+     * @param username the user name of the user to check for.
+     * @return true if the username is in the index, false otherwise.
+     */
+    @Override
+    public boolean hasUser(String username) {
+        _lock.readLock().lock();
+        try {
+            return findSlot(username) >= 0;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks the index for each of the provided usernames under one read lock.
+     * @param usernames the user names of the users to check for.
+     * @return the provided usernames that are in the index.
+     */
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) {
+        Set<String> found = new HashSet<>();
+        _lock.readLock().lock();
+        try {
+            for (String username : usernames) {
+                if (findSlot(username) >= 0) {
+                    found.add(username);
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    /**
+     * Hashes the password, then appends a record for the user and adds it to the index.
+     * @param username the user name of the new entry.
+     * @param email the email of the new entry.
+     * @param screeName the screen name of the new entry.
+     * @param password the password of the new entry.
+     * @throws ConnectionFailureException if the files could not be grown.
+     * @throws UserAlreadyExistsException if the hasUser() method returns true for the provided username.
+     * @throws PolicyFailureException if the parameters do not pass every check by the directory's policy.
+     */
+    @Override
+    public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        // check that the parameters meet the policy's requirements
+        checkPolicy(username, email, screeName, password);
+        // make sure the user does not already exist
+        if (hasUser(username)) {
+            throw new UserAlreadyExistsException("A user with username \"" + username + "\" already exists.");
+        }
+
+        // hash outside of the lock, since it is by far the slowest part of adding a user
+        PasswordHasher hasher = _hasher;
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        byte[] hashed = hasher.hash(password, salt);
+        _lock.writeLock().lock();
+        try {
+            if (email != null && _policy.requireUniqueEmails() && isEmailTaken(email)) {
+                throw new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL);
+            }
+            if (findSlot(username) >= 0) {
+                throw new UserAlreadyExistsException("A user with username \"" + username + "\" already exists.");
+            }
+            insert(username, appendRecord(username, email, screeName, hasher.getId(), salt, hashed));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks every registration against the directory's policy, hashes the passwords of the registrations that pass in
+     * parallel, then appends them under a single write lock.
+     * @param users the registrations of the users to add.
+     * @return a map from the username of every registration that could not be added to the exception explaining why.
+     * @throws ConnectionFailureException if the files could not be grown.
+     */
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        Map<String, UserDirectoryException> failures = new LinkedHashMap<>();
+        // registrations that passed every check, indexed by username
+        Map<String, UserRegistration> accepted = new LinkedHashMap<>();
+        // usernames of every registration seen so far, accepted or not, so duplicates within the batch are caught
+        Set<String> seen = new HashSet<>();
+        for (UserRegistration user : users) {
+            String username = user.getUsername();
+            if (!seen.add(username)) {
+                failures.putIfAbsent(username, new UserAlreadyExistsException("A user with username \"" + username + "\" already exists."));
+                continue;
+            }
+            try {
+                checkPolicy(username, user.getEmail(), user.getScreenName(), user.getPassword());
+                accepted.put(username, user);
+            } catch (PolicyFailureException e) {
+                failures.put(username, e);
+            }
+        }
+
+        // hashing dominates the cost of adding a user, so spread it across cores
+        PasswordHasher hasher = _hasher;
+        List<byte[][]> credentials = new ArrayList<>(accepted.size());
+        accepted.values().parallelStream().map(user -> {
+            byte[] salt = PasswordCrypt.nextSaltBytes();
+            return new byte[][] {salt, hasher.hash(user.getPassword(), salt)};
+        }).forEachOrdered(credentials::add);
+
+        _lock.writeLock().lock();
+        try {
+            // emails taken by existing users or by earlier registrations in the batch, if emails must be unique
+            Set<String> takenEmails = null;
+            if (_policy.requireUniqueEmails()) {
+                Set<String> emails = new HashSet<>();
+                for (UserRegistration user : accepted.values()) {
+                    if (user.getEmail() != null) {
+                        emails.add(user.getEmail());
+                    }
+                }
+                takenEmails = takenEmails(emails);
+            }
+            int i = 0;
+            for (UserRegistration user : accepted.values()) {
+                byte[][] credential = credentials.get(i++);
+                String username = user.getUsername();
+                if (takenEmails != null && user.getEmail() != null && takenEmails.contains(user.getEmail())) {
+                    failures.put(username, new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL));
+                } else if (findSlot(username) >= 0) {
+                    failures.put(username, new UserAlreadyExistsException("A user with username \"" + username + "\" already exists."));
+                } else {
+                    if (takenEmails != null && user.getEmail() != null) {
+                        takenEmails.add(user.getEmail());
+                    }
+                    insert(username, appendRecord(username, user.getEmail(), user.getScreenName(), hasher.getId(),
+                            credential[0], credential[1]));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return failures;
+    }
+
+    /**
+     * Marks the user's record dead and replaces their index slot with a tombstone.
+     * @param username the user name of the user to remove.
+     * @return true if hasUser() returns true, false otherwise.
+     */
+    @Override
+    public boolean removeUser(String username) {
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot < 0) {
+                return false;
+            }
+            remove(slot);
+            return true;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Scans the index for every live record and reads its username.
+     * @return the usernames of every user in the directory.
+     */
+    @Override
+    public String[] getUsers() {
+        _lock.readLock().lock();
+        try {
+            List<String> usernames = new ArrayList<>((int) Math.min(Integer.MAX_VALUE - 8, _index.getLong(INDEX_COUNT)));
+            for (long i = 0; i < _capacity; i++) {
+                long offset = _index.getLong(slotOffset(i) + 8);
+                if (offset != EMPTY && offset != TOMBSTONE) {
+                    usernames.add(readUsername(offset));
+                }
+            }
+            return usernames.toArray(new String[0]);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scans the index for every live record, keeping the lowest usernames greater than the given username. The index
+     * is unordered, so every page costs a full scan.
+     * @param afterUsername the username to start after, or null to start from the first user.
+     * @param limit the maximum number of usernames to retrieve.
+     * @return up to limit usernames greater than afterUsername, in ascending order.
+     */
+    @Override
+    public List<String> getUsers(String afterUsername, int limit) {
+        return lowestUsernames(username -> afterUsername == null || username.compareTo(afterUsername) > 0, limit);
+    }
+
+    /**
+     * Scans the index for every live record, keeping the lowest usernames starting with the prefix. The index is
+     * unordered, so every search costs a full scan.
+     * @param prefix the prefix to match, or an empty string to match every username.
+     * @param limit the maximum number of usernames to retrieve.
+     * @return up to limit of the lowest usernames starting with prefix, in ascending order.
+     */
+    @Override
+    public List<String> findUsersByPrefix(String prefix, int limit) {
+        return lowestUsernames(username -> username.startsWith(prefix), limit);
+    }
+
+    /**
+     * Probes the emails file for every live record with the email.
+     * @param email the email to look up.
+     * @return the data of every user with the email, empty if there are none or the email is null.
+     */
+    @Override
+    public List<UserData> findByEmail(String email) {
+        List<UserData> users = new ArrayList<>();
+        if (email == null) {
+            return users;
+        }
+        _lock.readLock().lock();
+        try {
+            _emails.forEach(hash(email), offset -> {
+                // other emails may share the hash
+                if (email.equals(readEmail(offset))) {
+                    users.add(readUserData(offset));
+                }
+                return true;
+            });
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return users;
+    }
+
+    /**
+     * Streams the usernames of the live records in the order they sit in the records file, reading them
+     * STREAM_CHUNK_SIZE at a time so writers are never locked out for long. Records are never moved, so a chunk picks
+     * up where the last one ended; a user renamed while the stream is consumed may be seen under both usernames.
+     * @return a stream of every user's username.
+     */
+    @Override
+    public Stream<String> streamUsers() {
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<String>(Long.MAX_VALUE, Spliterator.NONNULL) {
+            /** Usernames read but not yet streamed. */
+            private final ArrayDeque<String> _chunk = new ArrayDeque<>();
+            /** Offset of the next record to read. */
+            private long _position = HEADER_SIZE;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (_chunk.isEmpty()) {
+                    _position = readUsernames(_position, _chunk);
+                }
+                String username = _chunk.poll();
+                if (username == null) {
+                    return false;
+                }
+                action.accept(username);
+                return true;
+            }
+        }, false);
+    }
+
+    /**
+     * Retrieves the directory's policy.
+     * @return the directory's policy.
+     */
+    @Override
+    public Policy getPolicy() {
+        return _policy;
+    }
+
+    /**
+     * Sets the directory's internal policy field.
+     * @param policy the Policy to set the directory's policy to.
+     */
+    @Override
+    public void setPolicy(Policy policy) {
+        _policy = policy;
+    }
+
+    /**
+     * Retrieves the hasher new passwords are hashed with.
+     * @return the directory's password hasher.
+     */
+    public PasswordHasher getPasswordHasher() {
+        return _hasher;
+    }
+
+    /**
+     * Sets the hasher new passwords are hashed with. Passwords hashed with another hasher are still verified with it,
+     * and are rehashed with this one the next time their user authenticates.
+     * @param hasher the hasher to hash new passwords with.
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        _hasher = hasher;
+    }
+
+    /**
+     * Checks that the provided password matches the password in the user's record.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @return true if the passwords match, false otherwise.
+     * @throws ConnectionFailureException if the records file could not be grown to rehash the password.
+     */
+    @Override
+    public boolean authenticateUser(String username, String password) throws ConnectionFailureException {
+        return authenticateUserDetailed(username, password) == Authentication.VALID;
+    }
+
+    /**
+     * Reads the salt, hashed password, and hasher id from the user's record, then checks the provided password against
+     * them outside of the lock. If the password matches but was hashed with a hasher other than the directory's current
+     * one, it is rehashed with the current hasher.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @return INVALID_USERNAME if the directory doesn't have the specified user, INVALID_PASSWORD if the given password
+     * and the password in the user's record don't match, and VALID if they do.
+     * @throws ConnectionFailureException if the records file could not be grown to rehash the password.
+     */
+    @Override
+    public Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException {
+        byte[] salt = new byte[PasswordCrypt.SALT_LENGTH];
+        byte[] hashed = new byte[PasswordCrypt.HASH_LENGTH];
+        String scheme;
+        _lock.readLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot < 0) {
+                return Authentication.INVALID_USERNAME;
+            }
+            long offset = _index.getLong(slot + 8);
+            _records.getBytes(offset + RECORD_SALT, salt, 0, salt.length);
+            _records.getBytes(offset + RECORD_HASH, hashed, 0, hashed.length);
+            scheme = readScheme(offset);
+        } finally {
+            _lock.readLock().unlock();
+        }
+        if (!PasswordHashers.forId(scheme).verify(password, salt, hashed)) {
+            return Authentication.INVALID_PASSWORD;
+        }
+
+        PasswordHasher hasher = _hasher;
+        if (!hasher.getId().equals(scheme)) {
+            rehashPassword(username, password, hashed, hasher);
+        }
+        return Authentication.VALID;
+    }
+
+    /**
+     * Reads the salts, hashed passwords, and hasher ids of every user in the list under one read lock, then verifies
+     * the passwords in parallel outside of it. Passwords that match but were hashed with a hasher other than the
+     * directory's current one are rehashed with the current hasher.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return the result of authenticating each pair, in the order of the given list.
+     * @throws ConnectionFailureException if the records file could not be grown to rehash a password.
+     */
+    @Override
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException {
+        int count = credentials.size();
+        byte[][] salts = new byte[count][];
+        byte[][] hashes = new byte[count][];
+        String[] schemes = new String[count];
+        _lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                long slot = findSlot(credentials.get(i).getUsername());
+                if (slot >= 0) {
+                    long offset = _index.getLong(slot + 8);
+                    salts[i] = readBytes(offset + RECORD_SALT, PasswordCrypt.SALT_LENGTH);
+                    hashes[i] = readBytes(offset + RECORD_HASH, PasswordCrypt.HASH_LENGTH);
+                    schemes[i] = readScheme(offset);
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+
+        // verifying dominates the cost of authenticating, so spread it across cores
+        Authentication[] results = new Authentication[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            if (schemes[i] == null) {
+                results[i] = Authentication.INVALID_USERNAME;
+            } else if (PasswordHashers.forId(schemes[i]).verify(credentials.get(i).getPassword(), salts[i], hashes[i])) {
+                results[i] = Authentication.VALID;
+            } else {
+                results[i] = Authentication.INVALID_PASSWORD;
+            }
+        });
+
+        PasswordHasher hasher = _hasher;
+        for (int i = 0; i < count; i++) {
+            if (results[i] == Authentication.VALID && !hasher.getId().equals(schemes[i])) {
+                rehashPassword(credentials.get(i).getUsername(), credentials.get(i).getPassword(), hashes[i], hasher);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Reads the user's data from their record.
+     * @param username the username of the user to retrieve data on.
+     * @return an Optional<UserData> object containing the user's data if the user exists.
+     */
+    @Override
+    public Optional<UserData> getUserData(String username) {
+        _lock.readLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot < 0) {
+                return Optional.empty();
+            }
+            return Optional.of(readUserData(_index.getLong(slot + 8)));
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the data of each of the specified users from their records under one read lock.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a map from the username of every user that exists to its data.
+     */
+    @Override
+    public Map<String, UserData> getUserData(Collection<String> usernames) {
+        Map<String, UserData> data = new HashMap<>();
+        _lock.readLock().lock();
+        try {
+            for (String username : usernames) {
+                long slot = findSlot(username);
+                if (slot >= 0) {
+                    data.put(username, readUserData(_index.getLong(slot + 8)));
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return data;
+    }
+
+    /**
+     * If the directory has the specified user and no user with the new username, appends a copy of the user's record
+     * with the new username, indexes it, and removes the old record.
+     * @param username the username of the user to update.
+     * @param newUsername the username to change the user's current username to.
+     * @throws ConnectionFailureException if the files could not be grown.
+     */
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot < 0 || findSlot(newUsername) >= 0) {
+                return;
+            }
+            long offset = _index.getLong(slot + 8);
+            UserData data = readUserData(offset);
+            long newOffset = appendRecord(newUsername, data.getEmail(), data.getScreenName(), readScheme(offset),
+                    readBytes(offset + RECORD_SALT, PasswordCrypt.SALT_LENGTH),
+                    readBytes(offset + RECORD_HASH, PasswordCrypt.HASH_LENGTH));
+            // the append may have grown the records file, but never moves the index
+            remove(slot);
+            insert(newUsername, newOffset);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * If the specified user exists, appends a copy of their record with the new email and repoints their index slot.
+     * If the policy requires unique emails and another user has the new email, the user is left unchanged.
+     * @param username the username of the user to update.
+     * @param newEmail the email to change the user's current email to.
+     * @throws ConnectionFailureException if the files could not be grown.
+     */
+    @Override
+    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot >= 0) {
+                UserData data = readUserData(_index.getLong(slot + 8));
+                if (newEmail != null && !newEmail.equals(data.getEmail()) && _policy.requireUniqueEmails()
+                        && isEmailTaken(newEmail)) {
+                    return;
+                }
+                replaceRecord(slot, username, newEmail, data.getScreenName());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * If the specified user exists, appends a copy of their record with the new screen name and repoints their index
+     * slot.
+     * @param username the username of the user to update.
+     * @param newScreenName the screen name to change the user's current screen name to.
+     * @throws ConnectionFailureException if the files could not be grown.
+     */
+    @Override
+    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot >= 0) {
+                UserData data = readUserData(_index.getLong(slot + 8));
+                replaceRecord(slot, username, data.getEmail(), newScreenName);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * If the specified user exists, appends a copy of their record with the new password and repoints their index slot.
+     * @param username the username of the user to update.
+     * @param newPassword the password to change the user's current password to.
+     * @throws ConnectionFailureException if the records file could not be grown.
+     */
+    @Override
+    public void updatePassword(String username, String newPassword) throws ConnectionFailureException {
+        if (!hasUser(username)) {
+            return;
+        }
+        // hash outside of the lock, since it is by far the slowest part of the update
+        PasswordHasher hasher = _hasher;
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        byte[] hashed = hasher.hash(newPassword, salt);
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot >= 0) {
+                UserData data = readUserData(_index.getLong(slot + 8));
+                replaceRecord(slot, username, data.getEmail(), data.getScreenName(), hasher.getId(), salt, hashed);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * If the specified user exists, appends one copy of their record holding every change in the patch, then repoints
+     * their index slot to it, or moves it to the new username if the patch sets one. A new password is hashed with a
+     * new salt outside of the lock. The user is left unchanged if another user has the new username, or if the policy
+     * requires unique emails and another user has the new email.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return true if the user exists and the changes were made, false if the user was left unchanged.
+     * @throws ConnectionFailureException if the files could not be grown.
+     */
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        PasswordHasher hasher = _hasher;
+        byte[] salt = null;
+        byte[] hashed = null;
+        if (patch.hasPassword()) {
+            if (!hasUser(username)) {
+                return false;
+            }
+            // hash outside of the lock, since it is by far the slowest part of the update
+            salt = PasswordCrypt.nextSaltBytes();
+            hashed = hasher.hash(patch.getPassword(), salt);
+        }
+        String newUsername = patch.hasUsername() ? patch.getUsername() : username;
+        boolean renamed = !newUsername.equals(username);
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            if (slot < 0 || (renamed && findSlot(newUsername) >= 0)) {
+                return false;
+            }
+            long offset = _index.getLong(slot + 8);
+            UserData data = readUserData(offset);
+            String email = patch.hasEmail() ? patch.getEmail() : data.getEmail();
+            if (email != null && !email.equals(data.getEmail()) && _policy.requireUniqueEmails()
+                    && isEmailTaken(email)) {
+                return false;
+            }
+            String screenName = patch.hasScreenName() ? patch.getScreenName() : data.getScreenName();
+            String scheme;
+            if (patch.hasPassword()) {
+                scheme = hasher.getId();
+            } else {
+                scheme = readScheme(offset);
+                salt = readBytes(offset + RECORD_SALT, PasswordCrypt.SALT_LENGTH);
+                hashed = readBytes(offset + RECORD_HASH, PasswordCrypt.HASH_LENGTH);
+            }
+            if (renamed) {
+                long newOffset = appendRecord(newUsername, email, screenName, scheme, salt, hashed);
+                // the append may have grown the records file, but never moves the index
+                remove(slot);
+                insert(newUsername, newOffset);
+            } else {
+                replaceRecord(slot, username, email, screenName, scheme, salt, hashed);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Upgrades a verified password's hash to the given hasher, unless the password was changed since it was read.
+     * @param username the username of the user.
+     * @param password the user's password, known to be right.
+     * @param hashed the hashed password that was verified.
+     * @param hasher the hasher to rehash the password with.
+     * @throws ConnectionFailureException if the records file could not be grown.
+     */
+    private void rehashPassword(String username, String password, byte[] hashed, PasswordHasher hasher) throws ConnectionFailureException {
+        byte[] newSalt = PasswordCrypt.nextSaltBytes();
+        byte[] newHashed = hasher.hash(password, newSalt);
+        _lock.writeLock().lock();
+        try {
+            long slot = findSlot(username);
+            // don't overwrite a password changed since it was read
+            if (slot >= 0 && Arrays.equals(hashed, readBytes(_index.getLong(slot + 8) + RECORD_HASH, PasswordCrypt.HASH_LENGTH))) {
+                UserData data = readUserData(_index.getLong(slot + 8));
+                replaceRecord(slot, username, data.getEmail(), data.getScreenName(), hasher.getId(), newSalt, newHashed);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, IO_FAILURE_MSG, e);
+            throw new ConnectionFailureException(IO_FAILURE_MSG, e);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks that the given values meet the directory's policy.
+     * @param username the username to check.
+     * @param email the email to check.
+     * @param screenName the screen name to check.
+     * @param password the password to check.
+     * @throws PolicyFailureException if any of the values fail the directory's policy.
+     */
+    private void checkPolicy(String username, String email, String screenName, String password) throws PolicyFailureException {
+        Policy policy = _policy;
+        if (!policy.checkUsername(username)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_USERNAME);
+        }
+        if (!policy.checkEmail(email)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_EMAIL);
+        }
+        if (!policy.checkScreenName(screenName)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_SCREEN_NAME);
+        }
+        if (!policy.checkPassword(password)) {
+            throw new PolicyFailureException(POLICY_FAILURE_MSG, PolicyFailure.ILLEGAL_PASSWORD);
+        }
+    }
+
+    /**
+     * Finds the index slot of a username. Must be called while holding the lock.
+     * @param username the username to look for.
+     * @return the offset of the username's slot in the index file, or -1 if the username is not in the index.
+     */
+    private long findSlot(String username) {
+        long hash = hash(username);
+        long mask = _capacity - 1;
+        for (long i = hash & mask, probes = 0; probes < _capacity; i = (i + 1) & mask, probes++) {
+            long slot = slotOffset(i);
+            long offset = _index.getLong(slot + 8);
+            if (offset == EMPTY) {
+                return -1;
+            }
+            if (offset != TOMBSTONE && _index.getLong(slot) == hash && readUsername(offset).equals(username)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a username to the index and its record's email to the emails file, growing either first if it is too full.
+     * Must be called while holding the write lock, for a username that is not already in the index.
+     * @param username the username to add.
+     * @param recordOffset the offset of the user's record.
+     * @throws IOException if the index or emails file could not be grown.
+     */
+    private void insert(String username, long recordOffset) throws IOException {
+        long count = _index.getLong(INDEX_COUNT);
+        long tombstones = _index.getLong(INDEX_TOMBSTONES);
+        if (count + tombstones + 1 > _capacity * MAX_LOAD) {
+            // only grow if live entries fill the index, otherwise rebuilding at the same size clears the tombstones
+            rebuildIndex(count + 1 > _capacity * MAX_LOAD / 2 ? _capacity * 2 : _capacity);
+            tombstones = 0;
+        }
+        long hash = hash(username);
+        long mask = _capacity - 1;
+        for (long i = hash & mask; ; i = (i + 1) & mask) {
+            long slot = slotOffset(i);
+            long offset = _index.getLong(slot + 8);
+            if (offset == EMPTY || offset == TOMBSTONE) {
+                if (offset == TOMBSTONE) {
+                    _index.putLong(INDEX_TOMBSTONES, tombstones - 1);
+                }
+                _index.putLong(slot, hash);
+                _index.putLong(slot + 8, recordOffset);
+                _index.putLong(INDEX_COUNT, count + 1);
+                indexEmail(recordOffset);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the record in an index slot dead, drops it from the emails file, and replaces the slot with a tombstone.
+     * Must be called while holding the write lock.
+     * @param slot the offset of the slot in the index file.
+     */
+    private void remove(long slot) {
+        long offset = _index.getLong(slot + 8);
+        unindexEmail(offset);
+        killRecord(offset);
+        _index.putLong(slot + 8, TOMBSTONE);
+        _index.putLong(INDEX_COUNT, _index.getLong(INDEX_COUNT) - 1);
+        _index.putLong(INDEX_TOMBSTONES, _index.getLong(INDEX_TOMBSTONES) + 1);
+    }
+
+    /**
+     * Appends a copy of the record in an index slot with a new email and screen name, and repoints the slot to it. Must
+     * be called while holding the write lock.
+     * @param slot the offset of the slot in the index file.
+     * @param username the user's username.
+     * @param email the user's new email.
+     * @param screenName the user's new screen name.
+     * @throws IOException if the records file could not be grown.
+     */
+    private void replaceRecord(long slot, String username, String email, String screenName) throws IOException {
+        long offset = _index.getLong(slot + 8);
+        replaceRecord(slot, username, email, screenName, readScheme(offset),
+                readBytes(offset + RECORD_SALT, PasswordCrypt.SALT_LENGTH),
+                readBytes(offset + RECORD_HASH, PasswordCrypt.HASH_LENGTH));
+    }
+
+    /**
+     * Appends a new record for the user in an index slot, repoints the slot and the emails file to it, and marks the
+     * old record dead. Must be called while holding the write lock.
+     * @param slot the offset of the slot in the index file.
+     * @param username the user's username.
+     * @param email the user's new email.
+     * @param screenName the user's new screen name.
+     * @param scheme the id of the hasher the user's password was hashed with.
+     * @param salt the salt the user's password was hashed with.
+     * @param hashed the user's hashed password.
+     * @throws IOException if the records file could not be grown.
+     */
+    private void replaceRecord(long slot, String username, String email, String screenName, String scheme, byte[] salt,
+                               byte[] hashed) throws IOException {
+        long offset = _index.getLong(slot + 8);
+        long newOffset = appendRecord(username, email, screenName, scheme, salt, hashed);
+        _index.putLong(slot + 8, newOffset);
+        reindexEmail(offset, newOffset);
+        killRecord(offset);
+    }
+
+    /**
+     * Adds a live record's email to the emails file. Must be called while holding the write lock.
+     * @param offset the offset of the record.
+     * @throws IOException if the emails file could not be grown.
+     */
+    private void indexEmail(long offset) throws IOException {
+        String email = readEmail(offset);
+        if (email != null) {
+            _emails.add(hash(email), offset);
+        }
+    }
+
+    /**
+     * Drops a record's email from the emails file. Must be called while holding the write lock.
+     * @param offset the offset of the record.
+     */
+    private void unindexEmail(long offset) {
+        String email = readEmail(offset);
+        if (email != null) {
+            _emails.remove(hash(email), offset);
+        }
+    }
+
+    /**
+     * Moves a user's entry in the emails file from their old record to their new one. Must be called while holding the
+     * write lock.
+     * @param offset the offset of the user's old record.
+     * @param newOffset the offset of the user's new record.
+     * @throws IOException if the emails file could not be grown.
+     */
+    private void reindexEmail(long offset, long newOffset) throws IOException {
+        String email = readEmail(offset);
+        if (email != null && email.equals(readEmail(newOffset))) {
+            _emails.replace(hash(email), offset, newOffset);
+        } else {
+            unindexEmail(offset);
+            indexEmail(newOffset);
+        }
+    }
+
+    /**
+     * Creates the emails file and fills it from the index. Must be called while holding the write lock, or while the
+     * directory is being opened.
+     * @throws IOException if the emails file could not be created.
+     */
+    private void buildEmails() throws IOException {
+        _emails = MappedOffsetTable.create(_directory.resolve(EMAILS_FILE), EMAILS_MAGIC,
+                _index.getLong(INDEX_COUNT));
+        for (long i = 0; i < _capacity; i++) {
+            long offset = _index.getLong(slotOffset(i) + 8);
+            if (offset != EMPTY && offset != TOMBSTONE) {
+                indexEmail(offset);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index into a new file with the given capacity, dropping tombstones, then swaps it in. Must be called
+     * while holding the write lock.
+     * @param capacity the number of slots in the new index, a power of two.
+     * @throws IOException if the new index could not be written.
+     */
+    private void rebuildIndex(long capacity) throws IOException {
+        Path tempPath = _directory.resolve(INDEX_TEMP_FILE);
+        Files.deleteIfExists(tempPath);
+        long count = 0;
+        try (MappedFile rebuilt = createIndex(tempPath, capacity)) {
+            long mask = capacity - 1;
+            for (long i = 0; i < _capacity; i++) {
+                long slot = slotOffset(i);
+                long offset = _index.getLong(slot + 8);
+                if (offset == EMPTY || offset == TOMBSTONE) {
+                    continue;
+                }
+                long hash = _index.getLong(slot);
+                long j = hash & mask;
+                while (rebuilt.getLong(slotOffset(j) + 8) != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                rebuilt.putLong(slotOffset(j), hash);
+                rebuilt.putLong(slotOffset(j) + 8, offset);
+                count++;
+            }
+            rebuilt.putLong(INDEX_COUNT, count);
+        }
+        _index.close();
+        Path indexPath = _directory.resolve(INDEX_FILE);
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _index = new MappedFile(indexPath, HEADER_SIZE);
+        _capacity = capacity;
+    }
+
+    /**
+     * Creates a new, empty index file.
+     * @param path the path of the index file.
+     * @param capacity the number of slots in the index, a power of two.
+     * @return the mapped index file.
+     * @throws IOException if the index file could not be created.
+     */
+    private static MappedFile createIndex(Path path, long capacity) throws IOException {
+        MappedFile index = new MappedFile(path, HEADER_SIZE + capacity * SLOT_SIZE);
+        index.putLong(0, INDEX_MAGIC);
+        index.putLong(INDEX_CAPACITY, capacity);
+        index.putLong(INDEX_COUNT, 0);
+        index.putLong(INDEX_TOMBSTONES, 0);
+        return index;
+    }
+
+    /**
+     * Appends a live record to the records file, growing it if needed. Must be called while holding the write lock.
+     * @param username the user's username.
+     * @param email the user's email.
+     * @param screenName the user's screen name.
+     * @param scheme the id of the hasher the user's password was hashed with.
+     * @param salt the salt the user's password was hashed with.
+     * @param hashed the user's hashed password.
+     * @return the offset of the new record.
+     * @throws IOException if the records file could not be grown.
+     */
+    private long appendRecord(String username, String email, String screenName, String scheme, byte[] salt,
+                              byte[] hashed) throws IOException {
+        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        byte[] emailBytes = email == null ? null : email.getBytes(StandardCharsets.UTF_8);
+        byte[] screenNameBytes = screenName == null ? null : screenName.getBytes(StandardCharsets.UTF_8);
+        byte[] schemeBytes = scheme.getBytes(StandardCharsets.UTF_8);
+        long unaligned = (long) RECORD_STRINGS + usernameBytes.length + (emailBytes == null ? 0 : emailBytes.length)
+                + (screenNameBytes == null ? 0 : screenNameBytes.length) + schemeBytes.length;
+        // keep records 8-byte aligned
+        int length = (int) ((unaligned + 7) & ~7L);
+        if (length > MappedFile.SEGMENT_SIZE) {
+            throw new IOException("User record too large: " + length + " bytes.");
+        }
+
+        long offset = _records.getLong(RECORDS_END);
+        // never let a record cross a segment boundary
+        if (offset % MappedFile.SEGMENT_SIZE + length > MappedFile.SEGMENT_SIZE) {
+            long skipped = MappedFile.SEGMENT_SIZE - offset % MappedFile.SEGMENT_SIZE;
+            _records.putLong(RECORDS_GARBAGE, _records.getLong(RECORDS_GARBAGE) + skipped);
+            offset += skipped;
+        }
+        if (offset + length > _records.size()) {
+            _records.ensureSize(Math.max(offset + length, _records.size() * 2));
+        }
+
+        _records.putInt(offset + RECORD_LENGTH, length);
+        _records.putByte(offset + RECORD_LIVE, (byte) 1);
+        _records.putBytes(offset + RECORD_SALT, salt);
+        _records.putBytes(offset + RECORD_HASH, hashed);
+        _records.putInt(offset + RECORD_USERNAME_LENGTH, usernameBytes.length);
+        _records.putInt(offset + RECORD_EMAIL_LENGTH, emailBytes == null ? -1 : emailBytes.length);
+        _records.putInt(offset + RECORD_SCREEN_NAME_LENGTH, screenNameBytes == null ? -1 : screenNameBytes.length);
+        _records.putInt(offset + RECORD_SCHEME_LENGTH, schemeBytes.length);
+        long position = offset + RECORD_STRINGS;
+        _records.putBytes(position, usernameBytes);
+        position += usernameBytes.length;
+        if (emailBytes != null) {
+            _records.putBytes(position, emailBytes);
+            position += emailBytes.length;
+        }
+        if (screenNameBytes != null) {
+            _records.putBytes(position, screenNameBytes);
+            position += screenNameBytes.length;
+        }
+        _records.putBytes(position, schemeBytes);
+        writeChecksum(offset);
+        _records.putLong(RECORDS_END, offset + length);
+        return offset;
+    }
+
+    /**
+     * Rebuilds the index and emails file from the records file of a directory that was not closed cleanly, dropping
+     * records whose checksums don't match, and keeping only the latest live record of each username. The records file's
+     * end and garbage count are recomputed from the records found.
+     * @param indexPath the path of the index file.
+     * @throws IOException if the index could not be rebuilt.
+     */
+    private void recover(Path indexPath) throws IOException {
+        LOGGER.log(Level.WARNING, "\"" + _directory + "\" was not closed cleanly, rebuilding its index from its records.");
+        long capacity = 16;
+        if (Files.exists(indexPath)) {
+            // keep the old capacity if the header survived, so the rebuild doesn't have to grow the index
+            try (MappedFile old = new MappedFile(indexPath, HEADER_SIZE)) {
+                long oldCapacity = old.getLong(INDEX_CAPACITY);
+                if (old.getLong(0) == INDEX_MAGIC && oldCapacity > capacity && Long.bitCount(oldCapacity) == 1
+                        && slotOffset(oldCapacity) <= old.size()) {
+                    capacity = oldCapacity;
+                }
+            }
+            Files.delete(indexPath);
+        }
+        _capacity = capacity;
+        _index = createIndex(indexPath, capacity);
+        // filled as the records are inserted below
+        _emails = MappedOffsetTable.create(_directory.resolve(EMAILS_FILE), EMAILS_MAGIC, (long) (capacity * MAX_LOAD));
+
+        long end = HEADER_SIZE;
+        long liveBytes = 0;
+        // records are 8-byte aligned, so after anything that isn't a record, look for the next one 8 bytes on
+        for (long position = HEADER_SIZE; position < _records.size(); ) {
+            int length = intactLength(position);
+            if (length == 0) {
+                position += 8;
+                continue;
+            }
+            if (_records.getByte(position + RECORD_LIVE) != 0) {
+                String username = readUsername(position);
+                long slot = findSlot(username);
+                if (slot >= 0) {
+                    // an older record the crash left live; the later one is newer
+                    long older = _index.getLong(slot + 8);
+                    _records.putByte(older + RECORD_LIVE, (byte) 0);
+                    liveBytes -= _records.getInt(older + RECORD_LENGTH);
+                    _index.putLong(slot + 8, position);
+                    reindexEmail(older, position);
+                } else {
+                    insert(username, position);
+                }
+                liveBytes += length;
+            }
+            position += length;
+            end = position;
+        }
+        _records.putLong(RECORDS_END, end);
+        _records.putLong(RECORDS_GARBAGE, end - HEADER_SIZE - liveBytes);
+        _index.force();
+        _emails.force();
+        _records.force();
+        _recovered = true;
+    }
+
+    /**
+     * Checks that a whole, unchanged record starts at an offset of the records file.
+     * @param offset the offset to check.
+     * @return the length of the record, or 0 if no intact record starts at the offset.
+     */
+    private int intactLength(long offset) {
+        long segmentOffset = offset % MappedFile.SEGMENT_SIZE;
+        if (segmentOffset + RECORD_STRINGS > MappedFile.SEGMENT_SIZE || offset + RECORD_STRINGS > _records.size()) {
+            return 0;
+        }
+        int length = _records.getInt(offset + RECORD_LENGTH);
+        byte live = _records.getByte(offset + RECORD_LIVE);
+        if (length < RECORD_STRINGS || length % 8 != 0 || segmentOffset + length > MappedFile.SEGMENT_SIZE
+                || offset + length > _records.size() || (live != 0 && live != 1)) {
+            return 0;
+        }
+        int usernameLength = _records.getInt(offset + RECORD_USERNAME_LENGTH);
+        int emailLength = _records.getInt(offset + RECORD_EMAIL_LENGTH);
+        int screenNameLength = _records.getInt(offset + RECORD_SCREEN_NAME_LENGTH);
+        int schemeLength = _records.getInt(offset + RECORD_SCHEME_LENGTH);
+        if (usernameLength < 0 || emailLength < -1 || screenNameLength < -1 || schemeLength < 0) {
+            return 0;
+        }
+        long unaligned = (long) RECORD_STRINGS + usernameLength + Math.max(0, emailLength)
+                + Math.max(0, screenNameLength) + schemeLength;
+        if (((unaligned + 7) & ~7L) != length || readChecksum(offset) != checksum(offset)) {
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * Computes the checksum of a record. The length, live flag, and checksum are left out, so killing a record doesn't
+     * change its checksum.
+     * @param offset the offset of the record.
+     * @return the low three bytes of the CRC-32 of the record's fixed-width slots and strings.
+     */
+    private int checksum(long offset) {
+        long strings = (long) _records.getInt(offset + RECORD_USERNAME_LENGTH)
+                + Math.max(0, _records.getInt(offset + RECORD_EMAIL_LENGTH))
+                + Math.max(0, _records.getInt(offset + RECORD_SCREEN_NAME_LENGTH))
+                + _records.getInt(offset + RECORD_SCHEME_LENGTH);
+        CRC32 crc = new CRC32();
+        crc.update(readBytes(offset + RECORD_SALT, (int) (RECORD_STRINGS - RECORD_SALT + strings)));
+        return (int) crc.getValue() & 0xFFFFFF;
+    }
+
+    /**
+     * Reads the checksum stored in a record.
+     * @param offset the offset of the record.
+     * @return the stored checksum.
+     */
+    private int readChecksum(long offset) {
+        return (_records.getByte(offset + RECORD_CHECKSUM) & 0xFF) << 16
+                | (_records.getByte(offset + RECORD_CHECKSUM + 1) & 0xFF) << 8
+                | (_records.getByte(offset + RECORD_CHECKSUM + 2) & 0xFF);
+    }
+
+    /**
+     * Computes a record's checksum and stores it in the record. Must be called while holding the write lock, after
+     * every other part of the record has been written.
+     * @param offset the offset of the record.
+     */
+    private void writeChecksum(long offset) {
+        int checksum = checksum(offset);
+        _records.putByte(offset + RECORD_CHECKSUM, (byte) (checksum >>> 16));
+        _records.putByte(offset + RECORD_CHECKSUM + 1, (byte) (checksum >>> 8));
+        _records.putByte(offset + RECORD_CHECKSUM + 2, (byte) checksum);
+    }
+
+    /**
+     * Marks a record dead and counts its bytes as garbage. Must be called while holding the write lock.
+     * @param offset the offset of the record.
+     */
+    private void killRecord(long offset) {
+        _records.putByte(offset + RECORD_LIVE, (byte) 0);
+        _records.putLong(RECORDS_GARBAGE, _records.getLong(RECORDS_GARBAGE) + _records.getInt(offset + RECORD_LENGTH));
+    }
+
+    /**
+     * Scans the index for every live record, keeping the lowest usernames that match a filter.
+     * @param filter selects the usernames to keep.
+     * @param limit the maximum number of usernames to keep.
+     * @return up to limit of the lowest usernames that match the filter, in ascending order.
+     */
+    private List<String> lowestUsernames(Predicate<String> filter, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit + ".");
+        }
+        if (limit == 0) {
+            return new ArrayList<>();
+        }
+        TreeSet<String> lowest = new TreeSet<>();
+        _lock.readLock().lock();
+        try {
+            for (long i = 0; i < _capacity; i++) {
+                long offset = _index.getLong(slotOffset(i) + 8);
+                if (offset == EMPTY || offset == TOMBSTONE) {
+                    continue;
+                }
+                String username = readUsername(offset);
+                if (filter.test(username) && (lowest.size() < limit || username.compareTo(lowest.last()) < 0)) {
+                    lowest.add(username);
+                    if (lowest.size() > limit) {
+                        lowest.pollLast();
+                    }
+                }
+            }
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return new ArrayList<>(lowest);
+    }
+
+    /**
+     * Probes the emails file for the emails that live records have. Must be called while holding the lock.
+     * @param emails the emails to look for.
+     * @return a new set of the emails that some user has.
+     */
+    private Set<String> takenEmails(Set<String> emails) {
+        Set<String> taken = new HashSet<>();
+        for (String email : emails) {
+            if (isEmailTaken(email)) {
+                taken.add(email);
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Probes the emails file for a live record with an email. Must be called while holding the lock.
+     * @param email the email to look for.
+     * @return true if some user has the email, false otherwise.
+     */
+    private boolean isEmailTaken(String email) {
+        boolean[] taken = {false};
+        _emails.forEach(hash(email), offset -> {
+            // other emails may share the hash
+            taken[0] = email.equals(readEmail(offset));
+            return !taken[0];
+        });
+        return taken[0];
+    }
+
+    /**
+     * Reads the usernames of up to STREAM_CHUNK_SIZE live records, starting at a record offset.
+     * @param position the offset of the first record to read.
+     * @param usernames the collection to add the usernames to.
+     * @return the offset of the record after the last one read.
+     */
+    private long readUsernames(long position, Collection<String> usernames) {
+        _lock.readLock().lock();
+        try {
+            long end = _records.getLong(RECORDS_END);
+            while (position < end && usernames.size() < STREAM_CHUNK_SIZE) {
+                int length = _records.getInt(position + RECORD_LENGTH);
+                if (length == 0) {
+                    // records never cross a segment boundary, so skip the gap left before the next segment
+                    position += MappedFile.SEGMENT_SIZE - position % MappedFile.SEGMENT_SIZE;
+                    continue;
+                }
+                if (_records.getByte(position + RECORD_LIVE) != 0) {
+                    usernames.add(readUsername(position));
+                }
+                position += length;
+            }
+            return position;
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the username of a record. Must be called while holding the lock.
+     * @param offset the offset of the record.
+     * @return the record's username.
+     */
+    private String readUsername(long offset) {
+        return readString(offset + RECORD_STRINGS, _records.getInt(offset + RECORD_USERNAME_LENGTH));
+    }
+
+    /**
+     * Reads the username, email, and screen name of a record. Must be called while holding the lock.
+     * @param offset the offset of the record.
+     * @return the record's data.
+     */
+    private UserData readUserData(long offset) {
+        int usernameLength = _records.getInt(offset + RECORD_USERNAME_LENGTH);
+        int emailLength = _records.getInt(offset + RECORD_EMAIL_LENGTH);
+        int screenNameLength = _records.getInt(offset + RECORD_SCREEN_NAME_LENGTH);
+        long position = offset + RECORD_STRINGS;
+        String username = readString(position, usernameLength);
+        position += usernameLength;
+        String email = readString(position, emailLength);
+        position += Math.max(0, emailLength);
+        String screenName = readString(position, screenNameLength);
+        return new UserData(username, email, screenName);
+    }
+
+    /**
+     * Reads the email of a record. Must be called while holding the lock.
+     * @param offset the offset of the record.
+     * @return the record's email, or null if it has none.
+     */
+    private String readEmail(long offset) {
+        return readString(offset + RECORD_STRINGS + _records.getInt(offset + RECORD_USERNAME_LENGTH),
+                _records.getInt(offset + RECORD_EMAIL_LENGTH));
+    }
+
+    /**
+     * Reads the id of the hasher a record's password was hashed with. Must be called while holding the lock.
+     * @param offset the offset of the record.
+     * @return the id of the record's hasher.
+     */
+    private String readScheme(long offset) {
+        long position = offset + RECORD_STRINGS + _records.getInt(offset + RECORD_USERNAME_LENGTH)
+                + Math.max(0, _records.getInt(offset + RECORD_EMAIL_LENGTH))
+                + Math.max(0, _records.getInt(offset + RECORD_SCREEN_NAME_LENGTH));
+        return readString(position, _records.getInt(offset + RECORD_SCHEME_LENGTH));
+    }
+
+    /**
+     * Reads a UTF-8 string from the records file.
+     * @param offset the offset of the string's first byte.
+     * @param length the length of the string in bytes, or -1 if the string is null.
+     * @return the string, or null if the length is -1.
+     */
+    private String readString(long offset, int length) {
+        if (length < 0) {
+            return null;
+        }
+        return new String(readBytes(offset, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a range of bytes from the records file.
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes to read.
+     * @return a new array holding the bytes.
+     */
+    private byte[] readBytes(long offset, int length) {
+        byte[] bytes = new byte[length];
+        _records.getBytes(offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Converts the number of an index slot into its offset in the index file.
+     * @param slotNumber the number of the slot.
+     * @return the offset of the slot.
+     */
+    private static long slotOffset(long slotNumber) {
+        return HEADER_SIZE + slotNumber * SLOT_SIZE;
+    }
+
+    /**
+     * Computes a 64-bit hash of a username or email.
+     * @param username the username or email to hash.
+     * @return the string's hash.
+     */
+    private static long hash(String username) {
+        // FNV-1a over the UTF-16 code units, finished with the MurmurHash3 mix to spread the bits
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            hash ^= username.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -33,4 +33,14 @@ public interface Policy {
      */
     boolean checkPassword(String password);
 
+    /**
+     * Checks if no two users may share an email. When true, directories reject new users whose email another user
+     * already has, and leave a user's email unchanged if the new email is taken. Null emails are never considered
+     * taken. Users that already share an email when the policy is set keep it.
+     * @return true if emails must be unique, false otherwise. Defaults to false.
+     */
+    default boolean requireUniqueEmails() {
+        return false;
+    }
+
 }
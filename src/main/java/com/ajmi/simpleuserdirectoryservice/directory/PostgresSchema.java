@@ -0,0 +1,567 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.Sha3PasswordHasher;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Versioned schema of the database PostgresUserDirectory stores users in, and the migrations that upgrade older
+ * databases to it.
+ *
+ * Each applied migration is recorded in the schema_version table. Databases created before the table existed have their
+ * version inferred from their columns. New databases are created at the current version directly. Directories starting
+ * at the same time migrate one at a time, holding an advisory lock.
+ *
+ * The current schema keeps each user's salt, hashed password, and hashing scheme in the user's row of the users table,
+ * so authenticating reads a single row through the username's unique index. Older schemas kept the hashed password in a
+ * separate passwords table joined on the user's id, and older still kept salts and hashes as hex text.
+ *
+ * Every migration is done online, so directories that haven't been upgraded yet keep working while it runs. Columns
+ * are converted by adding the new column, having a trigger fill it in for rows written by those directories, and
+ * filling it in for existing rows in batches of short transactions. A table is only locked for the final catch-up,
+ * after which the old column or table is dropped, so every directory using the database must be upgraded once the
+ * migration finishes. Constraints on the new columns are added without checking existing rows, which are checked
+ * afterwards without blocking writes.
+ */
+final class PostgresSchema {
+
+    private static final Logger LOGGER = Logger.getLogger(PostgresSchema.class.getName());
+
+    /** Version of the schema PostgresUserDirectory reads and writes. */
+    static final int VERSION = 5;
+
+    /** Key of the advisory lock held while migrating, "suds" in ASCII. */
+    private static final long MIGRATION_LOCK_KEY = 0x73756473L;
+    /** Name of the index that orders usernames byte by byte, for paging through users and searching by prefix. */
+    private static final String USERNAME_INDEX = "users_u_username_c";
+    /** Name of the index on emails, for finding users by email. */
+    private static final String EMAIL_INDEX = "users_u_email";
+    /** Name of the constraint that every user has a hashed password, added when the passwords table is dropped. */
+    private static final String CREDENTIALS_CONSTRAINT = "users_credentials_not_null";
+
+    /** SQL statement to create the table of applied migrations. */
+    private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, description TEXT NOT NULL, applied_at TIMESTAMPTZ NOT NULL DEFAULT now());";
+    /** SQL statement to retrieve the version of the newest applied migration. */
+    private static final String GET_VERSION = "SELECT COALESCE(max(version), 0) FROM schema_version";
+    /** SQL statement to record an applied migration. */
+    private static final String RECORD_VERSION = "INSERT INTO schema_version (version, description) VALUES (?, ?)";
+    /** SQL statement to wait for the migration lock. */
+    private static final String LOCK = "SELECT pg_advisory_lock(?)";
+    /** SQL statement to release the migration lock. */
+    private static final String UNLOCK = "SELECT pg_advisory_unlock(?)";
+    /** SQL statement to check whether an index exists but is unusable, because building it concurrently failed. */
+    private static final String INDEX_INVALID = "SELECT NOT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?)";
+
+    /** SQL statement to create the 'users' table in the database. */
+    private static final String CREATE_USERS_TABLE = "CREATE TABLE users (u_id SERIAL PRIMARY KEY, u_email TEXT, u_username TEXT NOT NULL UNIQUE, u_screenname TEXT NOT NULL, u_salt BYTEA NOT NULL, u_hashed BYTEA NOT NULL, u_scheme TEXT NOT NULL DEFAULT '" + Sha3PasswordHasher.ID + "');";
+    /** SQL statement to index usernames byte by byte, so pages of usernames are read in index order. */
+    private static final String CREATE_USERNAME_INDEX = "CREATE INDEX " + USERNAME_INDEX + " ON users (u_username COLLATE \"C\");";
+    /** SQL statement to index emails, so users can be found by email. */
+    private static final String CREATE_EMAIL_INDEX = "CREATE INDEX " + EMAIL_INDEX + " ON users (u_email);";
+
+    /**
+     * SQL statement to add a bytea column alongside a hex text column, left empty until the hex column is decoded into
+     * it. This and the other statements converting a column are formatted with the table, its id column, and the hex
+     * column.
+     */
+    private static final String ADD_BYTES_COLUMN = "ALTER TABLE %1$s ADD COLUMN IF NOT EXISTS %3$s_bytes BYTEA;";
+    /** SQL statement to create the function that decodes the hex column of a written row into its bytea column. */
+    private static final String CREATE_DECODE_FUNCTION = "CREATE OR REPLACE FUNCTION suds_decode_%3$s() RETURNS trigger AS $$ BEGIN NEW.%3$s_bytes := decode(NEW.%3$s, 'hex'); RETURN NEW; END; $$ LANGUAGE plpgsql;";
+    /** SQL statement to drop the trigger decoding written rows, before recreating it or swapping the columns. */
+    private static final String DROP_DECODE_TRIGGER = "DROP TRIGGER IF EXISTS %1$s_decode_%3$s ON %1$s;";
+    /** SQL statement to decode the hex column of every row written to the table. */
+    private static final String CREATE_DECODE_TRIGGER = "CREATE TRIGGER %1$s_decode_%3$s BEFORE INSERT OR UPDATE ON %1$s FOR EACH ROW EXECUTE PROCEDURE suds_decode_%3$s();";
+    /** SQL statement to retrieve the highest id in the table, bounding the batches of decoded rows. */
+    private static final String GET_MAX_ID = "SELECT COALESCE(max(%2$s), 0) FROM %1$s";
+    /** SQL statement to decode the rows in a range of ids that haven't been decoded yet. */
+    private static final String DECODE_BATCH = "UPDATE %1$s SET %3$s_bytes = decode(%3$s, 'hex') WHERE %3$s_bytes IS NULL AND %2$s > (?) AND %2$s <= (?)";
+    /** SQL statement to stop rows from being written while the last of them are decoded, without blocking reads. */
+    private static final String LOCK_TABLE = "LOCK TABLE %1$s IN SHARE ROW EXCLUSIVE MODE;";
+    /** SQL statement to decode every row that hasn't been decoded yet. */
+    private static final String DECODE_REMAINING = "UPDATE %1$s SET %3$s_bytes = decode(%3$s, 'hex') WHERE %3$s_bytes IS NULL;";
+    /** SQL statement to drop the hex column. */
+    private static final String DROP_HEX_COLUMN = "ALTER TABLE %1$s DROP COLUMN %3$s;";
+    /** SQL statement to give the bytea column the hex column's name. */
+    private static final String RENAME_BYTES_COLUMN = "ALTER TABLE %1$s RENAME COLUMN %3$s_bytes TO %3$s;";
+    /** SQL statement to require the bytea column, as the hex column was, without checking the existing rows yet. */
+    private static final String ADD_BYTES_CONSTRAINT = "ALTER TABLE %1$s ADD CONSTRAINT %1$s_%3$s_not_null CHECK (%3$s IS NOT NULL) NOT VALID;";
+    /** SQL statement to check the existing rows against the bytea column's constraint without blocking writes. */
+    private static final String VALIDATE_BYTES_CONSTRAINT = "ALTER TABLE %1$s VALIDATE CONSTRAINT %1$s_%3$s_not_null;";
+    /** SQL statement to drop the function that decoded written rows. */
+    private static final String DROP_DECODE_FUNCTION = "DROP FUNCTION IF EXISTS suds_decode_%3$s();";
+
+    /** Name of the constraint that every password records its hasher. */
+    private static final String SCHEME_CONSTRAINT = "passwords_p_scheme_not_null";
+    /** SQL statement to add the column recording which hasher each password was hashed with, left empty for now. */
+    private static final String ADD_SCHEME_COLUMN = "ALTER TABLE passwords ADD COLUMN IF NOT EXISTS p_scheme TEXT;";
+    /** SQL statement to record the legacy hasher for every password written from now on that doesn't name one. */
+    private static final String DEFAULT_PASSWORDS_SCHEME = "ALTER TABLE passwords ALTER COLUMN p_scheme SET DEFAULT '" + Sha3PasswordHasher.ID + "';";
+    /** SQL statement to record the legacy hasher for the passwords in a range of user ids that don't record one yet. */
+    private static final String FILL_SCHEME_BATCH = "UPDATE passwords SET p_scheme = '" + Sha3PasswordHasher.ID + "' WHERE p_scheme IS NULL AND p_uid > (?) AND p_uid <= (?)";
+    /** SQL statement to require every password to record its hasher, without checking the existing rows yet. */
+    private static final String ADD_SCHEME_CONSTRAINT = "ALTER TABLE passwords DROP CONSTRAINT IF EXISTS " + SCHEME_CONSTRAINT + ", ADD CONSTRAINT " + SCHEME_CONSTRAINT + " CHECK (p_scheme IS NOT NULL) NOT VALID;";
+    /** SQL statement to check the existing passwords against the scheme constraint without blocking writes. */
+    private static final String VALIDATE_SCHEME_CONSTRAINT = "ALTER TABLE passwords VALIDATE CONSTRAINT " + SCHEME_CONSTRAINT + ";";
+
+    /** SQL statement to add the credential columns to the users table, left empty until they are copied. */
+    private static final String ADD_CREDENTIAL_COLUMNS = "ALTER TABLE users ADD COLUMN IF NOT EXISTS u_hashed BYTEA, ADD COLUMN IF NOT EXISTS u_scheme TEXT;";
+    /** SQL statement to create the function that copies a changed password into its user's row. */
+    private static final String CREATE_COPY_FUNCTION = "CREATE OR REPLACE FUNCTION suds_copy_credentials() RETURNS trigger AS $$ BEGIN UPDATE users SET u_hashed = NEW.p_hashed, u_scheme = NEW.p_scheme WHERE u_id = NEW.p_uid; RETURN NULL; END; $$ LANGUAGE plpgsql;";
+    /** SQL statement to drop the trigger copying changed passwords, before it is recreated. */
+    private static final String DROP_COPY_TRIGGER = "DROP TRIGGER IF EXISTS passwords_copy_credentials ON passwords;";
+    /** SQL statement to copy every password written to the passwords table into its user's row. */
+    private static final String CREATE_COPY_TRIGGER = "CREATE TRIGGER passwords_copy_credentials AFTER INSERT OR UPDATE ON passwords FOR EACH ROW EXECUTE PROCEDURE suds_copy_credentials();";
+    /** SQL statement to copy the passwords of the users in a range of ids that don't have one in their row yet. */
+    private static final String COPY_CREDENTIALS_BATCH = "UPDATE users SET u_hashed = p_hashed, u_scheme = p_scheme FROM passwords WHERE p_uid = u_id AND u_hashed IS NULL AND u_id > (?) AND u_id <= (?)";
+    /** SQL statement to stop passwords from being written while the last of them are copied. */
+    private static final String LOCK_PASSWORDS = "LOCK TABLE passwords IN SHARE ROW EXCLUSIVE MODE;";
+    /** SQL statement to copy every password that hasn't been copied yet. */
+    private static final String COPY_REMAINING_CREDENTIALS = "UPDATE users SET u_hashed = p_hashed, u_scheme = p_scheme FROM passwords WHERE p_uid = u_id AND u_hashed IS NULL;";
+    /** SQL statement to give users without a password an empty hash, which no password verifies against. */
+    private static final String FILL_MISSING_CREDENTIALS = "UPDATE users SET u_hashed = ''::bytea, u_scheme = '" + Sha3PasswordHasher.ID + "' WHERE u_hashed IS NULL;";
+    /** SQL statement to default the scheme of new users' passwords to the legacy hasher, as the passwords table did. */
+    private static final String DEFAULT_SCHEME = "ALTER TABLE users ALTER COLUMN u_scheme SET DEFAULT '" + Sha3PasswordHasher.ID + "';";
+    /** SQL statement to require every user to have a hashed password, without checking the existing rows yet. */
+    private static final String ADD_CREDENTIALS_CONSTRAINT = "ALTER TABLE users ADD CONSTRAINT " + CREDENTIALS_CONSTRAINT + " CHECK (u_hashed IS NOT NULL AND u_scheme IS NOT NULL) NOT VALID;";
+    /** SQL statement to check the existing rows against the credentials constraint without blocking writes. */
+    private static final String VALIDATE_CREDENTIALS_CONSTRAINT = "ALTER TABLE users VALIDATE CONSTRAINT " + CREDENTIALS_CONSTRAINT + ";";
+    /** SQL statement to drop the passwords table along with its trigger. */
+    private static final String DROP_PASSWORDS_TABLE = "DROP TABLE passwords;";
+    /** SQL statement to drop the function that copied changed passwords. */
+    private static final String DROP_COPY_FUNCTION = "DROP FUNCTION IF EXISTS suds_copy_credentials();";
+
+    /** Migrations from the first schema to the current one, in order. */
+    private static final List<Step> STEPS = Arrays.asList(
+            new Step(2, "Store salts and hashed passwords as bytea", PostgresSchema::migrateToBinaryCredentials),
+            new Step(3, "Record the hasher of each password", PostgresSchema::addSchemeColumn),
+            new Step(4, "Index usernames byte by byte and emails", PostgresSchema::createIndexes),
+            new Step(5, "Move hashed passwords into the users table", PostgresSchema::moveCredentials));
+
+    /**
+     * Not instantiable.
+     */
+    private PostgresSchema() {
+    }
+
+    /**
+     * Creates the schema if the database is empty, or applies every migration newer than the database's version.
+     * @param connections opens the connection to migrate with.
+     * @param batchSize the number of users whose rows are rewritten per transaction by migrations that rewrite rows.
+     * @throws SQLException if the schema could not be created or migrated.
+     */
+    static void migrate(ConnectionPool.ConnectionFactory connections, int batchSize) throws SQLException {
+        try (Connection connection = connections.create()) {
+            boolean originalAutoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(true);
+            try (PreparedStatement statement = connection.prepareStatement(LOCK)) {
+                statement.setLong(1, MIGRATION_LOCK_KEY);
+                statement.executeQuery().close();
+            }
+            try {
+                int version = currentVersion(connection);
+                if (version == 0) {
+                    createSchema(connection);
+                    return;
+                }
+                for (Step step : STEPS) {
+                    if (step._version > version) {
+                        LOGGER.log(Level.INFO, "Migrating database schema to version {0}: {1}.",
+                                new Object[] {step._version, step._description});
+                        apply(connection, step, batchSize);
+                    }
+                }
+            } finally {
+                connection.setAutoCommit(true);
+                try (PreparedStatement statement = connection.prepareStatement(UNLOCK)) {
+                    statement.setLong(1, MIGRATION_LOCK_KEY);
+                    statement.executeQuery().close();
+                }
+                connection.setAutoCommit(originalAutoCommit);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the version of the database's schema, recording it in a new schema_version table if the database was
+     * created before versions were recorded.
+     * @param connection the connection to the database, in auto commit mode.
+     * @return the database's version, or zero if it has no users table.
+     * @throws SQLException if the version could not be read.
+     */
+    private static int currentVersion(Connection connection) throws SQLException {
+        if (tableExists(connection, "schema_version")) {
+            try (PreparedStatement statement = connection.prepareStatement(GET_VERSION);
+                 ResultSet result = statement.executeQuery()) {
+                result.next();
+                return result.getInt(1);
+            }
+        }
+        if (!tableExists(connection, "users")) {
+            return 0;
+        }
+        // infer the version of a database created before versions were recorded from its columns
+        int version;
+        if (columnType(connection, "users", "u_hashed") != null) {
+            // interrupted while moving passwords, which is safe to repeat
+            version = 4;
+        } else if (!"bytea".equals(columnType(connection, "users", "u_salt"))) {
+            version = 1;
+        } else if (columnType(connection, "passwords", "p_scheme") == null) {
+            version = 2;
+        } else {
+            // creating the indexes is safe to repeat
+            version = 3;
+        }
+        execute(connection, CREATE_VERSION_TABLE);
+        recordVersion(connection, version, "Schema before versions were recorded");
+        return version;
+    }
+
+    /**
+     * Creates the current schema in an empty database, in a single transaction.
+     * @param connection the connection to the database, in auto commit mode.
+     * @throws SQLException if the schema could not be created.
+     */
+    private static void createSchema(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            execute(connection, CREATE_VERSION_TABLE);
+            execute(connection, CREATE_USERS_TABLE);
+            execute(connection, CREATE_USERNAME_INDEX);
+            execute(connection, CREATE_EMAIL_INDEX);
+            recordVersion(connection, VERSION, "Create schema");
+            connection.commit();
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Error creating database tables: ", e);
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Applies a migration and records it. Migrations manage their own transactions and must be safe to repeat if
+     * interrupted.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param step the migration to apply.
+     * @param batchSize the number of rows rewritten per transaction by migrations that rewrite rows.
+     * @throws SQLException if the migration failed.
+     */
+    private static void apply(Connection connection, Step step, int batchSize) throws SQLException {
+        step._migration.apply(connection, batchSize);
+        recordVersion(connection, step._version, step._description);
+    }
+
+    /**
+     * Converts the salts and hashed passwords of a database created before they were stored as bytes from hex text to
+     * bytea columns. Safe to repeat if interrupted.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param batchSize the number of ids whose rows are decoded per transaction.
+     * @throws SQLException if a conversion failed.
+     */
+    private static void migrateToBinaryCredentials(Connection connection, int batchSize) throws SQLException {
+        convertHexColumn(connection, batchSize, "users", "u_id", "u_salt");
+        convertHexColumn(connection, batchSize, "passwords", "p_uid", "p_hashed");
+    }
+
+    /**
+     * Adds the column recording which hasher each password was hashed with to a database created before it existed.
+     * Every existing password was hashed with the legacy hasher, which is the column's default. The column is added
+     * empty and filled in batches, since adding it with a default rewrites the table before PostgreSQL 11. Safe to
+     * repeat if interrupted.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param batchSize the number of user ids whose passwords are filled per transaction.
+     * @throws SQLException if the column could not be added.
+     */
+    private static void addSchemeColumn(Connection connection, int batchSize) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            execute(connection, ADD_SCHEME_COLUMN);
+            execute(connection, DEFAULT_PASSWORDS_SCHEME);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        // passwords written from now on get the default, so only the existing ones are filled
+        long maxId = maxId(connection, "passwords", "p_uid");
+        try (PreparedStatement statement = connection.prepareStatement(FILL_SCHEME_BATCH)) {
+            for (long start = 0; start < maxId; start += batchSize) {
+                statement.setLong(1, start);
+                statement.setLong(2, Math.min(start + batchSize, maxId));
+                statement.executeUpdate();
+            }
+        }
+        execute(connection, ADD_SCHEME_CONSTRAINT);
+        // scans the passwords table without blocking reads or writes
+        execute(connection, VALIDATE_SCHEME_CONSTRAINT);
+    }
+
+    /**
+     * Creates the username and email indexes without blocking writes to the users table.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param batchSize unused.
+     * @throws SQLException if an index could not be created.
+     */
+    private static void createIndexes(Connection connection, int batchSize) throws SQLException {
+        createIndexConcurrently(connection, USERNAME_INDEX, CREATE_USERNAME_INDEX);
+        createIndexConcurrently(connection, EMAIL_INDEX, CREATE_EMAIL_INDEX);
+    }
+
+    /**
+     * Moves every hashed password from the passwords table into its user's row, then drops the passwords table. Safe
+     * to repeat if interrupted.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param batchSize the number of user ids whose rows are copied per transaction.
+     * @throws SQLException if the passwords could not be moved.
+     */
+    private static void moveCredentials(Connection connection, int batchSize) throws SQLException {
+        if (tableExists(connection, "passwords")) {
+            // copy every password written from now on, by directories not yet upgraded
+            connection.setAutoCommit(false);
+            try {
+                execute(connection, ADD_CREDENTIAL_COLUMNS);
+                execute(connection, CREATE_COPY_FUNCTION);
+                execute(connection, DROP_COPY_TRIGGER);
+                execute(connection, CREATE_COPY_TRIGGER);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            // copy the existing passwords in short transactions, so writers are never blocked for long
+            long maxId = maxId(connection, "users", "u_id");
+            try (PreparedStatement statement = connection.prepareStatement(COPY_CREDENTIALS_BATCH)) {
+                for (long start = 0; start < maxId; start += batchSize) {
+                    statement.setLong(1, start);
+                    statement.setLong(2, Math.min(start + batchSize, maxId));
+                    statement.executeUpdate();
+                }
+            }
+            // copy anything the batches missed and drop the passwords table while no passwords can be written
+            connection.setAutoCommit(false);
+            try {
+                execute(connection, LOCK_PASSWORDS);
+                execute(connection, COPY_REMAINING_CREDENTIALS);
+                execute(connection, FILL_MISSING_CREDENTIALS);
+                execute(connection, DEFAULT_SCHEME);
+                execute(connection, ADD_CREDENTIALS_CONSTRAINT);
+                execute(connection, DROP_PASSWORDS_TABLE);
+                execute(connection, DROP_COPY_FUNCTION);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        // scans the users table without blocking reads or writes
+        execute(connection, VALIDATE_CREDENTIALS_CONSTRAINT);
+    }
+
+    /**
+     * Converts a column of hex text to a bytea column of the same name without blocking writes to its table, except
+     * while the last rows are decoded and the columns are swapped. Safe to repeat if interrupted.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param batchSize the number of ids whose rows are decoded per transaction.
+     * @param table the name of the column's table.
+     * @param idColumn the name of the table's integer id column, for decoding rows in batches.
+     * @param column the name of the column to convert.
+     * @throws SQLException if the column could not be converted.
+     */
+    private static void convertHexColumn(Connection connection, int batchSize, String table, String idColumn,
+                                         String column) throws SQLException {
+        boolean converted = "bytea".equals(columnType(connection, table, column))
+                && columnType(connection, table, column + "_bytes") == null;
+        if (!converted) {
+            // decode every row written from now on, by directories not yet upgraded
+            connection.setAutoCommit(false);
+            try {
+                execute(connection, String.format(ADD_BYTES_COLUMN, table, idColumn, column));
+                execute(connection, String.format(CREATE_DECODE_FUNCTION, table, idColumn, column));
+                execute(connection, String.format(DROP_DECODE_TRIGGER, table, idColumn, column));
+                execute(connection, String.format(CREATE_DECODE_TRIGGER, table, idColumn, column));
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            // decode the existing rows in short transactions, so writers are never blocked for long
+            long maxId = maxId(connection, table, idColumn);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    String.format(DECODE_BATCH, table, idColumn, column))) {
+                for (long start = 0; start < maxId; start += batchSize) {
+                    statement.setLong(1, start);
+                    statement.setLong(2, Math.min(start + batchSize, maxId));
+                    statement.executeUpdate();
+                }
+            }
+            // decode anything the batches missed and swap the columns while no rows can be written
+            connection.setAutoCommit(false);
+            try {
+                execute(connection, String.format(LOCK_TABLE, table, idColumn, column));
+                execute(connection, String.format(DECODE_REMAINING, table, idColumn, column));
+                execute(connection, String.format(DROP_DECODE_TRIGGER, table, idColumn, column));
+                execute(connection, String.format(DROP_HEX_COLUMN, table, idColumn, column));
+                execute(connection, String.format(RENAME_BYTES_COLUMN, table, idColumn, column));
+                execute(connection, String.format(ADD_BYTES_CONSTRAINT, table, idColumn, column));
+                execute(connection, String.format(DROP_DECODE_FUNCTION, table, idColumn, column));
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        // scans the table without blocking reads or writes
+        execute(connection, String.format(VALIDATE_BYTES_CONSTRAINT, table, idColumn, column));
+    }
+
+    /**
+     * Retrieves the highest id in a table, bounding the batches of rows rewritten by a migration.
+     * @param connection the connection to the database.
+     * @param table the name of the table.
+     * @param idColumn the name of the table's integer id column.
+     * @return the highest id, or zero if the table is empty.
+     * @throws SQLException if the id could not be read.
+     */
+    private static long maxId(Connection connection, String table, String idColumn) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(String.format(GET_MAX_ID, table, idColumn));
+             ResultSet result = statement.executeQuery()) {
+            result.next();
+            return result.getLong(1);
+        }
+    }
+
+    /**
+     * Creates an index without blocking writes to its table, replacing it if an earlier attempt left it unusable.
+     * @param connection the connection to the database, in auto commit mode.
+     * @param name the name of the index.
+     * @param create the SQL statement creating the index.
+     * @throws SQLException if the index could not be created.
+     */
+    private static void createIndexConcurrently(Connection connection, String name, String create) throws SQLException {
+        Boolean invalid = null;
+        try (PreparedStatement statement = connection.prepareStatement(INDEX_INVALID)) {
+            statement.setString(1, name);
+            try (ResultSet result = statement.executeQuery()) {
+                if (result.next()) {
+                    invalid = result.getBoolean(1);
+                }
+            }
+        }
+        if (Boolean.FALSE.equals(invalid)) {
+            return;
+        }
+        if (Boolean.TRUE.equals(invalid)) {
+            execute(connection, "DROP INDEX CONCURRENTLY " + name + ";");
+        }
+        execute(connection, create.replaceFirst("CREATE INDEX", "CREATE INDEX CONCURRENTLY"));
+    }
+
+    /**
+     * Records an applied migration.
+     * @param connection the connection to the database.
+     * @param version the version the migration upgraded the database to.
+     * @param description what the migration changed.
+     * @throws SQLException if the migration could not be recorded.
+     */
+    private static void recordVersion(Connection connection, int version, String description) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(RECORD_VERSION)) {
+            statement.setInt(1, version);
+            statement.setString(2, description);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Checks if a table with the specified name exists in the database.
+     * @param connection the connection to the database.
+     * @param tableName the name of the table to check for.
+     * @return true if the table exists, false otherwise.
+     * @throws SQLException if the database's metadata could not be read.
+     */
+    private static boolean tableExists(Connection connection, String tableName) throws SQLException {
+        try (ResultSet result = connection.getMetaData().getTables(null, null, tableName, null)) {
+            return result.next();
+        }
+    }
+
+    /**
+     * Retrieves the type of a column in the database.
+     * @param connection the connection to the database.
+     * @param tableName the name of the column's table.
+     * @param columnName the name of the column.
+     * @return the name of the column's type, or null if the column does not exist.
+     * @throws SQLException if the database's metadata could not be read.
+     */
+    private static String columnType(Connection connection, String tableName, String columnName) throws SQLException {
+        try (ResultSet result = connection.getMetaData().getColumns(null, null, tableName, columnName)) {
+            return result.next() ? result.getString("TYPE_NAME") : null;
+        }
+    }
+
+    /**
+     * Executes a single SQL statement that takes no parameters, such as a schema change.
+     * @param connection the connection to execute the statement with.
+     * @param sql the SQL statement to execute.
+     * @throws SQLException if the statement failed.
+     */
+    private static void execute(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * Change to the schema of a database.
+     */
+    private interface Migration {
+        /**
+         * Applies the change.
+         * @param connection the connection to the database.
+         * @param batchSize the number of rows rewritten per transaction, for changes that rewrite rows.
+         * @throws SQLException if the change failed.
+         */
+        void apply(Connection connection, int batchSize) throws SQLException;
+    }
+
+    /**
+     * Migration to a version of the schema.
+     */
+    private static final class Step {
+        /** Version the migration upgrades the database to. */
+        private final int _version;
+        /** What the migration changes. */
+        private final String _description;
+        /** The change to apply. */
+        private final Migration _migration;
+
+        /**
+         * Creates a new Step.
+         * @param version the version the migration upgrades the database to.
+         * @param description what the migration changes.
+         * @param migration the change to apply.
+         */
+        private Step(int version, String description, Migration migration) {
+            _version = version;
+            _description = description;
+            _migration = migration;
+        }
+    }
+}
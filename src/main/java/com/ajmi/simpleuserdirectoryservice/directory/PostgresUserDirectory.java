@@ -1,21 +1,53 @@
 package com.ajmi.simpleuserdirectoryservice.directory;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHashers;
 import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
 import com.ajmi.simpleuserdirectoryservice.data.UserData;
 import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
-import javafx.util.Pair;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+import com.ajmi.simpleuserdirectoryservice.util.LatencyHistogram;
+import com.ajmi.simpleuserdirectoryservice.util.SingleFlight;
 
 /**
- * User Directory using a PostgreSQL Database.
+ * User Directory using a PostgreSQL Database. Each user's salt and hashed password are kept in the user's row, so
+ * authenticating reads a single row. Databases created by older versions are migrated to the current schema when the
+ * directory is created; see PostgresSchema.
+ *
+ * Concurrent calls of hasUser(), getUserData(), or authenticateUserDetailed() for the same username share one query
+ * instead of each making their own, so a burst of requests for one popular user costs one round trip. Every write made
+ * through the directory stops later calls from sharing a query made before it. This can be turned off with
+ * Builder.coalesceLookups().
  */
-public class PostgresUserDirectory implements UserDirectory {
+public class PostgresUserDirectory implements UserDirectory, AutoCloseable {
 
     /*
     Register JDBC drivers for PostgreSQL.
@@ -30,39 +62,67 @@ public class PostgresUserDirectory implements UserDirectory {
 
     private static final Logger LOGGER = Logger.getLogger(PostgresUserDirectory.class.getName());
 
+    /** Message used for exceptions caused by an email that is already taken. */
+    private static final String DUPLICATE_EMAIL_MSG = "Another user already has the entered email.";
     /** String logged when SQL execution fails. */
     private static final String SQL_EXEC_FAILURE_MSG = "Error executing SQL statement: ";
     /** String logged when SQL connection fails. */
     private static final String CONNECTION_FAILURE_MSG = "Failed to connect to Postgres database: ";
+    /** SQL state Postgres reports when a unique constraint is violated. */
+    private static final String UNIQUE_VIOLATION = "23505";
+    /** Number of users inserted per transaction by addUsers(). */
+    private static final int BATCH_SIZE = 1000;
+    /** Number of users whose rows are rewritten per transaction when migrating the schema, unless built otherwise. */
+    private static final int DEFAULT_MIGRATION_BATCH_SIZE = 10_000;
+    /** Number of usernames streamUsers() fetches from its cursor per round trip. */
+    private static final int STREAM_FETCH_SIZE = 1000;
 
     /** SQL statement for adding a new user to the users table in the database. */
-    private static final String INSERT_USERS = "INSERT INTO users (u_email, u_username, u_screenname, u_salt) VALUES (?, ?, ?, ?)";
-    /** SQL statement for adding a new user to the passwords table in the database. */
-    private static final String INSERT_PASSWORDS = "INSERT INTO passwords (p_uid, p_hashed) VALUES (?, ?)";
+    private static final String INSERT_USERS = "INSERT INTO users (u_email, u_username, u_screenname, u_salt, u_hashed, u_scheme) VALUES (?, ?, ?, ?, ?, ?)";
+    /** SQL statement for adding a new user to the users table, unless another user has the same email. */
+    private static final String INSERT_USER_UNIQUE_EMAIL = "INSERT INTO users (u_email, u_username, u_screenname, u_salt, u_hashed, u_scheme) SELECT ?, ?, ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM users WHERE u_email=(?))";
+    /** SQL statement for retrieving which of an array of usernames already exist in the database. */
+    private static final String GET_EXISTING_USERS = "SELECT u_username FROM users WHERE u_username = ANY(?)";
     /** SQL statement for removing a user from the database. */
     private static final String REMOVE_USERS= "DELETE FROM users WHERE u_username=(?)";
     /** SQL statement for retrieving the usernames of all users in the database. */
     private static final String GET_USERS = "SELECT u_username FROM users";
-    /** SQL statement for retrieving the password for a specific user in the database. */
-    private static final String GET_HASHED = "SELECT p_hashed FROM passwords WHERE p_uid=(?)";
+    /** SQL statement for retrieving the first page of usernames, in the order of the username index. */
+    private static final String GET_FIRST_USERS_PAGE = "SELECT u_username FROM users ORDER BY u_username COLLATE \"C\" LIMIT (?)";
+    /** SQL statement for retrieving the page of usernames after a username, in the order of the username index. */
+    private static final String GET_USERS_PAGE = "SELECT u_username FROM users WHERE u_username COLLATE \"C\" > (?) ORDER BY u_username COLLATE \"C\" LIMIT (?)";
+    /** SQL statement for retrieving the salt and hashed password for a specific user in the database. */
+    private static final String GET_CREDENTIALS = "SELECT u_id, u_salt, u_hashed, u_scheme FROM users WHERE u_username=(?)";
+    /** SQL query for getting the usernames, ids, salts, hashed passwords, and hasher ids of a batch of users. */
+    private static final String GET_CREDENTIALS_BATCH = "SELECT u_username, u_id, u_salt, u_hashed, u_scheme FROM users WHERE u_username = ANY(?)";
     /** SQL statement for retrieving the email and screen name for a specific user in the database. */
     private static final String GET_DATA = "SELECT u_email, u_screenname FROM users WHERE u_username=(?)";
+    /** SQL statement for retrieving the usernames, emails, and screen names of a batch of users. */
+    private static final String GET_DATA_BATCH = "SELECT u_username, u_email, u_screenname FROM users WHERE u_username = ANY(?)";
     /** SQL statement for changing a specific user's username. */
     private static final String UPDATE_USERNAME = "UPDATE users SET u_username=(?) WHERE u_username=(?)";
     /** SQL statement for changing a specific user's email. */
     private static final String UPDATE_EMAIL = "UPDATE users SET u_email=(?) WHERE u_username=(?)";
+    /** SQL statement for updating the email of a user, unless another user has the new email. */
+    private static final String UPDATE_EMAIL_UNIQUE = "UPDATE users SET u_email=(?) WHERE u_username=(?) AND NOT EXISTS (SELECT 1 FROM users WHERE u_email=(?) AND u_username<>(?))";
+    /** SQL statement for retrieving the data of every user with an email. */
+    private static final String FIND_BY_EMAIL = "SELECT u_username, u_email, u_screenname FROM users WHERE u_email=(?)";
+    /** SQL statement for checking whether any user has an email. */
+    private static final String EMAIL_EXISTS = "SELECT 1 FROM users WHERE u_email=(?) LIMIT 1";
+    /** SQL statement for retrieving which of a set of emails some user has. */
+    private static final String GET_EXISTING_EMAILS = "SELECT DISTINCT u_email FROM users WHERE u_email = ANY(?)";
+    /** SQL statement that locks an email until the end of the transaction, so two transactions can't both claim it. */
+    private static final String LOCK_EMAIL = "SELECT pg_advisory_xact_lock(hashtext(?))";
+    /** SQL statement that locks a set of emails until the end of the transaction, in a consistent order. */
+    private static final String LOCK_EMAILS = "SELECT count(pg_advisory_xact_lock(k)) FROM (SELECT DISTINCT hashtext(e) AS k FROM unnest(CAST(? AS text[])) AS e ORDER BY 1) AS keys";
     /** SQL statement for changing a specific user's screen name. */
     private static final String UPDATE_SCREENNAME = "UPDATE users SET u_screenname=(?) WHERE u_username=(?)";
-    /** SQL statement for changing a specific user's password. */
-    private static final String UPDATE_PASSWORD = "UPDATE passwords SET p_hashed=(?) WHERE p_uid=(?)";
-    /** SQL statement to create the 'users' table in the database. */
-    private static final String CREATE_USERS_TABLE = "CREATE TABLE users (u_id SERIAL PRIMARY KEY, u_email TEXT, u_username TEXT NOT NULL UNIQUE, u_screenname TEXT NOT NULL, u_salt TEXT NOT NULL);";
-    /** SQL statement to create the `passwords` table in the database. */
-    private static final String CREATE_PASSWORDS_TABLE = "CREATE TABLE passwords (p_uid INTEGER PRIMARY KEY, p_hashed CHAR(128) NOT NULL);";
-    /** SQL statement to add a cascading delete to the passwords table. */
-    private static final String PASSWORDS_ADD_CONSTRAINT = "ALTER TABLE passwords ADD CONSTRAINT passwords_p_uid_fkey FOREIGN KEY (p_uid) REFERENCES users (u_id) ON DELETE CASCADE;";
-    /** SQL statement to fetch the id anf salt of a specific user. */
-    private static final String GET_ID_AND_SALT = "SELECT u_id, u_salt FROM users WHERE u_username=(?)";
+    /** SQL statement for changing a specific user's salt and password. */
+    private static final String UPDATE_PASSWORD = "UPDATE users SET u_salt=(?), u_hashed=(?), u_scheme=(?) WHERE u_username=(?)";
+    /** SQL statement to rehash a password, unless it was changed since it was read. */
+    private static final String REHASH_PASSWORD = "UPDATE users SET u_hashed=(?), u_scheme=(?) WHERE u_id=(?) AND u_hashed=(?)";
+    /** SQL statement for retrieving the usernames that start with a prefix, in the order of the username index. */
+    private static final String FIND_USERS_BY_PREFIX = "SELECT u_username FROM users WHERE u_username COLLATE \"C\" LIKE (?) ORDER BY u_username COLLATE \"C\" LIMIT (?)";
 
     /** URL to the postgres database. */
     private final String _postgresURL;
@@ -70,9 +130,21 @@ public class PostgresUserDirectory implements UserDirectory {
     private final String _postgresUser;
     /** Password to log into the postgres database. */
     private final String _postgresPass;
+    /** Pool connections are borrowed from, or null if a new connection is opened for every call. */
+    private final ConnectionPool _pool;
 
     /** Policy used do tetermine the vadility of usernames, emails, screen names, and passwords. */
     private Policy _policy;
+    /** Hasher new passwords are hashed with, and old hashes are upgraded to on login. */
+    private volatile PasswordHasher _hasher;
+    /** Where time spent inside calls is recorded, or null if it is not being recorded. */
+    private volatile Timings _timings;
+    /** Shares hasUser() queries in flight for the same username, or null if lookups are not coalesced. */
+    private final SingleFlight<String, Boolean> _userChecks;
+    /** Shares getUserData() queries in flight for the same username, or null if lookups are not coalesced. */
+    private final SingleFlight<String, Optional<UserData>> _userDataLoads;
+    /** Shares credential queries in flight for the same username, or null if lookups are not coalesced. */
+    private final SingleFlight<String, Credentials> _credentialFetches;
 
     /**
      * Create a new PostgresUserDirectory with the credentials to log into the PostreSQL database.
@@ -82,9 +154,46 @@ public class PostgresUserDirectory implements UserDirectory {
      * @param pass the password needed to log into Postgres instance.
      */
     public PostgresUserDirectory(String host, String database, String user, String pass) throws ConnectionFailureException {
+        this(host, database, user, pass, null);
+    }
+
+    /**
+     * Create a new PostgresUserDirectory from the settings of a builder.
+     * @param builder the builder holding the connection and pool settings.
+     */
+    private PostgresUserDirectory(Builder builder) throws ConnectionFailureException {
+        this(builder._host, builder._database, builder._user, builder._pass, builder);
+    }
+
+    /**
+     * Create a new PostgresUserDirectory, pooling connections if pool settings are given.
+     * @param host the url to the Postgres instance.
+     * @param database the name of the Postgres database.
+     * @param user the username needed to log into the Postgres instance.
+     * @param pass the password needed to log into Postgres instance.
+     * @param poolSettings the builder holding the pool settings, or null to open a new connection for every call.
+     */
+    private PostgresUserDirectory(String host, String database, String user, String pass, Builder poolSettings) throws ConnectionFailureException {
         _postgresURL = String.format("jdbc:postgresql://%s/%s", host, database);
         _postgresUser = user;
         _postgresPass = pass;
+        if (poolSettings != null) {
+            _pool = new ConnectionPool(this::openConnection, poolSettings._minPoolSize, poolSettings._maxPoolSize,
+                    poolSettings._acquireTimeoutMillis, poolSettings._idleTimeoutMillis,
+                    poolSettings._validationIntervalMillis);
+        } else {
+            _pool = null;
+        }
+        _hasher = poolSettings != null ? poolSettings._hasher : PasswordHashers.legacy();
+        if (poolSettings == null || poolSettings._coalesceLookups) {
+            _userChecks = new SingleFlight<>();
+            _userDataLoads = new SingleFlight<>();
+            _credentialFetches = new SingleFlight<>();
+        } else {
+            _userChecks = null;
+            _userDataLoads = null;
+            _credentialFetches = null;
+        }
         _policy = new Policy() {
             @Override
             public boolean checkUsername(String username) {
@@ -106,9 +215,60 @@ public class PostgresUserDirectory implements UserDirectory {
                 return true;
             }
         };
-        // create tables if they don't already exist
-        if (!tableExists("users")) {
-            createTables();
+        // create the tables if they don't already exist, or upgrade them to the current schema
+        try {
+            PostgresSchema.migrate(this::connect,
+                    poolSettings != null ? poolSettings._migrationBatchSize : DEFAULT_MIGRATION_BATCH_SIZE);
+        } catch (SQLException | RuntimeException e) {
+            // the directory never escapes the constructor, so nobody else can close its pool
+            close();
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            LOGGER.log(Level.WARNING, "Error migrating database schema: ", e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+    }
+
+    /**
+     * Creates a builder for a PostgresUserDirectory that pools its connections.
+     * @param host the url to the Postgres instance.
+     * @param database the name of the Postgres database.
+     * @param user the username needed to log into the Postgres instance.
+     * @param pass the password needed to log into Postgres instance.
+     * @return a new Builder with the default pool settings.
+     */
+    public static Builder builder(String host, String database, String user, String pass) {
+        return new Builder(host, database, user, pass);
+    }
+
+    /**
+     * Retrieves the pool the directory borrows connections from, which reports how long callers wait for connections.
+     * @return an Optional containing the directory's pool, or empty if the directory does not pool connections.
+     */
+    public Optional<ConnectionPool> getConnectionPool() {
+        return Optional.ofNullable(_pool);
+    }
+
+    /**
+     * Starts recording how long calls spend acquiring connections, executing SQL, and hashing passwords. Timing adds a
+     * proxy around every connection and statement, so it is off until this is first called.
+     * @return the directory's timings.
+     */
+    public synchronized Timings recordTimings() {
+        if (_timings == null) {
+            _timings = new Timings();
+        }
+        return _timings;
+    }
+
+    /**
+     * Closes every pooled connection. Does nothing if the directory does not pool connections.
+     */
+    @Override
+    public void close() {
+        if (_pool != null) {
+            _pool.close();
         }
     }
 
@@ -129,13 +289,27 @@ public class PostgresUserDirectory implements UserDirectory {
 
     /**
      * Executes a SQL query to get the number of users in the database with the specified username, and returns true if
-     * that value is equal to one.
+     * that value is equal to one. Shares the query of a concurrent call for the same username, if lookups are
+     * coalesced.
      * @param username the user name of the user to check for.
      * @return true if the number of users in the database with the specified username is equal to one.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
     @Override
     public boolean hasUser(String username) throws ConnectionFailureException {
+        if (_userChecks == null) {
+            return loadHasUser(username);
+        }
+        return _userChecks.execute(username, () -> loadHasUser(username));
+    }
+
+    /**
+     * Executes a SQL query to get the number of users in the database with the specified username.
+     * @param username the user name of the user to check for.
+     * @return true if the number of users in the database with the specified username is equal to one.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    private boolean loadHasUser(String username) throws ConnectionFailureException {
         final String USER_EXISTS = "SELECT COUNT(1) FROM users WHERE u_username=(?)";
         // boolean to return
         boolean hasUser;
@@ -158,7 +332,44 @@ public class PostgresUserDirectory implements UserDirectory {
     }
 
     /**
-     * Executes a SQL update to insert a new user into the users and passwords tables.
+     * Executes one SQL query for every BATCH_SIZE distinct usernames, passing the usernames as an array, to find which
+     * of them exist. Every query is made on the same connection. Lookups of many users are not coalesced.
+     * @param usernames the user names of the users to check for.
+     * @return the user names that were found in the database.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public Set<String> hasUsers(Collection<String> usernames) throws ConnectionFailureException {
+        Set<String> found = new HashSet<>();
+        String[] distinct = new HashSet<>(usernames).toArray(new String[0]);
+        if (distinct.length == 0) {
+            return found;
+        }
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(GET_EXISTING_USERS)) {
+                for (int from = 0; from < distinct.length; from += BATCH_SIZE) {
+                    String[] batch = Arrays.copyOfRange(distinct, from, Math.min(from + BATCH_SIZE, distinct.length));
+                    statement.setArray(1, connection.createArrayOf("text", batch));
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) {
+                            found.add(result.getString(1));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+        return found;
+    }
+
+    /**
+     * Inserts a new user into the users table with a single statement, hashing the password before borrowing a
+     * connection. Whether the user already exists is decided by the username's unique constraint rather than a separate
+     * query, so concurrent registrations of the same username can't both succeed. If the policy requires unique emails,
+     * the email is locked and the insert skipped if another user has it, in one transaction.
      * @param username the user name of the new entry.
      * @param email the email of the new entry.
      * @param screeName the screen name of the new entry.
@@ -169,72 +380,130 @@ public class PostgresUserDirectory implements UserDirectory {
      */
     @Override
     public void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
-        // make sure the user doesn't already exist
-        if (hasUser(username)) {
-            throw new UserAlreadyExistsException("User \"" + username + "\" already exists in the database.");
-        }
         // make sure the username, email, screen name, or password pass the user directory's policy
-        if (!_policy.checkUsername(username)) {
-            throw new PolicyFailureException("Username policy failure.", PolicyFailure.ILLEGAL_USERNAME);
-        }
-        if (!_policy.checkEmail(email)) {
-            throw new PolicyFailureException("Email policy failure.", PolicyFailure.ILLEGAL_EMAIL);
-        }
-        if (!_policy.checkScreenName(screeName)) {
-            throw new PolicyFailureException("Screen name policy failure.", PolicyFailure.ILLEGAL_SCREEN_NAME);
-        }
-        if (!_policy.checkPassword(password)) {
-            throw new PolicyFailureException("Password policy failure.", PolicyFailure.ILLEGAL_PASSWORD);
-        }
+        checkPolicy(username, email, screeName, password);
+        // hash before borrowing a connection, since it is by far the slowest part of adding a user
+        PasswordHasher hasher = _hasher;
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        byte[] hashed = hash(hasher, password, salt);
 
         try (Connection connection = connect()) {
+            if (email == null || !_policy.requireUniqueEmails()) {
+                insertUser(connection, username, email, screeName, hasher.getId(), salt, hashed);
+                return;
+            }
             // remember the original auto commit so it can be restored at the end of the function
             boolean originalAutoCommit = connection.getAutoCommit();
-            // don't commit any table updates until all updates were successful
+            // hold the email's lock until the user is inserted
             connection.setAutoCommit(false);
             try {
-                // salt stored in users, used for encrypting password in passwords
-                String salt = PasswordCrypt.nextSalt();
-                // user id created when the user is added to the users table
-                int uID;
-                // insert into users table
-                try (PreparedStatement statement = connection.prepareStatement(INSERT_USERS, Statement.RETURN_GENERATED_KEYS)) {
+                try (PreparedStatement statement = connection.prepareStatement(LOCK_EMAIL)) {
+                    statement.setString(1, email);
+                    statement.executeQuery().close();
+                }
+                // the insert takes a new snapshot, so it sees every user committed by the lock's previous holders
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_USER_UNIQUE_EMAIL)) {
                     statement.setString(1, email);
                     statement.setString(2, username);
                     statement.setString(3, screeName);
-                    statement.setString(4, salt);
-                    if (statement.executeUpdate() == 0) {
-                        throw new SQLException(SQL_EXEC_FAILURE_MSG + statement.toString());
-                    }
-                    try (ResultSet keys = statement.getGeneratedKeys()) {
-                        if (!keys.next()) {
-                            throw new SQLException("Error getting keys from insert users statement.");
-                        }
-                        uID = keys.getInt(1);
-                    }
-                }
-                // insert into passwords table
-                try (PreparedStatement statement = connection.prepareStatement(INSERT_PASSWORDS)) {
-                    statement.setInt(1, uID);
-                    statement.setString(2, PasswordCrypt.hashPassword(password, salt));
+                    statement.setBytes(4, salt);
+                    statement.setBytes(5, hashed);
+                    statement.setString(6, hasher.getId());
+                    statement.setString(7, email);
                     if (statement.executeUpdate() == 0) {
-                        throw new SQLException(SQL_EXEC_FAILURE_MSG + statement.toString());
+                        connection.rollback();
+                        throw new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL);
                     }
                 }
-                // update tables
                 connection.commit();
             } catch (SQLException e) {
-                LOGGER.log(Level.WARNING, "Error adding user \""+username+"\": ", e);
-                // revert changes
                 connection.rollback();
+                throw e;
             } finally {
                 connection.setAutoCommit(originalAutoCommit);
             }
         } catch (SQLException e) {
-            // error connecting
-            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                throw new UserAlreadyExistsException("User \"" + username + "\" already exists in the database.", e);
+            }
+            LOGGER.log(Level.WARNING, "Error adding user \""+username+"\": ", e);
             throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        } finally {
+            forgetLookups(username);
+        }
+    }
+
+    /**
+     * Checks every registration against the directory's policy, hashes the passwords of the registrations that pass in
+     * parallel, then inserts them into the users table with batched statements, committing every
+     * BATCH_SIZE users. If a batch fails, its users are retried one transaction at a time so a single bad record does
+     * not fail the rest of the batch.
+     * @param users the registrations of the users to add.
+     * @return a map from the username of every registration that could not be added to the exception explaining why.
+     * @throws ConnectionFailureException if a connection to the database could not be made.
+     */
+    @Override
+    public Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException {
+        Map<String, UserDirectoryException> failures = new LinkedHashMap<>();
+        // registrations that passed the policy, indexed by username
+        Map<String, UserRegistration> accepted = new LinkedHashMap<>();
+        // usernames of every registration seen so far, accepted or not, so duplicates within the batch are caught
+        Set<String> seen = new HashSet<>();
+        boolean uniqueEmails = _policy.requireUniqueEmails();
+        // emails of the accepted registrations, so duplicate emails within the batch are caught
+        Set<String> acceptedEmails = new HashSet<>();
+        for (UserRegistration user : users) {
+            String username = user.getUsername();
+            if (!seen.add(username)) {
+                failures.putIfAbsent(username, new UserAlreadyExistsException("User \"" + username + "\" already exists in the database."));
+                continue;
+            }
+            try {
+                checkPolicy(username, user.getEmail(), user.getScreenName(), user.getPassword());
+                if (uniqueEmails && user.getEmail() != null && !acceptedEmails.add(user.getEmail())) {
+                    throw new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL);
+                }
+                accepted.put(username, user);
+            } catch (PolicyFailureException e) {
+                failures.put(username, e);
+            }
+        }
+
+        // hashing dominates the cost of adding a user, so spread it across cores before touching the database
+        PasswordHasher hasher = _hasher;
+        List<HashedRegistration> hashed = accepted.values().parallelStream()
+                .map(user -> new HashedRegistration(user, hasher))
+                .collect(Collectors.toList());
+
+        for (int from = 0; from < hashed.size(); from += BATCH_SIZE) {
+            List<HashedRegistration> batch = hashed.subList(from, Math.min(from + BATCH_SIZE, hashed.size()));
+            try (Connection connection = connect()) {
+                // remember the original auto commit so it can be restored at the end of the batch
+                boolean originalAutoCommit = connection.getAutoCommit();
+                // commit the whole batch at once
+                connection.setAutoCommit(false);
+                try {
+                    insertBatch(connection, batch, uniqueEmails, failures);
+                    connection.commit();
+                } catch (SQLException e) {
+                    LOGGER.log(Level.WARNING, "Error adding batch of users, retrying individually: ", e);
+                    // revert changes
+                    connection.rollback();
+                    insertIndividually(connection, batch, uniqueEmails, failures);
+                } finally {
+                    connection.setAutoCommit(originalAutoCommit);
+                }
+            } catch (SQLException e) {
+                // error connecting
+                LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+                throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+            } finally {
+                for (HashedRegistration user : batch) {
+                    forgetLookups(user._registration.getUsername());
+                }
+            }
         }
+        return failures;
     }
 
     /**
@@ -274,6 +543,8 @@ public class PostgresUserDirectory implements UserDirectory {
                 // error connecting
                 LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
                 throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+            } finally {
+                forgetLookups(username);
             }
         }
         return userRemoved;
@@ -307,6 +578,121 @@ public class PostgresUserDirectory implements UserDirectory {
         return usernamesArr;
     }
 
+    /**
+     * Executes a SQL query for the page of usernames after the given username. Usernames are compared byte by byte
+     * rather than by the database's collation, so the query is answered by walking the username index.
+     * @param afterUsername the username to start after, or null to start from the first user.
+     * @param limit the maximum number of usernames to retrieve.
+     * @return up to limit usernames greater than afterUsername, in ascending order.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public List<String> getUsers(String afterUsername, int limit) throws ConnectionFailureException {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit + ".");
+        }
+        List<String> usernames = new ArrayList<>(Math.min(limit, 1024));
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(afterUsername == null ? GET_FIRST_USERS_PAGE : GET_USERS_PAGE)) {
+                int parameter = 1;
+                if (afterUsername != null) {
+                    statement.setString(parameter++, afterUsername);
+                }
+                statement.setInt(parameter, limit);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        usernames.add(result.getString(1));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+        return usernames;
+    }
+
+    /**
+     * Executes a SQL query for the usernames that start with a prefix. The prefix is matched with LIKE under the same
+     * byte-by-byte collation as the username index, which Postgres answers with a range scan of the index.
+     * @param prefix the prefix to match, or an empty string to match every username.
+     * @param limit the maximum number of usernames to retrieve.
+     * @return up to limit of the lowest usernames starting with prefix, in ascending order.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public List<String> findUsersByPrefix(String prefix, int limit) throws ConnectionFailureException {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit + ".");
+        }
+        List<String> usernames = new ArrayList<>(Math.min(limit, 1024));
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(FIND_USERS_BY_PREFIX)) {
+                // match the prefix literally, escaping LIKE's wildcards with its default escape character
+                statement.setString(1, prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%");
+                statement.setInt(2, limit);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        usernames.add(result.getString(1));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+        return usernames;
+    }
+
+    /**
+     * Executes a SQL query for the data of every user with the email, answered by the email index.
+     * @param email the email to look up.
+     * @return the data of every user with the email, empty if there are none or the email is null.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public List<UserData> findByEmail(String email) throws ConnectionFailureException {
+        List<UserData> users = new ArrayList<>();
+        if (email == null) {
+            return users;
+        }
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(FIND_BY_EMAIL)) {
+                statement.setString(1, email);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        users.add(new UserData(result.getString(1), result.getString(2), result.getString(3)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+        return users;
+    }
+
+    /**
+     * Opens a server-side cursor over the usernames of every user, fetching STREAM_FETCH_SIZE of them per round trip.
+     * The stream holds a connection, inside a read-only transaction, until it is closed.
+     * @return a stream of every user's username.
+     * @throws ConnectionFailureException if a SQLException occurs while opening the cursor.
+     */
+    @Override
+    public Stream<String> streamUsers() throws ConnectionFailureException {
+        UsernameCursor cursor;
+        try {
+            cursor = new UsernameCursor(connect());
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+        return StreamSupport.stream(cursor, false).onClose(cursor::close);
+    }
+
     /**
      * Returns a reference to the directory's Policy field.
      * @return a reference to the directory's Policy field.
@@ -325,6 +711,23 @@ public class PostgresUserDirectory implements UserDirectory {
         _policy = policy;
     }
 
+    /**
+     * Retrieves the hasher new passwords are hashed with.
+     * @return the directory's password hasher.
+     */
+    public PasswordHasher getPasswordHasher() {
+        return _hasher;
+    }
+
+    /**
+     * Sets the hasher new passwords are hashed with. Passwords hashed with another hasher are still verified with it,
+     * and are rehashed with this one the next time their user authenticates.
+     * @param hasher the hasher to hash new passwords with.
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        _hasher = hasher;
+    }
+
     /**
      * Checks that the given password matches the hashed password in the database when hashed with the same salt.
      * @param username the username of user to authenticate.
@@ -338,7 +741,11 @@ public class PostgresUserDirectory implements UserDirectory {
     }
 
     /**
-     * Checks that the given password matches the hashed password in the database when hashed with the same salt.
+     * Fetches the salt, hashed password, and hasher id of the given user in a single query, and checks that the given
+     * password matches the hashed password when hashed with the same salt and hasher. The connection is returned before
+     * the password is hashed, and the query is shared with concurrent calls for the same username if lookups are
+     * coalesced. If the password matches but the hasher is not the directory's current one, the password is rehashed
+     * with the current hasher.
      * @param username of user to authenticate.
      * @param password used to authenticate the user.
      * @return INVALID_USERNAME if the user doesn't exist in the directory, INVALID_PASSWORD if the passwords don't
@@ -347,247 +754,1119 @@ public class PostgresUserDirectory implements UserDirectory {
      */
     @Override
     public Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException {
-        // to return
-        Authentication authentication;
-        // if the user doesn't exist then the authentication fails
-        if (hasUser(username)) {
+        Credentials credentials = _credentialFetches == null
+                ? fetchCredentials(username)
+                : _credentialFetches.execute(username, () -> fetchCredentials(username));
+        if (credentials == null) {
+            // if the user doesn't exist then the authentication fails
+            return Authentication.INVALID_USERNAME;
+        }
+        if (!verify(PasswordHashers.forId(credentials._scheme), password, credentials._salt, credentials._hashed)) {
+            return Authentication.INVALID_PASSWORD;
+        }
+        PasswordHasher hasher = _hasher;
+        if (!hasher.getId().equals(credentials._scheme)) {
             try (Connection connection = connect()) {
-                // hashed password found for the specified user in the database
-                String hashed;
-                // get user ID and salt
-                Pair<Integer, String> idAndSalt = fetchIDAndSalt(username);
-                // ID for the specified user in the database
-                int id = idAndSalt.getKey();
-                // salt used to hash the specified user's password
-                String salt = idAndSalt.getValue();
-                // get hashed password
-                try (PreparedStatement statement = connection.prepareStatement(GET_HASHED)) {
-                    statement.setInt(1, id);
-                    try (ResultSet result = statement.executeQuery()) {
-                        result.next();
-                        hashed = result.getString(1);
-                    }
-                }
-                if (PasswordCrypt.hashPassword(password, salt).equals(hashed)) {
-                    authentication = Authentication.VALID;
-                } else {
-                    authentication = Authentication.INVALID_PASSWORD;
-                }
+                rehashPassword(connection, credentials._id, password, credentials._salt, credentials._hashed, hasher);
             } catch (SQLException e) {
                 // error connecting
                 LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
                 throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
             }
-        } else {
-            authentication = Authentication.INVALID_USERNAME;
         }
-        return authentication;
+        return Authentication.VALID;
     }
 
     /**
-     * Executes a SQL query to retrieve the email and screen name of the specified user.
-     * @param username the username of the user to retrieve data on.
-     * @return a new UserData object from the result of the SQL query if the user exists, and null if the user does not
-     * exist in the directory.
+     * Fetches the salts, hashed passwords, and hasher ids of every user in the list with one query for every BATCH_SIZE
+     * distinct usernames, all on the same connection, returns the connection, then verifies the passwords in parallel
+     * on the common fork-join pool. Passwords that match but were hashed with a hasher other than the directory's
+     * current one are rehashed with the current hasher, reusing one connection for all of them.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return the result of authenticating each pair, in the order of the given list.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
     @Override
-    public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
-        // to return
-        Optional<UserData> data;
-        if (hasUser(username)) {
-            try (Connection connection = connect()) {
-                try (PreparedStatement statement = connection.prepareStatement(GET_DATA)) {
-                    statement.setString(1, username);
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException {
+        int count = credentials.size();
+        if (count == 0) {
+            return new ArrayList<>();
+        }
+        Map<String, Credentials> stored = new HashMap<>();
+        Set<String> usernames = new HashSet<>();
+        for (UserCredentials user : credentials) {
+            usernames.add(user.getUsername());
+        }
+        String[] distinct = usernames.toArray(new String[0]);
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(GET_CREDENTIALS_BATCH)) {
+                for (int from = 0; from < distinct.length; from += BATCH_SIZE) {
+                    String[] batch = Arrays.copyOfRange(distinct, from, Math.min(from + BATCH_SIZE, distinct.length));
+                    statement.setArray(1, connection.createArrayOf("text", batch));
                     try (ResultSet result = statement.executeQuery()) {
-                        result.next();
-                        data = Optional.of(new UserData(username, result.getString(1), result.getString(2)));
+                        while (result.next()) {
+                            stored.put(result.getString(1), new Credentials(result.getInt(2), result.getBytes(3),
+                                    result.getBytes(4), result.getString(5)));
+                        }
                     }
                 }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+
+        // verifying dominates the cost of authenticating, so spread it across cores
+        Authentication[] results = new Authentication[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            Credentials user = stored.get(credentials.get(i).getUsername());
+            if (user == null) {
+                results[i] = Authentication.INVALID_USERNAME;
+            } else if (verify(PasswordHashers.forId(user._scheme), credentials.get(i).getPassword(), user._salt,
+                    user._hashed)) {
+                results[i] = Authentication.VALID;
+            } else {
+                results[i] = Authentication.INVALID_PASSWORD;
+            }
+        });
+
+        PasswordHasher hasher = _hasher;
+        List<Integer> stale = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (results[i] == Authentication.VALID
+                    && !hasher.getId().equals(stored.get(credentials.get(i).getUsername())._scheme)) {
+                stale.add(i);
+            }
+        }
+        if (!stale.isEmpty()) {
+            try (Connection connection = connect()) {
+                for (int i : stale) {
+                    Credentials user = stored.get(credentials.get(i).getUsername());
+                    rehashPassword(connection, user._id, credentials.get(i).getPassword(), user._salt, user._hashed,
+                            hasher);
+                }
             } catch (SQLException e) {
                 // error connecting
                 LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
                 throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
             }
-        } else {
-            data = Optional.empty();
         }
-        return data;
-    }
-
-    /**
-     * Updates the specified user in the database with a new username.
-     * @param username the username of the user to update.
-     * @param newUsername the username to change the user's current username to.
-     * @throws ConnectionFailureException if a SQLException occurs.
-     */
-    @Override
-    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
-        updateValue(username, newUsername, UPDATE_USERNAME);
+        return Arrays.asList(results);
     }
 
     /**
-     * Updates the specified user in the database with a new email.
-     * @param username the username of the user to update.
-     * @param newEmail the email to change the user's current email to.
+     * Executes a SQL query to retrieve the email and screen name of the specified user, sharing the query of a
+     * concurrent call for the same username if lookups are coalesced.
+     * @param username the username of the user to retrieve data on.
+     * @return an Optional<UserData> object containing the user's data if the user exists.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
     @Override
-    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
-        updateValue(username, newEmail, UPDATE_EMAIL);
+    public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
+        if (_userDataLoads == null) {
+            return loadUserData(username);
+        }
+        return _userDataLoads.execute(username, () -> loadUserData(username));
     }
 
     /**
-     * Updates the specified user in the database with a new screen name.
-     * @param username the username of the user to update.
-     * @param newScreenName the screen name to change the user's current screen name to.
+     * Executes a SQL query to retrieve the email and screen name of the specified user. Whether the user exists is
+     * decided by whether the query returns a row, rather than a separate query.
+     * @param username the username of the user to retrieve data on.
+     * @return an Optional<UserData> object containing the user's data if the user exists.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
-    @Override
-    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
-        updateValue(username, newScreenName, UPDATE_SCREENNAME);
-    }
+    private Optional<UserData> loadUserData(String username) throws ConnectionFailureException {
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(GET_DATA)) {
+                statement.setString(1, username);
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return Optional.empty();
+                    }
+                    return Optional.of(new UserData(username, result.getString(1), result.getString(2)));
+                }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
+    }
 
     /**
-     * Updates the specified user in the database with a new password.
-     * @param username the username of the user to update.
-     * @param newPassword the password to change the user's current password to.
+     * Executes one SQL query for every BATCH_SIZE distinct usernames, passing the usernames as an array, to retrieve
+     * the emails and screen names of the specified users. Every query is made on the same connection. Lookups of many
+     * users are not coalesced.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a map from the username of every user that exists to its data.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
     @Override
-    public void updatePassword(String username, String newPassword) throws ConnectionFailureException {
-        if (hasUser(username)) {
-            try (Connection connection = connect()) {
-                // get user ID and salt
-                Pair<Integer, String> idAndSalt = fetchIDAndSalt(username);
-                try (PreparedStatement statement = connection.prepareStatement(UPDATE_PASSWORD)) {
-                    statement.setString(1, PasswordCrypt.hashPassword(newPassword, idAndSalt.getValue()));
-                    statement.setInt(2, idAndSalt.getKey());
-                    statement.executeUpdate();
+    public Map<String, UserData> getUserData(Collection<String> usernames) throws ConnectionFailureException {
+        Map<String, UserData> data = new HashMap<>();
+        String[] distinct = new HashSet<>(usernames).toArray(new String[0]);
+        if (distinct.length == 0) {
+            return data;
+        }
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(GET_DATA_BATCH)) {
+                for (int from = 0; from < distinct.length; from += BATCH_SIZE) {
+                    String[] batch = Arrays.copyOfRange(distinct, from, Math.min(from + BATCH_SIZE, distinct.length));
+                    statement.setArray(1, connection.createArrayOf("text", batch));
+                    try (ResultSet result = statement.executeQuery()) {
+                        while (result.next()) {
+                            String username = result.getString(1);
+                            data.put(username, new UserData(username, result.getString(2), result.getString(3)));
+                        }
+                    }
                 }
-            } catch (SQLException e) {
-                // error connecting
-                LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
-                throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
             }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
         }
+        return data;
     }
 
     /**
-     * Creates a new connection to the directory's database.
-     * @return a new SQL Connection object to the directory's database.
-     * @throws SQLException Thrown when their is a problem connecting to the database.
+     * Executes a SQL query to retrieve the id, salt, hashed password, and hasher id of the specified user.
+     * @param username the username of the user.
+     * @return the user's credentials, or null if the user does not exist.
+     * @throws ConnectionFailureException if a SQLException occurs.
      */
-    private Connection connect() throws SQLException {
-        return DriverManager.getConnection(_postgresURL, _postgresUser, _postgresPass);
+    private Credentials fetchCredentials(String username) throws ConnectionFailureException {
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(GET_CREDENTIALS)) {
+                statement.setString(1, username);
+                try (ResultSet result = statement.executeQuery()) {
+                    if (!result.next()) {
+                        return null;
+                    }
+                    return new Credentials(result.getInt(1), result.getBytes(2), result.getBytes(3),
+                            result.getString(4));
+                }
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        }
     }
 
     /**
-     * Creates the users and passwords tables in the database if they don't already exist.
+     * Updates the specified user in the database with a new username, in a single statement. The user is left unchanged
+     * if another user has the new username.
+     * @param username the username of the user to update.
+     * @param newUsername the username to change the user's current username to.
+     * @throws ConnectionFailureException if a SQLException occurs.
      */
-    private void createTables() throws ConnectionFailureException{
+    @Override
+    public void updateUsername(String username, String newUsername) throws ConnectionFailureException {
+        try {
+            updateValue(username, newUsername, UPDATE_USERNAME);
+        } finally {
+            forgetLookups(newUsername);
+        }
+    }
+
+    /**
+     * Updates the specified user in the database with a new email, in a single statement. If the policy requires unique
+     * emails, the email is locked for the transaction and the update is skipped if another user has it.
+     * @param username the username of the user to update.
+     * @param newEmail the email to change the user's current email to.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public void updateEmail(String username, String newEmail) throws ConnectionFailureException {
+        if (newEmail == null || !_policy.requireUniqueEmails()) {
+            updateValue(username, newEmail, UPDATE_EMAIL);
+            return;
+        }
         try (Connection connection = connect()) {
             // remember the original auto commit so it can be restored at the end of the function
             boolean originalAutoCommit = connection.getAutoCommit();
-            // don't commit any table updates until all updates were successful
+            // hold the email's lock until the update commits
             connection.setAutoCommit(false);
             try {
-                // create the users table
-                try (PreparedStatement statement = connection.prepareStatement(CREATE_USERS_TABLE)) {
-                    statement.execute();
-                }
-                // create the passwords table
-                try (PreparedStatement statement = connection.prepareStatement(CREATE_PASSWORDS_TABLE)) {
-                    statement.execute();
+                try (PreparedStatement statement = connection.prepareStatement(LOCK_EMAIL)) {
+                    statement.setString(1, newEmail);
+                    statement.executeQuery().close();
                 }
-                // add constraints to passwords table
-                try (PreparedStatement statement = connection.prepareStatement(PASSWORDS_ADD_CONSTRAINT)) {
-                    statement.execute();
+                try (PreparedStatement statement = connection.prepareStatement(UPDATE_EMAIL_UNIQUE)) {
+                    statement.setString(1, newEmail);
+                    statement.setString(2, username);
+                    statement.setString(3, newEmail);
+                    statement.setString(4, username);
+                    statement.executeUpdate();
                 }
-                // add tables
                 connection.commit();
             } catch (SQLException e) {
-                LOGGER.log(Level.WARNING, "Error creating database tables: ", e);
-                // revert changes
                 connection.rollback();
+                throw e;
             } finally {
                 connection.setAutoCommit(originalAutoCommit);
             }
         } catch (SQLException e) {
+            // error connecting
             LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
             throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        } finally {
+            forgetLookups(username);
         }
     }
 
     /**
-     * Checks if a table with the specified name exists in the database.
-     * @param tableName the name of the table to check for.
-     * @return true if the table exists, false otherwise
+     * Updates the specified user in the database with a new screen name, in a single statement.
+     * @param username the username of the user to update.
+     * @param newScreenName the screen name to change the user's current screen name to.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
-    private boolean tableExists(String tableName) throws ConnectionFailureException {
-        // boolean to return
-        boolean tableExists;
+    @Override
+    public void updateScreenName(String username, String newScreenName) throws ConnectionFailureException {
+        updateValue(username, newScreenName, UPDATE_SCREENNAME);
+    }
+
+    /**
+     * Updates the specified user in the database with a new salt and the new password hashed with it, in a single
+     * statement. The password is hashed before a connection is borrowed.
+     * @param username the username of the user to update.
+     * @param newPassword the password to change the user's current password to.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public void updatePassword(String username, String newPassword) throws ConnectionFailureException {
+        PasswordHasher hasher = _hasher;
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        byte[] hashed = hash(hasher, newPassword, salt);
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_PASSWORD)) {
+                statement.setBytes(1, salt);
+                statement.setBytes(2, hashed);
+                statement.setString(3, hasher.getId());
+                statement.setString(4, username);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        } finally {
+            forgetLookups(username);
+        }
+    }
+
+    /**
+     * Changes every field set by the patch with a single UPDATE statement, which finds the user by username and reports
+     * whether it did through its affected row count. A new password is hashed with a new salt before a connection is
+     * borrowed. If the policy requires unique emails and the patch changes the email, the email is locked and the
+     * update skipped if another user has it, in one transaction. The update is also skipped if another user has the new
+     * username.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return true if the user exists and the changes were made, false if the user was left unchanged.
+     * @throws ConnectionFailureException if a SQLException occurs.
+     */
+    @Override
+    public boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException {
+        if (patch.isEmpty()) {
+            return hasUser(username);
+        }
+        byte[] salt = null;
+        byte[] hashed = null;
+        PasswordHasher hasher = _hasher;
+        if (patch.hasPassword()) {
+            salt = PasswordCrypt.nextSaltBytes();
+            hashed = hash(hasher, patch.getPassword(), salt);
+        }
+        boolean claimEmail = patch.hasEmail() && patch.getEmail() != null && _policy.requireUniqueEmails();
+        // build the statement from the fields the patch sets
+        StringBuilder sql = new StringBuilder("UPDATE users SET ");
+        List<Object> parameters = new ArrayList<>();
+        if (patch.hasUsername()) {
+            sql.append("u_username=(?), ");
+            parameters.add(patch.getUsername());
+        }
+        if (patch.hasEmail()) {
+            sql.append("u_email=(?), ");
+            parameters.add(patch.getEmail());
+        }
+        if (patch.hasScreenName()) {
+            sql.append("u_screenname=(?), ");
+            parameters.add(patch.getScreenName());
+        }
+        if (patch.hasPassword()) {
+            sql.append("u_salt=(?), u_hashed=(?), u_scheme=(?), ");
+            parameters.add(salt);
+            parameters.add(hashed);
+            parameters.add(hasher.getId());
+        }
+        sql.setLength(sql.length() - 2);
+        sql.append(" WHERE u_username=(?)");
+        parameters.add(username);
+        if (claimEmail) {
+            sql.append(" AND NOT EXISTS (SELECT 1 FROM users WHERE u_email=(?) AND u_username<>(?))");
+            parameters.add(patch.getEmail());
+            parameters.add(username);
+        }
+
         try (Connection connection = connect()) {
-            try (ResultSet result = connection.getMetaData().getTables(null, null, tableName, null)) {
-                // return true if the table exists, false if it doesn't
-                tableExists = result.next();
+            // remember the original auto commit so it can be restored at the end of the function
+            boolean originalAutoCommit = connection.getAutoCommit();
+            // hold the email's lock until the update commits
+            connection.setAutoCommit(!claimEmail);
+            try {
+                if (claimEmail) {
+                    try (PreparedStatement statement = connection.prepareStatement(LOCK_EMAIL)) {
+                        statement.setString(1, patch.getEmail());
+                        statement.executeQuery().close();
+                    }
+                }
+                boolean updated;
+                try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                    for (int i = 0; i < parameters.size(); i++) {
+                        Object parameter = parameters.get(i);
+                        if (parameter instanceof byte[]) {
+                            statement.setBytes(i + 1, (byte[]) parameter);
+                        } else {
+                            statement.setString(i + 1, (String) parameter);
+                        }
+                    }
+                    updated = statement.executeUpdate() > 0;
+                }
+                if (claimEmail) {
+                    connection.commit();
+                }
+                return updated;
+            } catch (SQLException e) {
+                if (claimEmail) {
+                    connection.rollback();
+                }
+                if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                    // another user has the new username
+                    return false;
+                }
+                throw e;
+            } finally {
+                connection.setAutoCommit(originalAutoCommit);
             }
         } catch (SQLException e) {
+            // error connecting
             LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
             throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        } finally {
+            forgetLookups(username);
+            if (patch.hasUsername()) {
+                forgetLookups(patch.getUsername());
+            }
+        }
+    }
+
+    /**
+     * Borrows a connection to the directory's database from the pool, or opens a new one if the directory does not pool
+     * connections.
+     * @return a SQL Connection object to the directory's database.
+     * @throws SQLException Thrown when their is a problem connecting to the database.
+     */
+    private Connection connect() throws SQLException {
+        Timings timings = _timings;
+        if (timings == null) {
+            return acquireConnection();
+        }
+        long start = System.nanoTime();
+        Connection connection = acquireConnection();
+        timings._connectionAcquisition.record(System.nanoTime() - start);
+        return timings.timeStatements(connection);
+    }
+
+    /**
+     * Borrows a connection from the pool, or opens a new one if the directory does not pool connections.
+     * @return a SQL Connection object to the directory's database.
+     * @throws SQLException Thrown when their is a problem connecting to the database.
+     */
+    private Connection acquireConnection() throws SQLException {
+        if (_pool != null) {
+            return _pool.getConnection();
+        }
+        return openConnection();
+    }
+
+    /**
+     * Hashes a password, recording how long it took if timings are being recorded.
+     * @param hasher the hasher to hash the password with.
+     * @param password the password to hash.
+     * @param salt the salt to hash the password with.
+     * @return the hashed password.
+     */
+    private byte[] hash(PasswordHasher hasher, String password, byte[] salt) {
+        Timings timings = _timings;
+        if (timings == null) {
+            return hasher.hash(password, salt);
+        }
+        long start = System.nanoTime();
+        byte[] hashed = hasher.hash(password, salt);
+        timings._hashing.record(System.nanoTime() - start);
+        return hashed;
+    }
+
+    /**
+     * Verifies a password against a stored hash, recording how long it took if timings are being recorded.
+     * @param hasher the hasher the stored hash was made with.
+     * @param password the password to verify.
+     * @param salt the salt the stored hash was made with.
+     * @param hashed the stored hash.
+     * @return true if the password matches the stored hash, false otherwise.
+     */
+    private boolean verify(PasswordHasher hasher, String password, byte[] salt, byte[] hashed) {
+        Timings timings = _timings;
+        if (timings == null) {
+            return hasher.verify(password, salt, hashed);
+        }
+        long start = System.nanoTime();
+        boolean verified = hasher.verify(password, salt, hashed);
+        timings._hashing.record(System.nanoTime() - start);
+        return verified;
+    }
+
+    /**
+     * Opens a new physical connection to the directory's database.
+     * @return a new SQL Connection object to the directory's database.
+     * @throws SQLException Thrown when their is a problem connecting to the database.
+     */
+    private Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(_postgresURL, _postgresUser, _postgresPass);
+    }
+
+    /**
+     * Rehashes a password that was just verified with the given hasher, keeping the user's salt. The update is skipped
+     * if the password was changed since it was read.
+     * @param connection the connection to update the password with.
+     * @param id the ID of the user in the users table.
+     * @param password the user's verified password.
+     * @param salt the user's salt.
+     * @param oldHashed the hashed password that was verified.
+     * @param hasher the hasher to rehash the password with.
+     * @throws SQLException if the update fails.
+     */
+    private void rehashPassword(Connection connection, int id, String password, byte[] salt, byte[] oldHashed,
+                                PasswordHasher hasher) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(REHASH_PASSWORD)) {
+            statement.setBytes(1, hash(hasher, password, salt));
+            statement.setString(2, hasher.getId());
+            statement.setInt(3, id);
+            statement.setBytes(4, oldHashed);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Stops calls for a username from sharing queries made before a write to it. Does nothing if lookups are not
+     * coalesced.
+     * @param username the username that was written.
+     */
+    private void forgetLookups(String username) {
+        if (_userChecks != null) {
+            _userChecks.forget(username);
+            _userDataLoads.forget(username);
+            _credentialFetches.forget(username);
         }
-        return tableExists;
     }
 
     /**
-     * Executes the given SQL statement to update a value for the specified user.
+     * Executes the given SQL statement to update a value for the specified user. Nothing is updated if the user doesn't
+     * exist, or if the new value must be unique and another user has it.
      * @param username the username of the user to update.
      * @param newValue the new value to set the current value to.
      * @param sql the SQL statement to execute.
      * @throws ConnectionFailureException if a SQLException occurs.
      */
     private void updateValue(String username, String newValue, String sql) throws ConnectionFailureException {
-        if (hasUser(username)) {
-            try (Connection connection = connect()) {
-                try (PreparedStatement statement = connection.prepareStatement(sql)) {
-                    statement.setString(1, newValue);
-                    statement.setString(2, username);
-                    statement.executeUpdate();
+        try (Connection connection = connect()) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, newValue);
+                statement.setString(2, username);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                return;
+            }
+            // error connecting
+            LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
+            throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+        } finally {
+            forgetLookups(username);
+        }
+    }
+
+    /**
+     * Checks that the given values meet the directory's policy.
+     * @param username the username to check.
+     * @param email the email to check.
+     * @param screenName the screen name to check.
+     * @param password the password to check.
+     * @throws PolicyFailureException if any of the values fail the directory's policy.
+     */
+    private void checkPolicy(String username, String email, String screenName, String password) throws PolicyFailureException {
+        if (!_policy.checkUsername(username)) {
+            throw new PolicyFailureException("Username policy failure.", PolicyFailure.ILLEGAL_USERNAME);
+        }
+        if (!_policy.checkEmail(email)) {
+            throw new PolicyFailureException("Email policy failure.", PolicyFailure.ILLEGAL_EMAIL);
+        }
+        if (!_policy.checkScreenName(screenName)) {
+            throw new PolicyFailureException("Screen name policy failure.", PolicyFailure.ILLEGAL_SCREEN_NAME);
+        }
+        if (!_policy.checkPassword(password)) {
+            throw new PolicyFailureException("Password policy failure.", PolicyFailure.ILLEGAL_PASSWORD);
+        }
+    }
+
+    /**
+     * Locks an email until the end of the connection's transaction, then checks that no user has it. While the lock is
+     * held, no other transaction can claim the email, so inserting a user with it before committing keeps it unique.
+     * @param connection the connection to claim the email with, with auto commit disabled.
+     * @param email the email to claim.
+     * @return true if no user has the email, false otherwise.
+     * @throws SQLException if either query fails.
+     */
+    private boolean claimEmail(Connection connection, String email) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(LOCK_EMAIL)) {
+            statement.setString(1, email);
+            statement.executeQuery().close();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(EMAIL_EXISTS)) {
+            statement.setString(1, email);
+            try (ResultSet result = statement.executeQuery()) {
+                return !result.next();
+            }
+        }
+    }
+
+    /**
+     * Inserts a single user into the users table with one statement. Does not commit unless the connection is in auto
+     * commit mode.
+     * @param connection the connection to insert the user with.
+     * @param username the user name of the new entry.
+     * @param email the email of the new entry.
+     * @param screenName the screen name of the new entry.
+     * @param scheme the id of the hasher the password was hashed with.
+     * @param salt the salt the password was hashed with.
+     * @param hashed the hashed password of the new entry.
+     * @throws SQLException if the insert fails.
+     */
+    private void insertUser(Connection connection, String username, String email, String screenName, String scheme,
+                            byte[] salt, byte[] hashed) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_USERS)) {
+            statement.setString(1, email);
+            statement.setString(2, username);
+            statement.setString(3, screenName);
+            statement.setBytes(4, salt);
+            statement.setBytes(5, hashed);
+            statement.setString(6, scheme);
+            if (statement.executeUpdate() == 0) {
+                throw new SQLException(SQL_EXEC_FAILURE_MSG + statement.toString());
+            }
+        }
+    }
+
+    /**
+     * Inserts a batch of users into the users table with one batched statement, skipping users
+     * that already exist. Does not commit.
+     * @param connection the connection to insert the users with.
+     * @param batch the users to insert.
+     * @param uniqueEmails true to skip users whose email another user has, locking the batch's emails until the
+     * transaction ends.
+     * @param failures the map to add users that already exist to.
+     * @throws SQLException if any of the statements fail.
+     */
+    private void insertBatch(Connection connection, List<HashedRegistration> batch, boolean uniqueEmails,
+                             Map<String, UserDirectoryException> failures) throws SQLException {
+        // find users in the batch that already exist
+        Set<String> existing = new HashSet<>();
+        String[] usernames = new String[batch.size()];
+        for (int i = 0; i < usernames.length; i++) {
+            usernames[i] = batch.get(i)._registration.getUsername();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(GET_EXISTING_USERS)) {
+            statement.setArray(1, connection.createArrayOf("text", usernames));
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    existing.add(result.getString(1));
                 }
+            }
+        }
+        // find emails in the batch that other users already have
+        Set<String> existingEmails = new HashSet<>();
+        if (uniqueEmails) {
+            List<String> emails = new ArrayList<>(batch.size());
+            for (HashedRegistration user : batch) {
+                if (user._registration.getEmail() != null) {
+                    emails.add(user._registration.getEmail());
+                }
+            }
+            Array emailArray = connection.createArrayOf("text", emails.toArray());
+            try (PreparedStatement statement = connection.prepareStatement(LOCK_EMAILS)) {
+                statement.setArray(1, emailArray);
+                statement.executeQuery().close();
+            }
+            try (PreparedStatement statement = connection.prepareStatement(GET_EXISTING_EMAILS)) {
+                statement.setArray(1, emailArray);
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        existingEmails.add(result.getString(1));
+                    }
+                }
+            }
+        }
+        List<HashedRegistration> toInsert = new ArrayList<>(batch.size());
+        for (HashedRegistration user : batch) {
+            String username = user._registration.getUsername();
+            if (existingEmails.contains(user._registration.getEmail())) {
+                failures.put(username, new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL));
+            } else if (existing.contains(username)) {
+                failures.put(username, new UserAlreadyExistsException("User \"" + username + "\" already exists in the database."));
+            } else {
+                toInsert.add(user);
+            }
+        }
+        if (toInsert.isEmpty()) {
+            return;
+        }
+        // insert into users table
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_USERS)) {
+            for (HashedRegistration user : toInsert) {
+                statement.setString(1, user._registration.getEmail());
+                statement.setString(2, user._registration.getUsername());
+                statement.setString(3, user._registration.getScreenName());
+                statement.setBytes(4, user._salt);
+                statement.setBytes(5, user._hashed);
+                statement.setString(6, user._scheme);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Inserts each user of a failed batch in its own transaction, recording the users that could not be inserted.
+     * @param connection the connection to insert the users with, with auto commit disabled.
+     * @param batch the users to insert.
+     * @param uniqueEmails true to skip users whose email another user has.
+     * @param failures the map to add users that could not be inserted to.
+     * @throws SQLException if a transaction could not be rolled back.
+     */
+    private void insertIndividually(Connection connection, List<HashedRegistration> batch, boolean uniqueEmails,
+                                    Map<String, UserDirectoryException> failures) throws SQLException {
+        for (HashedRegistration user : batch) {
+            String username = user._registration.getUsername();
+            if (failures.containsKey(username)) {
+                continue;
+            }
+            try {
+                String email = user._registration.getEmail();
+                if (uniqueEmails && email != null && !claimEmail(connection, email)) {
+                    connection.rollback();
+                    failures.put(username, new PolicyFailureException(DUPLICATE_EMAIL_MSG, PolicyFailure.DUPLICATE_EMAIL));
+                    continue;
+                }
+                insertUser(connection, username, email, user._registration.getScreenName(),
+                        user._scheme, user._salt, user._hashed);
+                connection.commit();
             } catch (SQLException e) {
-                // error connecting
-                LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
-                throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+                connection.rollback();
+                if (UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                    failures.put(username, new UserAlreadyExistsException("User \"" + username + "\" already exists in the database.", e));
+                } else {
+                    LOGGER.log(Level.WARNING, "Error adding user \""+username+"\": ", e);
+                    failures.put(username, new ConnectionFailureException("Error adding user \""+username+"\": ", e));
+                }
             }
         }
     }
 
     /**
-     * Executes a SQL query to fetch the id and salt for a specified user.
-     * @param username the username of the user to fetch the id and salt for.
-     * @return the user's id and salt if the user exists in the directory, null otherwise.
-     * @throws ConnectionFailureException if s SQLException occurs.
+     * Server-side cursor over the usernames of every user, streamed a fetch at a time. The driver only fetches with a
+     * cursor inside a transaction, so auto commit is disabled until the cursor is closed.
      */
-    private Pair<Integer, String> fetchIDAndSalt(String username) throws ConnectionFailureException {
-        // pair of ID and salt to return
-        Pair<Integer, String> idAndSalt = null;
-        // if the directory doesn't have the specified user, return null
-        if (hasUser(username)) {
-            try (Connection connection = connect()) {
-                try (PreparedStatement statement = connection.prepareStatement(GET_ID_AND_SALT)) {
-                    statement.setString(1, username);
-                    try (ResultSet result = statement.executeQuery()) {
-                        result.next();
-                        idAndSalt = new Pair<>(result.getInt(1), result.getString(2));
+    private static final class UsernameCursor extends Spliterators.AbstractSpliterator<String> {
+        /** Connection the cursor was opened on. */
+        private final Connection _connection;
+        /** Auto commit of the connection before the cursor was opened, restored when it is closed. */
+        private final boolean _originalAutoCommit;
+        /** Statement the cursor was opened with. */
+        private final PreparedStatement _statement;
+        /** Results of the statement. */
+        private final ResultSet _result;
+
+        /**
+         * Opens a cursor over the usernames of every user. Closes the connection if the cursor could not be opened.
+         * @param connection the connection to open the cursor on.
+         * @throws SQLException if the cursor could not be opened.
+         */
+        private UsernameCursor(Connection connection) throws SQLException {
+            super(Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.DISTINCT);
+            _connection = connection;
+            boolean originalAutoCommit = true;
+            PreparedStatement statement = null;
+            try {
+                originalAutoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+                statement = connection.prepareStatement(GET_USERS);
+                statement.setFetchSize(STREAM_FETCH_SIZE);
+                _result = statement.executeQuery();
+            } catch (SQLException e) {
+                // release the connection as it was borrowed
+                try {
+                    if (statement != null) {
+                        statement.close();
+                    }
+                    connection.rollback();
+                    connection.setReadOnly(false);
+                    connection.setAutoCommit(originalAutoCommit);
+                } catch (SQLException suppressed) {
+                    e.addSuppressed(suppressed);
+                } finally {
+                    try {
+                        connection.close();
+                    } catch (SQLException suppressed) {
+                        e.addSuppressed(suppressed);
                     }
                 }
+                throw e;
+            }
+            _originalAutoCommit = originalAutoCommit;
+            _statement = statement;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            try {
+                if (!_result.next()) {
+                    return false;
+                }
+                action.accept(_result.getString(1));
+                return true;
             } catch (SQLException e) {
-                // error connecting
                 LOGGER.log(Level.WARNING, CONNECTION_FAILURE_MSG, e);
-                throw new ConnectionFailureException(CONNECTION_FAILURE_MSG, e);
+                throw new UncheckedConnectionFailureException(new ConnectionFailureException(CONNECTION_FAILURE_MSG, e));
+            }
+        }
+
+        /**
+         * Closes the cursor, ends its transaction, and releases the connection.
+         */
+        private void close() {
+            try (Connection connection = _connection) {
+                _result.close();
+                _statement.close();
+                connection.rollback();
+                connection.setReadOnly(false);
+                connection.setAutoCommit(_originalAutoCommit);
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "Error closing username cursor: ", e);
+                throw new UncheckedConnectionFailureException(new ConnectionFailureException(CONNECTION_FAILURE_MSG, e));
+            }
+        }
+    }
+
+    /**
+     * Latencies of the work done inside a PostgresUserDirectory's calls, recorded once recordTimings() is called.
+     */
+    public static final class Timings {
+
+        /** Latencies of borrowing or opening connections. */
+        private final LatencyHistogram _connectionAcquisition;
+        /** Latencies of executing SQL statements, including the round trip to the database. */
+        private final LatencyHistogram _sqlExecution;
+        /** Latencies of hashing and verifying passwords. */
+        private final LatencyHistogram _hashing;
+
+        /**
+         * Creates a new, empty Timings.
+         */
+        private Timings() {
+            _connectionAcquisition = new LatencyHistogram();
+            _sqlExecution = new LatencyHistogram();
+            _hashing = new LatencyHistogram();
+        }
+
+        /**
+         * Retrieves the latencies of borrowing connections from the pool, or opening them if there is no pool.
+         * @return the histogram of connection acquisition latencies.
+         */
+        public LatencyHistogram getConnectionAcquisition() {
+            return _connectionAcquisition;
+        }
+
+        /**
+         * Retrieves the latencies of executing SQL statements. Reading the rows of a query's result is not included.
+         * @return the histogram of SQL execution latencies.
+         */
+        public LatencyHistogram getSqlExecution() {
+            return _sqlExecution;
+        }
+
+        /**
+         * Retrieves the latencies of hashing and verifying passwords.
+         * @return the histogram of password hashing latencies.
+         */
+        public LatencyHistogram getHashing() {
+            return _hashing;
+        }
+
+        /**
+         * Wraps a connection so every statement it creates records how long its executions take.
+         * @param connection the connection to wrap.
+         * @return a proxy of the connection.
+         */
+        private Connection timeStatements(Connection connection) {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                        Object result = invoke(connection, method, args);
+                        if (result instanceof Statement) {
+                            return timeExecutions((Statement) result);
+                        }
+                        return result;
+                    });
+        }
+
+        /**
+         * Wraps a statement so its executions record how long they take.
+         * @param statement the statement to wrap.
+         * @return a proxy of the statement implementing the same statement interfaces.
+         */
+        private Statement timeExecutions(Statement statement) {
+            Class<?> type = statement instanceof CallableStatement ? CallableStatement.class
+                    : statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+            InvocationHandler handler = (proxy, method, args) -> {
+                if (!method.getName().startsWith("execute")) {
+                    return invoke(statement, method, args);
+                }
+                long start = System.nanoTime();
+                try {
+                    return invoke(statement, method, args);
+                } finally {
+                    _sqlExecution.record(System.nanoTime() - start);
+                }
+            };
+            return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] {type}, handler);
+        }
+
+        /**
+         * Invokes a method on the object behind a proxy, rethrowing whatever the method throws.
+         * @param target the object to invoke the method on.
+         * @param method the method to invoke.
+         * @param args the arguments to invoke the method with.
+         * @return the method's result.
+         * @throws Throwable whatever the method throws.
+         */
+        private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
             }
         }
-        return idAndSalt;
+    }
+
+    /**
+     * Builds a PostgresUserDirectory that borrows its connections from a bounded pool instead of opening a new
+     * connection for every call.
+     */
+    public static final class Builder {
+        /** The url to the Postgres instance. */
+        private final String _host;
+        /** The name of the Postgres database. */
+        private final String _database;
+        /** The username needed to log into the Postgres instance. */
+        private final String _user;
+        /** The password needed to log into the Postgres instance. */
+        private final String _pass;
+        /** Number of idle connections the pool tries to keep open. */
+        private int _minPoolSize = 1;
+        /** Maximum number of connections open at once. */
+        private int _maxPoolSize = 10;
+        /** Milliseconds to wait for a connection before giving up. */
+        private long _acquireTimeoutMillis = 30_000;
+        /** Milliseconds a connection may sit idle before it is evicted. */
+        private long _idleTimeoutMillis = 600_000;
+        /** Milliseconds a connection may sit idle before it is validated on checkout. */
+        private long _validationIntervalMillis = 5_000;
+        /** Hasher new passwords are hashed with. */
+        private PasswordHasher _hasher = PasswordHashers.legacy();
+        /** Number of users whose rows are rewritten per transaction when migrating the schema. */
+        private int _migrationBatchSize = DEFAULT_MIGRATION_BATCH_SIZE;
+        /** Whether concurrent lookups of the same username share one query. */
+        private boolean _coalesceLookups = true;
+
+        /**
+         * Creates a new Builder with the credentials to log into the PostgreSQL database.
+         * @param host the url to the Postgres instance.
+         * @param database the name of the Postgres database.
+         * @param user the username needed to log into the Postgres instance.
+         * @param pass the password needed to log into Postgres instance.
+         */
+        private Builder(String host, String database, String user, String pass) {
+            _host = host;
+            _database = database;
+            _user = user;
+            _pass = pass;
+        }
+
+        /**
+         * Sets the number of idle connections the pool tries to keep open. Defaults to 1.
+         * @param minPoolSize the minimum number of idle connections.
+         * @return this Builder.
+         */
+        public Builder minPoolSize(int minPoolSize) {
+            _minPoolSize = minPoolSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of connections open at once. Defaults to 10.
+         * @param maxPoolSize the maximum number of connections.
+         * @return this Builder.
+         */
+        public Builder maxPoolSize(int maxPoolSize) {
+            _maxPoolSize = maxPoolSize;
+            return this;
+        }
+
+        /**
+         * Sets how long a call waits for a free connection before failing with a ConnectionFailureException. Defaults
+         * to 30 seconds.
+         * @param acquireTimeoutMillis the acquisition timeout in milliseconds.
+         * @return this Builder.
+         */
+        public Builder acquireTimeoutMillis(long acquireTimeoutMillis) {
+            _acquireTimeoutMillis = acquireTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may sit idle before it is closed, or zero to never close idle connections.
+         * Defaults to 10 minutes.
+         * @param idleTimeoutMillis the idle timeout in milliseconds.
+         * @return this Builder.
+         */
+        public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+            _idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may sit idle before it is validated with a round trip when checked out. Defaults
+         * to 5 seconds.
+         * @param validationIntervalMillis the validation interval in milliseconds.
+         * @return this Builder.
+         */
+        public Builder validationIntervalMillis(long validationIntervalMillis) {
+            _validationIntervalMillis = validationIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Sets the hasher new passwords are hashed with. Defaults to the legacy SHA3-512 hasher.
+         * @param hasher the hasher to hash new passwords with.
+         * @return this Builder.
+         */
+        public Builder passwordHasher(PasswordHasher hasher) {
+            _hasher = hasher;
+            return this;
+        }
+
+        /**
+         * Sets the number of users whose rows are rewritten per transaction when an existing database is migrated to
+         * the current schema. Smaller batches hold row locks for less time. Defaults to 10,000.
+         * @param migrationBatchSize the number of users per transaction.
+         * @return this Builder.
+         */
+        public Builder migrationBatchSize(int migrationBatchSize) {
+            if (migrationBatchSize < 1) {
+                throw new IllegalArgumentException("Invalid migration batch size: " + migrationBatchSize + ".");
+            }
+            _migrationBatchSize = migrationBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets whether concurrent calls of hasUser(), getUserData(), and authenticateUserDetailed() for the same
+         * username share one query. Defaults to true.
+         * @param coalesceLookups true to share queries, false to make one per call.
+         * @return this Builder.
+         */
+        public Builder coalesceLookups(boolean coalesceLookups) {
+            _coalesceLookups = coalesceLookups;
+            return this;
+        }
+
+        /**
+         * Creates the PostgresUserDirectory, creating its tables if they don't already exist or migrating them to the
+         * current schema.
+         * @return a new PostgresUserDirectory.
+         * @throws ConnectionFailureException if a connection-related error occurs.
+         */
+        public PostgresUserDirectory build() throws ConnectionFailureException {
+            return new PostgresUserDirectory(this);
+        }
+    }
+
+    /**
+     * Id, salt, hashed password, and hasher id of a user, as read for authentication.
+     */
+    private static final class Credentials {
+        /** Id of the user's row. */
+        private final int _id;
+        /** Salt used to hash the user's password. */
+        private final byte[] _salt;
+        /** The user's hashed password. */
+        private final byte[] _hashed;
+        /** Id of the hasher used to hash the user's password. */
+        private final String _scheme;
+
+        /**
+         * Creates a new Credentials.
+         * @param id the id of the user's row.
+         * @param salt the salt used to hash the user's password.
+         * @param hashed the user's hashed password.
+         * @param scheme the id of the hasher used to hash the user's password.
+         */
+        private Credentials(int id, byte[] salt, byte[] hashed, String scheme) {
+            _id = id;
+            _salt = salt;
+            _hashed = hashed;
+            _scheme = scheme;
+        }
+    }
+
+    /**
+     * Registration whose password has been salted and hashed, ready to be inserted.
+     */
+    private final class HashedRegistration {
+        /** The registration of the user. */
+        private final UserRegistration _registration;
+        /** Id of the hasher used to hash the user's password. */
+        private final String _scheme;
+        /** Salt used to hash the user's password. */
+        private final byte[] _salt;
+        /** The user's hashed password. */
+        private final byte[] _hashed;
+
+        /**
+         * Salts and hashes the password of a registration.
+         * @param registration the registration of the user.
+         * @param hasher the hasher to hash the password with.
+         */
+        private HashedRegistration(UserRegistration registration, PasswordHasher hasher) {
+            _registration = registration;
+            _scheme = hasher.getId();
+            _salt = PasswordCrypt.nextSaltBytes();
+            _hashed = hash(hasher, registration.getPassword(), _salt);
+        }
     }
 }
@@ -0,0 +1,366 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.util.TokenBucket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User directory that throttles authentication attempts in front of another user directory, so bursts of guesses
+ * against one user, or from one source, are turned away before they cost a password hash or a lookup.
+ *
+ * Every attempt takes a token from a bucket for its username and, if the caller says where it came from, a bucket for
+ * its source. An attempt that finds either bucket empty returns THROTTLED without reaching the wrapped directory.
+ * Buckets are lock-free, so attempts for different users never contend and attempts for the same user only retry a
+ * compare-and-set.
+ *
+ * Buckets are kept in two concurrent hash maps, one for usernames and one for sources, each bounded by a maximum
+ * number of buckets. When a new bucket would grow a map past its maximum, one thread sweeps it: full buckets are
+ * dropped first, since they permit exactly what a new bucket would, then arbitrary buckets until the map is back under
+ * three quarters of its maximum. An evicted bucket forgets the attempts it counted, so an attack spread over more keys
+ * than the maximum is throttled less, but memory stays flat however many keys it uses. Threads that find a sweep
+ * already running add their bucket anyway, so a map can briefly exceed its maximum by the number of such threads.
+ */
+public class ThrottledUserDirectory extends ForwardingUserDirectory {
+
+    /** Limit on attempts for each username. */
+    private final Limit _usernameLimit;
+    /** Limit on attempts from each source. */
+    private final Limit _sourceLimit;
+    /** Maximum number of buckets kept in each map. */
+    private final int _maximumBuckets;
+    /** Buckets of the usernames attempted recently. */
+    private final Buckets _usernames;
+    /** Buckets of the sources attempted from recently. */
+    private final Buckets _sources;
+
+    /** Number of attempts throttled because their username's bucket was empty. */
+    private final LongAdder _usernameRejections;
+    /** Number of attempts throttled because their source's bucket was empty. */
+    private final LongAdder _sourceRejections;
+
+    /**
+     * Creates a new ThrottledUserDirectory.
+     * @param directory the directory to throttle.
+     * @param usernameLimit the limit on attempts for each username.
+     * @param sourceLimit the limit on attempts from each source.
+     * @param maximumBuckets the maximum number of buckets kept for usernames, and separately for sources.
+     */
+    public ThrottledUserDirectory(UserDirectory directory, Limit usernameLimit, Limit sourceLimit, int maximumBuckets) {
+        super(directory);
+        if (maximumBuckets < 1) {
+            throw new IllegalArgumentException("Invalid maximum bucket count: " + maximumBuckets + ".");
+        }
+        _usernameLimit = usernameLimit;
+        _sourceLimit = sourceLimit;
+        _maximumBuckets = maximumBuckets;
+        _usernames = new Buckets();
+        _sources = new Buckets();
+        _usernameRejections = new LongAdder();
+        _sourceRejections = new LongAdder();
+    }
+
+    /**
+     * Authenticates the specified user unless their username has been attempted too often. Equivalent to
+     * authenticateUserDetailed() with no source.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @return THROTTLED if the username has been attempted too often, otherwise the wrapped directory's result.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException {
+        return authenticateUserDetailed(username, password, null);
+    }
+
+    /**
+     * Authenticates the specified user unless their username has been attempted too often, or too many attempts have
+     * come from the source.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @param source where the attempt came from, such as the client's address, or null if unknown.
+     * @return THROTTLED if the username or source has been attempted too often, otherwise the wrapped directory's
+     * result.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    public Authentication authenticateUserDetailed(String username, String password, String source) throws ConnectionFailureException {
+        if (!tryAcquire(username, source, System.nanoTime())) {
+            return Authentication.THROTTLED;
+        }
+        return super.authenticateUserDetailed(username, password);
+    }
+
+    /**
+     * Authenticates every pair in the list whose username hasn't been attempted too often. Equivalent to
+     * authenticateUsers() with no source.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return the result of authenticating each pair, in the order of the given list, THROTTLED for each pair that was
+     * turned away.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    @Override
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException {
+        return authenticateUsers(credentials, null);
+    }
+
+    /**
+     * Authenticates every pair in the list whose username hasn't been attempted too often, as one batch against the
+     * wrapped directory. Each pair counts as one attempt, for its username and for the source.
+     * @param credentials the usernames and passwords to authenticate.
+     * @param source where the attempts came from, such as the client's address, or null if unknown.
+     * @return the result of authenticating each pair, in the order of the given list, THROTTLED for each pair that was
+     * turned away.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    public List<Authentication> authenticateUsers(List<UserCredentials> credentials, String source) throws ConnectionFailureException {
+        long now = System.nanoTime();
+        boolean[] permitted = new boolean[credentials.size()];
+        List<UserCredentials> checked = new ArrayList<>(credentials.size());
+        for (int i = 0; i < permitted.length; i++) {
+            permitted[i] = tryAcquire(credentials.get(i).getUsername(), source, now);
+            if (permitted[i]) {
+                checked.add(credentials.get(i));
+            }
+        }
+        List<Authentication> checkedResults = checked.isEmpty()
+                ? new ArrayList<>()
+                : super.authenticateUsers(checked);
+        List<Authentication> results = new ArrayList<>(permitted.length);
+        int next = 0;
+        for (boolean attempted : permitted) {
+            results.add(attempted ? checkedResults.get(next++) : Authentication.THROTTLED);
+        }
+        return results;
+    }
+
+    /**
+     * Authenticates the specified user unless their username has been attempted too often, or too many attempts have
+     * come from the source.
+     * @param username the username of user to authenticate.
+     * @param password the password used to authenticate the user.
+     * @param source where the attempt came from, such as the client's address, or null if unknown.
+     * @return true if authenticateUserDetailed() returns VALID, false otherwise.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    public boolean authenticateUser(String username, String password, String source) throws ConnectionFailureException {
+        return authenticateUserDetailed(username, password, source) == Authentication.VALID;
+    }
+
+    /**
+     * Takes a token for an attempt from the source's bucket, then from the username's bucket, counting the rejection if
+     * either is empty.
+     * @param username the username attempted, or null to not throttle by username.
+     * @param source where the attempt came from, or null to not throttle by source.
+     * @param now the current time in nanoseconds.
+     * @return true if the attempt may go ahead, false if it is throttled.
+     */
+    private boolean tryAcquire(String username, String source, long now) {
+        // check the source first, so one source can't drain the buckets of the users it guesses at
+        if (source != null && !_sources.tryAcquire(source, _sourceLimit, now)) {
+            _sourceRejections.increment();
+            return false;
+        }
+        if (username != null && !_usernames.tryAcquire(username, _usernameLimit, now)) {
+            _usernameRejections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the number of attempts throttled because their username had been attempted too often.
+     * @return the number of attempts throttled by username.
+     */
+    public long getUsernameRejectionCount() {
+        return _usernameRejections.sum();
+    }
+
+    /**
+     * Retrieves the number of attempts throttled because too many attempts had come from their source.
+     * @return the number of attempts throttled by source.
+     */
+    public long getSourceRejectionCount() {
+        return _sourceRejections.sum();
+    }
+
+    /**
+     * Retrieves the number of buckets evicted before they were full, forgetting the attempts they had counted.
+     * @return the number of buckets evicted from both maps.
+     */
+    public long getEvictionCount() {
+        return _usernames._evictions.sum() + _sources._evictions.sum();
+    }
+
+    /**
+     * Retrieves the number of buckets currently kept.
+     * @return the number of buckets in both maps.
+     */
+    public long getBucketCount() {
+        return _usernames._buckets.mappingCount() + _sources._buckets.mappingCount();
+    }
+
+    /**
+     * Writes the throttling counters in the Prometheus text exposition format.
+     * @param out where to write the metrics.
+     * @throws IOException if out throws one.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP suds_throttled_total Authentication attempts throttled, by the key whose bucket was empty.\n");
+        out.append("# TYPE suds_throttled_total counter\n");
+        out.append("suds_throttled_total{key=\"username\"} ").append(Long.toString(getUsernameRejectionCount()))
+                .append('\n');
+        out.append("suds_throttled_total{key=\"source\"} ").append(Long.toString(getSourceRejectionCount()))
+                .append('\n');
+        out.append("# HELP suds_throttle_evictions_total Throttling buckets evicted before they were full.\n");
+        out.append("# TYPE suds_throttle_evictions_total counter\n");
+        out.append("suds_throttle_evictions_total{key=\"username\"} ").append(Long.toString(_usernames._evictions.sum()))
+                .append('\n');
+        out.append("suds_throttle_evictions_total{key=\"source\"} ").append(Long.toString(_sources._evictions.sum()))
+                .append('\n');
+        out.append("# HELP suds_throttle_buckets Throttling buckets currently kept.\n");
+        out.append("# TYPE suds_throttle_buckets gauge\n");
+        out.append("suds_throttle_buckets{key=\"username\"} ").append(Long.toString(_usernames._buckets.mappingCount()))
+                .append('\n');
+        out.append("suds_throttle_buckets{key=\"source\"} ").append(Long.toString(_sources._buckets.mappingCount()))
+                .append('\n');
+    }
+
+    /**
+     * Writes the throttling counters in the Prometheus text exposition format.
+     * @return the metrics.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        try {
+            writePrometheus(out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Limit on the attempts made for one key: a burst of attempts, then one attempt per refill interval.
+     */
+    public static final class Limit {
+        /** Number of attempts allowed at once. */
+        private final int _burst;
+        /** Nanoseconds after which one more attempt is allowed. */
+        private final long _refillNanos;
+
+        /**
+         * Creates a new Limit.
+         * @param burst the number of attempts allowed at once.
+         * @param refillInterval how long until one more attempt is allowed.
+         * @param unit the unit of refillInterval.
+         */
+        public Limit(int burst, long refillInterval, TimeUnit unit) {
+            if (burst < 1) {
+                throw new IllegalArgumentException("Invalid burst: " + burst + ".");
+            }
+            if (refillInterval <= 0) {
+                throw new IllegalArgumentException("Invalid refill interval: " + refillInterval + ".");
+            }
+            _burst = burst;
+            _refillNanos = unit.toNanos(refillInterval);
+        }
+
+        /**
+         * Retrieves the number of attempts allowed at once.
+         * @return the burst.
+         */
+        public int getBurst() {
+            return _burst;
+        }
+
+        /**
+         * Retrieves how long until one more attempt is allowed.
+         * @param unit the unit to return the interval in.
+         * @return the refill interval.
+         */
+        public long getRefillInterval(TimeUnit unit) {
+            return unit.convert(_refillNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Bounded map of token buckets, swept by one thread at a time when it grows past the directory's maximum.
+     */
+    private final class Buckets {
+        /** Bucket of each key attempted recently. */
+        private final ConcurrentHashMap<String, TokenBucket> _buckets;
+        /** Set while a thread is sweeping the map. */
+        private final AtomicBoolean _sweeping;
+        /** Number of buckets evicted before they were full. */
+        private final LongAdder _evictions;
+
+        /**
+         * Creates a new, empty Buckets.
+         */
+        private Buckets() {
+            _buckets = new ConcurrentHashMap<>();
+            _sweeping = new AtomicBoolean();
+            _evictions = new LongAdder();
+        }
+
+        /**
+         * Takes a token from a key's bucket, creating a full bucket for the key if it has none.
+         * @param key the key.
+         * @param limit the limit the key's bucket enforces.
+         * @param now the current time in nanoseconds.
+         * @return true if a token was taken, false if the key's bucket is empty.
+         */
+        private boolean tryAcquire(String key, Limit limit, long now) {
+            TokenBucket bucket = _buckets.get(key);
+            if (bucket == null) {
+                if (_buckets.mappingCount() >= _maximumBuckets) {
+                    sweep(now);
+                }
+                TokenBucket created = new TokenBucket(limit._burst, limit._refillNanos, now);
+                bucket = _buckets.putIfAbsent(key, created);
+                if (bucket == null) {
+                    bucket = created;
+                }
+            }
+            return bucket.tryAcquire(now);
+        }
+
+        /**
+         * Drops full buckets, then evicts arbitrary buckets until the map is under three quarters of its maximum. Does
+         * nothing if another thread is already sweeping.
+         * @param now the current time in nanoseconds.
+         */
+        private void sweep(long now) {
+            if (!_sweeping.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                for (Map.Entry<String, TokenBucket> entry : _buckets.entrySet()) {
+                    if (entry.getValue().isFull(now)) {
+                        _buckets.remove(entry.getKey(), entry.getValue());
+                    }
+                }
+                long target = _maximumBuckets * 3L / 4;
+                Iterator<Map.Entry<String, TokenBucket>> entries = _buckets.entrySet().iterator();
+                while (_buckets.mappingCount() > target && entries.hasNext()) {
+                    Map.Entry<String, TokenBucket> entry = entries.next();
+                    if (_buckets.remove(entry.getKey(), entry.getValue())) {
+                        _evictions.increment();
+                    }
+                }
+            } finally {
+                _sweeping.set(false);
+            }
+        }
+    }
+}
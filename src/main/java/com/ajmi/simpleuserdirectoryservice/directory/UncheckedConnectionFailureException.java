@@ -0,0 +1,27 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+/**
+ * Wraps a ConnectionFailureException in an unchecked exception, for failures that occur while consuming a stream
+ * returned by a User Directory.
+ */
+public class UncheckedConnectionFailureException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a new exception wrapping a ConnectionFailureException.
+     * @param cause the connection failure.
+     */
+    public UncheckedConnectionFailureException(ConnectionFailureException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    /**
+     * Retrieves the wrapped connection failure.
+     * @return the ConnectionFailureException wrapped by this exception.
+     */
+    @Override
+    public synchronized ConnectionFailureException getCause() {
+        return (ConnectionFailureException) super.getCause();
+    }
+}
@@ -1,9 +1,17 @@
 package com.ajmi.simpleuserdirectoryservice.directory;
 
 import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
 import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * Directory containing the user names, emails, scree names, and passwords of users.
@@ -19,7 +27,18 @@ public interface UserDirectory {
     boolean hasUser(String username) throws ConnectionFailureException;
 
     /**
-     * Tries to add a user to the directory with the given user name, email, screen name, and password.
+     * Checks which of the specified users exist in the directory.
+     * @param usernames the user names of the users to check for.
+     * @return the user names that were found in the directory, empty if none were.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    Set<String> hasUsers(Collection<String> usernames) throws ConnectionFailureException;
+
+    /**
+     * Tries to add a user to the directory with the given user name, email, screen name, and password. The user is
+     * checked against the directory's policy, including whether another user has the email if emails must be unique,
+     * before checking whether the username is taken, so a user that fails the policy is rejected with a
+     * PolicyFailureException even if the username is taken.
      * @param username the user name of the new entry.
      * @param email the email of the new entry.
      * @param screeName the screen name of the new entry.
@@ -30,6 +49,19 @@ public interface UserDirectory {
      */
     void addUser(String username, String email, String screeName, String password) throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException;
 
+    /**
+     * Tries to add every user in the given collection to the directory. Every registration is checked against the
+     * directory's policy before any user is added, and a registration that fails does not stop the others from being
+     * added. Only the first registration of a username is tried: later registrations with the same username are never
+     * added, and the username maps to the first failure of any of its registrations. As with addUser(), a registration
+     * that fails the policy maps to its PolicyFailureException even if the username is taken.
+     * @param users the registrations of the users to add.
+     * @return a map from the username of every registration that could not be added to the UserAlreadyExistsException
+     * or PolicyFailureException explaining why, empty if every user was added.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    Map<String, UserDirectoryException> addUsers(Collection<UserRegistration> users) throws ConnectionFailureException;
+
     /**
      * Tries to remove the user with the given user name from the directory.
      * @param username the user name of the user to remove.
@@ -45,6 +77,45 @@ public interface UserDirectory {
      */
     String[] getUsers() throws ConnectionFailureException;
 
+    /**
+     * Retrieves the user names of users in the directory one page at a time, in ascending order. Each page starts
+     * after the last user name of the previous page, so users added or removed between pages never shift later pages.
+     * @param afterUsername the user name to start after, or null to start from the first user.
+     * @param limit the maximum number of user names to retrieve.
+     * @return up to limit user names greater than afterUsername, in ascending order.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     * @throws IllegalArgumentException if limit is negative.
+     */
+    List<String> getUsers(String afterUsername, int limit) throws ConnectionFailureException;
+
+    /**
+     * Streams the user names of every user in the directory, in no particular order, without holding them all in
+     * memory at once. The stream may hold a connection or lock and must be closed once consumed. Users added or
+     * removed while the stream is consumed may or may not be seen.
+     * @return a stream of every user's user name.
+     * @throws ConnectionFailureException if a connection-related error occurs before the stream is returned.
+     * Failures while the stream is consumed throw an UncheckedConnectionFailureException.
+     */
+    Stream<String> streamUsers() throws ConnectionFailureException;
+
+    /**
+     * Retrieves the user names that start with a prefix, in ascending order.
+     * @param prefix the prefix to match, or an empty string to match every user name.
+     * @param limit the maximum number of user names to retrieve.
+     * @return up to limit of the lowest user names starting with prefix, in ascending order.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     * @throws IllegalArgumentException if limit is negative.
+     */
+    List<String> findUsersByPrefix(String prefix, int limit) throws ConnectionFailureException;
+
+    /**
+     * Retrieves the data of every user with the given email. Emails are matched exactly.
+     * @param email the email to look up.
+     * @return the data of every user with the email, empty if there are none or the email is null.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    List<UserData> findByEmail(String email) throws ConnectionFailureException;
+
     /**
      * Retrieves the policy used to check the username, email, screen name, and password.
      * @return a non-null Policy.
@@ -78,6 +149,14 @@ public interface UserDirectory {
      */
     Authentication authenticateUserDetailed(String username, String password) throws ConnectionFailureException;
 
+    /**
+     * Validates every username and password pair in the given list, as authenticateUserDetailed() would one at a time.
+     * @param credentials the usernames and passwords to authenticate.
+     * @return the result of authenticating each pair, in the order of the given list.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    List<Authentication> authenticateUsers(List<UserCredentials> credentials) throws ConnectionFailureException;
+
     /**
      * Retrieve data on the specified user.
      * @param username the username of the user to retrieve data on.
@@ -86,6 +165,14 @@ public interface UserDirectory {
      */
     Optional<UserData> getUserData(String username) throws ConnectionFailureException;
 
+    /**
+     * Retrieve data on each of the specified users.
+     * @param usernames the usernames of the users to retrieve data on.
+     * @return a map from the username of every user that exists to its data. Users that don't exist are left out.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    Map<String, UserData> getUserData(Collection<String> usernames) throws ConnectionFailureException;
+
     /**
      * Updates the username of the specified user.
      * @param username the username of the user to update.
@@ -118,4 +205,15 @@ public interface UserDirectory {
      */
     void updatePassword(String username, String newPassword) throws ConnectionFailureException;
 
+    /**
+     * Changes several fields of the specified user at once. Either every change in the patch is made or none are: the
+     * user is left unchanged if the patch's new username belongs to another user, or if the policy requires unique
+     * emails and another user has the patch's new email.
+     * @param username the username of the user to update.
+     * @param patch the changes to make.
+     * @return true if the user exists and the changes were made, false if the user was left unchanged.
+     * @throws ConnectionFailureException if a connection-related error occurs.
+     */
+    boolean updateUser(String username, UserPatch patch) throws ConnectionFailureException;
+
 }
@@ -0,0 +1,725 @@
+package com.ajmi.simpleuserdirectoryservice.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Log of every change to the records of an EphemeralUserDirectory, kept in a directory of numbered segment files and
+ * snapshots.
+ *
+ * Each entry holds the full new state of the user it changes, including the salt and hashed password but never the
+ * password itself, so replaying an entry any number of times gives the same result. Entries are framed with their
+ * length and CRC-32, so a write torn by a crash is detected and dropped on recovery.
+ *
+ * Appended entries are buffered in memory until sync() writes and forces them to disk. Concurrent callers of sync()
+ * share a single write and force, so the cost of forcing is spread over every entry appended since the last one.
+ *
+ * A snapshot holds every record of the directory as of the start of a segment, so recovery loads the latest snapshot
+ * and replays only the segments from that one on. Snapshots are taken while the directory is in use; changes made
+ * during a snapshot may or may not be in it, but their entries are always in a later segment and are replayed over it.
+ */
+class WriteAheadLog implements EphemeralUserDirectory.RecordListener, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+
+    /** Entry that adds or replaces a user's record. */
+    private static final byte PUT = 1;
+    /** Entry that removes a user's record. */
+    private static final byte REMOVE = 2;
+    /** Entry that moves a user's record to a new username. */
+    private static final byte RENAME = 3;
+
+    /** Value identifying a snapshot file. */
+    private static final long SNAPSHOT_MAGIC = 0x53554453534E4150L;
+    /** Largest entry accepted on recovery, so a corrupt length is not mistaken for a huge entry. */
+    private static final int MAX_ENTRY_SIZE = 1 << 24;
+    /**
+     * Largest username, email, or screen name that can be logged, in UTF-8 bytes. An entry holds at most four of them
+     * next to a scheme, salt, and hash that are far smaller, so no entry can grow past MAX_ENTRY_SIZE.
+     */
+    static final int MAX_FIELD_SIZE = 1 << 20;
+
+    /** Prefix of segment file names, followed by the segment's number. */
+    private static final String SEGMENT_PREFIX = "wal-";
+    /** Suffix of segment file names. */
+    private static final String SEGMENT_SUFFIX = ".log";
+    /** Prefix of snapshot file names, followed by the number of the first segment to replay over it. */
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    /** Suffix of snapshot file names. */
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    /** Suffix of snapshot files that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Directory holding the segment and snapshot files. */
+    private final Path _directory;
+    /** Size past which the current segment is closed and a new one started. */
+    private final long _segmentSize;
+
+    /** Entries appended but not yet written. Guarded by this. */
+    private final ByteArrayOutputStream _pending;
+    /** Number of bytes appended since the log was opened. Guarded by this. */
+    private long _appended;
+
+    /** Guards writing, forcing, and switching segments. Taken before this, never after. */
+    private final Object _syncLock;
+    /** Channel of the current segment. Guarded by _syncLock. */
+    private FileChannel _channel;
+    /** Number of the current segment. Guarded by _syncLock. */
+    private long _segment;
+    /** Number of bytes written to the current segment. Guarded by _syncLock. */
+    private long _segmentBytes;
+    /** First failure to write or force the log, after which every sync fails. Guarded by _syncLock. */
+    private IOException _failure;
+    /** Number of appended bytes that have been forced to disk. */
+    private volatile long _synced;
+
+    /** Guards taking snapshots. */
+    private final Object _snapshotLock;
+    /** Number of bytes written to segments since the last snapshot. */
+    private final AtomicLong _bytesSinceSnapshot;
+    /** Number of times the log was forced to disk. */
+    private final LongAdder _syncs;
+    /** Number of snapshots taken. */
+    private final LongAdder _snapshots;
+    /** Number of users loaded from a snapshot on recovery. */
+    private long _recoveredSnapshotUsers;
+    /** Number of entries replayed from segments on recovery. */
+    private long _replayedEntries;
+
+    /**
+     * Creates a new WriteAheadLog over the given directory. Nothing is read or written until recover() is called.
+     * @param directory the directory holding the segment and snapshot files.
+     * @param segmentSize the size past which a segment is closed and a new one started.
+     */
+    WriteAheadLog(Path directory, long segmentSize) {
+        _directory = directory;
+        _segmentSize = segmentSize;
+        _pending = new ByteArrayOutputStream();
+        _syncLock = new Object();
+        _snapshotLock = new Object();
+        _bytesSinceSnapshot = new AtomicLong();
+        _syncs = new LongAdder();
+        _snapshots = new LongAdder();
+    }
+
+    /**
+     * Loads the latest snapshot and replays every later segment into a directory, then starts a new segment for new
+     * entries. A torn or corrupt entry ends the replay; it and everything after it is discarded.
+     * @param users the directory to restore the records into.
+     * @throws IOException if the files could not be read, or the new segment could not be created.
+     */
+    void recover(EphemeralUserDirectory users) throws IOException {
+        Files.createDirectories(_directory);
+        List<Long> snapshots = new ArrayList<>();
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(_directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // left behind by a snapshot that never finished
+                    Files.delete(file);
+                } else if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+                    snapshots.add(number(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX));
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(number(name, SEGMENT_PREFIX, SEGMENT_SUFFIX));
+                }
+            }
+        }
+        Collections.sort(segments);
+
+        long first = 0;
+        if (!snapshots.isEmpty()) {
+            first = Collections.max(snapshots);
+            loadSnapshot(snapshotPath(first), users);
+        }
+        long last = first;
+        boolean intact = true;
+        for (long segment : segments) {
+            Path path = segmentPath(segment);
+            if (segment < first || !intact) {
+                // covered by the snapshot, or written after an entry that was lost
+                Files.delete(path);
+                continue;
+            }
+            intact = replaySegment(path, users);
+            last = segment;
+        }
+
+        synchronized (_syncLock) {
+            _segment = last + 1;
+            _channel = openSegment(_segment);
+            _segmentBytes = 0;
+        }
+    }
+
+    /**
+     * Retrieves the number of users loaded from a snapshot by recover().
+     * @return the number of users loaded from a snapshot.
+     */
+    long getRecoveredSnapshotUsers() {
+        return _recoveredSnapshotUsers;
+    }
+
+    /**
+     * Retrieves the number of entries replayed from segments by recover().
+     * @return the number of replayed entries.
+     */
+    long getReplayedEntryCount() {
+        return _replayedEntries;
+    }
+
+    /**
+     * Retrieves the number of times the log was forced to disk.
+     * @return the number of syncs.
+     */
+    long getSyncCount() {
+        return _syncs.sum();
+    }
+
+    /**
+     * Retrieves the number of snapshots taken.
+     * @return the number of snapshots.
+     */
+    long getSnapshotCount() {
+        return _snapshots.sum();
+    }
+
+    /**
+     * Retrieves the number of bytes written to segments since the last snapshot, which recovery would have to replay.
+     * @return the number of bytes since the last snapshot.
+     */
+    long getBytesSinceSnapshot() {
+        return _bytesSinceSnapshot.get();
+    }
+
+    @Override
+    public void recordPut(UserData data, String scheme, byte[] salt, byte[] hashed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(PUT);
+            writeRecord(out, data, scheme, salt, hashed);
+        } catch (IOException e) {
+            // writing to memory never fails
+            throw new IllegalStateException(e);
+        }
+        append(bytes.toByteArray());
+    }
+
+    @Override
+    public void recordRemoved(String username) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(REMOVE);
+            writeString(out, username);
+        } catch (IOException e) {
+            // writing to memory never fails
+            throw new IllegalStateException(e);
+        }
+        append(bytes.toByteArray());
+    }
+
+    @Override
+    public void recordRenamed(String username, UserData data, String scheme, byte[] salt, byte[] hashed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RENAME);
+            writeString(out, username);
+            writeRecord(out, data, scheme, salt, hashed);
+        } catch (IOException e) {
+            // writing to memory never fails
+            throw new IllegalStateException(e);
+        }
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Writes and forces to disk every entry appended before the call, sharing the write and force with any concurrent
+     * callers.
+     * @throws IOException if the log could not be written or forced, now or by an earlier sync.
+     */
+    void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = _appended;
+        }
+        synchronized (_syncLock) {
+            if (_failure != null) {
+                throw _failure;
+            }
+            // an earlier caller may have already forced this caller's entries along with its own
+            if (_synced >= target) {
+                return;
+            }
+            flush();
+            if (_segmentBytes >= _segmentSize) {
+                startSegment();
+            }
+        }
+    }
+
+    /**
+     * Checks that no earlier sync has failed.
+     * @throws IOException the failure of the first sync that failed.
+     */
+    void checkHealthy() throws IOException {
+        synchronized (_syncLock) {
+            if (_failure != null) {
+                throw _failure;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of every record in a directory, then deletes the snapshots and segments it replaces.
+     * @param users the directory to snapshot, which must be the directory this log is listening to.
+     * @throws IOException if the snapshot could not be written.
+     */
+    void snapshot(EphemeralUserDirectory users) throws IOException {
+        synchronized (_snapshotLock) {
+            long first;
+            synchronized (_syncLock) {
+                if (_failure != null) {
+                    throw _failure;
+                }
+                // every entry of a change the snapshot might miss is appended after this point, into the new segment
+                flush();
+                first = startSegment();
+                _bytesSinceSnapshot.set(0);
+            }
+
+            Path temp = _directory.resolve(SNAPSHOT_PREFIX + first + TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeLong(SNAPSHOT_MAGIC);
+                final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+                users.forEachRecord((data, scheme, salt, hashed) -> {
+                    entry.reset();
+                    DataOutputStream entryOut = new DataOutputStream(entry);
+                    entryOut.writeByte(PUT);
+                    writeRecord(entryOut, data, scheme, salt, hashed);
+                    writeFrame(out, entry.toByteArray());
+                });
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, snapshotPath(first), StandardCopyOption.ATOMIC_MOVE);
+            // the files the snapshot replaces may only be deleted once its rename is sure to survive a crash
+            forceDirectory();
+            _snapshots.increment();
+
+            // the new snapshot replaces every older snapshot and segment
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(_directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if ((name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX) && number(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX) < first)
+                            || (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && number(name, SEGMENT_PREFIX, SEGMENT_SUFFIX) < first)) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes and forces every appended entry, then closes the current segment.
+     * @throws IOException if the entries could not be written, or the segment could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (_syncLock) {
+            try {
+                if (_failure == null) {
+                    flush();
+                }
+            } finally {
+                _channel.close();
+            }
+        }
+    }
+
+    /**
+     * Adds a framed entry to the entries waiting to be written.
+     * @param payload the entry.
+     */
+    private void append(byte[] payload) {
+        synchronized (this) {
+            int before = _pending.size();
+            try {
+                writeFrame(new DataOutputStream(_pending), payload);
+            } catch (IOException e) {
+                // writing to memory never fails
+                throw new IllegalStateException(e);
+            }
+            _appended += _pending.size() - before;
+        }
+    }
+
+    /**
+     * Writes every pending entry to the current segment and forces it to disk. Must be called while holding _syncLock.
+     * @throws IOException if the entries could not be written or forced.
+     */
+    private void flush() throws IOException {
+        byte[] bytes;
+        long upTo;
+        synchronized (this) {
+            bytes = _pending.toByteArray();
+            _pending.reset();
+            upTo = _appended;
+        }
+        if (bytes.length == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                _channel.write(buffer);
+            }
+            _channel.force(false);
+        } catch (IOException e) {
+            // the segment may now end in a torn entry, so nothing more can safely be written after it
+            _failure = e;
+            LOGGER.log(Level.SEVERE, "Failed to write the write-ahead log: ", e);
+            throw e;
+        }
+        _segmentBytes += bytes.length;
+        _bytesSinceSnapshot.addAndGet(bytes.length);
+        _synced = upTo;
+        _syncs.increment();
+    }
+
+    /**
+     * Closes the current segment and starts the next one. Must be called while holding _syncLock, after flush().
+     * @return the number of the new segment.
+     * @throws IOException if the new segment could not be created.
+     */
+    private long startSegment() throws IOException {
+        _channel.close();
+        _segment++;
+        _channel = openSegment(_segment);
+        _segmentBytes = 0;
+        return _segment;
+    }
+
+    /**
+     * Creates a new segment file.
+     * @param segment the number of the segment.
+     * @return a channel appending to the segment.
+     * @throws IOException if the segment could not be created.
+     */
+    private FileChannel openSegment(long segment) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            // forcing the segment doesn't force its directory entry, and entries synced into the segment must not be
+            // lost with it
+            forceDirectory();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Forces the log's directory to disk, so files created in or renamed into it survive a crash.
+     * @throws IOException if the directory could not be forced.
+     */
+    private void forceDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(_directory, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * Restores every record in a snapshot file into a directory.
+     * @param path the path of the snapshot.
+     * @param users the directory to restore the records into.
+     * @throws IOException if the snapshot could not be read or is corrupt.
+     */
+    private void loadSnapshot(Path path, EphemeralUserDirectory users) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readLong() != SNAPSHOT_MAGIC) {
+                throw new IOException("\"" + path + "\" is not a snapshot.");
+            }
+            byte[] payload;
+            while ((payload = readFrame(in)) != null) {
+                apply(payload, users);
+                _recoveredSnapshotUsers++;
+            }
+        }
+    }
+
+    /**
+     * Replays every entry in a segment file into a directory. If the segment ends in a torn or corrupt entry, the
+     * segment is truncated before it.
+     * @param path the path of the segment.
+     * @param users the directory to replay the entries into.
+     * @return true if every entry in the segment was intact, false if the segment was truncated.
+     * @throws IOException if the segment could not be read or truncated.
+     */
+    private boolean replaySegment(Path path, EphemeralUserDirectory users) throws IOException {
+        long valid = 0;
+        boolean intact = true;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)));
+             DataInputStream in = new DataInputStream(counter)) {
+            byte[] payload;
+            while ((payload = readFrame(in)) != null) {
+                apply(payload, users);
+                _replayedEntries++;
+                valid = counter._count;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Discarding torn or corrupt write-ahead log entries in \"" + path + "\" after byte " + valid + ": ", e);
+            intact = false;
+        }
+        if (!intact) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+        return intact;
+    }
+
+    /**
+     * Applies a log or snapshot entry to a directory.
+     * @param payload the entry.
+     * @param users the directory to apply the entry to.
+     * @throws IOException if the entry is malformed.
+     */
+    private static void apply(byte[] payload, EphemeralUserDirectory users) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case PUT:
+                readRecord(in, users);
+                break;
+            case REMOVE:
+                users.restoreRemove(readString(in));
+                break;
+            case RENAME:
+                users.restoreRemove(readString(in));
+                readRecord(in, users);
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log entry type: " + type + ".");
+        }
+    }
+
+    /**
+     * Writes an entry preceded by its length and CRC-32.
+     * @param out the stream to write to.
+     * @param payload the entry.
+     * @throws IOException if the stream fails.
+     */
+    private static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Reads an entry written by writeFrame().
+     * @param in the stream to read from.
+     * @return the entry, or null if the stream ended cleanly before it.
+     * @throws IOException if the stream ended partway through the entry, or the entry is corrupt.
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_ENTRY_SIZE) {
+            throw new IOException("Invalid entry length: " + length + ".");
+        }
+        int expected = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Entry failed its CRC check.");
+        }
+        return payload;
+    }
+
+    /**
+     * Checks if a username, email, or screen name is small enough to log. Writers must check every value before it
+     * changes the directory, since an entry too large for recovery to read would lose it and everything logged after.
+     * @param value the value to check, or null.
+     * @return true if the value is at most MAX_FIELD_SIZE bytes of UTF-8, false otherwise.
+     */
+    static boolean isLoggable(String value) {
+        // a UTF-16 char never takes more than three bytes of UTF-8, so short values don't need encoding
+        return value == null || (long) value.length() * 3 <= MAX_FIELD_SIZE
+                || value.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_SIZE;
+    }
+
+    /**
+     * Writes a user's data, hashing scheme, salt, and hashed password.
+     * @param out the stream to write to.
+     * @param data the user's username, email, and screen name.
+     * @param scheme the id of the hasher the user's password was hashed with.
+     * @param salt the salt used to hash the user's password.
+     * @param hashed the user's hashed password.
+     * @throws IOException if the stream fails.
+     */
+    private static void writeRecord(DataOutputStream out, UserData data, String scheme, byte[] salt, byte[] hashed) throws IOException {
+        writeString(out, data.getUsername());
+        writeString(out, data.getEmail());
+        writeString(out, data.getScreenName());
+        writeString(out, scheme);
+        out.writeInt(salt.length);
+        out.write(salt);
+        out.writeInt(hashed.length);
+        out.write(hashed);
+    }
+
+    /**
+     * Reads a record written by writeRecord() and restores it into a directory.
+     * @param in the stream to read from.
+     * @param users the directory to restore the record into.
+     * @throws IOException if the record is malformed.
+     */
+    private static void readRecord(DataInputStream in, EphemeralUserDirectory users) throws IOException {
+        UserData data = new UserData(readString(in), readString(in), readString(in));
+        String scheme = readString(in);
+        byte[] salt = new byte[in.readInt()];
+        in.readFully(salt);
+        byte[] hashed = new byte[in.readInt()];
+        in.readFully(hashed);
+        users.restorePut(data, scheme, salt, hashed);
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its UTF-8 bytes, or -1 if the string is null.
+     * @param out the stream to write to.
+     * @param value the string to write.
+     * @throws IOException if the stream fails.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString().
+     * @param in the stream to read from.
+     * @return the string, or null if a null string was written.
+     * @throws IOException if the string is malformed.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds the path of a segment file.
+     * @param segment the number of the segment.
+     * @return the path of the segment.
+     */
+    private Path segmentPath(long segment) {
+        return _directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Builds the path of a snapshot file.
+     * @param segment the number of the first segment to replay over the snapshot.
+     * @return the path of the snapshot.
+     */
+    private Path snapshotPath(long segment) {
+        return _directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Parses the number out of a segment or snapshot file name.
+     * @param name the file name.
+     * @param prefix the prefix before the number.
+     * @param suffix the suffix after the number.
+     * @return the number in the file name.
+     */
+    private static long number(String name, String prefix, String suffix) {
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    /**
+     * Input stream that counts the bytes read through it, so the end of the last intact entry is known.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        /** Number of bytes read. */
+        private long _count;
+
+        /**
+         * Creates a new CountingInputStream.
+         * @param in the stream to count.
+         */
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                _count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                _count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            _count += skipped;
+            return skipped;
+        }
+    }
+}
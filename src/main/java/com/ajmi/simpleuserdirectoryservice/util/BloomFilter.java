@@ -0,0 +1,153 @@
+package com.ajmi.simpleuserdirectoryservice.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter of strings. Answers whether a string might have been added, with no false negatives and a
+ * false positive rate that grows as more strings are added. Strings cannot be removed.
+ */
+public class BloomFilter {
+
+    /** Number of bits in the filter. */
+    private final long _bitCount;
+    /** Number of bits set for each string. */
+    private final int _hashCount;
+    /** The filter's bits, packed 64 to a word. */
+    private final AtomicLongArray _words;
+
+    /**
+     * Creates a new, empty BloomFilter sized to hold the given number of strings at the given false positive rate.
+     * @param expectedInsertions the number of strings the filter is expected to hold.
+     * @param falsePositiveRate the desired false positive rate once the filter holds the expected number of strings,
+     * between zero and one exclusive.
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions < 1) {
+            throw new IllegalArgumentException("Invalid expected insertions: " + expectedInsertions + ".");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate + ".");
+        }
+        // optimal number of bits and hash functions for n insertions at rate p
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+        _words = new AtomicLongArray(words);
+        _bitCount = (long) words * 64;
+        _hashCount = Math.max(1, (int) Math.round((double) _bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * Adds a string to the filter.
+     * @param value the string to add.
+     */
+    public void put(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < _hashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, _bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = _words.get(word)) & mask) == 0) {
+                if (_words.compareAndSet(word, current, current | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a string might have been added to the filter.
+     * @param value the string to check for.
+     * @return false if the string was definitely never added, true if it might have been.
+     */
+    public boolean mightContain(String value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < _hashCount; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, _bitCount);
+            if ((_words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the probability that mightContain() returns true for a string that was never added, based on how many
+     * of the filter's bits are currently set.
+     * @return the expected false positive rate, between zero and one.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow((double) getSetBitCount() / _bitCount, _hashCount);
+    }
+
+    /**
+     * Estimates the number of distinct strings added to the filter from how many of its bits are set.
+     * @return the approximate number of distinct strings in the filter.
+     */
+    public long getApproximateElementCount() {
+        double fractionSet = (double) getSetBitCount() / _bitCount;
+        if (fractionSet >= 1) {
+            return Long.MAX_VALUE;
+        }
+        return Math.round(-_bitCount * Math.log(1 - fractionSet) / _hashCount);
+    }
+
+    /**
+     * Retrieves the number of bytes used by the filter's bits.
+     * @return the size of the filter's bit array in bytes.
+     */
+    public long getMemoryBytes() {
+        return _bitCount / 8;
+    }
+
+    /**
+     * Retrieves the number of bits set for each string added to the filter.
+     * @return the number of hash functions.
+     */
+    public int getHashCount() {
+        return _hashCount;
+    }
+
+    /**
+     * Counts the bits currently set in the filter.
+     * @return the number of set bits.
+     */
+    private long getSetBitCount() {
+        long count = 0;
+        for (int i = 0; i < _words.length(); i++) {
+            count += Long.bitCount(_words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Computes a 64-bit hash of a string's characters.
+     * @param value the string to hash.
+     * @return the string's hash.
+     */
+    private static long hash(String value) {
+        // FNV-1a over the UTF-16 code units, finished with a mix to spread the bits
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Scrambles the bits of a 64-bit value, using the finalizer of MurmurHash3.
+     * @param value the value to scramble.
+     * @return the scrambled value.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,173 @@
+package com.ajmi.simpleuserdirectoryservice.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe histogram of latencies in nanoseconds. Like an HDR histogram, values are counted in buckets whose width
+ * doubles with every power of two, each split into 64 linear sub-buckets, so any recorded value is reported within
+ * 1/64th of its true value while the whole range from one nanosecond to over an hour fits in a few thousand counters.
+ *
+ * Recording is lock-free and never allocates, so it can be done on every call of a hot path. Snapshots are taken
+ * without stopping recorders, so a snapshot taken under load may miss values recorded while it was being taken.
+ */
+public class LatencyHistogram {
+
+    /** Number of bits of precision kept for each value. */
+    private static final int SUB_BUCKET_BITS = 7;
+    /** Number of sub-buckets in each power of two above the first. */
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << (SUB_BUCKET_BITS - 1);
+    /** Largest value counted in its own bucket, about 73 minutes; larger values are counted in the last bucket. */
+    private static final long HIGHEST_TRACKABLE_VALUE = (1L << 42) - 1;
+    /** Number of buckets. */
+    private static final int BUCKET_COUNT = index(HIGHEST_TRACKABLE_VALUE) + 1;
+
+    /** Number of values recorded in each bucket. */
+    private final AtomicLongArray _counts;
+    /** Sum of every recorded value. */
+    private final LongAdder _sum;
+    /** Largest recorded value. */
+    private final LongAccumulator _max;
+
+    /**
+     * Creates a new, empty LatencyHistogram.
+     */
+    public LatencyHistogram() {
+        _counts = new AtomicLongArray(BUCKET_COUNT);
+        _sum = new LongAdder();
+        _max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a latency. Negative values are recorded as zero.
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        _counts.incrementAndGet(index(Math.min(value, HIGHEST_TRACKABLE_VALUE)));
+        _sum.add(value);
+        _max.accumulate(value);
+    }
+
+    /**
+     * Copies the histogram's current counts.
+     * @return a snapshot of the histogram.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = _counts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, _sum.sum(), _max.get());
+    }
+
+    /**
+     * Selects the bucket a value is counted in.
+     * @param value the value, between zero and HIGHEST_TRACKABLE_VALUE.
+     * @return the index of the value's bucket.
+     */
+    private static int index(long value) {
+        // values with no more significant bits than the precision are counted exactly
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Finds the largest value counted in a bucket.
+     * @param index the index of the bucket.
+     * @return the largest value the bucket counts.
+     */
+    private static long highestValue(int index) {
+        int shift = Math.max(0, index / SUB_BUCKET_HALF_COUNT - 1);
+        long subBucket = index - (long) shift * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram's counts.
+     */
+    public static class Snapshot {
+
+        /** Number of values recorded in each bucket. */
+        private final long[] _counts;
+        /** Number of values recorded. */
+        private final long _count;
+        /** Sum of every recorded value. */
+        private final long _sum;
+        /** Largest recorded value. */
+        private final long _max;
+
+        /**
+         * Creates a new Snapshot.
+         * @param counts the number of values recorded in each bucket.
+         * @param count the number of values recorded.
+         * @param sum the sum of every recorded value.
+         * @param max the largest recorded value.
+         */
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            _counts = counts;
+            _count = count;
+            _sum = sum;
+            _max = max;
+        }
+
+        /**
+         * Retrieves the number of recorded values.
+         * @return the number of values recorded.
+         */
+        public long getCount() {
+            return _count;
+        }
+
+        /**
+         * Retrieves the sum of the recorded values.
+         * @return the sum of every recorded value in nanoseconds.
+         */
+        public long getSum() {
+            return _sum;
+        }
+
+        /**
+         * Retrieves the largest recorded value.
+         * @return the largest recorded value in nanoseconds, or zero if none have been recorded.
+         */
+        public long getMax() {
+            return _max;
+        }
+
+        /**
+         * Retrieves the mean of the recorded values.
+         * @return the mean in nanoseconds, or zero if no values have been recorded.
+         */
+        public double getMean() {
+            return _count == 0 ? 0 : (double) _sum / _count;
+        }
+
+        /**
+         * Finds the value that the given fraction of recorded values are less than or equal to.
+         * @param quantile the fraction of values, between zero and one inclusive.
+         * @return the value at the quantile in nanoseconds, within 1/64th of the true value and never more than the
+         * largest recorded value, or zero if no values have been recorded.
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (!(quantile >= 0 && quantile <= 1)) {
+                throw new IllegalArgumentException("Invalid quantile: " + quantile + ".");
+            }
+            if (_count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * _count));
+            long seen = 0;
+            for (int i = 0; i < _counts.length; i++) {
+                seen += _counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), _max);
+                }
+            }
+            return _max;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.ajmi.simpleuserdirectoryservice.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent calls for the same key into one. The first caller for a key makes the call; callers that arrive
+ * while it is in flight wait for it and share its result, or its exception, instead of making their own. Once the call
+ * finishes, the next caller for the key makes a new one, so nothing is cached.
+ *
+ * A caller that changes what a key's call would return should call forget() once its change is made, so callers after
+ * it don't share a result read before the change.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ */
+public class SingleFlight<K, V> {
+
+    /** Call in flight for each key. */
+    private final ConcurrentHashMap<K, Flight<V>> _flights;
+    /** Number of calls made. */
+    private final LongAdder _calls;
+    /** Number of callers that shared another caller's call instead of making one. */
+    private final LongAdder _shared;
+
+    /**
+     * Creates a new SingleFlight with no calls in flight.
+     */
+    public SingleFlight() {
+        _flights = new ConcurrentHashMap<>();
+        _calls = new LongAdder();
+        _shared = new LongAdder();
+    }
+
+    /**
+     * Makes a call for a key, or waits for the call already in flight for it. Waiting is not interrupted, but a waiter
+     * that is interrupted returns with its interrupt status set. Every caller for a key must pass a call throwing the
+     * same type of checked exception, since waiters rethrow the exception of whichever call they shared.
+     * @param key the key.
+     * @param call the call to make if none is in flight for the key.
+     * @param <E> the type of checked exception the call throws.
+     * @return the result of the call.
+     * @throws E if the call threw it.
+     */
+    public <E extends Exception> V execute(K key, Call<V, E> call) throws E {
+        Flight<V> flight = new Flight<>();
+        Flight<V> inFlight = _flights.putIfAbsent(key, flight);
+        if (inFlight != null) {
+            _shared.increment();
+            return inFlight.await();
+        }
+        _calls.increment();
+        try {
+            V result = call.call();
+            flight.complete(result, null);
+            return result;
+        } catch (Throwable t) {
+            flight.complete(null, t);
+            throw t;
+        } finally {
+            _flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Stops callers from sharing the call in flight for a key, so the next caller makes a new call.
+     * @param key the key.
+     */
+    public void forget(K key) {
+        _flights.remove(key);
+    }
+
+    /**
+     * Retrieves the number of calls made.
+     * @return the number of calls.
+     */
+    public long getCallCount() {
+        return _calls.sum();
+    }
+
+    /**
+     * Retrieves the number of callers that shared a call already in flight instead of making their own.
+     * @return the number of shared calls.
+     */
+    public long getSharedCount() {
+        return _shared.sum();
+    }
+
+    /**
+     * Call whose result can be shared.
+     * @param <V> the type of the result.
+     * @param <E> the type of checked exception the call throws.
+     */
+    @FunctionalInterface
+    public interface Call<V, E extends Exception> {
+        /**
+         * Makes the call.
+         * @return the result.
+         * @throws E if the call fails.
+         */
+        V call() throws E;
+    }
+
+    /**
+     * Result of a call in flight, set once when the call finishes.
+     * @param <V> the type of the result.
+     */
+    private static final class Flight<V> {
+        /** Released when the call finishes. */
+        private final CountDownLatch _done;
+        /** Result of the call, if it returned. */
+        private V _result;
+        /** Exception thrown by the call, or null if it returned. */
+        private Throwable _failure;
+
+        /**
+         * Creates a new Flight whose call has not finished.
+         */
+        private Flight() {
+            _done = new CountDownLatch(1);
+        }
+
+        /**
+         * Records how the call finished and releases its waiters.
+         * @param result the result of the call, if it returned.
+         * @param failure the exception thrown by the call, or null if it returned.
+         */
+        private void complete(V result, Throwable failure) {
+            _result = result;
+            _failure = failure;
+            // the latch publishes the fields to the waiters
+            _done.countDown();
+        }
+
+        /**
+         * Waits for the call to finish.
+         * @param <E> the type of checked exception the call throws.
+         * @return the result of the call.
+         * @throws E if the call threw it.
+         */
+        @SuppressWarnings("unchecked")
+        private <E extends Exception> V await() throws E {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    _done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (_failure == null) {
+                return _result;
+            }
+            if (_failure instanceof RuntimeException) {
+                throw (RuntimeException) _failure;
+            }
+            if (_failure instanceof Error) {
+                throw (Error) _failure;
+            }
+            throw (E) _failure;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ajmi.simpleuserdirectoryservice.util;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Thread-safe, lock-free token bucket. The bucket holds up to a fixed number of tokens, refilled at a fixed rate, and
+ * each permitted event takes one.
+ *
+ * Rather than a token count and the time it was last refilled, the bucket keeps only the time at which it will be full
+ * again, so taking a token is a single compare-and-set of one long and never allocates. A bucket that is already full
+ * is indistinguishable from a new one, so callers keeping many buckets can drop full ones without changing what they
+ * permit.
+ *
+ * Times are nanosecond timestamps from System.nanoTime(), passed in by the caller so one clock read can serve several
+ * buckets.
+ */
+public class TokenBucket {
+
+    /** Updates _fullAt without wrapping it in an AtomicLong. */
+    private static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+            AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "_fullAt");
+
+    /** Nanoseconds it takes to refill one token. */
+    private final long _nanosPerToken;
+    /** Nanoseconds it takes to refill an empty bucket. */
+    private final long _nanosToFill;
+    /** Time at which the bucket will be full again, or any time in the past if it is full. */
+    private volatile long _fullAt;
+
+    /**
+     * Creates a new, full TokenBucket.
+     * @param capacity the maximum number of tokens the bucket holds.
+     * @param nanosPerToken the nanoseconds it takes to refill one token.
+     * @param now the current time in nanoseconds.
+     */
+    public TokenBucket(int capacity, long nanosPerToken, long now) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid token bucket capacity: " + capacity + ".");
+        }
+        if (nanosPerToken < 1) {
+            throw new IllegalArgumentException("Invalid token refill time: " + nanosPerToken + ".");
+        }
+        _nanosPerToken = nanosPerToken;
+        _nanosToFill = Math.multiplyExact(capacity, nanosPerToken);
+        _fullAt = now;
+    }
+
+    /**
+     * Takes a token if the bucket has one.
+     * @param now the current time in nanoseconds.
+     * @return true if a token was taken, false if the bucket is empty.
+     */
+    public boolean tryAcquire(long now) {
+        while (true) {
+            long fullAt = _fullAt;
+            // a bucket that filled up in the past is full now, not fuller
+            long next = (fullAt - now < 0 ? now : fullAt) + _nanosPerToken;
+            if (next - now > _nanosToFill) {
+                return false;
+            }
+            if (FULL_AT.compareAndSet(this, fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Counts the tokens the bucket holds.
+     * @param now the current time in nanoseconds.
+     * @return the number of whole tokens in the bucket.
+     */
+    public long getAvailableTokens(long now) {
+        long missing = Math.max(0, _fullAt - now);
+        return (_nanosToFill - missing) / _nanosPerToken;
+    }
+
+    /**
+     * Checks if the bucket is full, and so could be replaced by a new bucket without changing what it permits.
+     * @param now the current time in nanoseconds.
+     * @return true if the bucket holds every token it can, false otherwise.
+     */
+    public boolean isFull(long now) {
+        return _fullAt - now <= 0;
+    }
+}
@@ -1,11 +1,25 @@
 package com.ajmi.simpleuserdirectoryservice.tests.cryptography;
 
 import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import org.bouncycastle.jcajce.provider.digest.SHA3;
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static javax.xml.bind.DatatypeConverter.parseHexBinary;
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -146,4 +160,143 @@ public class TestPasswordCrypt {
             // expected
         }
     }
+
+    /**
+     * Tests that hashing with a byte array salt produces the same hash as hashing with the salt's hex string.
+     */
+    @Test
+    public void testBinaryHashMatchesHex() {
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        String pass = "qwerty";
+
+        byte[] hash = PasswordCrypt.hashPassword(pass, salt);
+
+        assertEquals(PasswordCrypt.SALT_LENGTH, salt.length);
+        assertEquals(PasswordCrypt.HASH_LENGTH, hash.length);
+        assertEquals(PasswordCrypt.hashPassword(pass, printHexBinary(salt)), printHexBinary(hash));
+        assertArrayEquals(hash, parseHexBinary(PasswordCrypt.hashPassword(pass, printHexBinary(salt))));
+    }
+
+    /**
+     * Tests that verifyPassword() accepts the right password and rejects a wrong one.
+     */
+    @Test
+    public void testVerifyPassword() {
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        byte[] hash = PasswordCrypt.hashPassword("qwerty", salt);
+
+        assertTrue(PasswordCrypt.verifyPassword("qwerty", salt, hash));
+        assertFalse(PasswordCrypt.verifyPassword("qwertz", salt, hash));
+        assertFalse(PasswordCrypt.verifyPassword("qwerty", PasswordCrypt.nextSaltBytes(), hash));
+    }
+
+    /**
+     * Tests that an Illegal Argument Exception is thrown when trying to hash a password with an empty byte array salt.
+     */
+    @Test
+    public void testHashEmptyBinarySalt() {
+        try {
+            PasswordCrypt.hashPassword("qwerty", new byte[0]);
+            // if the program doesn't crash, then the test failed.
+            fail("Failed to throw an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that hashing with the reused per-thread buffers produces the same hash as hashing the password's UTF-8
+     * bytes directly, including non-ASCII, unpaired surrogate, and long passwords.
+     */
+    @Test
+    public void testHashMatchesReference() {
+        StringBuilder longPassword = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            longPassword.append((char) ('a' + i % 26));
+        }
+        String[] passwords = {"qwerty", "p\u00e4ssw\u00f6rd", "\u5bc6\u7801", "\ud83d\udd11key", "\ud800x\udc00", longPassword.toString()};
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        for (String password : passwords) {
+            SHA3.DigestSHA3 md = new SHA3.Digest512();
+            md.update(password.getBytes(StandardCharsets.UTF_8));
+            md.update(salt);
+            byte[] expected = md.digest();
+
+            assertArrayEquals(password, expected, PasswordCrypt.hashPassword(password, salt));
+            assertTrue(password, PasswordCrypt.verifyPassword(password, salt, expected));
+        }
+    }
+
+    /**
+     * Tests that verifyPassword() with hex strings accepts the right password and rejects a wrong one or a malformed
+     * hash.
+     */
+    @Test
+    public void testVerifyHexPassword() {
+        String salt = PasswordCrypt.nextSalt();
+        String hash = PasswordCrypt.hashPassword("qwerty", salt);
+
+        assertTrue(PasswordCrypt.verifyPassword("qwerty", salt, hash));
+        assertTrue(PasswordCrypt.verifyPassword("qwerty", salt.toLowerCase(), hash.toLowerCase()));
+        assertFalse(PasswordCrypt.verifyPassword("qwertz", salt, hash));
+        assertFalse(PasswordCrypt.verifyPassword("qwerty", salt, hash.substring(2)));
+        assertFalse(PasswordCrypt.verifyPassword("qwerty", salt, "not hex"));
+        assertFalse(PasswordCrypt.verifyPassword("qwerty", salt, (String) null));
+        try {
+            PasswordCrypt.verifyPassword("qwerty", "This is my salt.", hash);
+            // if the program doesn't crash, then the test failed.
+            fail("Failed to throw an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that salts generated concurrently by many threads, each with its own generator, never repeat.
+     */
+    @Test
+    public void testSaltUniquenessAcrossThreads() throws Exception {
+        int threads = 16;
+        int saltsPerThread = 2_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    List<String> salts = new ArrayList<>(saltsPerThread);
+                    for (int i = 0; i < saltsPerThread; i++) {
+                        salts.add(printHexBinary(PasswordCrypt.nextSaltBytes()));
+                    }
+                    return salts;
+                }));
+            }
+            Set<String> salts = new HashSet<>();
+            for (Future<List<String>> future : futures) {
+                salts.addAll(future.get());
+            }
+            assertEquals(threads * saltsPerThread, salts.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that every bit position of generated salts is set about half the time. With 20,000 salts, each position's
+     * count has a standard deviation of about 71, so the bounds sit more than 7 deviations from the mean.
+     */
+    @Test
+    public void testSaltBitBalance() {
+        int samples = 20_000;
+        int[] ones = new int[PasswordCrypt.SALT_LENGTH * 8];
+        for (int i = 0; i < samples; i++) {
+            byte[] salt = PasswordCrypt.nextSaltBytes();
+            assertEquals(PasswordCrypt.SALT_LENGTH, salt.length);
+            for (int bit = 0; bit < ones.length; bit++) {
+                ones[bit] += (salt[bit / 8] >> (bit % 8)) & 1;
+            }
+        }
+        for (int bit = 0; bit < ones.length; bit++) {
+            assertTrue("bit " + bit + " set " + ones[bit] + " times", Math.abs(ones[bit] - samples / 2) < 500);
+        }
+    }
 }
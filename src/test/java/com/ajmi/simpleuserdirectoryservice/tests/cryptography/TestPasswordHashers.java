@@ -0,0 +1,98 @@
+package com.ajmi.simpleuserdirectoryservice.tests.cryptography;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.Argon2PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordCrypt;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHashers;
+import com.ajmi.simpleuserdirectoryservice.cryptography.Pbkdf2PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.ScryptPasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.cryptography.Sha3PasswordHasher;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the PasswordHasher implementations and the PasswordHashers class.
+ */
+public class TestPasswordHashers {
+
+    /** Cheap instances of every hasher, so the tests run quickly. */
+    private static final PasswordHasher[] HASHERS = {
+            PasswordHashers.legacy(),
+            new Pbkdf2PasswordHasher(1000),
+            new Argon2PasswordHasher(1024, 1, 1),
+            new ScryptPasswordHasher(1024, 8, 1)
+    };
+
+    /**
+     * Tests that every hasher verifies the password it hashed, and rejects any other.
+     */
+    @Test
+    public void testVerify() {
+        for (PasswordHasher hasher : HASHERS) {
+            byte[] salt = PasswordCrypt.nextSaltBytes();
+            byte[] hashed = hasher.hash("qwerty", salt);
+            assertEquals(PasswordCrypt.HASH_LENGTH, hashed.length);
+            assertTrue(hasher.getId(), hasher.verify("qwerty", salt, hashed));
+            assertFalse(hasher.getId(), hasher.verify("qwertz", salt, hashed));
+            assertFalse(hasher.getId(), hasher.verify("qwerty", PasswordCrypt.nextSaltBytes(), hashed));
+        }
+    }
+
+    /**
+     * Tests that the legacy hasher hashes exactly as PasswordCrypt does, so existing hashes still verify.
+     */
+    @Test
+    public void testLegacyMatchesPasswordCrypt() {
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        assertEquals(Sha3PasswordHasher.ID, PasswordHashers.legacy().getId());
+        assertArrayEquals(PasswordCrypt.hashPassword("qwerty", salt), PasswordHashers.legacy().hash("qwerty", salt));
+    }
+
+    /**
+     * Tests that a hasher recreated from its id hashes the same as the original.
+     */
+    @Test
+    public void testForIdRoundTrip() {
+        for (PasswordHasher hasher : HASHERS) {
+            PasswordHasher recreated = PasswordHashers.forId(hasher.getId());
+            assertEquals(hasher.getId(), recreated.getId());
+            assertSame(recreated, PasswordHashers.forId(hasher.getId()));
+            byte[] salt = PasswordCrypt.nextSaltBytes();
+            assertArrayEquals(hasher.hash("qwerty", salt), recreated.hash("qwerty", salt));
+        }
+    }
+
+    /**
+     * Tests that unknown schemes and malformed parameters are rejected.
+     */
+    @Test
+    public void testForIdInvalid() {
+        String[] ids = {"md5", "pbkdf2-sha512", "pbkdf2-sha512$i=abc", "argon2id$m=1024,t=1", "scrypt$n=1000,r=8,p=1"};
+        for (String id : ids) {
+            try {
+                PasswordHashers.forId(id);
+                fail("Expected \"" + id + "\" to be rejected.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Tests that calibrating produces a working hasher of the requested scheme.
+     */
+    @Test
+    public void testCalibrate() {
+        PasswordHasher hasher = PasswordHashers.calibrate(Pbkdf2PasswordHasher.SCHEME, 5);
+        assertTrue(hasher.getId().startsWith(Pbkdf2PasswordHasher.SCHEME + "$"));
+        byte[] salt = PasswordCrypt.nextSaltBytes();
+        assertTrue(hasher.verify("qwerty", salt, hasher.hash("qwerty", salt)));
+        assertSame(PasswordHashers.legacy(), PasswordHashers.calibrate(Sha3PasswordHasher.ID, 5));
+    }
+}
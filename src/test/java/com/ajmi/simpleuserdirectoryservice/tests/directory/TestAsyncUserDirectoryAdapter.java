@@ -0,0 +1,107 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.directory.AsyncUserDirectoryAdapter;
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserAlreadyExistsException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the AsyncUserDirectoryAdapter class.
+ */
+public class TestAsyncUserDirectoryAdapter {
+
+    /**
+     * Tests that operations complete with the results of the wrapped directory.
+     */
+    @Test
+    public void testOperations() throws InterruptedException, ExecutionException {
+        try (AsyncUserDirectoryAdapter ud = new AsyncUserDirectoryAdapter(new EphemeralUserDirectory())) {
+            ud.addUser("foo", "bar", "baz", "qux").get();
+            assertTrue(ud.hasUser("foo").get());
+            assertEquals(new UserData("foo", "bar", "baz"), ud.getUserData("foo").get().get());
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux").get());
+            assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "quux").get());
+            assertTrue(ud.removeUser("foo").get());
+            assertFalse(ud.hasUser("foo").get());
+        }
+    }
+
+    /**
+     * Tests that an exception thrown by the wrapped directory completes the future exceptionally.
+     */
+    @Test
+    public void testExceptionalCompletion() throws InterruptedException, ExecutionException {
+        try (AsyncUserDirectoryAdapter ud = new AsyncUserDirectoryAdapter(new EphemeralUserDirectory())) {
+            ud.addUser("foo", "bar", "baz", "qux").get();
+            try {
+                ud.addUser("foo", "bar", "baz", "qux").get();
+                fail("Failed to throw an ExecutionException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof UserAlreadyExistsException);
+            }
+        }
+    }
+
+    /**
+     * Tests that lookups run on the I/O executor and hashing operations run on the hashing executor.
+     */
+    @Test
+    public void testCustomExecutors() throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        AtomicInteger ioTasks = new AtomicInteger();
+        AtomicInteger hashingTasks = new AtomicInteger();
+        Executor io = command -> {
+            ioTasks.incrementAndGet();
+            pool.execute(command);
+        };
+        Executor hashing = command -> {
+            hashingTasks.incrementAndGet();
+            pool.execute(command);
+        };
+        try {
+            AsyncUserDirectoryAdapter ud = new AsyncUserDirectoryAdapter(new EphemeralUserDirectory(), io, hashing);
+            ud.addUser("foo", "bar", "baz", "qux").get();
+            ud.authenticateUser("foo", "qux").get();
+            ud.hasUser("foo").get();
+            ud.getUserData("foo").get();
+            ud.updateEmail("foo", "quux").get();
+            assertEquals(2, hashingTasks.get());
+            assertEquals(3, ioTasks.get());
+            ud.close();
+            // executors passed in are not shut down by the adapter
+            assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Tests that many concurrent lookups complete in virtual thread mode.
+     */
+    @Test
+    public void testVirtualThreads() throws InterruptedException, ExecutionException {
+        try (AsyncUserDirectoryAdapter ud = AsyncUserDirectoryAdapter.withVirtualThreads(new EphemeralUserDirectory())) {
+            ud.addUser("foo", "bar", "baz", "qux").get();
+            List<CompletableFuture<Boolean>> lookups = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                lookups.add(ud.hasUser("foo"));
+            }
+            for (CompletableFuture<Boolean> lookup : lookups) {
+                assertTrue(lookup.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.directory.BloomFilterUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.ConnectionFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.ForwardingUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.PolicyFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.UserAlreadyExistsException;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the BloomFilterUserDirectory class.
+ */
+public class TestBloomFilterUserDirectory extends TestUserDirectory {
+
+    /**
+     * Creates a new BloomFilterUserDirectory wrapping an EphemeralUserDirectory.
+     * @return Returns a new BloomFilterUserDirectory.
+     */
+    @Override
+    protected UserDirectory create() {
+        try {
+            return new BloomFilterUserDirectory(new EphemeralUserDirectory(), 1000, 0.01);
+        } catch (ConnectionFailureException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tests that the filter is built from the users already in the wrapped directory, and rejects users that don't
+     * exist.
+     */
+    @Test
+    public void testRejections() throws UserDirectoryException {
+        EphemeralUserDirectory backing = new EphemeralUserDirectory();
+        backing.addUser("foo", "bar", "baz", "qux");
+        BloomFilterUserDirectory ud = new BloomFilterUserDirectory(backing, 1000, 0.01);
+
+        assertTrue(ud.hasUser("foo"));
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+        assertEquals(0, ud.getRejectionCount());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Authentication.INVALID_USERNAME, ud.authenticateUserDetailed("stranger" + i, "qux"));
+        }
+        assertEquals(100, ud.getRejectionCount() + ud.getFalsePositiveCount());
+        assertTrue(ud.getMemoryBytes() > 0);
+
+        List<String> usernames = new ArrayList<>();
+        usernames.add("foo");
+        for (int i = 100; i < 200; i++) {
+            usernames.add("stranger" + i);
+        }
+        assertEquals(Collections.singleton("foo"), ud.hasUsers(usernames));
+        assertEquals(Collections.singleton("foo"), ud.getUserData(usernames).keySet());
+        assertEquals(300, ud.getRejectionCount() + ud.getFalsePositiveCount());
+    }
+
+    /**
+     * Tests that rebuilding the filter forgets removed users and keeps the rest.
+     */
+    @Test
+    public void testRebuild() throws UserDirectoryException {
+        BloomFilterUserDirectory ud = new BloomFilterUserDirectory(new EphemeralUserDirectory(), 1000, 0.01);
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.addUser("corge", "bar", "baz", "qux");
+        ud.removeUser("foo");
+        double before = ud.getExpectedFalsePositiveRate();
+
+        ud.rebuild();
+        assertTrue(ud.getExpectedFalsePositiveRate() < before);
+        assertTrue(ud.hasUser("corge"));
+        assertFalse(ud.hasUser("foo"));
+    }
+
+    /**
+     * Tests that a user added while the filter is being rebuilt is never missing from the filter once it is in the
+     * wrapped directory, when the rebuild read the usernames before the user was added.
+     */
+    @Test
+    public void testAddDuringRebuild() throws UserDirectoryException, InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch added = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean blocking = new AtomicBoolean();
+        UserDirectory backing = new ForwardingUserDirectory(new EphemeralUserDirectory()) {
+            @Override
+            public void addUser(String username, String email, String screeName, String password)
+                    throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+                entered.countDown();
+                await(read);
+                super.addUser(username, email, screeName, password);
+                added.countDown();
+                await(release);
+            }
+
+            @Override
+            public Stream<String> streamUsers() throws ConnectionFailureException {
+                List<String> usernames = super.streamUsers().collect(Collectors.toList());
+                if (blocking.get()) {
+                    read.countDown();
+                }
+                return usernames.stream();
+            }
+        };
+        BloomFilterUserDirectory ud = new BloomFilterUserDirectory(backing, 1000, 0.01);
+        blocking.set(true);
+
+        Thread writer = new Thread(() -> {
+            try {
+                ud.addUser("foo", "bar", "baz", "qux");
+            } catch (UserDirectoryException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread rebuilder = new Thread(() -> {
+            try {
+                ud.rebuild();
+            } catch (ConnectionFailureException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        entered.await();
+        rebuilder.start();
+        added.await();
+        // give the rebuild time to publish a filter missing the user, which it must not do while the add is in flight
+        rebuilder.join(100);
+        assertTrue(ud.hasUser("foo"));
+
+        release.countDown();
+        writer.join();
+        rebuilder.join();
+        assertTrue(ud.hasUser("foo"));
+    }
+
+    /**
+     * Waits for a latch from a call that can't throw InterruptedException.
+     * @param latch the latch to wait for.
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.directory.CachingUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.ConnectionFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.ForwardingUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the CachingUserDirectory class.
+ */
+public class TestCachingUserDirectory extends TestUserDirectory {
+
+    /**
+     * Creates a new CachingUserDirectory wrapping an EphemeralUserDirectory.
+     * @return Returns a new CachingUserDirectory.
+     */
+    @Override
+    protected UserDirectory create() {
+        return new CachingUserDirectory(new EphemeralUserDirectory(), 1000, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Tests that repeated lookups are answered from the cache.
+     */
+    @Test
+    public void testHitsAndMisses() throws UserDirectoryException {
+        CachingUserDirectory ud = new CachingUserDirectory(new EphemeralUserDirectory(), 1000, 1, TimeUnit.MINUTES);
+        ud.addUser("foo", "bar", "baz", "qux");
+
+        assertTrue(ud.hasUser("foo"));
+        assertEquals(1, ud.getMissCount());
+        assertEquals(new UserData("foo", "bar", "baz"), ud.getUserData("foo").get());
+        assertTrue(ud.hasUser("foo"));
+        assertEquals(2, ud.getHitCount());
+        assertEquals(1, ud.getMissCount());
+    }
+
+    /**
+     * Tests that batch lookups are answered from the cache, and load only the users missing from it.
+     */
+    @Test
+    public void testBatchHitsAndMisses() throws UserDirectoryException {
+        CachingUserDirectory ud = new CachingUserDirectory(new EphemeralUserDirectory(), 1000, 1, TimeUnit.MINUTES);
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.addUser("corge", "bar", "baz", "qux");
+
+        assertTrue(ud.hasUser("foo"));
+        assertEquals(new HashSet<>(Arrays.asList("foo", "corge")),
+                ud.hasUsers(Arrays.asList("foo", "corge", "grault")));
+        assertEquals(1, ud.getHitCount());
+        assertEquals(3, ud.getMissCount());
+
+        // the missing user is cached too
+        assertEquals(2, ud.getUserData(Arrays.asList("foo", "corge", "grault")).size());
+        assertEquals(4, ud.getHitCount());
+        assertEquals(3, ud.getMissCount());
+    }
+
+    /**
+     * Tests that updates made through the cache are visible to the next lookup.
+     */
+    @Test
+    public void testInvalidation() throws UserDirectoryException {
+        CachingUserDirectory ud = new CachingUserDirectory(new EphemeralUserDirectory(), 1000, 1, TimeUnit.MINUTES);
+        assertFalse(ud.hasUser("foo"));
+        ud.addUser("foo", "bar", "baz", "qux");
+        assertTrue(ud.hasUser("foo"));
+
+        ud.updateEmail("foo", "quux");
+        assertEquals(new UserData("foo", "quux", "baz"), ud.getUserData("foo").get());
+
+        ud.updateUsername("foo", "corge");
+        assertFalse(ud.hasUser("foo"));
+        assertTrue(ud.hasUser("corge"));
+
+        ud.removeUser("corge");
+        assertFalse(ud.hasUser("corge"));
+    }
+
+    /**
+     * Tests that a load racing with an invalidation of the same user is not cached, while one racing with an
+     * invalidation of a user in another segment is.
+     */
+    @Test
+    public void testInvalidationDuringLoad() throws UserDirectoryException {
+        EphemeralUserDirectory backing = new EphemeralUserDirectory();
+        backing.addUser("foo", "bar", "baz", "qux");
+        String[] invalidateDuringLoad = {null};
+        CachingUserDirectory[] cache = {null};
+        cache[0] = new CachingUserDirectory(new ForwardingUserDirectory(backing) {
+            @Override
+            public Optional<UserData> getUserData(String username) throws ConnectionFailureException {
+                if (invalidateDuringLoad[0] != null) {
+                    cache[0].invalidate(invalidateDuringLoad[0]);
+                }
+                return super.getUserData(username);
+            }
+        }, 1000, 1, TimeUnit.MINUTES);
+
+        invalidateDuringLoad[0] = "foo";
+        assertTrue(cache[0].hasUser("foo"));
+        assertEquals(0, cache[0].getSize());
+
+        invalidateDuringLoad[0] = otherSegment("foo");
+        assertTrue(cache[0].hasUser("foo"));
+        assertEquals(1, cache[0].getSize());
+    }
+
+    /**
+     * Finds a username cached in a different segment than the given one.
+     * @param username the username.
+     * @return a username in another segment.
+     */
+    private static String otherSegment(String username) {
+        for (int i = 0; ; i++) {
+            String other = "other" + i;
+            if ((spread(other) & 15) != (spread(username) & 15)) {
+                return other;
+            }
+        }
+    }
+
+    /**
+     * Spreads a username's hash code the way the cache does when selecting a segment.
+     * @param username the username.
+     * @return the spread hash code.
+     */
+    private static int spread(String username) {
+        int hash = username.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Tests that the cache evicts users once it is full.
+     */
+    @Test
+    public void testEviction() throws UserDirectoryException {
+        CachingUserDirectory ud = new CachingUserDirectory(new EphemeralUserDirectory(), 16, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 1000; i++) {
+            ud.hasUser("user" + i);
+        }
+        assertTrue(ud.getSize() <= 16);
+        assertEquals(1000 - ud.getSize(), ud.getEvictionCount());
+    }
+
+    /**
+     * Tests that caches too small to give each segment the same share never hold more users than their maximum size.
+     */
+    @Test
+    public void testMaximumSize() throws UserDirectoryException {
+        for (int maximumSize : new int[] {1, 3, 100}) {
+            CachingUserDirectory ud = new CachingUserDirectory(new EphemeralUserDirectory(), maximumSize, 1,
+                    TimeUnit.MINUTES);
+            for (int i = 0; i < 1000; i++) {
+                ud.hasUser("user" + i);
+                assertTrue(ud.getSize() <= maximumSize);
+            }
+            assertTrue(ud.getSize() > 0);
+            assertEquals(1000 - ud.getSize(), ud.getEvictionCount());
+        }
+    }
+
+    /**
+     * Tests that cached users expire after their time to live.
+     */
+    @Test
+    public void testExpiration() throws UserDirectoryException, InterruptedException {
+        EphemeralUserDirectory backing = new EphemeralUserDirectory();
+        CachingUserDirectory ud = new CachingUserDirectory(backing, 1000, 10, TimeUnit.MILLISECONDS);
+        assertFalse(ud.hasUser("foo"));
+        // change the wrapped directory without going through the cache
+        backing.addUser("foo", "bar", "baz", "qux");
+        Thread.sleep(20);
+        assertTrue(ud.hasUser("foo"));
+        assertEquals(1, ud.getExpirationCount());
+    }
+}
@@ -0,0 +1,172 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.directory.ConnectionPool;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the ConnectionPool class.
+ */
+public class TestConnectionPool {
+
+    /** Number of fake connections opened by the current test. */
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * Opens a fake connection that only knows whether it has been closed.
+     * @return a new fake Connection.
+     */
+    private Connection fakeConnection() {
+        opened.incrementAndGet();
+        boolean[] closed = {false};
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            closed[0] = true;
+                            return null;
+                        case "isClosed":
+                            return closed[0];
+                        case "getAutoCommit":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Tests that a returned connection is reused instead of opening a new one.
+     */
+    @Test
+    public void testReuse() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(this::fakeConnection, 0, 2, 1000, 0, 60_000)) {
+            try (Connection connection = pool.getConnection()) {
+                assertFalse(connection.isClosed());
+                assertEquals(1, pool.getActiveCount());
+            }
+            try (Connection connection = pool.getConnection()) {
+                assertFalse(connection.isClosed());
+            }
+            assertEquals(1, opened.get());
+            assertEquals(2, pool.getAcquisitionCount());
+            assertEquals(0, pool.getActiveCount());
+            assertEquals(1, pool.getIdleCount());
+        }
+    }
+
+    /**
+     * Tests that acquiring a connection from a full pool times out.
+     */
+    @Test
+    public void testAcquireTimeout() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(this::fakeConnection, 0, 1, 50, 0, 60_000)) {
+            try (Connection connection = pool.getConnection()) {
+                assertFalse(connection.isClosed());
+                try {
+                    pool.getConnection();
+                    fail("Failed to throw a SQLException");
+                } catch (SQLException e) {
+                    // expected exception
+                }
+            }
+            assertEquals(1, pool.getTimeoutCount());
+            assertTrue(pool.getTotalWaitNanos() > 0);
+            assertTrue(pool.getMaxWaitNanos() > 0);
+        }
+    }
+
+    /**
+     * Tests that maintenance never opens more connections than the maximum size while connections are checked out.
+     */
+    @Test
+    public void testMaintenanceRespectsMaxSize() throws SQLException, InterruptedException {
+        try (ConnectionPool pool = new ConnectionPool(this::fakeConnection, 3, 3, 1000, 20, 60_000)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getIdleCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Connection first = pool.getConnection();
+            Connection second = pool.getConnection();
+            // let maintenance run several times while two connections are checked out
+            Thread.sleep(100);
+            assertEquals(2, pool.getActiveCount());
+            assertTrue(pool.getIdleCount() + pool.getActiveCount() <= 3);
+            assertTrue(pool.getOpenCount() <= 3);
+            assertEquals(3, opened.get());
+            Connection third = pool.getConnection();
+            assertEquals(3, pool.getOpenCount());
+            first.close();
+            second.close();
+            third.close();
+            assertEquals(3, pool.getIdleCount());
+            assertEquals(3, pool.getOpenCount());
+        }
+    }
+
+    /**
+     * Tests that a connection cannot be used after it was returned to the pool.
+     */
+    @Test
+    public void testUseAfterClose() throws SQLException {
+        try (ConnectionPool pool = new ConnectionPool(this::fakeConnection, 0, 1, 1000, 0, 60_000)) {
+            Connection connection = pool.getConnection();
+            connection.close();
+            assertTrue(connection.isClosed());
+            try {
+                connection.createStatement();
+                fail("Failed to throw a SQLException");
+            } catch (SQLException e) {
+                // expected exception
+            }
+        }
+    }
+
+    /**
+     * Tests that idle connections beyond the minimum size are evicted.
+     */
+    @Test
+    public void testIdleEviction() throws SQLException, InterruptedException {
+        try (ConnectionPool pool = new ConnectionPool(this::fakeConnection, 0, 2, 1000, 20, 60_000)) {
+            Connection first = pool.getConnection();
+            Connection second = pool.getConnection();
+            first.close();
+            second.close();
+            assertEquals(2, pool.getIdleCount());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getIdleCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, pool.getIdleCount());
+            assertEquals(2, pool.getEvictedCount());
+        }
+    }
+
+    /**
+     * Tests that maintenance keeps running after the factory throws an unchecked exception.
+     */
+    @Test
+    public void testMaintenanceSurvivesFactoryFailure() throws SQLException, InterruptedException {
+        AtomicInteger attempts = new AtomicInteger();
+        ConnectionPool.ConnectionFactory factory = () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IllegalStateException("Driver not ready");
+            }
+            return fakeConnection();
+        };
+        try (ConnectionPool pool = new ConnectionPool(factory, 1, 2, 1000, 20, 60_000)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getIdleCount() < 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, pool.getIdleCount());
+            assertTrue(attempts.get() >= 2);
+        }
+    }
+}
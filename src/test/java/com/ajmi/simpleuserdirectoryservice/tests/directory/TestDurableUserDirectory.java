@@ -0,0 +1,222 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+import com.ajmi.simpleuserdirectoryservice.directory.ConnectionFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.DurableUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.PolicyFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the DurableUserDirectory class.
+ */
+public class TestDurableUserDirectory extends TestUserDirectory {
+
+    /** Holds the files of every directory created by a test. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Directories opened by create(), closed after each test. */
+    private final List<DurableUserDirectory> opened = new ArrayList<>();
+
+    /**
+     * Creates a new DurableUserDirectory in a new temporary folder.
+     * @return Returns a new DurableUserDirectory.
+     */
+    @Override
+    protected UserDirectory create() {
+        try {
+            DurableUserDirectory ud = new DurableUserDirectory(folder.newFolder().toPath());
+            opened.add(ud);
+            return ud;
+        } catch (IOException | ConnectionFailureException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        super.tearDown();
+        for (DurableUserDirectory ud : opened) {
+            try {
+                ud.close();
+            } catch (ConnectionFailureException e) {
+                // ignore exception
+            }
+        }
+    }
+
+    /**
+     * Tests that every kind of write is replayed from the log when the directory is reopened.
+     */
+    @Test
+    public void testReplay() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            ud.addUser("foo", "bar", "baz", "qux");
+            ud.addUser("corge", "grault", "garply", "waldo");
+            ud.addUser("fred", "plugh", "xyzzy", "thud");
+            ud.updateEmail("foo", "quux");
+            ud.updatePassword("foo", "quuz");
+            ud.updateUsername("corge", "wibble");
+            ud.removeUser("fred");
+        }
+
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            assertEquals(7, ud.getReplayedEntryCount());
+            assertEquals(0, ud.getRecoveredSnapshotUsers());
+            assertEquals(new UserData("foo", "quux", "baz"), ud.getUserData("foo").get());
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "quuz"));
+            assertFalse(ud.hasUser("corge"));
+            assertEquals(new UserData("wibble", "grault", "garply"), ud.getUserData("wibble").get());
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("wibble", "waldo"));
+            assertFalse(ud.hasUser("fred"));
+        }
+    }
+
+    /**
+     * Tests that a snapshot replaces the log, and that writes after it are replayed over it.
+     */
+    @Test
+    public void testSnapshot() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            ud.addUser("foo", "bar", "baz", "qux");
+            ud.addUser("corge", "grault", "garply", "waldo");
+            ud.snapshot();
+            assertEquals(1, ud.getSnapshotCount());
+            assertEquals(0, ud.getLogBytes());
+            ud.removeUser("corge");
+        }
+
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            assertEquals(2, ud.getRecoveredSnapshotUsers());
+            assertEquals(1, ud.getReplayedEntryCount());
+            assertTrue(ud.hasUser("foo"));
+            assertFalse(ud.hasUser("corge"));
+            ud.snapshot();
+        }
+        // only the latest snapshot and the segments after it are kept
+        try (Stream<Path> files = Files.list(path)) {
+            List<String> names = files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+            assertEquals(1, names.stream().filter(name -> name.endsWith(".snap")).count());
+        }
+    }
+
+    /**
+     * Tests that snapshots are written automatically once enough has been logged, in batched mode.
+     */
+    @Test
+    public void testBatchedAutomaticSnapshot() throws Exception {
+        Path path = folder.newFolder().toPath();
+        try (DurableUserDirectory ud = DurableUserDirectory.builder(path)
+                .durability(DurableUserDirectory.Durability.BATCHED)
+                .syncIntervalMillis(1)
+                .segmentSizeBytes(1024)
+                .snapshotThresholdBytes(4096)
+                .build()) {
+            for (int i = 0; i < 100; i++) {
+                ud.addUser("user" + i, "email" + i, "screen" + i, "password");
+            }
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (ud.getSnapshotCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(ud.getSnapshotCount() > 0);
+        }
+
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            assertEquals(100, ud.getUsers().length);
+            assertTrue(ud.getRecoveredSnapshotUsers() > 0);
+        }
+    }
+
+    /**
+     * Tests that a torn entry at the end of the log is discarded, keeping every entry before it.
+     */
+    @Test
+    public void testTornWrite() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            ud.addUser("foo", "bar", "baz", "qux");
+            ud.addUser("corge", "grault", "garply", "waldo");
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(path)) {
+            segment = files.filter(file -> file.getFileName().toString().endsWith(".log"))
+                    .filter(file -> file.toFile().length() > 0).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            assertEquals(1, ud.getReplayedEntryCount());
+            assertTrue(ud.hasUser("foo"));
+            assertFalse(ud.hasUser("corge"));
+            ud.addUser("corge", "grault", "garply", "waldo");
+        }
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            assertTrue(ud.hasUser("corge"));
+        }
+    }
+
+    /**
+     * Tests that values too large to log are rejected before they change the directory, so the log stays readable.
+     */
+    @Test
+    public void testTooLargeToLog() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        String huge = String.join("", Collections.nCopies(1 << 21, "x"));
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            ud.addUser("foo", "bar", "baz", "qux");
+            try {
+                ud.addUser("corge", huge, "garply", "waldo");
+                fail("Expected a PolicyFailureException.");
+            } catch (PolicyFailureException e) {
+                assertEquals(PolicyFailure.ILLEGAL_EMAIL, e.getFailure());
+            }
+            assertFalse(ud.hasUser("corge"));
+            try {
+                ud.updateScreenName("foo", huge);
+                fail("Expected an IllegalArgumentException.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            Map<String, UserDirectoryException> failures = ud.addUsers(Arrays.asList(
+                    new UserRegistration("fred", "plugh", "xyzzy", "thud"),
+                    new UserRegistration(huge, "plugh", "xyzzy", "thud")));
+            assertEquals(1, failures.size());
+            assertEquals(PolicyFailure.ILLEGAL_USERNAME, ((PolicyFailureException) failures.get(huge)).getFailure());
+            ud.snapshot();
+            ud.updateEmail("fred", "wibble");
+        }
+
+        try (DurableUserDirectory ud = new DurableUserDirectory(path)) {
+            assertEquals(2, ud.getUsers().length);
+            assertEquals(new UserData("foo", "bar", "baz"), ud.getUserData("foo").get());
+            assertEquals(new UserData("fred", "wibble", "xyzzy"), ud.getUserData("fred").get());
+        }
+    }
+}
@@ -1,7 +1,20 @@
 package com.ajmi.simpleuserdirectoryservice.tests.directory;
 
+import com.ajmi.simpleuserdirectoryservice.cryptography.PasswordHashers;
+import com.ajmi.simpleuserdirectoryservice.cryptography.Pbkdf2PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
 import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
 import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.*;
 
 /**
  * Tests for the EphemeralUserDirectory class.
@@ -15,4 +28,111 @@ public class TestEphemeralUserDirectory extends TestUserDirectory {
     protected UserDirectory create() {
         return new EphemeralUserDirectory();
     }
+
+    /**
+     * Tests that concurrent adds, renames, and password changes from many threads leave every user consistent.
+     */
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        EphemeralUserDirectory ud = new EphemeralUserDirectory();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String user = "user-" + thread + "-" + i;
+                        ud.addUser(user, "foo", "bar", "pass");
+                        ud.updatePassword(user, "new-pass");
+                        ud.updateUsername(user, "renamed-" + user);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(8 * 200, ud.getUsers().length);
+        for (String user : ud.getUsers()) {
+            assertTrue(user.startsWith("renamed-"));
+            assertEquals(user, ud.getUserData(user).get().getUsername());
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed(user, "new-pass"));
+        }
+    }
+
+    /**
+     * Tests that a reader that doesn't lock never sees a user under neither name while the user is being renamed.
+     */
+    @Test
+    public void testRenameNeverHidesUser() throws Exception {
+        EphemeralUserDirectory ud = new EphemeralUserDirectory();
+        int renames = 20_000;
+        ud.addUser("user-0", "foo", "bar", "baz");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < renames; i++) {
+                    ud.updateUsername("user-" + i, "user-" + (i + 1));
+                }
+                return null;
+            });
+            // the user only moves to higher numbers, so it is always at or after the last number it was seen at
+            int last = 0;
+            while (!writer.isDone() || last < renames) {
+                int k = last;
+                while (k <= renames && !ud.hasUser("user-" + k)) {
+                    k++;
+                }
+                assertTrue("User was missing under every name", k <= renames);
+                last = k;
+            }
+            writer.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, ud.getUsers().length);
+    }
+
+    /**
+     * Tests that renaming a user to a username that is already taken leaves both users unchanged.
+     */
+    @Test
+    public void testUpdateUsernameTaken() throws UserDirectoryException {
+        EphemeralUserDirectory ud = new EphemeralUserDirectory();
+        ud.addUser("foo", "foo-email", "foo-screen", "foo-pass");
+        ud.addUser("bar", "bar-email", "bar-screen", "bar-pass");
+
+        ud.updateUsername("foo", "bar");
+
+        assertEquals("foo-email", ud.getUserData("foo").get().getEmail());
+        assertEquals("bar-email", ud.getUserData("bar").get().getEmail());
+        assertTrue(ud.authenticateUser("bar", "bar-pass"));
+    }
+
+    /**
+     * Tests that passwords hashed with an older hasher still authenticate after the hasher changes, and keep
+     * authenticating once rehashed.
+     */
+    @Test
+    public void testRehashOnLogin() throws UserDirectoryException {
+        EphemeralUserDirectory ud = new EphemeralUserDirectory();
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.setPasswordHasher(new Pbkdf2PasswordHasher(1000));
+        ud.addUser("corge", "grault", "garply", "waldo");
+
+        assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "quux"));
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("corge", "waldo"));
+
+        ud.setPasswordHasher(PasswordHashers.legacy());
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("corge", "waldo"));
+        assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("corge", "qux"));
+    }
 }
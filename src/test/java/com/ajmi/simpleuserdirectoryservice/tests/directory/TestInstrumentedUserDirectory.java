@@ -0,0 +1,133 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.InstrumentedUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.Policy;
+import com.ajmi.simpleuserdirectoryservice.directory.PolicyFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.UserAlreadyExistsException;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the InstrumentedUserDirectory class.
+ */
+public class TestInstrumentedUserDirectory extends TestUserDirectory {
+
+    /**
+     * Creates a new InstrumentedUserDirectory wrapping an EphemeralUserDirectory.
+     * @return Returns a new InstrumentedUserDirectory.
+     */
+    @Override
+    protected UserDirectory create() {
+        return new InstrumentedUserDirectory(new EphemeralUserDirectory());
+    }
+
+    /**
+     * Tests that calls are counted by whether they returned, and their latencies recorded.
+     */
+    @Test
+    public void testOperationCounts() throws UserDirectoryException {
+        InstrumentedUserDirectory ud = new InstrumentedUserDirectory(new EphemeralUserDirectory());
+        ud.addUser("foo", "bar", "baz", "qux");
+        try {
+            ud.addUser("foo", "bar", "baz", "qux");
+            fail("Expected a UserAlreadyExistsException.");
+        } catch (UserAlreadyExistsException e) {
+            // expected
+        }
+        ud.hasUser("foo");
+        ud.hasUser("corge");
+
+        assertEquals(1, ud.getSuccessCount("addUser"));
+        assertEquals(1, ud.getFailureCount("addUser"));
+        assertEquals(2, ud.getSuccessCount("hasUser"));
+        assertEquals(0, ud.getFailureCount("hasUser"));
+        assertEquals(2, ud.getLatency("addUser").snapshot().getCount());
+        assertEquals(0, ud.getLatency("removeUser").snapshot().getCount());
+        assertFalse(ud.getPostgresTimings().isPresent());
+    }
+
+    /**
+     * Tests that authentications are counted by result and policy failures by reason.
+     */
+    @Test
+    public void testOutcomeBreakdown() throws UserDirectoryException {
+        InstrumentedUserDirectory ud = new InstrumentedUserDirectory(new EphemeralUserDirectory());
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.authenticateUser("foo", "qux");
+        ud.authenticateUser("foo", "wrong");
+        ud.authenticateUserDetailed("corge", "qux");
+        ud.authenticateUserDetailed("foo", "qux");
+
+        assertEquals(2, ud.getAuthenticationCount(Authentication.VALID));
+        assertEquals(1, ud.getAuthenticationCount(Authentication.INVALID_PASSWORD));
+        assertEquals(1, ud.getAuthenticationCount(Authentication.INVALID_USERNAME));
+        assertEquals(4, ud.getSuccessCount("authenticateUser"));
+
+        ud.setPolicy(new Policy() {
+            @Override
+            public boolean checkUsername(String username) {
+                return !username.isEmpty();
+            }
+
+            @Override
+            public boolean checkEmail(String email) {
+                return true;
+            }
+
+            @Override
+            public boolean checkScreenName(String screenName) {
+                return true;
+            }
+
+            @Override
+            public boolean checkPassword(String password) {
+                return !password.isEmpty();
+            }
+        });
+        try {
+            ud.addUser("", "bar", "baz", "qux");
+            fail("Expected a PolicyFailureException.");
+        } catch (PolicyFailureException e) {
+            // expected
+        }
+        ud.addUsers(Arrays.asList(
+                new UserRegistration("grault", "bar", "baz", ""),
+                new UserRegistration("garply", "bar", "baz", "qux")));
+        assertEquals(1, ud.getPolicyFailureCount(PolicyFailure.ILLEGAL_USERNAME));
+        assertEquals(1, ud.getPolicyFailureCount(PolicyFailure.ILLEGAL_PASSWORD));
+        assertEquals(0, ud.getPolicyFailureCount(PolicyFailure.ILLEGAL_EMAIL));
+    }
+
+    /**
+     * Tests that the Prometheus export has a summary for every operation and counts outcomes.
+     */
+    @Test
+    public void testPrometheusExport() throws UserDirectoryException {
+        InstrumentedUserDirectory ud = new InstrumentedUserDirectory(new EphemeralUserDirectory());
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.authenticateUser("foo", "qux");
+
+        String exported = ud.toPrometheus();
+        assertTrue(exported.contains("# TYPE suds_operation_duration_seconds summary\n"));
+        for (String operation : ud.getOperations()) {
+            assertTrue(exported.contains("suds_operation_duration_seconds_count{operation=\"" + operation + "\"} "));
+        }
+        assertTrue(exported.contains("suds_operation_duration_seconds_count{operation=\"addUser\"} 1\n"));
+        assertTrue(exported.contains("suds_operations_total{operation=\"addUser\",result=\"success\"} 1\n"));
+        assertTrue(exported.contains("suds_authentications_total{result=\"valid\"} 1\n"));
+        assertTrue(exported.contains("suds_policy_failures_total{reason=\"illegal_password\"} 0\n"));
+        assertFalse(exported.contains("suds_postgres_duration_seconds"));
+        for (String line : exported.split("\n")) {
+            assertTrue(line, line.startsWith("#") || line.matches("[a-z_]+\\{[^}]*\\} [0-9.E-]+"));
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.cryptography.Pbkdf2PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.directory.ConnectionFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.MappedUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.Policy;
+import com.ajmi.simpleuserdirectoryservice.directory.PolicyFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the MappedUserDirectory class.
+ */
+public class TestMappedUserDirectory extends TestUserDirectory {
+
+    /** Holds the files of every directory created by a test. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Directories opened by create(), closed after each test. */
+    private final List<MappedUserDirectory> opened = new ArrayList<>();
+
+    /**
+     * Creates a new MappedUserDirectory in a new temporary folder.
+     * @return Returns a new MappedUserDirectory.
+     */
+    @Override
+    protected UserDirectory create() {
+        try {
+            MappedUserDirectory ud = new MappedUserDirectory(folder.newFolder().toPath());
+            opened.add(ud);
+            return ud;
+        } catch (IOException | ConnectionFailureException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        super.tearDown();
+        for (MappedUserDirectory ud : opened) {
+            try {
+                ud.close();
+            } catch (ConnectionFailureException e) {
+                // ignore exception
+            }
+        }
+    }
+
+    /**
+     * Tests that users, updates, and removals survive closing and reopening the directory.
+     */
+    @Test
+    public void testReopen() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            ud.addUser("foo", "bar", "baz", "qux");
+            ud.addUser("corge", null, null, "grault");
+            ud.addUser("garply", "waldo", "fred", "plugh");
+            ud.updateEmail("foo", "quux");
+            ud.updatePassword("foo", "xyzzy");
+            ud.removeUser("garply");
+        }
+
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            assertEquals(2, ud.getUserCount());
+            assertEquals(new UserData("foo", "quux", "baz"), ud.getUserData("foo").get());
+            UserData corge = ud.getUserData("corge").get();
+            assertEquals("corge", corge.getUsername());
+            assertNull(corge.getEmail());
+            assertNull(corge.getScreenName());
+            assertFalse(ud.hasUser("garply"));
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "xyzzy"));
+            assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "qux"));
+            assertTrue(ud.getGarbageBytes() > 0);
+            assertFalse(ud.wasRecovered());
+        }
+    }
+
+    /**
+     * Tests that a directory that was never closed has its index rebuilt from its records when it is reopened, even if
+     * the index and the records file's header are garbage and a torn record follows the last whole one.
+     */
+    @Test
+    public void testRecoverAfterCrash() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        MappedUserDirectory crashed = new MappedUserDirectory(path);
+        opened.add(crashed);
+        crashed.addUser("foo", "bar", "baz", "qux");
+        crashed.addUser("corge", null, null, "grault");
+        crashed.addUser("garply", "waldo", "fred", "plugh");
+        crashed.updateUsername("corge", "xyzzy");
+        crashed.updatePassword("foo", "thud");
+        crashed.removeUser("garply");
+
+        long end;
+        try (FileChannel records = FileChannel.open(path.resolve("records"), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            records.read(header, 8);
+            end = header.getLong(0);
+            // a stale end, as if the header's page had not been written back
+            header.putLong(0, 64);
+            records.write((ByteBuffer) header.flip(), 8);
+            // the start of a record whose strings never reached the disk
+            ByteBuffer torn = ByteBuffer.allocate(160);
+            torn.putInt(0, 160).put(4, (byte) 1).putInt(104, 3).putInt(108, -1).putInt(112, -1).putInt(116, 6);
+            records.write(torn, end);
+        }
+        try (FileChannel index = FileChannel.open(path.resolve("index"), StandardOpenOption.WRITE)) {
+            byte[] garbage = new byte[1024];
+            Arrays.fill(garbage, (byte) 0x5A);
+            index.write(ByteBuffer.wrap(garbage), 16);
+        }
+
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            assertTrue(ud.wasRecovered());
+            assertEquals(2, ud.getUserCount());
+            assertEquals(new UserData("foo", "bar", "baz"), ud.getUserData("foo").get());
+            assertFalse(ud.hasUser("corge"));
+            assertTrue(ud.hasUser("xyzzy"));
+            assertFalse(ud.hasUser("garply"));
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "thud"));
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("xyzzy", "grault"));
+            assertEquals(Collections.singletonList(new UserData("foo", "bar", "baz")), ud.findByEmail("bar"));
+            assertTrue(ud.findByEmail("waldo").isEmpty());
+            ud.addUser("garply", "waldo", "fred", "plugh");
+        }
+
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            assertFalse(ud.wasRecovered());
+            assertEquals(3, ud.getUserCount());
+            assertEquals(new UserData("garply", "waldo", "fred"), ud.getUserData("garply").get());
+            assertEquals(Collections.singletonList(new UserData("garply", "waldo", "fred")), ud.findByEmail("waldo"));
+        }
+    }
+
+    /**
+     * Tests that a user whose password change was torn by a crash comes back with their old password.
+     */
+    @Test
+    public void testRecoverTornPasswordChange() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        MappedUserDirectory crashed = new MappedUserDirectory(path);
+        opened.add(crashed);
+        crashed.addUser("foo", "bar", "baz", "qux");
+
+        long end;
+        try (FileChannel records = FileChannel.open(path.resolve("records"), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            records.read(header, 8);
+            end = header.getLong(0);
+        }
+        crashed.updatePassword("foo", "thud");
+        try (FileChannel records = FileChannel.open(path.resolve("records"), StandardOpenOption.WRITE)) {
+            // the old record's page was never written back, so it is still live
+            records.write(ByteBuffer.wrap(new byte[] {1}), 64 + 4);
+            // and only part of the new record's salt reached the disk
+            byte[] garbage = new byte[8];
+            Arrays.fill(garbage, (byte) 0x5A);
+            records.write(ByteBuffer.wrap(garbage), end + 8);
+        }
+
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            assertTrue(ud.wasRecovered());
+            assertEquals(1, ud.getUserCount());
+            assertEquals(new UserData("foo", "bar", "baz"), ud.getUserData("foo").get());
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+        }
+    }
+
+    /**
+     * Tests that the emails file follows every change as it grows, survives reopening, and is rebuilt for a directory
+     * that has none.
+     */
+    @Test
+    public void testEmailIndex() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (MappedUserDirectory ud = new MappedUserDirectory(path, 4)) {
+            for (int i = 0; i < 300; i++) {
+                ud.addUser("user" + i, "email" + i % 100, "screen" + i, "password");
+            }
+            for (int i = 0; i < 100; i++) {
+                ud.removeUser("user" + i);
+            }
+            ud.updateEmail("user100", "other");
+            ud.updateScreenName("user101", "renamed");
+            ud.updateUsername("user102", "moved");
+            ud.setPolicy(new Policy() {
+                @Override
+                public boolean checkUsername(String username) {
+                    return true;
+                }
+
+                @Override
+                public boolean checkEmail(String email) {
+                    return true;
+                }
+
+                @Override
+                public boolean checkScreenName(String screenName) {
+                    return true;
+                }
+
+                @Override
+                public boolean checkPassword(String password) {
+                    return true;
+                }
+
+                @Override
+                public boolean requireUniqueEmails() {
+                    return true;
+                }
+            });
+            try {
+                ud.addUser("taken", "email5", null, "password");
+                fail("Expected a PolicyFailureException.");
+            } catch (PolicyFailureException e) {
+                assertEquals(PolicyFailure.DUPLICATE_EMAIL, e.getFailure());
+            }
+            ud.addUser("free", "email100", null, "password");
+        }
+        assertEmails(path);
+
+        Files.delete(path.resolve("emails"));
+        assertEmails(path);
+    }
+
+    /**
+     * Opens a directory filled by testEmailIndex() and checks its lookups by email.
+     * @param path the path of the directory.
+     */
+    private static void assertEmails(Path path) throws ConnectionFailureException {
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            assertEquals(Collections.singletonList("user200"), usernames(ud.findByEmail("email0")));
+            assertEquals(Collections.singletonList(new UserData("user100", "other", "screen100")), ud.findByEmail("other"));
+            assertEquals(Arrays.asList("user101", "user201"), usernames(ud.findByEmail("email1")));
+            assertEquals(Arrays.asList("moved", "user202"), usernames(ud.findByEmail("email2")));
+            assertEquals(Arrays.asList("user199", "user299"), usernames(ud.findByEmail("email99")));
+            assertEquals(Collections.singletonList("free"), usernames(ud.findByEmail("email100")));
+            assertTrue(ud.findByEmail("email101").isEmpty());
+        }
+    }
+
+    /**
+     * Sorts the usernames of users found by email.
+     * @param users the users.
+     * @return their usernames, in ascending order.
+     */
+    private static List<String> usernames(List<UserData> users) {
+        List<String> usernames = new ArrayList<>();
+        for (UserData user : users) {
+            usernames.add(user.getUsername());
+        }
+        Collections.sort(usernames);
+        return usernames;
+    }
+
+    /**
+     * Tests that the index grows past its initial capacity, and reuses the slots of removed users.
+     */
+    @Test
+    public void testGrowth() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (MappedUserDirectory ud = new MappedUserDirectory(path, 4)) {
+            for (int i = 0; i < 500; i++) {
+                ud.addUser("user" + i, "email" + i, "screen" + i, "password");
+            }
+            for (int i = 0; i < 500; i += 2) {
+                ud.removeUser("user" + i);
+            }
+            for (int i = 500; i < 1000; i++) {
+                ud.addUser("user" + i, "email" + i, "screen" + i, "password");
+            }
+            assertEquals(750, ud.getUserCount());
+            assertEquals(750, ud.getUsers().length);
+        }
+
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i >= 500 || i % 2 == 1, ud.hasUser("user" + i));
+            }
+            assertEquals(new UserData("user999", "email999", "screen999"), ud.getUserData("user999").get());
+        }
+    }
+
+    /**
+     * Tests that a password hashed with an older hasher is rewritten with the current one on login, exactly once, and
+     * that its new hasher survives reopening the directory.
+     */
+    @Test
+    public void testRehashOnLogin() throws IOException, UserDirectoryException {
+        Path path = folder.newFolder().toPath();
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            ud.addUser("foo", "bar", "baz", "qux");
+            ud.setPasswordHasher(new Pbkdf2PasswordHasher(1000));
+            assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "quux"));
+            assertEquals(0, ud.getGarbageBytes());
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+            assertTrue(ud.getGarbageBytes() > 0);
+        }
+
+        try (MappedUserDirectory ud = new MappedUserDirectory(path)) {
+            ud.setPasswordHasher(new Pbkdf2PasswordHasher(1000));
+            long garbage = ud.getGarbageBytes();
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux"));
+            assertEquals(garbage, ud.getGarbageBytes());
+            assertEquals(new UserData("foo", "bar", "baz"), ud.getUserData("foo").get());
+            // a password change appends a new record even under the same hasher, so a crash can't tear the old one
+            ud.updatePassword("foo", "quux");
+            assertTrue(ud.getGarbageBytes() > garbage);
+            assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "quux"));
+        }
+    }
+}
@@ -1,14 +1,30 @@
 package com.ajmi.simpleuserdirectoryservice.tests.directory;
 
+import com.ajmi.simpleuserdirectoryservice.cryptography.Pbkdf2PasswordHasher;
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
 import com.ajmi.simpleuserdirectoryservice.directory.ConnectionFailureException;
+import com.ajmi.simpleuserdirectoryservice.directory.InstrumentedUserDirectory;
 import com.ajmi.simpleuserdirectoryservice.directory.PostgresUserDirectory;
 import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
 import org.junit.Test;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 
 /**
@@ -16,6 +32,77 @@ import static junit.framework.TestCase.assertTrue;
  */
 public class TestPostgresUserDirectory extends TestUserDirectory {
 
+    /**
+     * Tests that batch lookups of more users than fit in one query still find every user.
+     */
+    @Test
+    public void testBatchLookupsSpanQueries() throws UserDirectoryException {
+        PostgresUserDirectory ud = createPostgres();
+        String prefix = "batched" + System.nanoTime() + "-";
+        List<UserRegistration> users = new ArrayList<>();
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            users.add(new UserRegistration(prefix + i, "foo", "bar", "baz"));
+            usernames.add(prefix + i);
+        }
+        ud.addUsers(users);
+        try {
+            usernames.add(prefix + "missing");
+            Set<String> found = ud.hasUsers(usernames);
+            assertEquals(2500, found.size());
+            assertFalse(found.contains(prefix + "missing"));
+            Map<String, UserData> data = ud.getUserData(usernames);
+            assertEquals(2500, data.size());
+            assertEquals("bar", data.get(prefix + 1234).getScreenName());
+            List<UserCredentials> credentials = new ArrayList<>();
+            for (String username : usernames) {
+                credentials.add(new UserCredentials(username, "baz"));
+            }
+            credentials.set(1234, new UserCredentials(prefix + 1234, "qux"));
+            List<Authentication> results = ud.authenticateUsers(credentials);
+            assertEquals(Authentication.VALID, results.get(0));
+            assertEquals(Authentication.VALID, results.get(2499));
+            assertEquals(Authentication.INVALID_PASSWORD, results.get(1234));
+            assertEquals(Authentication.INVALID_USERNAME, results.get(2500));
+        } finally {
+            for (UserRegistration user : users) {
+                ud.removeUser(user.getUsername());
+            }
+        }
+    }
+
+    /**
+     * Tests that no operation borrows a second connection while holding one, which would deadlock a pool of one.
+     */
+    @Test
+    public void testSingleConnectionPool() throws UserDirectoryException {
+        Properties properties = loadProperties();
+        try (PostgresUserDirectory ud = PostgresUserDirectory.builder(properties.getProperty("suds.pg.host"),
+                properties.getProperty("suds.pg.database"),
+                properties.getProperty("suds.pg.user"),
+                properties.getProperty("suds.pg.pass"))
+                .minPoolSize(0)
+                .maxPoolSize(1)
+                .acquireTimeoutMillis(2000)
+                .build()) {
+            String user = "pooled" + System.nanoTime();
+            ud.addUser(user, "foo", "bar", "baz");
+            try {
+                assertEquals(Authentication.VALID, ud.authenticateUserDetailed(user, "baz"));
+                ud.updatePassword(user, "qux");
+                // rehashing on login writes while the credentials were just read
+                ud.setPasswordHasher(new Pbkdf2PasswordHasher(1000));
+                assertEquals(Authentication.VALID, ud.authenticateUserDetailed(user, "qux"));
+                assertTrue(ud.updateUser(user, UserPatch.builder().screenName("quux").build()));
+                assertEquals(Collections.singletonList(Authentication.VALID),
+                        ud.authenticateUsers(Collections.singletonList(new UserCredentials(user, "qux"))));
+            } finally {
+                assertTrue(ud.removeUser(user));
+            }
+            assertEquals(0, ud.getConnectionPool().get().getTimeoutCount());
+        }
+    }
+
     /**
      * Creates a new PostgresUserDirectory instance.
      * @return Returns a new UserDirectory.
@@ -33,6 +120,68 @@ public class TestPostgresUserDirectory extends TestUserDirectory {
         assertTrue(createPostgres().testConnection());
     }
 
+    /**
+     * Tests that wrapping the directory in an InstrumentedUserDirectory records connection acquisition, SQL execution,
+     * and hashing timings.
+     */
+    @Test
+    public void testRecordTimings() throws UserDirectoryException {
+        PostgresUserDirectory postgres = createPostgres();
+        InstrumentedUserDirectory ud = new InstrumentedUserDirectory(postgres);
+        String user = "timings" + System.nanoTime();
+        ud.addUser(user, "foo", "bar", "baz");
+        try {
+            assertTrue(ud.authenticateUser(user, "baz"));
+        } finally {
+            ud.removeUser(user);
+        }
+
+        PostgresUserDirectory.Timings timings = postgres.recordTimings();
+        assertTrue(timings.getConnectionAcquisition().snapshot().getCount() >= 3);
+        assertTrue(timings.getSqlExecution().snapshot().getCount() >= 3);
+        assertTrue(timings.getHashing().snapshot().getCount() >= 2);
+        assertTrue(ud.toPrometheus().contains("suds_postgres_duration_seconds_count{phase=\"sql_execution\"}"));
+    }
+
+    /**
+     * Tests that concurrent lookups of one user, coalesced or not, all see the user, and that lookups after a write see
+     * the write.
+     */
+    @Test
+    public void testConcurrentLookups() throws UserDirectoryException, InterruptedException {
+        PostgresUserDirectory ud = createPostgres();
+        String user = "coalesced" + System.nanoTime();
+        ud.addUser(user, "foo", "bar", "baz");
+        try {
+            AtomicInteger failures = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        if (!ud.hasUser(user) || !ud.getUserData(user).isPresent() || !ud.authenticateUser(user, "baz")) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (ConnectionFailureException e) {
+                        failures.incrementAndGet();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, failures.get());
+
+            ud.updateScreenName(user, "qux");
+            assertEquals("qux", ud.getUserData(user).get().getScreenName());
+        } finally {
+            ud.removeUser(user);
+        }
+        assertFalse(ud.hasUser(user));
+        assertFalse(ud.getUserData(user).isPresent());
+    }
+
     /**
      * Creates a new PostgresUserDirectory instance. Requires the 'suds.pg.host', 'suds.pg.database', 'suds.pg.user',
      * 'suds.pg.pass' to be set in a suds-test.properties file, indicating the Postgres URL, Postgres database, Postgres
@@ -40,12 +189,7 @@ public class TestPostgresUserDirectory extends TestUserDirectory {
      * @return Returns a new PostgresUserDirectory.
      */
     private PostgresUserDirectory createPostgres() {
-        Properties properties = new Properties();
-        try {
-            properties.load(new FileInputStream("suds-test.properties"));
-        } catch (IOException e) {
-            throw new RuntimeException("Could not find file \"suds-test.properties\": ", e);
-        }
+        Properties properties = loadProperties();
         try {
             return new PostgresUserDirectory(properties.getProperty("suds.pg.host"),
                     properties.getProperty("suds.pg.database"),
@@ -55,4 +199,18 @@ public class TestPostgresUserDirectory extends TestUserDirectory {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Loads the connection settings from the suds-test.properties file.
+     * @return the loaded properties.
+     */
+    private Properties loadProperties() {
+        Properties properties = new Properties();
+        try {
+            properties.load(new FileInputStream("suds-test.properties"));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not find file \"suds-test.properties\": ", e);
+        }
+        return properties;
+    }
 }
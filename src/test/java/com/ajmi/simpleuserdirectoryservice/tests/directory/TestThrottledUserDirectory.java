@@ -0,0 +1,167 @@
+package com.ajmi.simpleuserdirectoryservice.tests.directory;
+
+import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
+import com.ajmi.simpleuserdirectoryservice.directory.EphemeralUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.ThrottledUserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectory;
+import com.ajmi.simpleuserdirectoryservice.directory.UserDirectoryException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+/**
+ * Tests for the ThrottledUserDirectory class.
+ */
+public class TestThrottledUserDirectory extends TestUserDirectory {
+
+    /**
+     * Creates a new ThrottledUserDirectory wrapping an EphemeralUserDirectory, with limits the shared tests never
+     * reach.
+     * @return Returns a new ThrottledUserDirectory.
+     */
+    @Override
+    protected UserDirectory create() {
+        ThrottledUserDirectory.Limit limit = new ThrottledUserDirectory.Limit(1000, 1, TimeUnit.MILLISECONDS);
+        return new ThrottledUserDirectory(new EphemeralUserDirectory(), limit, limit, 1000);
+    }
+
+    /**
+     * Tests that a username attempted too often is throttled, even with the right password, without throttling other
+     * usernames.
+     */
+    @Test
+    public void testThrottlesUsername() throws UserDirectoryException {
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(),
+                new ThrottledUserDirectory.Limit(3, 1, TimeUnit.HOURS),
+                new ThrottledUserDirectory.Limit(100, 1, TimeUnit.HOURS), 1000);
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.addUser("corge", "bar", "baz", "qux");
+
+        assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "guess"));
+        assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "guess"));
+        assertEquals(Authentication.INVALID_PASSWORD, ud.authenticateUserDetailed("foo", "guess", "10.0.0.1"));
+        assertEquals(Authentication.THROTTLED, ud.authenticateUserDetailed("foo", "qux"));
+        assertFalse(ud.authenticateUser("foo", "qux"));
+        assertTrue(ud.authenticateUser("corge", "qux"));
+
+        assertEquals(2, ud.getUsernameRejectionCount());
+        assertEquals(0, ud.getSourceRejectionCount());
+    }
+
+    /**
+     * Tests that a source making too many attempts is throttled across usernames, without using up their buckets.
+     */
+    @Test
+    public void testThrottlesSource() throws UserDirectoryException {
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(),
+                new ThrottledUserDirectory.Limit(2, 1, TimeUnit.HOURS),
+                new ThrottledUserDirectory.Limit(3, 1, TimeUnit.HOURS), 1000);
+        ud.addUser("foo", "bar", "baz", "qux");
+
+        assertEquals(Authentication.INVALID_USERNAME, ud.authenticateUserDetailed("a", "guess", "10.0.0.1"));
+        assertEquals(Authentication.INVALID_USERNAME, ud.authenticateUserDetailed("b", "guess", "10.0.0.1"));
+        assertEquals(Authentication.INVALID_USERNAME, ud.authenticateUserDetailed("c", "guess", "10.0.0.1"));
+        assertEquals(Authentication.THROTTLED, ud.authenticateUserDetailed("foo", "qux", "10.0.0.1"));
+        assertEquals(Authentication.THROTTLED, ud.authenticateUserDetailed("foo", "qux", "10.0.0.1"));
+        assertEquals(Authentication.VALID, ud.authenticateUserDetailed("foo", "qux", "10.0.0.2"));
+
+        assertEquals(0, ud.getUsernameRejectionCount());
+        assertEquals(2, ud.getSourceRejectionCount());
+    }
+
+    /**
+     * Tests that each pair of a batch counts as one attempt, and that throttled pairs are answered without the rest of
+     * the batch being throttled.
+     */
+    @Test
+    public void testThrottlesBatch() throws UserDirectoryException {
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(),
+                new ThrottledUserDirectory.Limit(2, 1, TimeUnit.HOURS),
+                new ThrottledUserDirectory.Limit(4, 1, TimeUnit.HOURS), 1000);
+        ud.addUser("foo", "bar", "baz", "qux");
+        ud.addUser("corge", "bar", "baz", "qux");
+
+        assertEquals(Arrays.asList(Authentication.VALID, Authentication.INVALID_PASSWORD, Authentication.THROTTLED,
+                Authentication.VALID), ud.authenticateUsers(Arrays.asList(
+                new UserCredentials("foo", "qux"),
+                new UserCredentials("foo", "guess"),
+                new UserCredentials("foo", "qux"),
+                new UserCredentials("corge", "qux"))));
+        assertEquals(Arrays.asList(Authentication.VALID, Authentication.THROTTLED), ud.authenticateUsers(Arrays.asList(
+                new UserCredentials("corge", "qux"),
+                new UserCredentials("corge", "qux")), "10.0.0.1"));
+        assertEquals(Arrays.asList(Authentication.THROTTLED), ud.authenticateUsers(Arrays.asList(
+                new UserCredentials("corge", "qux")), "10.0.0.1"));
+        assertEquals(3, ud.getUsernameRejectionCount());
+        assertEquals(0, ud.getSourceRejectionCount());
+    }
+
+    /**
+     * Tests that a throttled username is allowed again once its bucket refills.
+     */
+    @Test
+    public void testRefill() throws UserDirectoryException, InterruptedException {
+        ThrottledUserDirectory.Limit limit = new ThrottledUserDirectory.Limit(1, 20, TimeUnit.MILLISECONDS);
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(), limit, limit, 1000);
+        ud.addUser("foo", "bar", "baz", "qux");
+
+        assertTrue(ud.authenticateUser("foo", "qux"));
+        assertEquals(Authentication.THROTTLED, ud.authenticateUserDetailed("foo", "qux"));
+        Thread.sleep(50);
+        assertTrue(ud.authenticateUser("foo", "qux"));
+    }
+
+    /**
+     * Tests that attempts for more usernames than the maximum number of buckets keep the number of buckets bounded.
+     */
+    @Test
+    public void testBucketsAreBounded() throws UserDirectoryException {
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(),
+                new ThrottledUserDirectory.Limit(5, 1, TimeUnit.HOURS),
+                new ThrottledUserDirectory.Limit(1000, 1, TimeUnit.HOURS), 100);
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(Authentication.INVALID_USERNAME,
+                    ud.authenticateUserDetailed("user" + i, "guess", "10.0.0." + i % 256));
+        }
+        assertTrue(ud.getBucketCount() <= 200);
+        assertTrue(ud.getEvictionCount() > 0);
+    }
+
+    /**
+     * Tests that full buckets are dropped by a sweep before any bucket that still counts attempts.
+     */
+    @Test
+    public void testSweepDropsFullBuckets() throws UserDirectoryException, InterruptedException {
+        ThrottledUserDirectory.Limit limit = new ThrottledUserDirectory.Limit(5, 1, TimeUnit.MILLISECONDS);
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(), limit, limit, 100);
+        for (int i = 0; i < 100; i++) {
+            ud.authenticateUserDetailed("user" + i, "guess");
+        }
+        Thread.sleep(20);
+        ud.authenticateUserDetailed("stranger", "guess");
+        assertEquals(1, ud.getBucketCount());
+        assertEquals(0, ud.getEvictionCount());
+    }
+
+    /**
+     * Tests that the rejection counts are exported.
+     */
+    @Test
+    public void testPrometheus() throws UserDirectoryException {
+        ThrottledUserDirectory.Limit limit = new ThrottledUserDirectory.Limit(1, 1, TimeUnit.HOURS);
+        ThrottledUserDirectory ud = new ThrottledUserDirectory(new EphemeralUserDirectory(), limit, limit, 1000);
+        ud.authenticateUserDetailed("foo", "guess", "10.0.0.1");
+        ud.authenticateUserDetailed("foo", "guess", "10.0.0.2");
+        ud.authenticateUserDetailed("bar", "guess", "10.0.0.2");
+
+        String exported = ud.toPrometheus();
+        assertTrue(exported.contains("# TYPE suds_throttled_total counter\n"));
+        assertTrue(exported.contains("suds_throttled_total{key=\"username\"} 1\n"));
+        assertTrue(exported.contains("suds_throttled_total{key=\"source\"} 1\n"));
+        assertTrue(exported.contains("suds_throttle_buckets{key=\"source\"} 2\n"));
+    }
+}
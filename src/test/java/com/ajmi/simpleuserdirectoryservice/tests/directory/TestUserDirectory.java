@@ -1,7 +1,10 @@
 package com.ajmi.simpleuserdirectoryservice.tests.directory;
 
 import com.ajmi.simpleuserdirectoryservice.data.Authentication;
+import com.ajmi.simpleuserdirectoryservice.data.UserCredentials;
 import com.ajmi.simpleuserdirectoryservice.data.UserData;
+import com.ajmi.simpleuserdirectoryservice.data.UserPatch;
+import com.ajmi.simpleuserdirectoryservice.data.UserRegistration;
 import com.ajmi.simpleuserdirectoryservice.directory.Policy;
 import com.ajmi.simpleuserdirectoryservice.data.PolicyFailure;
 import com.ajmi.simpleuserdirectoryservice.directory.PolicyFailureException;
@@ -11,8 +14,16 @@ import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static junit.framework.TestCase.*;
 
@@ -113,6 +124,50 @@ public abstract class TestUserDirectory {
         }
     }
 
+    /**
+     * Tests that a user that fails the policy is rejected with a PolicyFailureException even if the username is taken,
+     * by both addUser() and addUsers().
+     */
+    @Test
+    public void testAddUserExistsFailsPolicy() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String uname = username();
+        ud.addUser(uname, "foo", "bar", "baz");
+        removeUserLater(uname);
+        ud.setPolicy(new Policy() {
+            @Override
+            public boolean checkUsername(String username) {
+                return true;
+            }
+
+            @Override
+            public boolean checkEmail(String email) {
+                return true;
+            }
+
+            @Override
+            public boolean checkScreenName(String screenName) {
+                return true;
+            }
+
+            @Override
+            public boolean checkPassword(String password) {
+                return !password.isEmpty();
+            }
+        });
+
+        try {
+            ud.addUser(uname, "foo", "bar", "");
+            fail("Failed to throw a PolicyFailureException");
+        } catch (PolicyFailureException e) {
+            assertEquals(PolicyFailure.ILLEGAL_PASSWORD, e.getFailure());
+        }
+        Map<String, UserDirectoryException> failures = ud.addUsers(Collections.singletonList(
+                new UserRegistration(uname, "foo", "bar", "")));
+        assertTrue(failures.get(uname) instanceof PolicyFailureException);
+        assertEquals(PolicyFailure.ILLEGAL_PASSWORD, ((PolicyFailureException) failures.get(uname)).getFailure());
+    }
+
     /**
      * Tests the removeUser() method when the user does not exist in the directory.
      */
@@ -241,6 +296,55 @@ public abstract class TestUserDirectory {
         assertEquals(new UserData(user, email, screen), data.get());
     }
 
+    /**
+     * Tests that hasUsers() returns exactly the given usernames that exist.
+     */
+    @Test
+    public void testHasUsers() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String first = username();
+        String second = username();
+        String missing = username() + "thisshoudln'texist";
+        removeUserLater(first);
+        removeUserLater(second);
+        ud.addUser(first, "foo", "bar", "baz");
+        ud.addUser(second, "foo", "bar", "baz");
+
+        assertTrue(ud.hasUsers(new ArrayList<>()).isEmpty());
+        assertTrue(ud.hasUsers(Arrays.asList(missing)).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(first, second)),
+                ud.hasUsers(Arrays.asList(first, missing, second, first)));
+
+        ud.removeUser(first);
+        assertEquals(new HashSet<>(Arrays.asList(second)), ud.hasUsers(Arrays.asList(first, second)));
+    }
+
+    /**
+     * Tests that getUserData() over a collection returns the data of exactly the given users that exist.
+     */
+    @Test
+    public void testGetUserDataBatch() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String first = username();
+        String second = username();
+        String missing = username() + "thisshoudln'texist";
+        removeUserLater(first);
+        removeUserLater(second);
+        ud.addUser(first, "foo", "bar", "baz");
+        ud.addUser(second, "qux", "quux", "baz");
+
+        assertTrue(ud.getUserData(new ArrayList<>()).isEmpty());
+        Map<String, UserData> data = ud.getUserData(Arrays.asList(first, missing, second, first));
+        assertEquals(2, data.size());
+        assertEquals(new UserData(first, "foo", "bar"), data.get(first));
+        assertEquals(new UserData(second, "qux", "quux"), data.get(second));
+
+        ud.updateScreenName(second, "corge");
+        assertEquals(new UserData(second, "qux", "corge"), ud.getUserData(Arrays.asList(second)).get(second));
+        ud.removeUser(first);
+        assertEquals(Collections.singleton(second), ud.getUserData(Arrays.asList(first, second)).keySet());
+    }
+
     /**
      * Tests updateUsername().
      */
@@ -514,6 +618,411 @@ public abstract class TestUserDirectory {
         assertEquals(Authentication.VALID, ud.authenticateUserDetailed(user, pass));
     }
 
+    /**
+     * Tests that authenticateUsers() returns the result of each pair in order, including repeated usernames.
+     */
+    @Test
+    public void testAuthenticateUsers() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String first = username();
+        String second = username();
+        String missing = username() + "thisshoudln'texist";
+        removeUserLater(first);
+        removeUserLater(second);
+        ud.addUser(first, "foo", "bar", "baz");
+        ud.addUser(second, "foo", "bar", "qux");
+
+        assertTrue(ud.authenticateUsers(new ArrayList<>()).isEmpty());
+        List<Authentication> results = ud.authenticateUsers(Arrays.asList(
+                new UserCredentials(first, "baz"),
+                new UserCredentials(missing, "baz"),
+                new UserCredentials(second, "baz"),
+                new UserCredentials(second, "qux"),
+                new UserCredentials(first, "baz")));
+        assertEquals(Arrays.asList(Authentication.VALID, Authentication.INVALID_USERNAME,
+                Authentication.INVALID_PASSWORD, Authentication.VALID, Authentication.VALID), results);
+    }
+
+    /**
+     * Tests that addUsers() adds every user in the collection.
+     */
+    @Test
+    public void testAddUsers() throws ConnectionFailureException {
+        UserDirectory ud = create();
+        List<UserRegistration> users = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            String user = username();
+            users.add(new UserRegistration(user, "foo" + i, "bar" + i, "baz" + i));
+            removeUserLater(user);
+        }
+
+        Map<String, UserDirectoryException> failures = ud.addUsers(users);
+        assertTrue(failures.isEmpty());
+
+        for (int i = 0; i < users.size(); i++) {
+            String user = users.get(i).getUsername();
+            assertEquals(new UserData(user, "foo" + i, "bar" + i), ud.getUserData(user).get());
+            assertTrue(ud.authenticateUser(user, "baz" + i));
+        }
+    }
+
+    /**
+     * Tests that when several threads add the same user at once, exactly one succeeds and the rest are told the user
+     * already exists.
+     */
+    @Test
+    public void testAddUserConcurrently() throws InterruptedException, ConnectionFailureException {
+        UserDirectory ud = create();
+        String uname = username();
+        removeUserLater(uname);
+        int threads = 8;
+        AtomicInteger added = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    ud.addUser(uname, "foo", "bar", "baz");
+                    added.incrementAndGet();
+                } catch (UserAlreadyExistsException e) {
+                    rejected.incrementAndGet();
+                } catch (InterruptedException | UserDirectoryException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(1, added.get());
+        assertEquals(threads - 1, rejected.get());
+        assertTrue(ud.hasUser(uname));
+    }
+
+    /**
+     * Tests that addUsers() reports users that already exist or fail the policy without stopping the other users from
+     * being added.
+     */
+    @Test
+    public void testAddUsersFailures() throws ConnectionFailureException, UserAlreadyExistsException, PolicyFailureException {
+        UserDirectory ud = create();
+        String existing = username();
+        String good = username();
+        String bad = username();
+        ud.addUser(existing, "foo", "bar", "baz");
+        removeUserLater(existing);
+        removeUserLater(good);
+        removeUserLater(bad);
+
+        ud.setPolicy(new Policy() {
+            @Override
+            public boolean checkUsername(String username) {
+                return true;
+            }
+
+            @Override
+            public boolean checkEmail(String email) {
+                return true;
+            }
+
+            @Override
+            public boolean checkScreenName(String screenName) {
+                return true;
+            }
+
+            @Override
+            public boolean checkPassword(String password) {
+                return !password.isEmpty();
+            }
+        });
+
+        Map<String, UserDirectoryException> failures = ud.addUsers(Arrays.asList(
+                new UserRegistration(existing, "foo", "bar", "baz"),
+                new UserRegistration(good, "foo", "bar", "baz"),
+                new UserRegistration(bad, "foo", "bar", "")));
+
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(existing) instanceof UserAlreadyExistsException);
+        assertTrue(failures.get(bad) instanceof PolicyFailureException);
+        assertEquals(PolicyFailure.ILLEGAL_PASSWORD, ((PolicyFailureException) failures.get(bad)).getFailure());
+        assertTrue(ud.hasUser(good));
+        assertFalse(ud.hasUser(bad));
+    }
+
+    /**
+     * Tests that a username registered twice in one addUsers() call is added at most once, and never when its first
+     * registration fails the policy.
+     */
+    @Test
+    public void testAddUsersDuplicateUsernames() throws ConnectionFailureException {
+        UserDirectory ud = create();
+        String bad = username();
+        String twice = username();
+        removeUserLater(bad);
+        removeUserLater(twice);
+
+        ud.setPolicy(new Policy() {
+            @Override
+            public boolean checkUsername(String username) {
+                return true;
+            }
+
+            @Override
+            public boolean checkEmail(String email) {
+                return true;
+            }
+
+            @Override
+            public boolean checkScreenName(String screenName) {
+                return true;
+            }
+
+            @Override
+            public boolean checkPassword(String password) {
+                return !password.isEmpty();
+            }
+        });
+
+        Map<String, UserDirectoryException> failures = ud.addUsers(Arrays.asList(
+                new UserRegistration(bad, "foo", "bar", ""),
+                new UserRegistration(bad, "foo", "bar", "baz"),
+                new UserRegistration(twice, "foo", "bar", "baz"),
+                new UserRegistration(twice, "qux", "quux", "corge")));
+
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(bad) instanceof PolicyFailureException);
+        assertFalse(ud.hasUser(bad));
+        assertTrue(failures.get(twice) instanceof UserAlreadyExistsException);
+        assertEquals(new UserData(twice, "foo", "bar"), ud.getUserData(twice).get());
+        assertTrue(ud.authenticateUser(twice, "baz"));
+    }
+
+    /**
+     * Tests that getUsers() with a starting username and a limit pages through users in ascending order.
+     */
+    @Test
+    public void testGetUsersPaged() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String base = username();
+        String[] usernames = {base + "-c", base + "-a", base + "-e", base + "-b", base + "-d"};
+        for (String name : usernames) {
+            ud.addUser(name, "foo", "bar", "baz");
+            removeUserLater(name);
+        }
+
+        assertEquals(Arrays.asList(base + "-a", base + "-b"), ud.getUsers(base, 2));
+        assertEquals(Arrays.asList(base + "-c", base + "-d"), ud.getUsers(base + "-b", 2));
+        List<String> last = ud.getUsers(base + "-d", 2);
+        assertEquals(base + "-e", last.get(0));
+        assertTrue(ud.getUsers(base, 0).isEmpty());
+        assertFalse(ud.getUsers(null, 1).isEmpty());
+        try {
+            ud.getUsers(base, -1);
+            fail("Failed to throw an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that streamUsers() streams every user.
+     */
+    @Test
+    public void testStreamUsers() throws UserDirectoryException {
+        UserDirectory ud = create();
+        Set<String> usernames = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            String name = username();
+            ud.addUser(name, "foo", "bar", "baz");
+            removeUserLater(name);
+            usernames.add(name);
+        }
+        ud.removeUser(usernames.iterator().next());
+        usernames.remove(usernames.iterator().next());
+
+        try (Stream<String> stream = ud.streamUsers()) {
+            Set<String> streamed = stream.filter(usernames::contains).collect(Collectors.toSet());
+            assertEquals(usernames, streamed);
+        }
+    }
+
+    /**
+     * Tests that findUsersByPrefix() finds only the usernames starting with the prefix, in ascending order, up to the
+     * limit, and treats LIKE wildcards in the prefix literally.
+     */
+    @Test
+    public void testFindUsersByPrefix() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String base = username();
+        String[] usernames = {base + "-b", base + "-a_", base + "-c%", base + "-ab", base + "x"};
+        for (String name : usernames) {
+            ud.addUser(name, "foo", "bar", "baz");
+            removeUserLater(name);
+        }
+
+        assertEquals(Arrays.asList(base + "-a_", base + "-ab", base + "-b", base + "-c%"), ud.findUsersByPrefix(base + "-", 10));
+        assertEquals(Arrays.asList(base + "-a_", base + "-ab"), ud.findUsersByPrefix(base + "-", 2));
+        assertEquals(Arrays.asList(base + "-a_"), ud.findUsersByPrefix(base + "-a_", 10));
+        assertEquals(Arrays.asList(base + "-c%"), ud.findUsersByPrefix(base + "-c%", 10));
+        assertTrue(ud.findUsersByPrefix(base + "-d", 10).isEmpty());
+        assertTrue(ud.findUsersByPrefix(base, 0).isEmpty());
+        assertEquals(5, ud.findUsersByPrefix(base, 10).size());
+    }
+
+    /**
+     * Tests that findByEmail() returns every user with the email, and follows users whose email changes.
+     */
+    @Test
+    public void testFindByEmail() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String first = username();
+        String second = username();
+        String other = username();
+        String email = first + "@example.com";
+        ud.addUser(first, email, "one", "pass");
+        ud.addUser(second, email, "two", "pass");
+        ud.addUser(other, other + "@example.com", "three", "pass");
+        removeUserLater(first);
+        removeUserLater(second);
+        removeUserLater(other);
+
+        Set<String> found = ud.findByEmail(email).stream().map(UserData::getUsername).collect(Collectors.toSet());
+        assertEquals(new HashSet<>(Arrays.asList(first, second)), found);
+        assertEquals(Arrays.asList(new UserData(other, other + "@example.com", "three")), ud.findByEmail(other + "@example.com"));
+
+        ud.updateEmail(second, second + "@example.com");
+        assertEquals(Arrays.asList(new UserData(first, email, "one")), ud.findByEmail(email));
+        assertEquals(1, ud.findByEmail(second + "@example.com").size());
+
+        ud.removeUser(first);
+        assertTrue(ud.findByEmail(email).isEmpty());
+        assertTrue(ud.findByEmail(null).isEmpty());
+    }
+
+    /**
+     * Tests that a policy requiring unique emails rejects new users with a taken email and leaves users unchanged when
+     * updated to one.
+     */
+    @Test
+    public void testUniqueEmails() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String existing = username();
+        String updated = username();
+        String duplicate = username();
+        String batchFirst = username();
+        String batchSecond = username();
+        String email = existing + "@example.com";
+        removeUserLater(existing);
+        removeUserLater(updated);
+        removeUserLater(duplicate);
+        removeUserLater(batchFirst);
+        removeUserLater(batchSecond);
+
+        ud.setPolicy(new Policy() {
+            @Override
+            public boolean checkUsername(String username) {
+                return true;
+            }
+
+            @Override
+            public boolean checkEmail(String email) {
+                return true;
+            }
+
+            @Override
+            public boolean checkScreenName(String screenName) {
+                return true;
+            }
+
+            @Override
+            public boolean checkPassword(String password) {
+                return true;
+            }
+
+            @Override
+            public boolean requireUniqueEmails() {
+                return true;
+            }
+        });
+
+        ud.addUser(existing, email, "bar", "baz");
+        ud.addUser(updated, updated + "@example.com", "bar", "baz");
+        try {
+            ud.addUser(duplicate, email, "bar", "baz");
+            fail("Expected a PolicyFailureException.");
+        } catch (PolicyFailureException e) {
+            assertEquals(PolicyFailure.DUPLICATE_EMAIL, e.getFailure());
+        }
+        assertFalse(ud.hasUser(duplicate));
+
+        Map<String, UserDirectoryException> failures = ud.addUsers(Arrays.asList(
+                new UserRegistration(duplicate, email, "bar", "baz"),
+                new UserRegistration(batchFirst, batchFirst + "@example.com", "bar", "baz"),
+                new UserRegistration(batchSecond, batchFirst + "@example.com", "bar", "baz")));
+        assertEquals(2, failures.size());
+        assertEquals(PolicyFailure.DUPLICATE_EMAIL, ((PolicyFailureException) failures.get(duplicate)).getFailure());
+        assertEquals(PolicyFailure.DUPLICATE_EMAIL, ((PolicyFailureException) failures.get(batchSecond)).getFailure());
+        assertTrue(ud.hasUser(batchFirst));
+        assertFalse(ud.hasUser(batchSecond));
+
+        ud.updateEmail(updated, email);
+        assertEquals(updated + "@example.com", ud.getUserData(updated).get().getEmail());
+        ud.updateEmail(existing, existing + "@example.org");
+        ud.updateEmail(updated, email);
+        assertEquals(email, ud.getUserData(updated).get().getEmail());
+
+        assertFalse(ud.updateUser(existing, UserPatch.builder().email(email).screenName("qux").build()));
+        assertEquals(new UserData(existing, existing + "@example.org", "bar"), ud.getUserData(existing).get());
+        assertTrue(ud.updateUser(updated, UserPatch.builder().email(email).screenName("qux").build()));
+        assertEquals(new UserData(updated, email, "qux"), ud.getUserData(updated).get());
+    }
+
+    /**
+     * Tests that updateUser() makes every change in a patch, or none when the user doesn't exist or the new username is
+     * taken.
+     */
+    @Test
+    public void testUpdateUser() throws UserDirectoryException {
+        UserDirectory ud = create();
+        String user = username();
+        String renamed = username();
+        String other = username();
+        removeUserLater(user);
+        removeUserLater(renamed);
+        removeUserLater(other);
+
+        ud.addUser(user, "foo", "bar", "baz");
+        ud.addUser(other, "foo", "bar", "baz");
+
+        assertTrue(ud.updateUser(user, UserPatch.builder().build()));
+        assertTrue(ud.updateUser(user, UserPatch.builder().email("qux").screenName("quux").password("corge").build()));
+        assertEquals(new UserData(user, "qux", "quux"), ud.getUserData(user).get());
+        assertTrue(ud.authenticateUser(user, "corge"));
+        assertFalse(ud.authenticateUser(user, "baz"));
+
+        assertFalse(ud.updateUser(user, UserPatch.builder().username(other).email(null).build()));
+        assertEquals(new UserData(user, "qux", "quux"), ud.getUserData(user).get());
+        assertEquals(new UserData(other, "foo", "bar"), ud.getUserData(other).get());
+
+        assertTrue(ud.updateUser(user, UserPatch.builder().username(renamed).email(null).build()));
+        assertFalse(ud.hasUser(user));
+        UserData data = ud.getUserData(renamed).get();
+        assertNull(data.getEmail());
+        assertEquals("quux", data.getScreenName());
+        assertTrue(ud.authenticateUser(renamed, "corge"));
+
+        String missing = username() + "thisshoudln'texist";
+        assertFalse(ud.updateUser(missing, UserPatch.builder().build()));
+        assertFalse(ud.updateUser(missing, UserPatch.builder().screenName("quux").password("corge").build()));
+        assertFalse(ud.hasUser(missing));
+    }
+
     private void removeUserLater(String username) {
         usersToRemove.add(username);
     }
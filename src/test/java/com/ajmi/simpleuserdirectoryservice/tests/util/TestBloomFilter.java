@@ -0,0 +1,59 @@
+package com.ajmi.simpleuserdirectoryservice.tests.util;
+
+import com.ajmi.simpleuserdirectoryservice.util.BloomFilter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the BloomFilter class.
+ */
+public class TestBloomFilter {
+
+    /**
+     * Tests that every string added to the filter is reported as possibly contained.
+     */
+    @Test
+    public void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put("user" + i);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(filter.mightContain("user" + i));
+        }
+    }
+
+    /**
+     * Tests that the observed false positive rate is close to the requested rate.
+     */
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put("user" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("stranger" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives / 100_000.0 < 0.02);
+        assertEquals(0.01, filter.getExpectedFalsePositiveRate(), 0.005);
+        assertEquals(10_000, filter.getApproximateElementCount(), 500);
+    }
+
+    /**
+     * Tests that an empty filter contains nothing.
+     */
+    @Test
+    public void testEmpty() {
+        BloomFilter filter = new BloomFilter(100, 0.01);
+        assertFalse(filter.mightContain("foo"));
+        assertEquals(0, filter.getExpectedFalsePositiveRate(), 0);
+        assertTrue(filter.getMemoryBytes() > 0);
+    }
+}
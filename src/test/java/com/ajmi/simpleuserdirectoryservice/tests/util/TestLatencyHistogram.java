@@ -0,0 +1,98 @@
+package com.ajmi.simpleuserdirectoryservice.tests.util;
+
+import com.ajmi.simpleuserdirectoryservice.util.LatencyHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the LatencyHistogram class.
+ */
+public class TestLatencyHistogram {
+
+    /**
+     * Tests that an empty histogram reports zero for everything.
+     */
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtQuantile(0.99));
+    }
+
+    /**
+     * Tests that small values are counted exactly.
+     */
+    @Test
+    public void testSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(50, snapshot.getValueAtQuantile(0.5));
+        assertEquals(99, snapshot.getValueAtQuantile(0.99));
+        assertEquals(1, snapshot.getValueAtQuantile(0));
+        assertEquals(100, snapshot.getValueAtQuantile(1));
+    }
+
+    /**
+     * Tests that quantiles of values spanning many powers of two are within the histogram's precision.
+     */
+    @Test
+    public void testPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1_000_000; value++) {
+            histogram.record(value * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double quantile : new double[] {0.01, 0.5, 0.9, 0.99, 0.999}) {
+            double expected = quantile * 1_000_000 * 1000;
+            double actual = snapshot.getValueAtQuantile(quantile);
+            assertTrue(quantile + ": " + actual, Math.abs(actual - expected) <= expected / 64);
+        }
+        assertEquals(1_000_000_000L, snapshot.getMax());
+    }
+
+    /**
+     * Tests that values beyond the trackable range are counted in the last bucket without losing the maximum.
+     */
+    @Test
+    public void testHugeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtQuantile(0.5));
+        assertTrue(snapshot.getValueAtQuantile(1) > 4_000_000_000_000L);
+    }
+
+    /**
+     * Tests that values recorded concurrently are all counted.
+     */
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800_000, histogram.snapshot().getCount());
+    }
+}
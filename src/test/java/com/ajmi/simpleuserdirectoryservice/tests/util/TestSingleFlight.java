@@ -0,0 +1,185 @@
+package com.ajmi.simpleuserdirectoryservice.tests.util;
+
+import com.ajmi.simpleuserdirectoryservice.util.SingleFlight;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the SingleFlight class.
+ */
+public class TestSingleFlight {
+
+    /**
+     * Tests that callers arriving while a call is in flight share its result instead of making their own calls.
+     */
+    @Test
+    public void testConcurrentCallersShareOneCall() throws InterruptedException {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        List<String> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                String result = flights.execute("foo", () -> {
+                    calls.incrementAndGet();
+                    entered.countDown();
+                    await(release);
+                    return "bar";
+                });
+                synchronized (results) {
+                    results.add(result);
+                }
+            });
+            threads.add(thread);
+        }
+        threads.get(0).start();
+        entered.await();
+        for (int i = 1; i < threads.size(); i++) {
+            threads.get(i).start();
+        }
+        // give the other callers time to find the call in flight
+        while (flights.getSharedCount() < threads.size() - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(1, flights.getCallCount());
+        assertEquals(threads.size(), results.size());
+        for (String result : results) {
+            assertEquals("bar", result);
+        }
+    }
+
+    /**
+     * Tests that callers sharing a call that throws all receive its exception.
+     */
+    @Test
+    public void testSharedException() throws InterruptedException {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IOException failure = new IOException("baz");
+        List<Throwable> caught = new ArrayList<>();
+        Runnable caller = () -> {
+            try {
+                flights.execute("foo", () -> {
+                    entered.countDown();
+                    release.await();
+                    throw failure;
+                });
+            } catch (Exception e) {
+                synchronized (caught) {
+                    caught.add(e);
+                }
+            }
+        };
+        Thread leader = new Thread(caller);
+        leader.start();
+        entered.await();
+        Thread waiter = new Thread(caller);
+        waiter.start();
+        while (flights.getSharedCount() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        leader.join();
+        waiter.join();
+
+        assertEquals(2, caught.size());
+        assertSame(failure, caught.get(0));
+        assertSame(failure, caught.get(1));
+    }
+
+    /**
+     * Tests that results are not cached once their call finishes, and that a forgotten call is not shared.
+     */
+    @Test
+    public void testNoCachingAndForget() throws InterruptedException {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(1, (int) flights.execute("foo", calls::incrementAndGet));
+        assertEquals(2, (int) flights.execute("foo", calls::incrementAndGet));
+
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> flights.execute("foo", () -> {
+            entered.countDown();
+            await(release);
+            return -1;
+        }));
+        leader.start();
+        entered.await();
+        flights.forget("foo");
+        try {
+            assertEquals(3, (int) flights.execute("foo", calls::incrementAndGet));
+        } finally {
+            release.countDown();
+            leader.join();
+        }
+        assertEquals(0, flights.getSharedCount());
+    }
+
+    /**
+     * Tests that an interrupted waiter still returns the shared result, with its interrupt status set.
+     */
+    @Test
+    public void testInterruptedWaiter() throws InterruptedException {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> flights.execute("foo", () -> {
+            entered.countDown();
+            await(release);
+            return "bar";
+        }));
+        leader.start();
+        entered.await();
+        String[] result = new String[1];
+        boolean[] interrupted = new boolean[1];
+        Thread waiter = new Thread(() -> {
+            result[0] = flights.execute("foo", () -> {
+                fail("Expected the call in flight to be shared.");
+                return null;
+            });
+            interrupted[0] = Thread.currentThread().isInterrupted();
+        });
+        waiter.start();
+        while (flights.getSharedCount() < 1) {
+            Thread.sleep(1);
+        }
+        waiter.interrupt();
+        release.countDown();
+        leader.join();
+        waiter.join();
+
+        assertEquals("bar", result[0]);
+        assertEquals(true, interrupted[0]);
+    }
+
+    /**
+     * Waits for a latch from a call that can't throw InterruptedException.
+     * @param latch the latch to wait for.
+     */
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.ajmi.simpleuserdirectoryservice.tests.util;
+
+import com.ajmi.simpleuserdirectoryservice.util.TokenBucket;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the TokenBucket class.
+ */
+public class TestTokenBucket {
+
+    /**
+     * Tests that a new bucket permits a burst of its capacity, then nothing until a token is refilled.
+     */
+    @Test
+    public void testBurstThenRefill() {
+        TokenBucket bucket = new TokenBucket(3, 100, 1_000);
+        assertTrue(bucket.isFull(1_000));
+        assertEquals(3, bucket.getAvailableTokens(1_000));
+        assertTrue(bucket.tryAcquire(1_000));
+        assertTrue(bucket.tryAcquire(1_000));
+        assertTrue(bucket.tryAcquire(1_000));
+        assertFalse(bucket.tryAcquire(1_000));
+        assertFalse(bucket.tryAcquire(1_099));
+        assertEquals(0, bucket.getAvailableTokens(1_099));
+
+        assertTrue(bucket.tryAcquire(1_100));
+        assertFalse(bucket.tryAcquire(1_100));
+        assertFalse(bucket.isFull(1_300));
+        assertTrue(bucket.isFull(1_400));
+    }
+
+    /**
+     * Tests that a bucket left alone refills only up to its capacity.
+     */
+    @Test
+    public void testRefillIsCapped() {
+        TokenBucket bucket = new TokenBucket(2, 100, -5_000);
+        assertTrue(bucket.tryAcquire(-5_000));
+        assertTrue(bucket.tryAcquire(-5_000));
+        assertEquals(2, bucket.getAvailableTokens(1_000_000));
+        assertTrue(bucket.tryAcquire(1_000_000));
+        assertTrue(bucket.tryAcquire(1_000_000));
+        assertFalse(bucket.tryAcquire(1_000_000));
+    }
+
+    /**
+     * Tests that threads racing for tokens take exactly the bucket's capacity between them.
+     */
+    @Test
+    public void testConcurrentAcquire() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1_000, Long.MAX_VALUE / 2_000, 0);
+        AtomicInteger acquired = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 500; j++) {
+                    if (bucket.tryAcquire(0)) {
+                        acquired.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1_000, acquired.get());
+    }
+}